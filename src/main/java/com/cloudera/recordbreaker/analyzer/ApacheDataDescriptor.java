@@ -72,6 +72,34 @@ public class ApacheDataDescriptor extends TextRegexpDataDescriptor {
       return false;
     }
   }
+  public static boolean isApacheLogFile(FileProbe probe) {
+    try {
+      return TextRegexpDataDescriptor.isTextRegexpFile(probe, apacheRegexps);
+    } catch (IOException iex) {
+      return false;
+    }
+  }
+
+  /**
+   * Finds Apache log files for the FormatDetectorRegistry
+   */
+  public static class Detector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return APACHE_TYPE;
+    }
+    public int getCostTier() {
+      return CONTENT_SCAN;
+    }
+    public boolean matches(FileProbe probe) throws IOException {
+      return isApacheLogFile(probe);
+    }
+    public DataDescriptor describe(FileSystem fs, Path p) throws IOException {
+      return new ApacheDataDescriptor(p, fs);
+    }
+    public DataDescriptor load(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new ApacheDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
   
   public ApacheDataDescriptor(Path p, FileSystem fs) throws IOException {
     super(p, fs, APACHE_TYPE, apacheRegexps, apacheSchemas);
@@ -37,6 +37,27 @@ import org.apache.hadoop.conf.Configuration;
  *****************************************************/
 public class AvroDataDescriptor extends GenericDataDescriptor {
   final public static String AVRO_TYPE = "avro";
+
+  /**
+   * Finds Avro files for the FormatDetectorRegistry
+   */
+  public static class Detector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return AVRO_TYPE;
+    }
+    public int getCostTier() {
+      return EXTENSION;
+    }
+    public boolean matches(FileProbe probe) throws IOException {
+      return probe.getPath().getName().endsWith(".avro");
+    }
+    public DataDescriptor describe(FileSystem fs, Path p) throws IOException {
+      return new AvroDataDescriptor(p, fs);
+    }
+    public DataDescriptor load(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new AvroDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
   
   public AvroDataDescriptor(Path p, FileSystem fs) throws IOException {
     super(p, fs, AVRO_TYPE);
@@ -59,6 +59,30 @@ public class AvroSequenceFileDataDescriptor extends GenericDataDescriptor {
       return false;
     }
   }
+  public static boolean isAvroSequenceFile(FileProbe probe) {
+    return probe.startsWith(SequenceFileDataDescriptor.SEQFILE_MAGIC) && isAvroSequenceFile(probe.getFileSystem(), probe.getPath());
+  }
+
+  /**
+   * Finds AvroSequenceFile files for the FormatDetectorRegistry
+   */
+  public static class Detector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return AVROSEQFILE_TYPE;
+    }
+    public int getCostTier() {
+      return MAGIC_BYTES;
+    }
+    public boolean matches(FileProbe probe) throws IOException {
+      return isAvroSequenceFile(probe);
+    }
+    public DataDescriptor describe(FileSystem fs, Path p) throws IOException {
+      return new AvroSequenceFileDataDescriptor(p, fs);
+    }
+    public DataDescriptor load(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new AvroSequenceFileDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
 
   public AvroSequenceFileDataDescriptor(Path p, FileSystem fs) throws IOException {
     super(p, fs, AVROSEQFILE_TYPE);
@@ -29,6 +29,8 @@ import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
 
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
@@ -49,48 +51,85 @@ public class CSVDataDescriptor extends GenericDataDescriptor {
   private static int MIN_MEAN_ELTS = 3;
   private static int MIN_LINE_COUNT = 10;
   private static double MAX_ALLOWABLE_LINE_STDDEV = 0.1;
+
+  /**
+   * Finds CSV files for the FormatDetectorRegistry.  At the EXTENSION tier it
+   * takes files named .csv; at the CONTENT_SCAN tier it checks the first lines.
+   */
+  public static class Detector implements FormatDetector {
+    int costTier;
+    public Detector(int costTier) {
+      this.costTier = costTier;
+    }
+    public String getFileTypeIdentifier() {
+      return CSV_TYPE;
+    }
+    public int getCostTier() {
+      return costTier;
+    }
+    public boolean matches(FileProbe probe) throws IOException {
+      if (costTier == EXTENSION) {
+        return CompressedInput.getUncompressedName(probe.getFileSystem(), probe.getPath()).endsWith(".csv");
+      }
+      return isCSV(probe);
+    }
+    public DataDescriptor describe(FileSystem fs, Path p) throws IOException {
+      return new CSVDataDescriptor(p, fs);
+    }
+    public DataDescriptor load(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new CSVDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
   
   /**
    * Test whether a given file is amenable to CSV processing
    */
   public static boolean isCSV(FileSystem fs, Path p) {
-    String fname = p.getName();    
+    if (CompressedInput.getUncompressedName(fs, p).endsWith(".csv")) {
+      return true;
+    }
+    try {
+      return isCSV(new FileProbe(fs, p));
+    } catch (IOException ie) {
+      return false;
+    }
+  }
+
+  /**
+   * Test the file's first lines, as held by <code>probe</code>
+   */
+  public static boolean isCSV(FileProbe probe) {
+    String fname = CompressedInput.getUncompressedName(probe.getFileSystem(), probe.getPath());
     if (fname.endsWith(".csv")) {
       return true;
     }
     CSVParser parser = new CSVParser();
     try {
-      BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
-      try {
-        int lineCount = 0;
-        List<Integer> observedEltCounts = new ArrayList<Integer>();
-        int totalEltCount = 0;
-        int minEltCount = Integer.MAX_VALUE;
-        int maxEltCount = -1;
+      int lineCount = 0;
+      List<Integer> observedEltCounts = new ArrayList<Integer>();
+      int totalEltCount = 0;
+      int minEltCount = Integer.MAX_VALUE;
+      int maxEltCount = -1;
 
-        String line = null;
-        while (lineCount < MAX_LINES && ((line = in.readLine()) != null)) {
-          String parts[] = parser.parseLine(line);
-          int numElts = parts.length;
-          minEltCount = Math.min(minEltCount, numElts);
-          maxEltCount = Math.max(maxEltCount, numElts);
-          totalEltCount += numElts;
-          observedEltCounts.add(numElts);
+      for (String line: probe.getLines(MAX_LINES)) {
+        String parts[] = parser.parseLine(line);
+        int numElts = parts.length;
+        minEltCount = Math.min(minEltCount, numElts);
+        maxEltCount = Math.max(maxEltCount, numElts);
+        totalEltCount += numElts;
+        observedEltCounts.add(numElts);
         
-          lineCount++;
-        }
-        double meanEltCount = totalEltCount / (1.0 * observedEltCounts.size());
-        double totalVariance = 0;
-        for (Integer v: observedEltCounts) {
-          totalVariance += Math.pow(v - meanEltCount, 2);
-        }
-        double variance = totalVariance / observedEltCounts.size();
-        double stddev = Math.sqrt(variance);
-        if (lineCount >= MIN_LINE_COUNT && meanEltCount >= MIN_MEAN_ELTS && ((stddev / meanEltCount) < MAX_ALLOWABLE_LINE_STDDEV)) {
-          return true;
-        }
-      } finally {
-        in.close();
+        lineCount++;
+      }
+      double meanEltCount = totalEltCount / (1.0 * observedEltCounts.size());
+      double totalVariance = 0;
+      for (Integer v: observedEltCounts) {
+        totalVariance += Math.pow(v - meanEltCount, 2);
+      }
+      double variance = totalVariance / observedEltCounts.size();
+      double stddev = Math.sqrt(variance);
+      if (lineCount >= MIN_LINE_COUNT && meanEltCount >= MIN_MEAN_ELTS && ((stddev / meanEltCount) < MAX_ALLOWABLE_LINE_STDDEV)) {
+        return true;
       }
     } catch (IOException ie) {
     }
@@ -130,7 +169,7 @@ public class CSVDataDescriptor extends GenericDataDescriptor {
     int numRecords = 0;
     int MAX_RECORDS = 1000;
     try {
-      BufferedReader in = new BufferedReader(new InputStreamReader(srcFs.open(getFilename())));
+      BufferedReader in = new BufferedReader(new InputStreamReader(CompressedInput.open(srcFs, getFilename())));
       try {
         String rowStr = null;
         while (((rowStr = in.readLine()) != null) && (numRecords < MAX_RECORDS)) {
@@ -17,43 +17,67 @@ package com.cloudera.recordbreaker.analyzer;
 import java.util.*;
 
 /***********************************************************
- * Describes what a live crawl is doing
+ * Describes what a live crawl is doing.  Several worker threads
+ * update it at once, so every accessor is synchronized.
  *************************************************************/
 public class CrawlRuntimeStatus {
   public String msg;
   public int numDone;
   public int numToProcess;
-  boolean shouldFinish;
+  int numInProgress;
+  volatile boolean shouldFinish;
   
   public CrawlRuntimeStatus(String msg) {
     this.msg = msg;
     this.numToProcess = 0;
     this.numDone = 0;
+    this.numInProgress = 0;
     this.shouldFinish = false;
   }
-  public void setMessage(String msg) {
+  public synchronized void setMessage(String msg) {
     this.msg = msg;
   }
-  public String getMessage() {
+  public synchronized String getMessage() {
     return this.msg;
   }
-  public int getNumToProcess() {
+  public synchronized int getNumToProcess() {
     return numToProcess;
   }
-  public int getNumDone() {
+  public synchronized int getNumDone() {
     return numDone;
   }
+  public synchronized int getNumInProgress() {
+    return numInProgress;
+  }
   public boolean shouldFinish() {
     return shouldFinish;
   }
   public void setShouldFinish(boolean shouldFinish) {
     this.shouldFinish = shouldFinish;
   }
-  public void setNumToProcess(int numToProcess) {
+  public synchronized void setNumToProcess(int numToProcess) {
     this.numToProcess = numToProcess;
   }
-  public void setNumDone(int numDone) {
+  public synchronized void setNumDone(int numDone) {
     this.numDone = numDone;
   }
-  
+  public synchronized void addNumToProcess(int n) {
+    this.numToProcess += n;
+  }
+
+  /**
+   * A worker has started on an item.  'msg' describes it.
+   */
+  public synchronized void startItem(String msg) {
+    this.msg = msg;
+    this.numInProgress++;
+  }
+
+  /**
+   * A worker has finished an item that it started with startItem()
+   */
+  public synchronized void finishItem() {
+    this.numInProgress--;
+    this.numDone++;
+  }
 }
\ No newline at end of file
@@ -28,6 +28,8 @@ import java.util.Random;
 import java.util.ArrayList;
 import java.net.URISyntaxException;
 
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
 import org.apache.hadoop.hive.cli.*;
 
 import org.apache.hadoop.fs.Path;
@@ -63,7 +65,12 @@ public class FSAnalyzer {
   // All the SQL statements we need
   ////////////////////////////////////////
   static Random r = new Random();
-  static SimpleDateFormat fileDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+  // SimpleDateFormat isn't thread-safe, and crawl workers call in here concurrently
+  static ThreadLocal<SimpleDateFormat> fileDateFormat = new ThreadLocal<SimpleDateFormat>() {
+    protected SimpleDateFormat initialValue() {
+      return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    }
+  };
 
   //
   // 1. Create the schemas
@@ -178,6 +185,10 @@ public class FSAnalyzer {
     }
   };
 
+  public InferenceCache getInferenceCache() {
+    return formatAnalyzer.getInferenceCache();
+  }
+
   public FileSystem getFS() {
     String uriStr = getConfigProperty("fsuri");
     if (uriStr == null) {
@@ -227,8 +238,8 @@ public class FSAnalyzer {
         return dbQueue.execute(new SQLiteJob<Long>() {
             protected Long job(SQLiteConnection db) throws SQLiteException {
               Date now = new Date(System.currentTimeMillis());
-              String dateCreated = fileDateFormat.format(now);
-              String syntheticDateFinished = fileDateFormat.format(new Date(0));
+              String dateCreated = fileDateFormat.get().format(now);
+              String syntheticDateFinished = fileDateFormat.get().format(new Date(0));
               String inprogress = "True";
               SQLiteStatement stmt = db.prepare("INSERT into Crawls VALUES(null, ?, ?, ?, ?)");
               try {
@@ -250,7 +261,7 @@ public class FSAnalyzer {
           SQLiteStatement stmt = db.prepare("UPDATE Crawls SET inprogress='False', crawlfinished=? WHERE crawlid = ?");
           try {
             Date now = new Date(System.currentTimeMillis());
-            String dateFinished = fileDateFormat.format(now);
+            String dateFinished = fileDateFormat.get().format(now);
             stmt.bind(1, dateFinished).bind(2, crawlid);
             if (stmt.step()) {
               return crawlid;
@@ -287,10 +298,11 @@ public class FSAnalyzer {
   ///////////////////////////////////////////////
   /**
    * Helper fn <code>getCreateType</code> returns the id of a specified Type in the Types table.
-   * The row is created, if necessary.
+   * The row is created, if necessary.  The lookup and the insert are one job on the
+   * queue, so two crawl workers can't both create the same Type.
    */
   long getCreateType(final String typeLabel) throws SQLiteException {
-    long typeid = dbQueue.execute(new SQLiteJob<Long>() {
+    return dbQueue.execute(new SQLiteJob<Long>() {
         protected Long job(SQLiteConnection db) throws SQLiteException {
           SQLiteStatement stmt = db.prepare("SELECT typeid FROM Types WHERE typelabel = ?");
           try {
@@ -298,23 +310,13 @@ public class FSAnalyzer {
             if (stmt.step()) {
               long resultId = stmt.columnLong(0);
               return resultId;
-            } else {
-              return -1L;
             }
           } finally {
             stmt.dispose();
           }
-        }
-      }).complete();
 
-    if (typeid >= 0) {
-      return typeid;
-    }
-    
-    // Time to insert
-    return dbQueue.execute(new SQLiteJob<Long>() {
-        protected Long job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare("INSERT into Types VALUES(null, ?)");
+          // Time to insert
+          stmt = db.prepare("INSERT into Types VALUES(null, ?)");
           try {
             stmt.bind(1, typeLabel);
             stmt.step();
@@ -328,37 +330,27 @@ public class FSAnalyzer {
 
   /**
    * Helper fn <code>getCreateSchema</code> returns the id of a specified Schema in the Schemas table.
-   * The row is created, if necessary.
+   * The row is created, if necessary.  As with getCreateType(), this is a single job.
    */
   long getCreateSchema(SchemaDescriptor sd) throws SQLiteException {
     final String schemaIdentifier = (sd == null) ? "" : sd.getSchemaIdentifier();
     final String schemaDesc = (sd == null) ? "no schema" : sd.getSchemaSourceDescription();
     final byte[] payload = (sd == null) ? new byte[0] : sd.getPayload();
-    long schemaid = dbQueue.execute(new SQLiteJob<Long>() {
+    return dbQueue.execute(new SQLiteJob<Long>() {
         protected Long job(SQLiteConnection db) throws SQLiteException {
-          final SQLiteStatement stmt = db.prepare("SELECT schemaid FROM Schemas WHERE schemarepr = ? AND schemasrcdescription = ?");
+          SQLiteStatement stmt = db.prepare("SELECT schemaid FROM Schemas WHERE schemarepr = ? AND schemasrcdescription = ?");
           try {
             stmt.bind(1, schemaIdentifier).bind(2, schemaDesc);
             if (stmt.step()) {
               long resultId = stmt.columnLong(0);
               return resultId;
-            } else {
-              return -1L;
             }
           } finally {
             stmt.dispose();
           }
-        }
-      }).complete();
 
-    if (schemaid >= 0) {
-      return schemaid;
-    }
-    
-    // Time to insert
-    return dbQueue.execute(new SQLiteJob<Long>() {
-        protected Long job(SQLiteConnection db) throws SQLiteException {
-          final SQLiteStatement stmt = db.prepare("INSERT into Schemas VALUES(null, ?, ?, ?)");
+          // Time to insert
+          stmt = db.prepare("INSERT into Schemas VALUES(null, ?, ?, ?)");
           try {
             stmt.bind(1, schemaIdentifier).bind(2, schemaDesc).bind(3, payload);
             stmt.step();
@@ -372,10 +364,22 @@ public class FSAnalyzer {
 
   /**
    * Add a single brand-new file to the system.  Parse it, obtain structure, etc, if needed.
+   *
+   * FSCrawler calls this from several threads at once.  The parsing runs on the calling
+   * thread; every database access is a job on <code>dbQueue</code>, which runs them one
+   * at a time.
    */
   void addSingleFile(FileSystem fs, Path insertFile, long crawlId) throws IOException {
-    FileStatus fstatus = fs.getFileStatus(insertFile);
-    addFileMetadata(fstatus, crawlId);
+    addSingleFile(fs, fs.getFileStatus(insertFile), crawlId);
+  }
+
+  /**
+   * As above, for a file whose FileStatus the caller already has, such as one
+   * returned by a directory listing.
+   */
+  void addSingleFile(FileSystem fs, FileStatus fstatus, long crawlId) throws IOException {
+    Path insertFile = fstatus.getPath();
+    final long fileId = addFileMetadata(fstatus, crawlId);
     final boolean isDir = fstatus.isDir();
 
     if (! isDir) {
@@ -387,12 +391,10 @@ public class FSAnalyzer {
 
         if (schemas == null || schemas.size() == 0) {
           typeGuesses.add(getCreateType(descriptor.getFileTypeIdentifier()));
-          typeGuesses.add(getSingleFileSummary(descriptor.getFilename().toString()).getFid());
           typeGuesses.add(getCreateSchema(null));
         } else {
           for (SchemaDescriptor sd: schemas) {
             typeGuesses.add(getCreateType(descriptor.getFileTypeIdentifier()));
-            typeGuesses.add(getSingleFileSummary(descriptor.getFilename().toString()).getFid());
             typeGuesses.add(getCreateSchema(sd));
           }
         }
@@ -400,12 +402,12 @@ public class FSAnalyzer {
         ex.printStackTrace();
       }
 
+      // Write all of the file's guesses in one job
       dbQueue.execute(new SQLiteJob<Object>() {
           protected Long job(SQLiteConnection db) throws SQLiteException {
-            for (int i = 0; i < typeGuesses.size(); i+=3) {
+            for (int i = 0; i + 1 < typeGuesses.size(); i+=2) {
               long typeId = typeGuesses.get(i);
-              long fileId = typeGuesses.get(i+1);              
-              long schemaId = typeGuesses.get(i+2);            
+              long schemaId = typeGuesses.get(i+1);
 
               SQLiteStatement stmt = db.prepare("INSERT into TypeGuesses VALUES(?, ?)");
               try {
@@ -414,19 +416,7 @@ public class FSAnalyzer {
               } finally {
                 stmt.dispose();
               }
-            }
-            return null;
-          }
-        }).complete();
-
-      dbQueue.execute(new SQLiteJob<Object>() {
-          protected Long job(SQLiteConnection db) throws SQLiteException {
-            for (int i = 0; i < typeGuesses.size(); i+=3) {
-              long typeId = typeGuesses.get(i);
-              long fileId = typeGuesses.get(i+1);              
-              long schemaId = typeGuesses.get(i+2);            
-
-              SQLiteStatement stmt = db.prepare("INSERT into SchemaGuesses VALUES(?, ?)");
+              stmt = db.prepare("INSERT into SchemaGuesses VALUES(?, ?)");
               try {
                 stmt.bind(1, fileId).bind(2, schemaId);
                 stmt.step();
@@ -442,8 +432,9 @@ public class FSAnalyzer {
 
   /**
    * <code>addFileMetadata</code> stores the pathname, size, owner, etc.
+   * Returns the new file's id.
    */
-  void addFileMetadata(final FileStatus fstatus, final long crawlId) {
+  long addFileMetadata(final FileStatus fstatus, final long crawlId) {
     // Compute strings to represent file metadata
     Path insertFile = fstatus.getPath(); 
     final boolean isDir = fstatus.isDir();
@@ -473,7 +464,7 @@ public class FSAnalyzer {
         protected Long job(SQLiteConnection db) throws SQLiteException {
           SQLiteStatement stmt = db.prepare("INSERT into Files VALUES(null, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
           try {
-            stmt.bind(1, isDir ? "True" : "False").bind(2, crawlId).bind(3, fName).bind(4, fstatus.getOwner()).bind(5, fstatus.getGroup()).bind(6, permissions).bind(7, fstatus.getLen()).bind(8, fileDateFormat.format(new Date(fstatus.getModificationTime()))).bind(9, parentPath);
+            stmt.bind(1, isDir ? "True" : "False").bind(2, crawlId).bind(3, fName).bind(4, fstatus.getOwner()).bind(5, fstatus.getGroup()).bind(6, permissions).bind(7, fstatus.getLen()).bind(8, fileDateFormat.get().format(new Date(fstatus.getModificationTime()))).bind(9, parentPath);
             stmt.step();
             return db.getLastInsertId();
           } finally {
@@ -481,6 +472,7 @@ public class FSAnalyzer {
           }
         }
       }).complete();
+    return fileId;
   }
 
   ///////////////////////////////////////////////////
@@ -972,7 +964,7 @@ public class FSAnalyzer {
   }
 
   public InputStream getRawBytes(Path p) throws IOException {
-    return getFS().open(p);
+    return CompressedInput.open(getFS(), p);
   }
   
   ///////////////////////////////////////////////////
@@ -1247,6 +1239,14 @@ public class FSAnalyzer {
    * Inits (and optionally creates) a new <code>FSAnalyzer</code> instance.
    */
   public FSAnalyzer(File metadataStore, File schemaDir) throws IOException, SQLiteException {
+    this(metadataStore, schemaDir, null);
+  }
+
+  /**
+   * Inits a new <code>FSAnalyzer</code> that caches learned text structure in
+   * <code>inferenceCacheDir</code>.  A null directory turns the cache off.
+   */
+  public FSAnalyzer(File metadataStore, File schemaDir, File inferenceCacheDir) throws IOException, SQLiteException {
     boolean isNew = false;
     metadataStore = metadataStore.getCanonicalFile();
     if (! metadataStore.exists()) {
@@ -1258,7 +1258,11 @@ public class FSAnalyzer {
     if (isNew) {
       createTables();
     }
-    this.formatAnalyzer = new FormatAnalyzer(schemaDir);
+    InferenceCache inferenceCache = null;
+    if (inferenceCacheDir != null) {
+      inferenceCache = new InferenceCache(inferenceCacheDir, InferenceCache.DEFAULT_MAX_ENTRIES);
+    }
+    this.formatAnalyzer = new FormatAnalyzer(schemaDir, inferenceCache);
     FSAnalyzer.fsaInstance = this;
   }
 
@@ -20,11 +20,15 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.Iterator;
 import java.util.Hashtable;
-import java.util.ArrayList;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
@@ -41,53 +45,53 @@ import com.almworks.sqlite4java.SQLiteException;
  * FSCrawler crawls a filesystem and stuffs the results into
  * an FSAnalyzer's store.
  *
+ * An FSLister walks the filesystem on its own threads, and files
+ * are analyzed as they are listed, on a pool of worker threads, one
+ * pool per crawl.  The analysis itself runs concurrently; FSAnalyzer
+ * serializes the database writes.
+ *
  * @author "Michael Cafarella" <mjc@cloudera.com>
  ***********************************************************/
 public class FSCrawler {
   final static int INFINITE_CRAWL_DEPTH = -1;
   private static final Log LOG = LogFactory.getLog(FSCrawler.class);  
-  
-  static SimpleDateFormat fileDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+  public static int DEFAULT_ANALYSIS_THREADS = Runtime.getRuntime().availableProcessors();
+  public static int DEFAULT_LISTING_THREADS = 4;
+  // Files handed to the pool and not yet finished, per worker
+  public static int MAX_PENDING_FILES_PER_THREAD = 4;
+  // Files listed but not yet handed to the pool, per worker
+  static int MAX_LISTED_FILES_PER_THREAD = 1024;
 
   Hashtable<Long, Thread> pendingCrawls = new Hashtable<Long, Thread>();
   Hashtable<Long, CrawlRuntimeStatus> crawlStatusInfo = new Hashtable<Long, CrawlRuntimeStatus>();
   FSAnalyzer analyzer;
   FileSystem fs;
+  int numAnalysisThreads;
+  int numListingThreads;
 
   /**
    * Needs an analyzer to work
    */
   public FSCrawler(FSAnalyzer analyzer) {
-    this.analyzer = analyzer;
-    this.fs = null;
+    this(analyzer, DEFAULT_ANALYSIS_THREADS);
   }
 
   /**
-   * Traverse an entire region of the filesystem, analyzing files.
-   * This code should:
-   * a) Navigate the directory hierarchy
-   * b) Run analysis code to figure out the file details
-   * c) Invoke addSingleFile() appropriately.
+   * Analyze files on 'numAnalysisThreads' worker threads
    */
-  protected void recursiveCrawlBuildList(FileSystem fs, Path p, int subdirDepth, long crawlId, List<Path> todoFileList, List<Path> todoDirList) throws IOException {
-    FileStatus fstatus = fs.getFileStatus(p);
-    if (! fstatus.isDir()) {
-      todoFileList.add(p);
-    } else {
-      if (subdirDepth > 0 || subdirDepth < 0) {
-        todoDirList.add(p);
-        Path paths[] = new Path[1];
-        paths[0] = p;
-        for (FileStatus subfilestatus: fs.listStatus(p)) {
-          Path subfile = subfilestatus.getPath();
-          try {
-            recursiveCrawlBuildList(fs, subfile, subdirDepth-1, crawlId, todoFileList, todoDirList);
-          } catch (IOException iex) {
-            iex.printStackTrace();
-          }
-        }
-      }
-    }
+  public FSCrawler(FSAnalyzer analyzer, int numAnalysisThreads) {
+    this(analyzer, numAnalysisThreads, DEFAULT_LISTING_THREADS);
+  }
+
+  /**
+   * Analyze files on 'numAnalysisThreads' worker threads, and list
+   * directories on 'numListingThreads' more (see FSLister)
+   */
+  public FSCrawler(FSAnalyzer analyzer, int numAnalysisThreads, int numListingThreads) {
+    this.analyzer = analyzer;
+    this.fs = null;
+    this.numAnalysisThreads = Math.max(1, numAnalysisThreads);
+    this.numListingThreads = Math.max(1, numListingThreads);
   }
 
   /**
@@ -113,78 +117,38 @@ public class FSCrawler {
         Thread t = new Thread() {
             public void run() {
               try {
-                synchronized (pendingCrawls) {
-                  pendingCrawls.put(crawlid, this);
-                }
-                synchronized (crawlStatusInfo) {
-                  crawlStatusInfo.put(crawlid, new CrawlRuntimeStatus("Initializing crawl"));
-                }
-                // Build the file and dir-level todo lists
-                List<Path> todoFileList = new ArrayList<Path>();
-                List<Path> todoDirList = new ArrayList<Path>();
-                recursiveCrawlBuildList(fs, startDir, subdirDepth, crawlid, todoFileList, todoDirList);
-
-                // Get the files to process
-                TreeSet<String> observedFilenames = new TreeSet<String>();
+                // Paths this crawl already stored, if it is being resumed
+                TreeSet<String> observedPaths = new TreeSet<String>();
                 for (Path p: analyzer.getFilesForCrawl(crawlid)) {
-                  observedFilenames.add(p.toString());
-                }
-                for (Iterator<Path> it = todoFileList.iterator(); it.hasNext(); ) {
-                  Path p = it.next();
-                  if (observedFilenames.contains(p.toString())) {
-                    it.remove();
-                  }
+                  observedPaths.add(p.toString());
                 }
-
-                // Get the dirs to process
-                TreeSet<String> observedDirnames = new TreeSet<String>();
                 for (Path p: analyzer.getDirsForCrawl(crawlid)) {
-                  observedDirnames.add(p.toString());
+                  observedPaths.add(p.toString());
                 }
-                for (Iterator<Path> it = todoDirList.iterator(); it.hasNext(); ) {
-                  Path p = it.next();
-                  if (observedDirnames.contains(p.toString())) {
-                    it.remove();
-                  }
-                }
-                  
+
+                CrawlRuntimeStatus cstatus = null;
                 synchronized (crawlStatusInfo) {
-                  CrawlRuntimeStatus cstatus = crawlStatusInfo.get(crawlid);
-                  cstatus.setMessage("Processing files");
-                  cstatus.setNumToProcess(todoFileList.size());
-                  cstatus.setNumDone(0);
+                  cstatus = crawlStatusInfo.get(crawlid);
                 }
+                cstatus.setMessage("Processing files");
+                cstatus.setNumToProcess(0);
+                cstatus.setNumDone(0);
 
-                int numDone = 0;
-                for (Path p: todoDirList) {
-                  try {
-                    analyzer.addSingleFile(fs, p, crawlid);
-                  } catch (IOException iex) {
-                    iex.printStackTrace();
-                  }
-                }
-                for (Path p: todoFileList) {
-                  synchronized (crawlStatusInfo) {
-                    CrawlRuntimeStatus cstatus = crawlStatusInfo.get(crawlid);
-                    cstatus.setMessage("Processing file " + p.toString());
-                  }
-                  try {
-                    analyzer.addSingleFile(fs, p, crawlid);
-                  } catch (Exception iex) {
-                    iex.printStackTrace();
-                  }
-                  numDone++;
-                  synchronized (crawlStatusInfo) {
-                    CrawlRuntimeStatus cstatus = crawlStatusInfo.get(crawlid);
-                    cstatus.setNumDone(numDone);
-                    if (cstatus.shouldFinish()) {
-                      break;
-                    }
-                  }
+                // Analyze files while the rest of the namespace is still being listed
+                FSLister lister = new FSLister(fs, startDir, subdirDepth, numListingThreads, numAnalysisThreads * MAX_LISTED_FILES_PER_THREAD);
+                try {
+                  analyzeFiles(fs, lister, observedPaths, crawlid, cstatus);
+                } finally {
+                  lister.close();
                 }
               } catch (IOException iex) {
                 iex.printStackTrace();
+              } catch (InterruptedException iex) {
+                iex.printStackTrace();
               } finally {
+                if (analyzer.getInferenceCache() != null) {
+                  LOG.info(analyzer.getInferenceCache().toString());
+                }
                 try {
                   synchronized (pendingCrawls) {
                     pendingCrawls.remove(crawlid);
@@ -195,6 +159,13 @@ public class FSCrawler {
               }
             }
           };
+        // Register the crawl before it starts, so waitForOngoingCrawl() can't miss it
+        synchronized (pendingCrawls) {
+          pendingCrawls.put(crawlid, t);
+        }
+        synchronized (crawlStatusInfo) {
+          crawlStatusInfo.put(crawlid, new CrawlRuntimeStatus("Initializing crawl"));
+        }
         t.start();
       }
       return true;
@@ -204,6 +175,72 @@ public class FSCrawler {
     return false;
   }
 
+  /**
+   * Run analyzeFile() on each of 'files', other than those in 'skipPaths', using
+   * numAnalysisThreads worker threads.  'files' may still be listing the filesystem;
+   * the count of files to process grows as they arrive.  The calling thread hands
+   * files to the workers, but never has more than MAX_PENDING_FILES_PER_THREAD per
+   * worker waiting or running, so a long listing doesn't turn into a long task queue.
+   *
+   * Once 'cstatus' says the crawl should finish, no more files are handed out, and
+   * workers skip the ones still waiting.  Files already being analyzed are finished.
+   * Returns when every worker is done.
+   */
+  protected void analyzeFiles(final FileSystem fs, Iterator<FileStatus> files, Set<String> skipPaths, final long crawlid, final CrawlRuntimeStatus cstatus) throws InterruptedException {
+    final Semaphore pendingSlots = new Semaphore(numAnalysisThreads * MAX_PENDING_FILES_PER_THREAD);
+    ExecutorService pool = Executors.newFixedThreadPool(numAnalysisThreads, new ThreadFactory() {
+        int numThreads = 0;
+        public synchronized Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "crawl-" + crawlid + "-analysis-" + (numThreads++));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    try {
+      while (! cstatus.shouldFinish() && files.hasNext()) {
+        final FileStatus fstatus = files.next();
+        final Path p = fstatus.getPath();
+        if (skipPaths != null && skipPaths.contains(p.toString())) {
+          continue;
+        }
+        cstatus.addNumToProcess(1);
+        pendingSlots.acquire();
+        pool.execute(new Runnable() {
+            public void run() {
+              try {
+                if (cstatus.shouldFinish()) {
+                  return;
+                }
+                cstatus.startItem("Processing file " + p.toString());
+                try {
+                  analyzeFile(fs, fstatus, crawlid);
+                } catch (Exception iex) {
+                  iex.printStackTrace();
+                } finally {
+                  cstatus.finishItem();
+                }
+              } finally {
+                pendingSlots.release();
+              }
+            }
+          });
+      }
+    } finally {
+      pool.shutdown();
+      while (! pool.awaitTermination(1, TimeUnit.SECONDS)) {
+        // Wait for files already being analyzed
+      }
+    }
+  }
+
+  /**
+   * Analyze and store a single listed file.  Called on the worker threads of
+   * analyzeFiles().
+   */
+  protected void analyzeFile(FileSystem fs, FileStatus fstatus, long crawlid) throws IOException {
+    analyzer.addSingleFile(fs, fstatus, crawlid);
+  }
+
   /**
    * Is there an ongoing (running) crawl for the given filesystem?
    */
@@ -234,6 +271,7 @@ public class FSCrawler {
     if (fsId < 0) {
       return false;
     }
+    Thread pendingThread = null;
     synchronized (pendingCrawls) {
       final long crawlid = analyzer.getCreatePendingCrawl(fsId, false);
       if (crawlid < 0) {
@@ -242,18 +280,21 @@ public class FSCrawler {
       if (shouldKill) {
         synchronized (crawlStatusInfo) {
           CrawlRuntimeStatus cstatus = crawlStatusInfo.get(crawlid);
-          cstatus.setShouldFinish(true);
+          if (cstatus != null) {
+            cstatus.setShouldFinish(true);
+          }
         }
       }
-      Thread pendingThread = pendingCrawls.get(crawlid);
-      if (pendingThread != null) {
-        try {
-          pendingThread.join();
-        } catch (InterruptedException iex) {
-        }
+      pendingThread = pendingCrawls.get(crawlid);
+    }
+    // Join outside the lock; the crawl takes it to deregister itself
+    if (pendingThread != null) {
+      try {
+        pendingThread.join();
+      } catch (InterruptedException iex) {
       }
-      return true;
     }
+    return true;
   }
 
   public void killOngoingCrawl(URI fsURI) {
@@ -288,7 +329,7 @@ public class FSCrawler {
   ////////////////////////////////////////
   public static void main(String argv[]) throws Exception {
     if (argv.length < 4) {
-      System.err.println("Usage: FSCrawler <metadataStoreDir> <schemaDbDir> (--crawl <dir>)");
+      System.err.println("Usage: FSCrawler <metadataStoreDir> <schemaDbDir> (--crawl <dir> [numAnalysisThreads])");
       return;
     }
     int i = 0;
@@ -301,7 +342,8 @@ public class FSCrawler {
       if ("--crawl".equals(op)) {
         File crawlTarget = new File(argv[i++]).getCanonicalFile();
         System.err.println("About to crawl " + crawlTarget);
-        FSCrawler crawler = new FSCrawler(fsa);
+        int numAnalysisThreads = (i < argv.length) ? Integer.parseInt(argv[i++]) : DEFAULT_ANALYSIS_THREADS;
+        FSCrawler crawler = new FSCrawler(fsa, numAnalysisThreads);
         crawler.blockingCrawl(new URI("file://" + crawlTarget));
       } else if ("--test".equals(op)) {
         List<SchemaSummary> summaryList = fsa.getSchemaSummaries();
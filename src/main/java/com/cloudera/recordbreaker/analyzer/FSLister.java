@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileStatus;
+
+/***********************************************************
+ * FSLister walks a region of a filesystem breadth-first, on
+ * several threads, and hands back what it finds as it finds it.
+ *
+ * Worker threads take directories from a shared queue, list
+ * them, and queue up the subdirectories.  Every file and
+ * directory found goes into a bounded output queue, which the
+ * caller drains through the Iterator interface.  When the
+ * caller falls behind, the output queue fills and the workers
+ * wait, so the listing never gets far ahead of the consumer.
+ *
+ * Each item is the FileStatus that listStatus() returned for
+ * it, so the caller needn't ask the filesystem again.
+ *
+ * Items come back in no particular order, so a file may come
+ * back before its directory does.  That's fine for the crawler:
+ * a Files row names its directory by path, not by the
+ * directory's own row, so either can be stored first.
+ *
+ * Call close() to stop the workers early.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ ***********************************************************/
+public class FSLister implements Iterator<FileStatus> {
+  // Marks the end of the output
+  final static Object END = new Object();
+  final static long POLL_MILLIS = 100;
+
+  /**
+   * A directory waiting to be listed
+   */
+  static class DirTask {
+    Path dir;
+    int subdirDepth;
+    public DirTask(Path dir, int subdirDepth) {
+      this.dir = dir;
+      this.subdirDepth = subdirDepth;
+    }
+  }
+
+  FileSystem fs;
+  BlockingQueue<DirTask> dirQueue = new LinkedBlockingQueue<DirTask>();
+  BlockingQueue<Object> outQueue;
+  // Directories queued or being listed.  The walk is done when this reaches 0.
+  AtomicInteger numPendingDirs = new AtomicInteger(0);
+  Thread workers[];
+  volatile boolean closed = false;
+  Object nextItem = null;
+  boolean exhausted = false;
+
+  /**
+   * Start listing at 'start', on 'numThreads' threads.  Directories are descended
+   * 'subdirDepth' levels deep, or without limit if it is negative.  At most
+   * 'maxQueuedItems' listed items wait for the caller.
+   */
+  public FSLister(FileSystem fs, Path start, int subdirDepth, int numThreads, int maxQueuedItems) throws IOException {
+    this.fs = fs;
+    this.outQueue = new ArrayBlockingQueue<Object>(Math.max(1, maxQueuedItems));
+
+    FileStatus startStatus = fs.getFileStatus(start);
+    if (! startStatus.isDir()) {
+      outQueue.add(startStatus);
+      outQueue.add(END);
+      this.workers = new Thread[0];
+      return;
+    }
+    if (subdirDepth == 0) {
+      outQueue.add(END);
+      this.workers = new Thread[0];
+      return;
+    }
+    outQueue.add(startStatus);
+    numPendingDirs.incrementAndGet();
+    dirQueue.add(new DirTask(start, subdirDepth));
+
+    this.workers = new Thread[Math.max(1, numThreads)];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Thread("fs-lister-" + i) {
+          public void run() {
+            try {
+              listDirs();
+            } catch (InterruptedException iex) {
+            }
+          }
+        };
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+  }
+
+  /**
+   * Worker loop: list directories until the walk is done or the lister is closed
+   */
+  void listDirs() throws InterruptedException {
+    while (! closed) {
+      DirTask task = dirQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+      if (task == null) {
+        if (numPendingDirs.get() == 0) {
+          return;
+        }
+        continue;
+      }
+      try {
+        FileStatus children[] = null;
+        try {
+          children = fs.listStatus(task.dir);
+        } catch (IOException iex) {
+          iex.printStackTrace();
+        }
+        if (children != null) {
+          for (FileStatus child: children) {
+            if (! child.isDir()) {
+              emit(child);
+            } else if (task.subdirDepth - 1 != 0) {
+              emit(child);
+              numPendingDirs.incrementAndGet();
+              dirQueue.put(new DirTask(child.getPath(), task.subdirDepth - 1));
+            }
+          }
+        }
+      } finally {
+        if (numPendingDirs.decrementAndGet() == 0) {
+          emit(END);
+        }
+      }
+    }
+  }
+
+  /**
+   * Hand an item to the caller, waiting while the output queue is full
+   */
+  void emit(Object item) throws InterruptedException {
+    while (! closed && ! outQueue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+    }
+  }
+
+  /**
+   * Waits until the next item is listed, the walk is done, or the lister is closed
+   */
+  public synchronized boolean hasNext() {
+    while (nextItem == null && ! exhausted) {
+      if (closed) {
+        exhausted = true;
+        break;
+      }
+      try {
+        Object item = outQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (item == END) {
+          exhausted = true;
+        } else {
+          nextItem = item;
+        }
+      } catch (InterruptedException iex) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return nextItem != null;
+  }
+
+  public synchronized FileStatus next() {
+    if (! hasNext()) {
+      throw new NoSuchElementException();
+    }
+    FileStatus result = (FileStatus) nextItem;
+    nextItem = null;
+    return result;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stop the workers.  Items not yet returned are dropped, and a caller
+   * waiting in hasNext() gets false.  A worker that is in the middle of
+   * listing a directory stops when the listing returns.
+   */
+  public void close() {
+    closed = true;
+    outQueue.clear();
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.ArrayList;
+
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.compress.CompressionCodec;
+
+/*****************************************************
+ * <code>FileProbe</code> holds the start of a file, so that every format
+ * test in <code>FormatAnalyzer</code> can look at it without opening the
+ * file again.  The file is opened once, and we keep its first HEADER_BYTES
+ * raw bytes (for magic numbers) plus the first PROBE_BYTES of its text,
+ * uncompressed if need be (see <code>CompressedInput</code>).
+ *
+ * A test that wants more lines than the probe holds gets them by reading
+ * the file again.
+ *
+ * @author "Michael Cafarella"
+ *****************************************************/
+public class FileProbe {
+  public final static int HEADER_BYTES = 4 * 1024;
+  public final static int PROBE_BYTES = 64 * 1024;
+
+  FileSystem fs;
+  Path p;
+  byte header[];
+  int headerLen = 0;
+  byte text[];
+  int textLen = 0;
+  boolean complete = false;
+  IOException textError = null;
+  List<String> lines = null;
+  Boolean isText = null;
+
+  /**
+   * Read the start of <code>p</code>.  Throws only if the file can't be opened;
+   * a compressed file that can't be uncompressed just has no text.
+   */
+  public FileProbe(FileSystem fs, Path p) throws IOException {
+    this.fs = fs;
+    this.p = p;
+    this.header = new byte[HEADER_BYTES];
+    this.text = new byte[PROBE_BYTES];
+
+    FSDataInputStream in = fs.open(p);
+    try {
+      headerLen = readFully(in, header, 0, header.length);
+      CompressionCodec codec = CompressedInput.getCodec(fs, p, header, headerLen);
+      if (codec == null) {
+        System.arraycopy(header, 0, text, 0, headerLen);
+        textLen = headerLen + readFully(in, text, headerLen, text.length - headerLen);
+        complete = (textLen < text.length) || (in.read() < 0);
+      } else {
+        // Uncompress from the header we already have, then the rest of the stream
+        try {
+          InputStream textIn = CompressedInput.decompress(codec, new SequenceInputStream(new ByteArrayInputStream(header, 0, headerLen), in));
+          try {
+            textLen = readFully(textIn, text, 0, text.length);
+            complete = (textLen < text.length) || (textIn.read() < 0);
+          } finally {
+            textIn.close();
+          }
+        } catch (IOException iex) {
+          textLen = 0;
+          textError = iex;
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  static int readFully(InputStream in, byte buf[], int off, int len) throws IOException {
+    int total = 0;
+    int n = 0;
+    while (total < len && (n = in.read(buf, off + total, len - total)) > 0) {
+      total += n;
+    }
+    return total;
+  }
+
+  public FileSystem getFileSystem() {
+    return fs;
+  }
+  public Path getPath() {
+    return p;
+  }
+
+  /**
+   * Whether the file looks like text.  See UnknownTextDataDescriptor.isTextData().
+   */
+  public boolean isText() {
+    if (isText == null) {
+      isText = UnknownTextDataDescriptor.isTextData(this);
+    }
+    return isText.booleanValue();
+  }
+
+  /**
+   * Whether the file's raw bytes start with 'prefix'
+   */
+  public boolean startsWith(byte prefix[]) {
+    if (headerLen < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (header[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The first bytes of the file's text.  There may be fewer than
+   * <code>maxBytes</code> of them.
+   */
+  public byte[] getTextBytes(int maxBytes) throws IOException {
+    if (textError != null) {
+      throw textError;
+    }
+    byte buf[] = new byte[Math.min(maxBytes, textLen)];
+    System.arraycopy(text, 0, buf, 0, buf.length);
+    return buf;
+  }
+
+  /**
+   * The first <code>maxLines</code> lines of the file, or all of them if there
+   * are fewer.  The file is read again only if the probe doesn't hold that many.
+   */
+  public List<String> getLines(int maxLines) throws IOException {
+    if (textError != null) {
+      throw textError;
+    }
+    if (lines == null) {
+      lines = new ArrayList<String>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(text, 0, textLen)));
+      String s = null;
+      while ((s = in.readLine()) != null) {
+        lines.add(s);
+      }
+      // The last line may have been cut off
+      if (!complete && lines.size() > 0) {
+        lines.remove(lines.size() - 1);
+      }
+    }
+    if (complete || lines.size() >= maxLines) {
+      return lines.subList(0, Math.min(maxLines, lines.size()));
+    }
+
+    List<String> moreLines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(CompressedInput.open(fs, p)));
+    try {
+      String s = null;
+      while (moreLines.size() < maxLines && (s = in.readLine()) != null) {
+        moreLines.add(s);
+      }
+    } finally {
+      in.close();
+    }
+    return moreLines;
+  }
+}
@@ -43,75 +43,82 @@ public class FormatAnalyzer {
   private static final Log LOG = LogFactory.getLog(FormatAnalyzer.class);    
   final static int MAX_ANALYSIS_LINES = 400;
   File schemaDbDir;
+  InferenceCache inferenceCache;
+  FormatDetectorRegistry detectors;
   
   /**
    * Creates a new <code>FormatAnalyzer</code> instance.
    */
   public FormatAnalyzer(File schemaDbDir) {
+    this(schemaDbDir, null);
+  }
+
+  /**
+   * Creates a new <code>FormatAnalyzer</code> that shares learned text structure
+   * across files through <code>inferenceCache</code>, which may be null.
+   */
+  public FormatAnalyzer(File schemaDbDir, InferenceCache inferenceCache) {
     this.schemaDbDir = schemaDbDir;
+    this.inferenceCache = inferenceCache;
+    this.detectors = new FormatDetectorRegistry();
+    // The order is the precedence the formats have always had.  CSV comes first,
+    // so a .xml or .avro file that looks like CSV is still described as CSV.
+    // Sequence files are told by their header, which isn't text, so checking them
+    // before the content scans costs little and takes nothing away from CSV.
+    detectors.register(new CSVDataDescriptor.Detector(FormatDetector.EXTENSION));
+    detectors.register(new AvroSequenceFileDataDescriptor.Detector());
+    detectors.register(new SequenceFileDataDescriptor.Detector());
+    detectors.register(new CSVDataDescriptor.Detector(FormatDetector.CONTENT_SCAN));
+    detectors.register(new XMLDataDescriptor.Detector());
+    detectors.register(new AvroDataDescriptor.Detector());
+    detectors.register(new ApacheDataDescriptor.Detector());
+    detectors.register(new SyslogDataDescriptor.Detector());
+    detectors.register(new UnknownTextDataDescriptor.Detector(schemaDbDir, inferenceCache));
+  }
+
+  public InferenceCache getInferenceCache() {
+    return inferenceCache;
+  }
+
+  /**
+   * The detectors that describeData() tries.  Register new formats here.
+   */
+  public FormatDetectorRegistry getDetectorRegistry() {
+    return detectors;
   }
 
   /**
    * Create a file-appropriate DataDescriptor instance.
    *
-   * Right now we just use the file ending to figure out what to do,
-   * but this will become unsatisfactory pretty quickly.
+   * Each registered FormatDetector gets a look at the file, in the order they
+   * were registered, until one of them can describe it.
    *
    * @param f a <code>File</code> value
    * @return a <code>DataDescriptor</code> value
    */
   public DataDescriptor describeData(FileSystem fs, Path p) throws IOException {
-    FileStatus fstatus = fs.getFileStatus(p);
-    String fname = p.getName();
-
-    // Test to see if the file is one of a handful of known structured formats.
-    if (CSVDataDescriptor.isCSV(fs, p)) {
-      return new CSVDataDescriptor(p, fs);
-    } else if (fname.endsWith(".xml")) {
-      return new XMLDataDescriptor(p, fs);
-    } else if (fname.endsWith(".avro")) {
-      return new AvroDataDescriptor(p, fs);
-    } else if (AvroSequenceFileDataDescriptor.isAvroSequenceFile(fs, p)) {
-      return new AvroSequenceFileDataDescriptor(p, fs);
-    } else if (SequenceFileDataDescriptor.isSequenceFile(fs, p)) {
-      return new SequenceFileDataDescriptor(p, fs);
-    } else if (ApacheDataDescriptor.isApacheLogFile(fs, p)) {
-      return new ApacheDataDescriptor(p, fs);
-    } else if (SyslogDataDescriptor.isSyslogFile(fs, p)) {
-      return new SyslogDataDescriptor(p, fs);      
-    } else {
-      // It's not one of the known formats, so apply LearnStructure 
-      // to obtain the structure.
-      if (UnknownTextDataDescriptor.isTextData(fs, p)) {
-        try {
-          return new UnknownTextDataDescriptor(fs, p, schemaDbDir);
-        } catch (Exception iex) {
-          //iex.printStackTrace();
-        }
+    // Read the start of the file once, for all of the tests
+    long startTime = System.currentTimeMillis();
+    FileProbe probe = new FileProbe(fs, p);
+    try {
+      DataDescriptor descriptor = detectors.describe(fs, p, probe);
+      if (descriptor == null) {
+        // If nothing works, then give up and call it unstructured.  You
+        // can't run queries on data in this format.
+        descriptor = new UnstructuredFileDescriptor(fs, p);
+      }
+      return descriptor;
+    } finally {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Describing " + p + " took " + (System.currentTimeMillis() - startTime) + " ms");
       }
-      // If that doesn't work, then give up and call it unstructured.  You
-      // can't run queries on data in this format.
-      return new UnstructuredFileDescriptor(fs, p);
     }
   }
 
   public DataDescriptor loadDataDescriptor(FileSystem fs, Path p, String identifier, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
-    if (AvroDataDescriptor.AVRO_TYPE.equals(identifier)) {
-      return new AvroDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
-    } else if (CSVDataDescriptor.CSV_TYPE.equals(identifier)) {
-      return new CSVDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
-    } else if (SequenceFileDataDescriptor.SEQFILE_TYPE.equals(identifier)) {
-      return new SequenceFileDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);      
-    } else if (XMLDataDescriptor.XML_TYPE.equals(identifier)) {
-      return new XMLDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
-    } else if (AvroSequenceFileDataDescriptor.AVROSEQFILE_TYPE.equals(identifier)) {
-      return new AvroSequenceFileDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
-    } else if (ApacheDataDescriptor.APACHE_TYPE.equals(identifier)) {
-      return new ApacheDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
-    } else if (SyslogDataDescriptor.SYSLOG_TYPE.equals(identifier)) {
-      return new SyslogDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
-    } else if (UnknownTextDataDescriptor.TEXTDATA_TYPE.equals(identifier)) {
-      return new UnknownTextDataDescriptor(fs, p, schemaReprs, schemaDescs, schemaBlobs);
+    FormatDetector detector = detectors.getDetector(identifier);
+    if (detector != null) {
+      return detector.load(fs, p, schemaReprs, schemaDescs, schemaBlobs);
     } else {
       return new UnstructuredFileDescriptor(fs, p);
     }
@@ -157,5 +164,9 @@ public class FormatAnalyzer {
         }
       }
     }
+    System.err.println();
+    for (String line: fa.getDetectorRegistry().getStatistics()) {
+      System.err.println(line);
+    }
   }
 }
\ No newline at end of file
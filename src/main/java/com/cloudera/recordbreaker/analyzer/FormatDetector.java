@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.util.List;
+import java.io.IOException;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+
+/***************************************************************************************
+ * A <code>FormatDetector</code> recognizes one file format, and builds the
+ * <code>DataDescriptor</code> for files in it.  Detectors are registered with a
+ * <code>FormatDetectorRegistry</code>, which tries them in registration order.
+ *
+ * The cost tier says how much work <code>matches()</code> does:
+ * MAGIC_BYTES and EXTENSION look only at the file's header or name, CONTENT_SCAN
+ * reads its first lines, and INFERENCE learns a structure for it.  CONTENT_SCAN
+ * and INFERENCE detectors are only tried on files that look like text.
+ *
+ * @author "Michael Cafarella"
+ *****************************************************************************************/
+public interface FormatDetector {
+  public static final int MAGIC_BYTES = 0;
+  public static final int EXTENSION = 1;
+  public static final int CONTENT_SCAN = 2;
+  public static final int INFERENCE = 3;
+
+  /**
+   * The <code>getFileTypeIdentifier()</code> of the descriptors this detector builds
+   */
+  public String getFileTypeIdentifier();
+
+  /**
+   * One of MAGIC_BYTES, EXTENSION, CONTENT_SCAN or INFERENCE
+   */
+  public int getCostTier();
+
+  /**
+   * Whether the file at <code>probe</code> looks like this format
+   */
+  public boolean matches(FileProbe probe) throws IOException;
+
+  /**
+   * Build the descriptor for a file that <code>matches()</code>.  Throwing means
+   * the file isn't in this format after all, and the next detector gets a try.
+   */
+  public DataDescriptor describe(FileSystem fs, Path p) throws IOException;
+
+  /**
+   * Rebuild a descriptor from the schemas stored for it earlier
+   */
+  public DataDescriptor load(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException;
+}
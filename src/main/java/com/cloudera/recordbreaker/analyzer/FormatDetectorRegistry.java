@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/***************************************************************************************
+ * <code>FormatDetectorRegistry</code> holds the FormatDetectors that
+ * <code>FormatAnalyzer</code> uses.  Detectors are tried in the order they were
+ * registered, and the first one that matches a file and builds a descriptor for it
+ * wins.  Registration order is precedence: a file that two detectors would take goes
+ * to the one registered first.  Within that order, register cheap detectors early
+ * where it doesn't change the outcome.
+ *
+ * Detectors in the CONTENT_SCAN and INFERENCE tiers are skipped for files that
+ * don't look like text (see <code>FileProbe.isText()</code>), so binary files never
+ * reach the line scans.
+ *
+ * New formats are added with <code>register()</code>; nothing else needs to change.
+ * The registry counts, for each detector, how often it was tried and how often it
+ * won, and how long it spent.  It is safe to share across threads.
+ *
+ * @author "Michael Cafarella"
+ *****************************************************************************************/
+public class FormatDetectorRegistry {
+  private static final Log LOG = LogFactory.getLog(FormatDetectorRegistry.class);
+
+  /**
+   * Running totals for one detector
+   */
+  static class DetectorStats {
+    long numTried = 0;
+    long numMatched = 0;
+    long numHits = 0;
+    long matchNanos = 0;
+    long describeNanos = 0;
+  }
+
+  FormatDetector detectors[] = new FormatDetector[0];
+  DetectorStats stats[] = new DetectorStats[0];
+  Map<String, FormatDetector> detectorsByType = new HashMap<String, FormatDetector>();
+
+  public FormatDetectorRegistry() {
+  }
+
+  /**
+   * Add a detector.  It is tried after every detector already registered.
+   */
+  public synchronized void register(FormatDetector detector) {
+    FormatDetector newDetectors[] = new FormatDetector[detectors.length + 1];
+    DetectorStats newStats[] = new DetectorStats[stats.length + 1];
+    System.arraycopy(detectors, 0, newDetectors, 0, detectors.length);
+    System.arraycopy(stats, 0, newStats, 0, stats.length);
+    newDetectors[detectors.length] = detector;
+    newStats[stats.length] = new DetectorStats();
+    detectors = newDetectors;
+    stats = newStats;
+
+    if (! detectorsByType.containsKey(detector.getFileTypeIdentifier())) {
+      detectorsByType.put(detector.getFileTypeIdentifier(), detector);
+    }
+  }
+
+  /**
+   * The detector that loads descriptors with the given file type, or null
+   */
+  public synchronized FormatDetector getDetector(String fileTypeIdentifier) {
+    return detectorsByType.get(fileTypeIdentifier);
+  }
+
+  /**
+   * Build a descriptor with the first detector that takes the file, or return null
+   * if none does.
+   */
+  public DataDescriptor describe(FileSystem fs, Path p, FileProbe probe) throws IOException {
+    FormatDetector curDetectors[] = null;
+    DetectorStats curStats[] = null;
+    synchronized (this) {
+      curDetectors = detectors;
+      curStats = stats;
+    }
+    for (int i = 0; i < curDetectors.length; i++) {
+      FormatDetector detector = curDetectors[i];
+      if (detector.getCostTier() >= FormatDetector.CONTENT_SCAN && ! probe.isText()) {
+        continue;
+      }
+      long start = System.nanoTime();
+      boolean matched = false;
+      try {
+        matched = detector.matches(probe);
+      } catch (IOException iex) {
+        LOG.debug("Detector for " + detector.getFileTypeIdentifier() + " could not test " + p, iex);
+      }
+      long matchEnd = System.nanoTime();
+      DataDescriptor descriptor = null;
+      if (matched) {
+        try {
+          descriptor = detector.describe(fs, p);
+        } catch (Exception ex) {
+          LOG.debug("Detector for " + detector.getFileTypeIdentifier() + " matched " + p + ", but could not describe it", ex);
+        }
+      }
+      long describeEnd = System.nanoTime();
+
+      DetectorStats s = curStats[i];
+      synchronized (s) {
+        s.numTried++;
+        s.matchNanos += (matchEnd - start);
+        if (matched) {
+          s.numMatched++;
+          s.describeNanos += (describeEnd - matchEnd);
+        }
+        if (descriptor != null) {
+          s.numHits++;
+        }
+      }
+      if (descriptor != null) {
+        return descriptor;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * One line per detector, in the order they are tried: how often it was tried,
+   * matched and won, and its total match and describe time.
+   */
+  public List<String> getStatistics() {
+    FormatDetector curDetectors[] = null;
+    DetectorStats curStats[] = null;
+    synchronized (this) {
+      curDetectors = detectors;
+      curStats = stats;
+    }
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < curDetectors.length; i++) {
+      DetectorStats s = curStats[i];
+      synchronized (s) {
+        double hitRate = (s.numTried == 0) ? 0 : (s.numHits / (1.0 * s.numTried));
+        lines.add(curDetectors[i].getFileTypeIdentifier() + " (tier " + curDetectors[i].getCostTier() + "): "
+                  + "tried " + s.numTried + ", matched " + s.numMatched + ", hits " + s.numHits
+                  + " (" + String.format("%.1f", 100 * hitRate) + "%), "
+                  + "match " + (s.matchNanos / 1000000) + " ms, describe " + (s.describeNanos / 1000000) + " ms");
+      }
+    }
+    return lines;
+  }
+}
@@ -16,6 +16,8 @@ package com.cloudera.recordbreaker.analyzer;
 
 import org.apache.avro.Schema;
 
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 
@@ -81,7 +83,7 @@ public abstract class GenericDataDescriptor implements DataDescriptor {
     return schemas;
   }
   public InputStream getRawBytes() throws IOException {
-    return fs.open(p);
+    return CompressedInput.open(fs, p);
   }
 
   //////////////////////////
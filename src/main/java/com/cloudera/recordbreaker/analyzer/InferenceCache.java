@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/*****************************************************
+ * <code>InferenceCache</code> remembers the structure that LearnStructure
+ * inferred for a text file, so that other files with the same layout can
+ * skip inference.  Entries are keyed by the layout fingerprint of a sample
+ * of the file's lines (see <code>LearnStructure.getLayoutFingerprint()</code>)
+ * and hold the schema plus the serialized parser.
+ *
+ * Each entry is a file in the cache directory.  The cache holds at most
+ * <code>maxEntries</code> entries, evicting the least-recently-used one.
+ * Recency survives restarts through the files' modification times.
+ *
+ * Callers validate a cached parser before trusting it, and report the
+ * outcome with <code>noteHit()</code> or <code>noteMiss()</code>.
+ *
+ * @author "Michael Cafarella"
+ ******************************************************/
+public class InferenceCache {
+  private static final Log LOG = LogFactory.getLog(InferenceCache.class);
+  public static int DEFAULT_MAX_ENTRIES = 1000;
+  final static String ENTRY_SUFFIX = ".typetree";
+  final static int FORMAT_VERSION = 1;
+
+  /**
+   * A cached inference result
+   */
+  public static class Entry {
+    String schemaRepr;
+    byte[] payload;
+    public Entry(String schemaRepr, byte[] payload) {
+      this.schemaRepr = schemaRepr;
+      this.payload = payload;
+    }
+    public String getSchemaRepr() {
+      return schemaRepr;
+    }
+    public byte[] getPayload() {
+      return payload;
+    }
+  }
+
+  File cacheDir;
+  int maxEntries;
+  Map<Long, File> entryFiles;
+  int numHits = 0;
+  int numMisses = 0;
+  int numEvictions = 0;
+
+  /**
+   * Open the cache in the given directory, creating it if needed.
+   */
+  public InferenceCache(File cacheDir, int maxEntries) throws IOException {
+    if (! cacheDir.exists()) {
+      if (! cacheDir.mkdirs()) {
+        throw new IOException("Cannot create directory: " + cacheDir.getCanonicalPath());
+      }
+    }
+    this.cacheDir = cacheDir;
+    this.maxEntries = maxEntries;
+
+    // Access-ordered, so iteration starts with the least-recently-used entry
+    this.entryFiles = new LinkedHashMap<Long, File>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Long, File> eldest) {
+        if (size() > InferenceCache.this.maxEntries) {
+          eldest.getValue().delete();
+          numEvictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+
+    // Load the existing entries, oldest first
+    File existingFiles[] = cacheDir.listFiles();
+    Arrays.sort(existingFiles, new Comparator<File>() {
+      public int compare(File f1, File f2) {
+        long cmp = f1.lastModified() - f2.lastModified();
+        return (cmp < 0) ? -1 : ((cmp > 0) ? 1 : f1.getName().compareTo(f2.getName()));
+      }
+    });
+    for (File f: existingFiles) {
+      String fname = f.getName();
+      if (fname.endsWith(ENTRY_SUFFIX)) {
+        try {
+          // Fingerprints are written unsigned, so they may not fit Long.parseLong()
+          long fingerprint = new BigInteger(fname.substring(0, fname.length() - ENTRY_SUFFIX.length()), 16).longValue();
+          entryFiles.put(fingerprint, f);
+        } catch (NumberFormatException nfe) {
+          // Not one of ours
+        }
+      }
+    }
+  }
+
+  /**
+   * Return the entry for the fingerprint, or null if there isn't one.
+   */
+  public synchronized Entry get(long fingerprint) {
+    File f = entryFiles.get(fingerprint);
+    if (f == null) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+      try {
+        if (in.readInt() != FORMAT_VERSION) {
+          throw new IOException("Unknown inference cache entry version: " + f);
+        }
+        byte schemaBytes[] = new byte[in.readInt()];
+        in.readFully(schemaBytes);
+        byte payload[] = new byte[in.readInt()];
+        in.readFully(payload);
+        f.setLastModified(System.currentTimeMillis());
+        return new Entry(new String(schemaBytes, "UTF-8"), payload);
+      } finally {
+        in.close();
+      }
+    } catch (IOException iex) {
+      LOG.info("Dropping unreadable inference cache entry " + f + ": " + iex.toString());
+      entryFiles.remove(fingerprint);
+      f.delete();
+      return null;
+    }
+  }
+
+  /**
+   * Add or replace the entry for the fingerprint
+   */
+  public synchronized void put(long fingerprint, String schemaRepr, byte[] payload) throws IOException {
+    File f = new File(cacheDir, Long.toHexString(fingerprint) + ENTRY_SUFFIX);
+    File tmpFile = new File(cacheDir, f.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try {
+      byte schemaBytes[] = schemaRepr.getBytes("UTF-8");
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(schemaBytes.length);
+      out.write(schemaBytes);
+      out.writeInt(payload.length);
+      out.write(payload);
+    } finally {
+      out.close();
+    }
+    f.delete();
+    if (! tmpFile.renameTo(f)) {
+      tmpFile.delete();
+      throw new IOException("Cannot write inference cache entry: " + f);
+    }
+    entryFiles.put(fingerprint, f);
+  }
+
+  /**
+   * A cached entry was found and validated
+   */
+  public synchronized void noteHit() {
+    numHits++;
+  }
+  /**
+   * No usable cached entry; inference had to run
+   */
+  public synchronized void noteMiss() {
+    numMisses++;
+  }
+
+  public synchronized int size() {
+    return entryFiles.size();
+  }
+  public synchronized int getNumHits() {
+    return numHits;
+  }
+  public synchronized int getNumMisses() {
+    return numMisses;
+  }
+  public synchronized int getNumEvictions() {
+    return numEvictions;
+  }
+  public synchronized String toString() {
+    return "Inference cache " + cacheDir + ": " + entryFiles.size() + " entries, " + numHits + " hits, " + numMisses + " misses, " + numEvictions + " evictions";
+  }
+}
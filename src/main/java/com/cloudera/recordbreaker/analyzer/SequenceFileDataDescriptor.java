@@ -50,6 +50,36 @@ public class SequenceFileDataDescriptor extends GenericDataDescriptor {
       return false;
     }
   }
+
+  /**
+   * Every SequenceFile starts with these bytes, so files that don't
+   * can be turned away without opening them again.
+   */
+  final static byte SEQFILE_MAGIC[] = {'S', 'E', 'Q'};
+  public static boolean isSequenceFile(FileProbe probe) {
+    return probe.startsWith(SEQFILE_MAGIC) && isSequenceFile(probe.getFileSystem(), probe.getPath());
+  }
+
+  /**
+   * Finds SequenceFile files for the FormatDetectorRegistry
+   */
+  public static class Detector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return SEQFILE_TYPE;
+    }
+    public int getCostTier() {
+      return MAGIC_BYTES;
+    }
+    public boolean matches(FileProbe probe) throws IOException {
+      return isSequenceFile(probe);
+    }
+    public DataDescriptor describe(FileSystem fs, Path p) throws IOException {
+      return new SequenceFileDataDescriptor(p, fs);
+    }
+    public DataDescriptor load(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new SequenceFileDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
   
   public SequenceFileDataDescriptor(Path p, FileSystem fs) throws IOException {
     super(p, fs, SEQFILE_TYPE);
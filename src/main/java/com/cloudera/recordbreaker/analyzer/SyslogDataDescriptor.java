@@ -47,6 +47,30 @@ public class SyslogDataDescriptor extends TextRegexpDataDescriptor {
   public static boolean isSyslogFile(FileSystem fs, Path p) throws IOException {
     return TextRegexpDataDescriptor.isTextRegexpFile(fs, p, syslogRegexps);
   }
+  public static boolean isSyslogFile(FileProbe probe) throws IOException {
+    return TextRegexpDataDescriptor.isTextRegexpFile(probe, syslogRegexps);
+  }
+
+  /**
+   * Finds syslog files for the FormatDetectorRegistry
+   */
+  public static class Detector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return SYSLOG_TYPE;
+    }
+    public int getCostTier() {
+      return CONTENT_SCAN;
+    }
+    public boolean matches(FileProbe probe) throws IOException {
+      return isSyslogFile(probe);
+    }
+    public DataDescriptor describe(FileSystem fs, Path p) throws IOException {
+      return new SyslogDataDescriptor(p, fs);
+    }
+    public DataDescriptor load(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new SyslogDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
   
   public SyslogDataDescriptor(Path p, FileSystem fs) throws IOException {
     super(p, fs, SYSLOG_TYPE, syslogRegexps, syslogSchemas);
@@ -27,6 +27,8 @@ import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
@@ -51,27 +53,22 @@ import org.apache.avro.generic.GenericData;
 public abstract class TextRegexpDataDescriptor extends GenericDataDescriptor {
   final static int MAX_LINES = 200;
   public static boolean isTextRegexpFile(FileSystem fs, Path p, List<Pattern> regexps) throws IOException {
+    return isTextRegexpFile(new FileProbe(fs, p), regexps);
+  }
+
+  public static boolean isTextRegexpFile(FileProbe probe, List<Pattern> regexps) throws IOException {
     int totalCounts = 0;
     int matchCounts[] = new int[regexps.size()];
     
-    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
-    try {
-      String cur = null;
-      while ((cur = in.readLine()) != null) {
-        for (int i = 0; i < regexps.size(); i++) {
-          Pattern patt = regexps.get(i);
-          Matcher m = patt.matcher(cur);
-          if (m.find()) {
-            matchCounts[i]++;
-          }
-        }
-        totalCounts++;
-        if (MAX_LINES >= 0 && totalCounts >= MAX_LINES) {
-          break;
+    for (String cur: probe.getLines(MAX_LINES)) {
+      for (int i = 0; i < regexps.size(); i++) {
+        Pattern patt = regexps.get(i);
+        Matcher m = patt.matcher(cur);
+        if (m.find()) {
+          matchCounts[i]++;
         }
       }
-    } finally {
-      in.close();
+      totalCounts++;
     }
 
     for (int i = 0; i < matchCounts.length; i++) {
@@ -118,7 +115,7 @@ public abstract class TextRegexpDataDescriptor extends GenericDataDescriptor {
     DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<GenericRecord>(writer);
     dataFileWriter.create(schema, dstFs.create(dst, true));
     try {
-      BufferedReader in = new BufferedReader(new InputStreamReader(srcFs.open(getFilename())));
+      BufferedReader in = new BufferedReader(new InputStreamReader(CompressedInput.open(srcFs, getFilename())));
       try {
         String rowStr = null;
         GenericData.Record rowRecord = null;        
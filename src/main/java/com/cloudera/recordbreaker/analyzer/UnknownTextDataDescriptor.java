@@ -33,9 +33,11 @@ import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
 
 import com.cloudera.recordbreaker.schemadict.SchemaSuggest;
 import com.cloudera.recordbreaker.schemadict.DictionaryMapping;
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
 import com.cloudera.recordbreaker.learnstructure.LearnStructure;
 
 import org.apache.hadoop.fs.Path;
@@ -53,6 +55,35 @@ import org.apache.commons.codec.binary.Base64;
  ******************************************************/
 public class UnknownTextDataDescriptor extends GenericDataDescriptor {
   public static String TEXTDATA_TYPE = "structured-text";
+
+  /**
+   * Learns the structure of text files for the FormatDetectorRegistry.  It takes
+   * any text file, so it is tried last; describe() fails if the learned parser
+   * can't read most of the file.
+   */
+  public static class Detector implements FormatDetector {
+    File schemaDictDir;
+    InferenceCache inferenceCache;
+    public Detector(File schemaDictDir, InferenceCache inferenceCache) {
+      this.schemaDictDir = schemaDictDir;
+      this.inferenceCache = inferenceCache;
+    }
+    public String getFileTypeIdentifier() {
+      return TEXTDATA_TYPE;
+    }
+    public int getCostTier() {
+      return INFERENCE;
+    }
+    public boolean matches(FileProbe probe) throws IOException {
+      return probe.isText();
+    }
+    public DataDescriptor describe(FileSystem fs, Path p) throws IOException {
+      return new UnknownTextDataDescriptor(fs, p, schemaDictDir, LineSampler.HEAD, inferenceCache);
+    }
+    public DataDescriptor load(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new UnknownTextDataDescriptor(fs, p, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
   
   /**
    * Test whether the input param is a text file.
@@ -62,29 +93,34 @@ public class UnknownTextDataDescriptor extends GenericDataDescriptor {
   final static double asciiThreshold = 0.9;
   public static boolean isTextData(FileSystem fs, Path p) {
     try {
-      BufferedInputStream in = new BufferedInputStream(fs.open(p));
-      try {
-        byte buf[] = new byte[1024];
-        int numBytes = in.read(buf);
-        if (numBytes < 0) {
-          return false;
-        }
-        int numASCIIChars = 0;
-        for (int i = 0; i < numBytes; i++) {
-          if (buf[i] >= 32 && buf[i] < 128) {
-            numASCIIChars++;
-          }
+      return isTextData(new FileProbe(fs, p));
+    } catch (IOException iex) {
+      return false;
+    }
+  }
+  public static boolean isTextData(FileProbe probe) {
+    try {
+      byte buf[] = probe.getTextBytes(1024);
+      int numBytes = buf.length;
+      if (numBytes == 0) {
+        return false;
+      }
+      int numASCIIChars = 0;
+      for (int i = 0; i < numBytes; i++) {
+        if (buf[i] >= 32 && buf[i] < 128) {
+          numASCIIChars++;
         }
-        return ((numASCIIChars / (1.0 * numBytes)) > asciiThreshold);
-      } finally {
-        in.close();
       }
+      return ((numASCIIChars / (1.0 * numBytes)) > asciiThreshold);
     } catch (IOException iex) {
       return false;
     }
   }
   
   File schemaDictDir;
+  int sampleMode = LineSampler.HEAD;
+  InferenceCache inferenceCache = null;
+  List<String> sample = null;
   List<SchemaDescriptor> schemaDescriptors = new ArrayList<SchemaDescriptor>();
   
   /**
@@ -92,36 +128,77 @@ public class UnknownTextDataDescriptor extends GenericDataDescriptor {
    */
   final static double TUPLE_PCT = 0.75;
   public UnknownTextDataDescriptor(FileSystem fs, Path p, File schemaDictDir) throws IOException {
+    this(fs, p, schemaDictDir, LineSampler.HEAD);
+  }
+
+  /**
+   * Creates a new <code>UnknownTextDataDescriptor</code> whose structure is learned
+   * from a sample of the file's lines, chosen according to <code>sampleMode</code>
+   * (one of the <code>LineSampler</code> modes).  The sample size is
+   * <code>UnknownTextSchemaDescriptor.MAX_LINES</code>.
+   */
+  public UnknownTextDataDescriptor(FileSystem fs, Path p, File schemaDictDir, int sampleMode) throws IOException {
+    this(fs, p, schemaDictDir, sampleMode, null);
+  }
+
+  /**
+   * Creates a new <code>UnknownTextDataDescriptor</code> that reuses structure learned
+   * for earlier files with the same layout, when <code>inferenceCache</code> has some.
+   * A null cache means always run inference.
+   */
+  public UnknownTextDataDescriptor(FileSystem fs, Path p, File schemaDictDir, int sampleMode, InferenceCache inferenceCache) throws IOException {
     super(p, fs, TEXTDATA_TYPE);
     
     this.schemaDictDir = schemaDictDir;
-    UnknownTextSchemaDescriptor tsd = new UnknownTextSchemaDescriptor(this);
-
-    // Test if this schema descriptor can parse the file
-    boolean hasLatentStructure = false;
-    int numTuples = 0;
-    for (Iterator it = tsd.getIterator(); it.hasNext(); ) {
-      numTuples++;
-      it.next();
-    }
-    int numLines = 0;
-    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
-    while (in.readLine() != null) {
-      numLines++;
-    }
+    this.sampleMode = sampleMode;
+    this.inferenceCache = inferenceCache;
+    try {
+      UnknownTextSchemaDescriptor tsd = new UnknownTextSchemaDescriptor(this);
 
-    numTuples = Math.min(numTuples, UnknownTextSchemaDescriptor.MAX_LINES);
-    numLines = Math.min(numLines, UnknownTextSchemaDescriptor.MAX_LINES);
-    if ((numTuples / (1.0 * numLines)) < TUPLE_PCT) {
-      throw new IOException("Cannot parse structured text data");
+      // Test if this schema descriptor can parse the file, using the sample it was learned from
+      int numTuples = 0;
+      int numLines = 0;
+      GenericContainer reuse = null;
+      for (String line: getSample()) {
+        GenericContainer result = tsd.program.parse(line, reuse);
+        if (result != null) {
+          reuse = result;
+          numTuples++;
+        }
+        numLines++;
+      }
+      if (numLines == 0 || (numTuples / (1.0 * numLines)) < TUPLE_PCT) {
+        throw new IOException("Cannot parse structured text data");
+      }
+      this.schemas.add(tsd);
+    } finally {
+      this.sample = null;
     }
-    this.schemas.add(new UnknownTextSchemaDescriptor(this));
   }
 
   public UnknownTextDataDescriptor(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
     super(p, fs, TEXTDATA_TYPE, schemaReprs, schemaDescs, schemaBlobs);
   }
 
+  public int getSampleMode() {
+    return sampleMode;
+  }
+  public InferenceCache getInferenceCache() {
+    return inferenceCache;
+  }
+
+  /**
+   * The lines that structure is learned from and checked against: up to
+   * <code>UnknownTextSchemaDescriptor.MAX_LINES</code> of them, chosen by the
+   * sample mode.  Read once, and only held while the descriptor is being built.
+   */
+  List<String> getSample() throws IOException {
+    if (sample == null) {
+      sample = LineSampler.sample(fs, p, sampleMode, UnknownTextSchemaDescriptor.MAX_LINES, LineSampler.DEFAULT_SEED);
+    }
+    return sample;
+  }
+
   SchemaDescriptor loadSchemaDescriptor(String schemaRepr, String schemaId, byte[] blob) throws IOException {
     return new UnknownTextSchemaDescriptor(this, schemaRepr, blob);
   }
@@ -140,6 +217,11 @@ public class UnknownTextDataDescriptor extends GenericDataDescriptor {
     int numRecords = 0;
     int MAX_RECORDS = 1000;
     try {
+      // Text rows go straight to Avro binary, without building records
+      if (sd instanceof UnknownTextSchemaDescriptor) {
+        ((UnknownTextSchemaDescriptor) sd).appendEncodedRows(dataFileWriter, schema, MAX_RECORDS);
+        return;
+      }
       for (Iterator it = sd.getIterator(); it.hasNext() && numRecords < MAX_RECORDS; ) {
         GenericData.Record rowRecord = (GenericData.Record) it.next();
         if (rowRecord.getSchema().toString().hashCode() != schema.toString().hashCode()) {
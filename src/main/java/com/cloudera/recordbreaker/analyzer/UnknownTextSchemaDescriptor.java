@@ -14,12 +14,13 @@
  */
 package com.cloudera.recordbreaker.analyzer;
 
+import java.util.Map;
 import java.util.List;
 import java.util.Random;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 
-import java.io.File;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.BufferedReader;
@@ -32,15 +33,17 @@ import java.io.ByteArrayOutputStream;
 
 import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericContainer;
 import org.apache.avro.generic.GenericDatumReader;
 
+import com.cloudera.recordbreaker.learnstructure.EncodedDatum;
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
 import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.ParserProgram;
 import com.cloudera.recordbreaker.learnstructure.LearnStructure;
 
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.conf.Configuration;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -58,7 +61,16 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
   private static final Log LOG = LogFactory.getLog(UnknownTextSchemaDescriptor.class);    
   public static String SCHEMA_ID = "recordbreaker-recovered";
   public static int MAX_LINES = 1000;
+  // If > 0, grow the inference sample from this many lines until the schema settles,
+  // up to MAX_LINES.  See LearnStructure.setAdaptiveSampleSize().
+  public static int ADAPTIVE_INITIAL_LINES = 0;
+  // If true, the parser reorders union branches by how often the data takes them,
+  // and the payload keeps the counts.  See ParserProgram.setAdaptiveOrder().
+  public static boolean ADAPTIVE_UNION_ORDER = false;
   InferredType typeTree;
+  // typeTree, compiled
+  ParserProgram program;
+  int convergenceLines = -1;
 
   public UnknownTextSchemaDescriptor(DataDescriptor dd) throws IOException {
     super(dd);
@@ -73,6 +85,8 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
     DataInputStream in = new DataInputStream(new ByteArrayInputStream(miscPayload));
     try {
       this.typeTree = InferredType.readType(in);
+      this.program = getParserProgram(typeTree);
+      readBranchStats(program, in);
     } finally {
       in.close();
     }
@@ -82,34 +96,120 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
   void computeSchema() throws IOException {
     this.randId = new Random().nextInt();    
     LearnStructure ls = new LearnStructure();
-    FileSystem fs = FSAnalyzer.getInstance().getFS();
-    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    int sampleMode = LineSampler.HEAD;
+    InferenceCache inferenceCache = null;
+    if (dd instanceof UnknownTextDataDescriptor) {
+      sampleMode = ((UnknownTextDataDescriptor) dd).getSampleMode();
+      inferenceCache = ((UnknownTextDataDescriptor) dd).getInferenceCache();
+      ls.setSampleMode(sampleMode);
+    }
+    if (ADAPTIVE_INITIAL_LINES > 0) {
+      ls.setAdaptiveSampleSize(ADAPTIVE_INITIAL_LINES, LearnStructure.DEFAULT_ADAPTIVE_STABLE_ROUNDS);
+    }
     Path inputPath = dd.getFilename();
 
-    File workingParserFile = File.createTempFile("textdesc", "typetree", null);
-    File workingSchemaFile = File.createTempFile("textdesc", "schema", null);
-    
-    ls.inferRecordFormat(fs, inputPath, localFS, new Path(workingSchemaFile.getCanonicalPath()), new Path(workingParserFile.getCanonicalPath()), null, null, false, MAX_LINES);
+    // The data descriptor checks the parser against this same sample
+    List<String> sample = null;
+    if (dd instanceof UnknownTextDataDescriptor) {
+      sample = ((UnknownTextDataDescriptor) dd).getSample();
+    } else {
+      sample = LineSampler.sample(FSAnalyzer.getInstance().getFS(), inputPath, sampleMode, MAX_LINES, LineSampler.DEFAULT_SEED);
+    }
 
-    this.schema = Schema.parse(workingSchemaFile);
-    DataInputStream in = new DataInputStream(localFS.open(new Path(workingParserFile.getCanonicalPath())));
-    try {
-      this.typeTree = InferredType.readType(in);
-    } catch(IOException iex) {
-      iex.printStackTrace();
-      throw iex;
-    } finally {
-      in.close();
+    // Files with a familiar layout can reuse an earlier file's structure
+    long layoutFingerprint = 0;
+    if (inferenceCache != null) {
+      layoutFingerprint = LearnStructure.getLayoutFingerprint(sample);
+      if (layoutFingerprint == LearnStructure.NO_LAYOUT_FINGERPRINT) {
+        // Nothing to recognize the file by, so don't look it up or store it
+        inferenceCache = null;
+      } else if (loadCachedSchema(inferenceCache, layoutFingerprint, sample)) {
+        return;
+      }
+    }
+
+    this.typeTree = ls.inferType(sample);
+    if (ADAPTIVE_INITIAL_LINES > 0) {
+      this.convergenceLines = ls.getConvergenceLines();
+      LOG.info("Schema for " + inputPath + " converged at line " + convergenceLines + " after " + ls.getInferenceRounds() + " rounds");
+    }
+    this.schema = typeTree.getAvroSchema();
+    this.program = getParserProgram(typeTree);
+    if (inferenceCache != null) {
+      inferenceCache.put(layoutFingerprint, schema.toString(), getPayload());
     }
     //System.err.println("Recovered unknowntext schema: " + schema);
   }
 
+  /**
+   * Use the cached structure for this layout, if there is one and it can parse
+   * at least TUPLE_PCT of the sample.  Returns whether it did.
+   */
+  boolean loadCachedSchema(InferenceCache inferenceCache, long layoutFingerprint, List<String> sample) throws IOException {
+    InferenceCache.Entry entry = inferenceCache.get(layoutFingerprint);
+    if (entry != null && sample.size() > 0) {
+      InferredType cachedTypeTree = null;
+      ParserProgram cachedParser = null;
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.getPayload()));
+      try {
+        cachedTypeTree = InferredType.readType(in);
+        cachedParser = getParserProgram(cachedTypeTree);
+        readBranchStats(cachedParser, in);
+      } finally {
+        in.close();
+      }
+      int numParsed = 0;
+      for (String line: sample) {
+        if (cachedParser.parse(line) != null) {
+          numParsed++;
+        }
+      }
+      if (numParsed >= UnknownTextDataDescriptor.TUPLE_PCT * sample.size()) {
+        this.schema = Schema.parse(entry.getSchemaRepr());
+        this.typeTree = cachedTypeTree;
+        this.program = cachedParser;
+        inferenceCache.noteHit();
+        return true;
+      }
+    }
+    inferenceCache.noteMiss();
+    return false;
+  }
+
+  /**
+   * Number of lines adaptive inference needed before the schema stopped changing.
+   * -1 if adaptive inference was off, or the schema never settled.
+   */
+  public int getConvergenceLines() {
+    return convergenceLines;
+  }
+
+  ParserProgram getParserProgram(InferredType typeTree) {
+    ParserProgram program = typeTree.getParserProgram();
+    program.setAdaptiveOrder(ADAPTIVE_UNION_ORDER);
+    return program;
+  }
+
+  /**
+   * With adaptive union ordering on, the parser's union branch counts follow
+   * the type tree in the payload.  Otherwise, or if the payload was written
+   * without them, it just ends after the tree.
+   */
+  void readBranchStats(ParserProgram program, DataInputStream in) throws IOException {
+    if (program.getAdaptiveOrder() && in.available() > 0) {
+      program.readBranchStats(in);
+    }
+  }
+
   public byte[] getPayload() {
-    // Serialize the parser, return the resulting string
+    // Serialize the parser and what it has learned about the data, return the resulting string
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     DataOutputStream out = new DataOutputStream(baos);
     try {
       this.typeTree.write(out);
+      if (program.getAdaptiveOrder()) {
+        program.writeBranchStats(out);
+      }
       out.close();      
     } catch (IOException iex) {
       return new byte[0];
@@ -122,10 +222,21 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
    * Iterate through Avro-encoded rows of the file
    */
   public Iterator getIterator() {
+    return getIterator(false);
+  }
+
+  /**
+   * As above.  If 'reuseRecords' is true, each row overwrites the one before it
+   * where it can, so a row is only valid until the following call to next().
+   */
+  public Iterator getIterator(final boolean reuseRecords) {
     return new Iterator() {
       int lineno = 0;
       BufferedReader in = null;
       Object nextElt = null;
+      // With lookahead, the row handed out last is still in use; rows alternate between two containers
+      GenericContainer reuse = null;
+      GenericContainer spare = null;
       {
         try {
           in = new BufferedReader(new InputStreamReader(dd.getRawBytes()));
@@ -150,9 +261,13 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
         try {
           String str = null;
           while ((str = in.readLine()) != null) {
-            GenericContainer resultObj = typeTree.parse(str);
+            GenericContainer resultObj = program.parse(str, reuse);
             lineno++;
             if (resultObj != null) {
+              if (reuseRecords) {
+                reuse = spare;
+                spare = resultObj;
+              }
               return resultObj;
             }
           }
@@ -168,6 +283,40 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
     };
   }
   
+  /**
+   * Append to 'writer' the first 'maxRecords' rows whose schema is 'schema'.
+   * Each line goes straight to Avro binary through ParserProgram.encode(), so no
+   * records are built along the way.  Returns the number of rows written.
+   */
+  public int appendEncodedRows(DataFileWriter writer, Schema schema, int maxRecords) throws IOException {
+    int schemaHash = schema.toString().hashCode();
+    Map<Schema, Boolean> schemaMatches = new IdentityHashMap<Schema, Boolean>();
+    EncodedDatum datum = new EncodedDatum();
+    int numRecords = 0;
+    BufferedReader in = new BufferedReader(new InputStreamReader(dd.getRawBytes()));
+    try {
+      String str = null;
+      while (numRecords < maxRecords && (str = in.readLine()) != null) {
+        Schema rowSchema = program.encode(str, datum, true);
+        if (rowSchema == null) {
+          continue;
+        }
+        Boolean matches = schemaMatches.get(rowSchema);
+        if (matches == null) {
+          matches = (rowSchema.toString().hashCode() == schemaHash);
+          schemaMatches.put(rowSchema, matches);
+        }
+        if (matches) {
+          writer.appendEncoded(datum.toByteBuffer());
+          numRecords++;
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return numRecords;
+  }
+
   /**
    * @return a <code>String</code> that annotates the schema
    */
@@ -21,6 +21,8 @@ import java.util.ArrayList;
 import java.io.IOException;
 import java.io.InputStream;
 
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
@@ -58,7 +60,7 @@ public class UnstructuredFileDescriptor implements DataDescriptor {
   }
 
   public InputStream getRawBytes() throws IOException {
-    return fs.open(p);
+    return CompressedInput.open(fs, p);
   }
   public boolean isHiveSupported() {
     return false;
@@ -23,6 +23,8 @@ import org.apache.hadoop.fs.FileUtil;
 
 import org.apache.hadoop.conf.Configuration;
 
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
 /*****************************************************
  * <code>XMLDataDescriptor</code> describes data that
  * was found in XML in the wild.  We convert the data to
@@ -34,6 +36,27 @@ import org.apache.hadoop.conf.Configuration;
  *****************************************************/
 public class XMLDataDescriptor extends GenericDataDescriptor {
   final public static String XML_TYPE = "xml";
+
+  /**
+   * Finds XML files for the FormatDetectorRegistry
+   */
+  public static class Detector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return XML_TYPE;
+    }
+    public int getCostTier() {
+      return EXTENSION;
+    }
+    public boolean matches(FileProbe probe) throws IOException {
+      return CompressedInput.getUncompressedName(probe.getFileSystem(), probe.getPath()).endsWith(".xml");
+    }
+    public DataDescriptor describe(FileSystem fs, Path p) throws IOException {
+      return new XMLDataDescriptor(p, fs);
+    }
+    public DataDescriptor load(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new XMLDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
   
   public XMLDataDescriptor(Path p, FileSystem fs) throws IOException {
     super(p, fs, XML_TYPE);
@@ -52,6 +52,7 @@ import com.cloudera.recordbreaker.analyzer.CrawlRuntimeStatus;
 public class FishEye {
   static final String FISHEYE_METADATA_STORE = "metadata";
   static final String FISHEYE_SCHEMA_REPO = "schemarepo";
+  static final String FISHEYE_INFERENCE_CACHE = "inferencecache";
 
   static FishEye fisheyeInstance;
   FSAnalyzer analyzer;
@@ -79,7 +80,8 @@ public class FishEye {
 
     File fisheyeStore = new File(fisheyeDir, FISHEYE_METADATA_STORE);
     File fisheyeSchemas = new File(fisheyeDir, FISHEYE_SCHEMA_REPO);
-    this.analyzer = new FSAnalyzer(fisheyeStore, fisheyeSchemas);
+    File fisheyeInferenceCache = new File(fisheyeDir, FISHEYE_INFERENCE_CACHE);
+    this.analyzer = new FSAnalyzer(fisheyeStore, fisheyeSchemas, fisheyeInferenceCache);
     this.crawler = new FSCrawler(analyzer);
     this.accessCtrl = new AccessController();
     FishEye.fisheyeInstance = this;
@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+/*********************************************************
+ * AvroConverter parses a text file with a ParserProgram and writes the
+ * results on a pool of worker threads: the records as Avro and as JSON,
+ * and the lines that don't parse, whichever of them are asked for.
+ *
+ * The file is cut into byte ranges of about 'splitSize' bytes.  As with
+ * Hadoop's LineRecordReader, a range owns every line that starts inside it,
+ * plus the line that starts at its end; a range that doesn't start the
+ * file skips its first line, which belongs to the range before.  Each worker
+ * sends its range's lines through a LearnStructure.Emitter of its own, into
+ * an Avro container, a JSON buffer and a reject buffer.  convert() then
+ * copies those, in order, into one file of each kind; convertToParts()
+ * leaves the Avro containers as numbered part files instead.  The file is
+ * read once, for all of the outputs.
+ *
+ * Either way the output comes out in input order.  Each line is parsed on its
+ * own, so it is what a serial pass over the file writes, however many threads
+ * there are.  The exception is a program with adaptive ordering turned on
+ * (see ParserProgram.setAdaptiveOrder()): the workers share its union
+ * statistics, so an ambiguous line can parse differently than it would in a
+ * serial pass.
+ *
+ * A compressed file (see CompressedInput) can't be cut at arbitrary byte
+ * offsets, so it is converted as a single split.
+ *
+ * Lines are decoded as UTF-8, the same as LearnStructure.INPUT_ENCODING.
+ *********************************************************/
+public class AvroConverter {
+  public static long DEFAULT_SPLIT_SIZE = 16 * 1024 * 1024;
+  static int MAX_PENDING_SPLITS_PER_THREAD = 2;
+  // JsonEncoder puts this between top-level values, so it goes between splits' JSON too
+  static String JSON_SEPARATOR = System.getProperty("line.separator");
+
+  ParserProgram program;
+  Schema schema;
+  int numThreads = 1;
+  long splitSize = DEFAULT_SPLIT_SIZE;
+  boolean encodeDirect = false;
+  long numLines = 0;
+  long numRecords = 0;
+  boolean wroteJson = false;
+
+  /**
+   * The output of one split
+   */
+  static class SplitResult {
+    ByteArrayOutputStream bytes = null;
+    ByteArrayOutputStream jsonBytes = null;
+    ByteArrayOutputStream rejectBytes = null;
+    long numLines = 0;
+    long numRecords = 0;
+  }
+
+  /**
+   * Parse the lines of one byte range.  If 'writeAvro' is set, the Avro container
+   * goes to 'partFile' if it is non-null, and otherwise into memory.  JSON and
+   * rejected lines, if asked for, go into memory.
+   */
+  class SplitTask implements Callable<SplitResult> {
+    FileSystem fs;
+    Path p;
+    long start;
+    long end;
+    boolean writeAvro;
+    boolean writeJson;
+    boolean writeRejects;
+    FileSystem dstFs;
+    Path partFile;
+    public SplitTask(FileSystem fs, Path p, long start, long end, boolean writeAvro, boolean writeJson, boolean writeRejects, FileSystem dstFs, Path partFile) {
+      this.fs = fs;
+      this.p = p;
+      this.start = start;
+      this.end = end;
+      this.writeAvro = writeAvro;
+      this.writeJson = writeJson;
+      this.writeRejects = writeRejects;
+      this.dstFs = dstFs;
+      this.partFile = partFile;
+    }
+    public SplitResult call() throws IOException {
+      SplitResult result = new SplitResult();
+      LearnStructure.Emitter emitter = new LearnStructure.Emitter(program, false);
+      try {
+        if (writeAvro) {
+          OutputStream out = null;
+          if (partFile == null) {
+            result.bytes = new ByteArrayOutputStream();
+            out = result.bytes;
+          } else {
+            out = dstFs.create(partFile);
+          }
+          emitter.openAvro(schema, out, encodeDirect);
+        }
+        if (writeJson) {
+          result.jsonBytes = new ByteArrayOutputStream();
+          emitter.openJson(schema, result.jsonBytes);
+        }
+        if (writeRejects) {
+          result.rejectBytes = new ByteArrayOutputStream();
+          emitter.openRejects(result.rejectBytes);
+        }
+        InputStream in = null;
+        if (start == 0) {
+          in = CompressedInput.open(fs, p);
+        } else {
+          FSDataInputStream fin = fs.open(p);
+          fin.seek(start);
+          in = fin;
+        }
+        try {
+          LineReader reader = new LineReader(in);
+          Text line = new Text();
+          long pos = start;
+          if (start != 0) {
+            pos += reader.readLine(line);
+          }
+          while (pos <= end) {
+            int lineBytes = reader.readLine(line);
+            if (lineBytes == 0) {
+              break;
+            }
+            pos += lineBytes;
+            emitter.emit(line.toString());
+          }
+        } finally {
+          in.close();
+        }
+      } finally {
+        emitter.close();
+      }
+      result.numLines = emitter.numLines;
+      result.numRecords = emitter.numRecords;
+      return result;
+    }
+  }
+
+  public AvroConverter(ParserProgram program) {
+    this.program = program;
+    this.schema = program.getAvroSchema();
+  }
+
+  /**
+   * Number of worker threads.  The default is 1.
+   */
+  public void setNumThreads(int numThreads) {
+    this.numThreads = Math.max(1, numThreads);
+  }
+
+  /**
+   * Approximate number of input bytes per split.  Up to
+   * MAX_PENDING_SPLITS_PER_THREAD splits per thread are held in memory by convert().
+   */
+  public void setSplitSize(long splitSize) {
+    this.splitSize = Math.max(1, splitSize);
+  }
+
+  /**
+   * If true, the Avro data is written with ParserProgram.encode(), as
+   * LearnStructure.setEncodeDirect() describes.  The default is false.
+   */
+  public void setEncodeDirect(boolean encodeDirect) {
+    this.encodeDirect = encodeDirect;
+  }
+
+  /**
+   * Number of input lines read, and records written, by the last conversion
+   */
+  public long getNumLines() {
+    return numLines;
+  }
+  public long getNumRecords() {
+    return numRecords;
+  }
+
+  /**
+   * Write the records parsed from 'p' to the Avro file 'dst', in input order
+   */
+  public void convert(FileSystem fs, Path p, FileSystem dstFs, Path dst) throws IOException {
+    convert(fs, p, dstFs, dst, null, null);
+  }
+
+  /**
+   * As above, but each output is written only if its file is non-null: the records
+   * as Avro to 'avroFile' and as JSON to 'jsonFile', and the lines that don't parse
+   * to 'rejectFile'.
+   */
+  public void convert(FileSystem fs, Path p, FileSystem dstFs, Path avroFile, Path jsonFile, Path rejectFile) throws IOException {
+    DataFileWriter writer = null;
+    OutputStream jsonOut = null;
+    OutputStream rejectOut = null;
+    try {
+      if (avroFile != null) {
+        writer = new DataFileWriter(new GenericDatumWriter(schema)).create(schema, dstFs.create(avroFile));
+      }
+      if (jsonFile != null) {
+        jsonOut = new BufferedOutputStream(dstFs.create(jsonFile));
+      }
+      if (rejectFile != null) {
+        rejectOut = new BufferedOutputStream(dstFs.create(rejectFile));
+      }
+      convertSplits(fs, p, dstFs, null, writer, jsonOut, rejectOut);
+    } finally {
+      try {
+        if (writer != null) {
+          writer.close();
+        }
+      } finally {
+        try {
+          if (jsonOut != null) {
+            jsonOut.close();
+          }
+        } finally {
+          if (rejectOut != null) {
+            rejectOut.close();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Write the records parsed from 'p' to Avro files in 'dstDir', one per split.
+   * Returns the files, in input order; their names sort in the same order.
+   */
+  public List<Path> convertToParts(FileSystem fs, Path p, FileSystem dstFs, Path dstDir) throws IOException {
+    return convertSplits(fs, p, dstFs, dstDir, null, null, null);
+  }
+
+  /**
+   * The [start, end) byte ranges that a file of 'length' bytes is cut into
+   */
+  static List<long[]> getSplits(long length, long splitSize) {
+    List<long[]> splits = new ArrayList<long[]>();
+    long start = 0;
+    do {
+      long end = Math.min(length, start + splitSize);
+      splits.add(new long[] {start, end});
+      start = end;
+    } while (start < length);
+    return splits;
+  }
+
+  /**
+   * Hand the splits to the pool, and collect the results in split order.  The
+   * Avro data goes to 'writer' if it is non-null, and otherwise to a part file
+   * in 'dstDir' if that is non-null.  JSON and rejected lines go to 'jsonOut'
+   * and 'rejectOut', if they are non-null.
+   */
+  List<Path> convertSplits(FileSystem fs, Path p, FileSystem dstFs, Path dstDir, DataFileWriter writer, OutputStream jsonOut, OutputStream rejectOut) throws IOException {
+    numLines = 0;
+    numRecords = 0;
+    wroteJson = false;
+    List<long[]> splits = null;
+    if (CompressedInput.getCodec(fs, p) != null) {
+      splits = new ArrayList<long[]>();
+      splits.add(new long[] {0, Long.MAX_VALUE});
+    } else {
+      splits = getSplits(fs.getFileStatus(p).getLen(), splitSize);
+    }
+    List<Path> partFiles = new ArrayList<Path>();
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    LinkedList<Future<SplitResult>> pendingResults = new LinkedList<Future<SplitResult>>();
+    int maxPending = MAX_PENDING_SPLITS_PER_THREAD * numThreads;
+    try {
+      for (int i = 0; i < splits.size(); i++) {
+        Path partFile = null;
+        if (writer == null && dstDir != null) {
+          partFile = new Path(dstDir, String.format("part-%05d.avro", i));
+          partFiles.add(partFile);
+        }
+        long split[] = splits.get(i);
+        pendingResults.add(pool.submit(new SplitTask(fs, p, split[0], split[1], writer != null || dstDir != null, jsonOut != null, rejectOut != null, dstFs, partFile)));
+
+        // Don't let finished splits pile up in memory
+        while (pendingResults.size() >= maxPending) {
+          collectSplit(LearnStructure.getResult(pendingResults.removeFirst(), "Conversion"), writer, jsonOut, rejectOut);
+        }
+      }
+      while (pendingResults.size() > 0) {
+        collectSplit(LearnStructure.getResult(pendingResults.removeFirst(), "Conversion"), writer, jsonOut, rejectOut);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    return partFiles;
+  }
+
+  void collectSplit(SplitResult result, DataFileWriter writer, OutputStream jsonOut, OutputStream rejectOut) throws IOException {
+    numLines += result.numLines;
+    numRecords += result.numRecords;
+    if (writer != null) {
+      DataFileStream in = new DataFileStream(new ByteArrayInputStream(result.bytes.toByteArray()), new GenericDatumReader());
+      try {
+        writer.appendAllFrom(in, false);
+      } finally {
+        in.close();
+      }
+    }
+    if (jsonOut != null && result.jsonBytes.size() > 0) {
+      if (wroteJson) {
+        jsonOut.write(JSON_SEPARATOR.getBytes("UTF-8"));
+      }
+      result.jsonBytes.writeTo(jsonOut);
+      wroteJson = true;
+    }
+    if (rejectOut != null) {
+      result.rejectBytes.writeTo(rejectOut);
+    }
+  }
+}
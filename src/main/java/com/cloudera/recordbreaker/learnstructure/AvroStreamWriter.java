@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataOutputStream;
+
+/*********************************************************
+ * AvroStreamWriter writes an unbounded stream of records to a series of
+ * Avro files in one directory, named data-00000.avro, data-00001.avro, and
+ * so on.  A new file is started when the current one reaches 'rollBytes'
+ * bytes or has been open for 'rollMillis'.  Every 'flushMillis', a
+ * background timer flushes the pending block and hflush()es the file, so
+ * readers see recent records even when the stream is quiet.  A limit of 0
+ * or less is off.  Numbers already used in the directory are skipped.
+ *
+ * If a timed flush fails, the timer stops, and the error is thrown from the
+ * next call to append(), appendEncoded(), flush() or close().
+ *
+ * Only the block being built is held in memory.
+ *********************************************************/
+public class AvroStreamWriter {
+  public static long DEFAULT_ROLL_BYTES = 128L * 1024 * 1024;
+  public static long DEFAULT_ROLL_MILLIS = 60L * 60 * 1000;
+  public static long DEFAULT_FLUSH_MILLIS = 10L * 1000;
+  static String FILE_PREFIX = "data-";
+
+  FileSystem fs;
+  Path dir;
+  Schema schema;
+  long rollBytes;
+  long rollMillis;
+  Timer flushTimer = null;
+
+  DataFileWriter writer = null;
+  FSDataOutputStream out = null;
+  long openedAt = 0;
+  int fileNo = 0;
+  long numRecords = 0;
+  int numFiles = 0;
+  boolean closed = false;
+  // Set when the flush timer fails, for the caller's next call to throw
+  IOException flushError = null;
+
+  public AvroStreamWriter(FileSystem fs, Path dir, Schema schema, long rollBytes, long rollMillis, long flushMillis) {
+    this.fs = fs;
+    this.dir = dir;
+    this.schema = schema;
+    this.rollBytes = rollBytes;
+    this.rollMillis = rollMillis;
+    if (flushMillis > 0) {
+      this.flushTimer = new Timer("AvroStreamWriter flush", true);
+      flushTimer.schedule(new TimerTask() {
+          public void run() {
+            timedFlush();
+          }
+        }, flushMillis, flushMillis);
+    }
+  }
+
+  /**
+   * Flush from the timer thread, which has no caller to throw to
+   */
+  synchronized void timedFlush() {
+    if (closed || flushError != null) {
+      return;
+    }
+    try {
+      flushFile();
+    } catch (IOException iex) {
+      flushError = iex;
+      flushTimer.cancel();
+    }
+  }
+
+  /**
+   * Throw the error from a failed timed flush, if there was one
+   */
+  void checkFlushError() throws IOException {
+    if (flushError != null) {
+      IOException iex = new IOException("Could not flush " + dir + ": " + flushError.getMessage());
+      iex.initCause(flushError);
+      throw iex;
+    }
+  }
+
+  /**
+   * Append one record
+   */
+  public synchronized void append(Object datum) throws IOException {
+    prepareAppend();
+    writer.append(datum);
+    numRecords++;
+  }
+
+  /**
+   * Append one record, already in Avro's binary encoding
+   */
+  public synchronized void appendEncoded(ByteBuffer datum) throws IOException {
+    prepareAppend();
+    writer.appendEncoded(datum);
+    numRecords++;
+  }
+
+  /**
+   * Make sure there's an open file with room for the next record
+   */
+  void prepareAppend() throws IOException {
+    checkFlushError();
+    if (closed) {
+      throw new IOException("Stream writer for " + dir + " is closed");
+    }
+    if (writer != null && ((rollBytes > 0 && out.getPos() >= rollBytes) || (rollMillis > 0 && System.currentTimeMillis() - openedAt >= rollMillis))) {
+      closeFile();
+    }
+    if (writer == null) {
+      openFile();
+    }
+  }
+
+  void openFile() throws IOException {
+    Path p = null;
+    do {
+      p = new Path(dir, FILE_PREFIX + String.format("%05d", fileNo++) + ".avro");
+    } while (fs.exists(p));
+    out = fs.create(p);
+    writer = new DataFileWriter(new GenericDatumWriter(schema)).create(schema, out);
+    openedAt = System.currentTimeMillis();
+    numFiles++;
+  }
+
+  void closeFile() throws IOException {
+    try {
+      writer.close();
+    } finally {
+      writer = null;
+      out = null;
+    }
+  }
+
+  /**
+   * Write out the block in progress, and make it visible to readers
+   */
+  public synchronized void flush() throws IOException {
+    checkFlushError();
+    flushFile();
+  }
+
+  void flushFile() throws IOException {
+    if (writer != null) {
+      writer.flush();
+      out.hflush();
+    }
+  }
+
+  public synchronized long getNumRecords() {
+    return numRecords;
+  }
+  public synchronized int getNumFiles() {
+    return numFiles;
+  }
+
+  /**
+   * Close the current file and stop the flush timer.  It's safe to call this
+   * more than once.
+   */
+  public synchronized void close() throws IOException {
+    boolean wasClosed = closed;
+    closed = true;
+    if (flushTimer != null) {
+      flushTimer.cancel();
+      flushTimer = null;
+    }
+    if (writer != null) {
+      closeFile();
+    }
+    if (! wasClosed) {
+      checkFlushError();
+    }
+  }
+}
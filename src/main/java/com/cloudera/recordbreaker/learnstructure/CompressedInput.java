@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/*********************************************************
+ * CompressedInput opens files that may be compressed, and hands back
+ * a stream of the uncompressed bytes.  The codec is chosen by Hadoop's
+ * CompressionCodecFactory from the file's suffix (.gz, .bz2, .snappy,
+ * and so on).  Files without a known suffix are checked for the gzip and
+ * bzip2 magic bytes.  Anything else is read as-is.
+ *
+ * Decompression is streaming; decompressors come from Hadoop's CodecPool
+ * and go back to it when the stream is closed.  With a splittable codec
+ * (bzip2), openBlock() starts reading at a compressed block in the middle
+ * of the file, as Hadoop's LineRecordReader does for a split.
+ *********************************************************/
+public class CompressedInput {
+  static int MAGIC_BYTES = 10;
+  static byte BZIP2_BLOCK_MAGIC[] = {0x31, 0x41, 0x59, 0x26, 0x53, 0x59};
+  static byte BZIP2_EOS_MAGIC[] = {0x17, 0x72, 0x45, 0x38, 0x50, (byte) 0x90};
+
+  /**
+   * Returns the stream to the CodecPool when it's closed
+   */
+  static class PooledInputStream extends FilterInputStream {
+    Decompressor decompressor;
+    public PooledInputStream(InputStream in, Decompressor decompressor) {
+      super(in);
+      this.decompressor = decompressor;
+    }
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (decompressor != null) {
+          CodecPool.returnDecompressor(decompressor);
+          decompressor = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * PooledInputStream for a stream that starts at a compressed block.  The
+   * position and adjusted bounds are those of the stream it wraps.
+   */
+  static class PooledSplitInputStream extends SplitCompressionInputStream {
+    SplitCompressionInputStream split;
+    Decompressor decompressor;
+    public PooledSplitInputStream(SplitCompressionInputStream split, Decompressor decompressor) throws IOException {
+      super(split, split.getAdjustedStart(), split.getAdjustedEnd());
+      this.split = split;
+      this.decompressor = decompressor;
+    }
+    public int read() throws IOException {
+      return split.read();
+    }
+    public int read(byte buf[], int off, int len) throws IOException {
+      return split.read(buf, off, len);
+    }
+    public void resetState() throws IOException {
+      split.resetState();
+    }
+    public long getPos() throws IOException {
+      return split.getPos();
+    }
+    public long getAdjustedStart() {
+      return split.getAdjustedStart();
+    }
+    public long getAdjustedEnd() {
+      return split.getAdjustedEnd();
+    }
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (decompressor != null) {
+          CodecPool.returnDecompressor(decompressor);
+          decompressor = null;
+        }
+      }
+    }
+  }
+
+  static Configuration getConf(FileSystem fs) {
+    Configuration conf = fs.getConf();
+    return (conf == null) ? new Configuration() : conf;
+  }
+
+  /**
+   * The codec 'p' is compressed with, or null if it isn't compressed
+   */
+  public static CompressionCodec getCodec(FileSystem fs, Path p) throws IOException {
+    CompressionCodec codec = new CompressionCodecFactory(getConf(fs)).getCodec(p);
+    if (codec == null) {
+      FSDataInputStream in = fs.open(p);
+      try {
+        codec = getCodecByMagic(fs, in);
+      } finally {
+        in.close();
+      }
+    }
+    return codec;
+  }
+
+  /**
+   * The codec for 'p', when its first 'len' bytes are already in 'header'
+   */
+  public static CompressionCodec getCodec(FileSystem fs, Path p, byte header[], int len) {
+    CompressionCodec codec = new CompressionCodecFactory(getConf(fs)).getCodec(p);
+    if (codec == null) {
+      codec = getCodecByMagic(fs, header, len);
+    }
+    return codec;
+  }
+
+  /**
+   * Check the leading bytes of 'in' for a gzip or bzip2 header.  Leaves the
+   * stream where it was.
+   */
+  static CompressionCodec getCodecByMagic(FileSystem fs, FSDataInputStream in) throws IOException {
+    long pos = in.getPos();
+    byte magic[] = new byte[MAGIC_BYTES];
+    int numBytes = 0;
+    try {
+      int n = 0;
+      while (numBytes < magic.length && (n = in.read(magic, numBytes, magic.length - numBytes)) > 0) {
+        numBytes += n;
+      }
+    } finally {
+      in.seek(pos);
+    }
+    return getCodecByMagic(fs, magic, numBytes);
+  }
+
+  static CompressionCodec getCodecByMagic(FileSystem fs, byte magic[], int numBytes) {
+    if (numBytes >= 3 && magic[0] == 0x1f && magic[1] == (byte) 0x8b && magic[2] == 0x08) {
+      return ReflectionUtils.newInstance(GzipCodec.class, getConf(fs));
+    }
+    if (numBytes >= 10 && magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h' && magic[3] >= '1' && magic[3] <= '9'
+        && (startsWith(magic, 4, BZIP2_BLOCK_MAGIC) || startsWith(magic, 4, BZIP2_EOS_MAGIC))) {
+      return ReflectionUtils.newInstance(BZip2Codec.class, getConf(fs));
+    }
+    return null;
+  }
+
+  static boolean startsWith(byte buf[], int offset, byte prefix[]) {
+    for (int i = 0; i < prefix.length; i++) {
+      if (buf[offset + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Open 'p' and return its uncompressed bytes
+   */
+  public static InputStream open(FileSystem fs, Path p) throws IOException {
+    CompressionCodec codec = new CompressionCodecFactory(getConf(fs)).getCodec(p);
+    FSDataInputStream in = fs.open(p);
+    try {
+      if (codec == null) {
+        codec = getCodecByMagic(fs, in);
+      }
+      if (codec == null) {
+        return in;
+      }
+      return decompress(codec, in);
+    } catch (IOException iex) {
+      in.close();
+      throw iex;
+    }
+  }
+
+  /**
+   * Uncompress 'in' with 'codec'.  Closing the result closes 'in'.
+   */
+  public static InputStream decompress(CompressionCodec codec, InputStream in) throws IOException {
+    Decompressor decompressor = null;
+    try {
+      decompressor = CodecPool.getDecompressor(codec);
+      return new PooledInputStream(codec.createInputStream(in, decompressor), decompressor);
+    } catch (IOException iex) {
+      CodecPool.returnDecompressor(decompressor);
+      throw iex;
+    } catch (RuntimeException rex) {
+      // Codecs that need a native library throw this when it isn't loaded
+      CodecPool.returnDecompressor(decompressor);
+      throw new IOException("Cannot decompress with " + codec.getClass().getName() + ": " + rex.getMessage());
+    }
+  }
+
+  /**
+   * Open 'p', which is compressed with a splittable codec, at the start of the
+   * first compressed block after byte 'start'.  The stream runs to the end of the
+   * file.  Its first line is usually the tail of a line that began in an earlier
+   * block; getAdjustedStart() is 0 when it isn't.  As with decompress(), the
+   * decompressor goes back to the CodecPool when the stream is closed.
+   */
+  public static SplitCompressionInputStream openBlock(FileSystem fs, Path p, SplittableCompressionCodec codec, long start) throws IOException {
+    long end = fs.getFileStatus(p).getLen();
+    FSDataInputStream in = fs.open(p);
+    Decompressor decompressor = null;
+    try {
+      decompressor = CodecPool.getDecompressor(codec);
+      return new PooledSplitInputStream(codec.createInputStream(in, decompressor, start, end, SplittableCompressionCodec.READ_MODE.BYBLOCK), decompressor);
+    } catch (IOException iex) {
+      CodecPool.returnDecompressor(decompressor);
+      in.close();
+      throw iex;
+    }
+  }
+
+  /**
+   * The name of 'p' without its compression suffix, if it has one
+   */
+  public static String getUncompressedName(FileSystem fs, Path p) {
+    String name = p.getName();
+    CompressionCodec codec = new CompressionCodecFactory(getConf(fs)).getCodec(p);
+    if (codec != null) {
+      name = CompressionCodecFactory.removeSuffix(name, codec.getDefaultExtension());
+    }
+    return name;
+  }
+}
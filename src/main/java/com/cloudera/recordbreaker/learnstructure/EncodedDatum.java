@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*********************************************************
+ * EncodedDatum is a growable buffer that holds one datum in Avro's binary
+ * encoding.  ParserProgram.encode() writes into it as it parses, so a line
+ * can go to a DataFileWriter through appendEncoded() without first being
+ * built as a GenericRecord.
+ *
+ * The write methods follow the Avro spec: ints are zig-zag varints, doubles
+ * are 8 bytes little-endian, and strings are a length followed by UTF-8.
+ * The parser backs out of a failed parse with truncate(), so reuse one
+ * EncodedDatum for a whole file and reset() it between lines.
+ *********************************************************/
+public class EncodedDatum {
+  byte buf[];
+  int count = 0;
+
+  public EncodedDatum() {
+    this(256);
+  }
+
+  public EncodedDatum(int initialSize) {
+    this.buf = new byte[Math.max(initialSize, 16)];
+  }
+
+  public void reset() {
+    count = 0;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Throw away everything written after the first 'size' bytes
+   */
+  public void truncate(int size) {
+    count = size;
+  }
+
+  /**
+   * The encoded bytes.  The buffer is shared, so use it before the next write.
+   */
+  public ByteBuffer toByteBuffer() {
+    return ByteBuffer.wrap(buf, 0, count);
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buf, count);
+  }
+
+  void ensureCapacity(int extra) {
+    if (count + extra > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(2 * buf.length, count + extra));
+    }
+  }
+
+  public void writeInt(int n) {
+    writeLong(n);
+  }
+
+  public void writeLong(long n) {
+    ensureCapacity(10);
+    n = (n << 1) ^ (n >> 63);
+    while ((n & ~0x7FL) != 0) {
+      buf[count++] = (byte) ((n & 0x7F) | 0x80);
+      n >>>= 7;
+    }
+    buf[count++] = (byte) n;
+  }
+
+  public void writeDouble(double d) {
+    ensureCapacity(8);
+    long bits = Double.doubleToRawLongBits(d);
+    for (int i = 0; i < 8; i++) {
+      buf[count++] = (byte) (bits >>> (8 * i));
+    }
+  }
+
+  /**
+   * Write the chars in [start, end) of 's' as an Avro string
+   */
+  public void writeString(CharSequence s, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i) >= 128) {
+        writeString(s.subSequence(start, end).toString());
+        return;
+      }
+    }
+    writeLong(end - start);
+    ensureCapacity(end - start);
+    for (int i = start; i < end; i++) {
+      buf[count++] = (byte) s.charAt(i);
+    }
+  }
+
+  public void writeString(String s) {
+    byte bytes[];
+    try {
+      bytes = s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException uee) {
+      throw new RuntimeException(uee);
+    }
+    writeLong(bytes.length);
+    write(bytes, 0, bytes.length);
+  }
+
+  public void write(byte b[], int off, int len) {
+    ensureCapacity(len);
+    System.arraycopy(b, off, buf, count, len);
+    count += len;
+  }
+
+  /**
+   * A stream that appends to this buffer, for handing to an Avro Encoder
+   */
+  public OutputStream getOutputStream() {
+    return new OutputStream() {
+      public void write(int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+      }
+      public void write(byte b[], int off, int len) {
+        EncodedDatum.this.write(b, off, len);
+      }
+    };
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+
+/*********************************************************
+ * FollowInputStream reads a file that is still being written, like
+ * 'tail -f'.  At the end of the file it waits 'pollMillis' and looks again,
+ * so it never reports end-of-stream until it is closed.  The file is reopened
+ * on each look, since some filesystems (HDFS among them) only show appended
+ * data to new readers.  If the file has become shorter than what was already
+ * read, it was truncated or rotated, and reading starts over from the top.
+ *********************************************************/
+public class FollowInputStream extends InputStream {
+  public static long DEFAULT_POLL_MILLIS = 1000;
+
+  FileSystem fs;
+  Path p;
+  long pollMillis;
+  FSDataInputStream in = null;
+  long pos = 0;
+  volatile boolean closed = false;
+
+  public FollowInputStream(FileSystem fs, Path p, long pollMillis) {
+    this.fs = fs;
+    this.p = p;
+    this.pollMillis = pollMillis;
+  }
+
+  public int read() throws IOException {
+    byte b[] = new byte[1];
+    return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+  }
+
+  public int read(byte b[], int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (! closed) {
+      if (in == null) {
+        if (fs.getFileStatus(p).getLen() < pos) {
+          pos = 0;
+        }
+        in = fs.open(p);
+        in.seek(pos);
+      }
+      int n = in.read(b, off, len);
+      if (n > 0) {
+        pos += n;
+        return n;
+      }
+      in.close();
+      in = null;
+      try {
+        Thread.sleep(pollMillis);
+      } catch (InterruptedException iex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while following " + p);
+      }
+    }
+    return -1;
+  }
+
+  public void close() throws IOException {
+    closed = true;
+    if (in != null) {
+      in.close();
+      in = null;
+    }
+  }
+}
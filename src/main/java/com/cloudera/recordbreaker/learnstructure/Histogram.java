@@ -15,6 +15,12 @@
 package com.cloudera.recordbreaker.learnstructure;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /*********************************************************
  * Histogram statistically summarizes the contents of a set of chunks.
@@ -27,6 +33,11 @@ public class Histogram {
   static double CLUSTER_TOLERANCE = 0.01;
   static double MAX_RESIDUAL_MASS = 0.1;
   static double MIN_COVERAGE_FACTOR = 0.2;
+  // Lower bounds are computed in a different order than the exact distance, so allow for rounding
+  static double PRUNING_THRESHOLD = CLUSTER_TOLERANCE * (1 + 1e-9);
+  static int MIN_PARALLEL_HISTOGRAMS = 128;
+  static volatile int numClusterThreads = 1;
+  static ExecutorService clusterPool = null;
 
   ///////////////////////////////////////////////////
   // static classes
@@ -56,6 +67,65 @@ public class Histogram {
     }
   }
 
+  /**
+   * Histogram pairs that are close enough to cluster: parallel arrays of
+   * distances and histogram indices.
+   */
+  static class ScoreList {
+    double scores[] = new double[16];
+    int index1[] = new int[16];
+    int index2[] = new int[16];
+    int size = 0;
+
+    void add(double score, int i, int j) {
+      if (size == scores.length) {
+        scores = Arrays.copyOf(scores, 2 * size);
+        index1 = Arrays.copyOf(index1, 2 * size);
+        index2 = Arrays.copyOf(index2, 2 * size);
+      }
+      scores[size] = score;
+      index1[size] = i;
+      index2[size] = j;
+      size++;
+    }
+    void addAll(ScoreList other) {
+      for (int k = 0; k < other.size; k++) {
+        add(other.scores[k], other.index1[k], other.index2[k]);
+      }
+    }
+    int getIndex1(int k) {
+      return index1[k];
+    }
+    int getIndex2(int k) {
+      return index2[k];
+    }
+    /**
+     * Positions of the scores, ordered by distance and then by index pair
+     */
+    Integer[] getSortedOrder() {
+      Integer order[] = new Integer[size];
+      for (int k = 0; k < size; k++) {
+        order[k] = k;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer k1, Integer k2) {
+          if (scores[k1] < scores[k2]) {
+            return -1;
+          } else if (scores[k1] > scores[k2]) {
+            return 1;
+          } else {
+            int cmp = index1[k1] - index1[k2];
+            if (cmp == 0) {
+              cmp = index2[k1] - index2[k2];
+            }
+            return cmp;
+          }
+        }
+      });
+      return order;
+    }
+  }
+
   //////////////////////////////////////////////////////////////
   // Static methods: for computing histograms from data,
   // and for clustering the resulting histograms.
@@ -69,90 +139,102 @@ public class Histogram {
    * than the number of potential token types.  However, it can take awhile to compute
    * if the input data size is huge.  
    *
-   * REMIND mjc - This fn may be a good candidate for runtime-perf optimization
+   * Token types are counted by their TokenTypeDictionary ids, so the per-chunk
+   * work is all int array indexing.  Each chunk counts as many times as its weight.
    */
-  public static List<Histogram> computeNormalizedHistograms(List<List<Token.AbstractToken>> chunks) {
-    Map<String, Map<Integer, Integer>> allHistograms = new TreeMap<String, Map<Integer, Integer>>();
+  public static List<Histogram> computeNormalizedHistograms(List<PackedChunk> chunks) {
     List<Histogram> normalizedHistograms = new ArrayList<Histogram>();
+    int numTypes = TokenTypeDictionary.size();
 
     //
-    // 1.  Compute some per-chunk statistics
+    // 1.  Compute some per-chunk statistics.
+    //     allHistograms[t][f] is the number of chunks in which token type t appears exactly f times.
     //
-    for (List<Token.AbstractToken> chunk: chunks) {
+    int allHistograms[][] = new int[numTypes][];
+    int localFreq[] = new int[numTypes];
+    int localTypes[] = new int[16];
+    int numChunks = 0;
+    for (PackedChunk chunk: chunks) {
+      int weight = chunk.getWeight();
+      numChunks += weight;
       // Compute frequencies of token-type within this chunk
-      HashMap<String, Integer> localFreq = new HashMap<String, Integer>();
-      for (Token.AbstractToken tok: chunk) {
-        Integer count = (Integer) localFreq.get(tok.getId());
-        if (count == null) {
-          localFreq.put(tok.getId(), 1);
-        } else {
-          localFreq.put(tok.getId(), count.intValue() + 1);
+      int numLocalTypes = 0;
+      for (int i = chunk.first(); i < chunk.end(); i = chunk.next(i)) {
+        int typeId = chunk.getTypeId(i);
+        if (localFreq[typeId] == 0) {
+          if (numLocalTypes == localTypes.length) {
+            localTypes = Arrays.copyOf(localTypes, 2 * localTypes.length);
+          }
+          localTypes[numLocalTypes++] = typeId;
         }
+        localFreq[typeId]++;
       }
 
       // Now adjust the "histogram of frequencies" associated with each token type
-      for (String tokenId: localFreq.keySet()) {
-        Map<Integer, Integer> perTokenTypeHistogram = allHistograms.get(tokenId);
+      for (int j = 0; j < numLocalTypes; j++) {
+        int typeId = localTypes[j];
+        int currentTokenTypeCount = localFreq[typeId];
+        int perTokenTypeHistogram[] = allHistograms[typeId];
         if (perTokenTypeHistogram == null) {
-          perTokenTypeHistogram = new HashMap<Integer, Integer>();
-          allHistograms.put(tokenId, perTokenTypeHistogram);
-        }
-        Integer currentTokenTypeCount = localFreq.get(tokenId);
-        Integer countSoFar = perTokenTypeHistogram.get(currentTokenTypeCount);
-        if (countSoFar == null) {
-          perTokenTypeHistogram.put(currentTokenTypeCount, 1);
-        } else {
-          perTokenTypeHistogram.put(currentTokenTypeCount, countSoFar.intValue() + 1);
+          perTokenTypeHistogram = new int[Math.max(4, currentTokenTypeCount + 1)];
+          allHistograms[typeId] = perTokenTypeHistogram;
+        } else if (currentTokenTypeCount >= perTokenTypeHistogram.length) {
+          perTokenTypeHistogram = Arrays.copyOf(perTokenTypeHistogram, Math.max(2 * perTokenTypeHistogram.length, currentTokenTypeCount + 1));
+          allHistograms[typeId] = perTokenTypeHistogram;
         }
+        perTokenTypeHistogram[currentTokenTypeCount] += weight;
+        localFreq[typeId] = 0;
       }
     }
 
     //
-    // 2.  Now for each per-token-type histogram, compute how many times the
-    //     token was observed in *no chunk at all*.
+    // 2.  Histograms are emitted in order of the token types' string ids.
+    //     Clustering and the oracle's tie-breaking both depend on that order.
     //
-    for (String tokenId: allHistograms.keySet()) {
-      Map<Integer, Integer> perTokenTypeHistogram = allHistograms.get(tokenId);
-      int numberOfChunksForObservedTokenTypeCount = 0;
-      for (Integer currentTokenTypeCount: perTokenTypeHistogram.keySet()) {
-        numberOfChunksForObservedTokenTypeCount += perTokenTypeHistogram.get(currentTokenTypeCount);
+    List<Integer> observedTypes = new ArrayList<Integer>();
+    for (int typeId = 0; typeId < numTypes; typeId++) {
+      if (allHistograms[typeId] != null) {
+        observedTypes.add(typeId);
       }
-      perTokenTypeHistogram.put(0, chunks.size() - numberOfChunksForObservedTokenTypeCount);
     }
+    Collections.sort(observedTypes, new Comparator<Integer>() {
+      public int compare(Integer t1, Integer t2) {
+        return TokenTypeDictionary.getId(t1).compareTo(TokenTypeDictionary.getId(t2));
+      }
+    });
 
     //
     // 3.  Normalize the per-token-type histograms
     //
-    for (Map.Entry<String, Map<Integer, Integer>> e1: allHistograms.entrySet()) {
-      String tokenId = e1.getKey();
-      Map<Integer, Integer> perTokenTypeHistogram = e1.getValue();
-      double coverage = 0;
-      double totalMass = 0;
+    for (Integer typeId: observedTypes) {
+      int perTokenTypeHistogram[] = allHistograms[typeId];
+      int coverage = 0;
+      int width = 0;
+      double totalMass = numChunks;
 
       // 3.1.  Compute the histogram's normal form: all the counts in descending order of prevalence in the chunk set.
       //       Also, compute some metainfo stats along the way
       SortedSet<FrequencyPair> sorter = new TreeSet<FrequencyPair>();
-      for (Map.Entry<Integer, Integer> e2: perTokenTypeHistogram.entrySet()) {
-        Integer perChunkFrequency = e2.getKey();
-        Integer overallChunkCount = e2.getValue();
-        if (perChunkFrequency.intValue() != 0) {
-          coverage += overallChunkCount.intValue();
+      for (int perChunkFrequency = 1; perChunkFrequency < perTokenTypeHistogram.length; perChunkFrequency++) {
+        int overallChunkCount = perTokenTypeHistogram[perChunkFrequency];
+        if (overallChunkCount != 0) {
+          coverage += overallChunkCount;
+          width++;
           sorter.add(new FrequencyPair(perChunkFrequency, overallChunkCount));
         }
-        totalMass += overallChunkCount.intValue();
       }
       List<FrequencyPair> normalForm = new ArrayList<FrequencyPair>();
+      // The first entry counts the chunks where the token was observed *not at all*.
+      normalForm.add(new FrequencyPair(0, numChunks - coverage));
       for (FrequencyPair p: sorter) {
         normalForm.add(p);
       }
-      normalForm.add(0, new FrequencyPair(0, perTokenTypeHistogram.get(0)));
 
       // 3.2.  Compute metainfo
-      double width = perTokenTypeHistogram.size()-1;
       double residualMass = (totalMass - normalForm.get(1).getCount()) / totalMass;
 
       // 3.3   Done with the histogram!
-      normalizedHistograms.add(new Histogram(tokenId, normalForm, width, residualMass, coverage));
+      normalizedHistograms.add(new Histogram(typeId, normalForm, width, residualMass, coverage));
     }
     return normalizedHistograms;
   }
@@ -166,6 +248,11 @@ public class Histogram {
    * c) The distance between two clusters is determined by the *minimum distance between any two members of the cluster*.
    *    This is sometimes called "single link" clustering.  The resulting cluster quality is not as good as computing 
    *    distance based on the average of the members of a cluster, but it is more efficient.
+   *
+   * Pairs are scored with computeSymmetricRelativeEntropy(), after a cheap lower bound rules
+   * out most of the pairs that can't be close.  Close pairs are merged in order of increasing
+   * distance with a union-find.  When two clusters merge, the first histogram's cluster absorbs
+   * the second's.  Clusters come back ordered by the index of their root, with members in input order.
    */
   public static List<List<Histogram>> clusterHistograms(List<Histogram> inputHistograms) {
     // 1.  Handle degenerate case of size(input) == 1
@@ -175,6 +262,156 @@ public class Histogram {
       return clusters;
     }
 
+    // 2.  Otherwise, compute pairwise symmetric relative entropy among histograms
+    final Histogram histograms[] = inputHistograms.toArray(new Histogram[inputHistograms.size()]);
+    ScoreList scores = null;
+    ExecutorService pool = getClusterPool();
+    if (pool != null && histograms.length >= MIN_PARALLEL_HISTOGRAMS) {
+      scores = scorePairsInParallel(histograms, pool);
+    } else {
+      scores = new ScoreList();
+      scorePairs(histograms, 0, 1, scores);
+    }
+    Integer sortedScores[] = scores.getSortedOrder();
+
+    // 3.  Merge clusters, closest pairs first
+    int parent[] = new int[histograms.length];
+    int clusterIds[] = new int[histograms.length];
+    for (int i = 0; i < histograms.length; i++) {
+      parent[i] = i;
+      clusterIds[i] = i;
+    }
+    for (Integer k: sortedScores) {
+      int root1 = findRoot(parent, scores.getIndex1(k));
+      int root2 = findRoot(parent, scores.getIndex2(k));
+      if (root1 != root2) {
+        parent[root2] = root1;
+      }
+    }
+
+    // 4.  Build the clustered histogram list
+    SortedMap<Integer, List<Histogram>> clustersById = new TreeMap<Integer, List<Histogram>>();
+    for (int i = 0; i < histograms.length; i++) {
+      int root = findRoot(parent, i);
+      List<Histogram> curCluster = clustersById.get(root);
+      if (curCluster == null) {
+        curCluster = new ArrayList<Histogram>();
+        clustersById.put(root, curCluster);
+      }
+      curCluster.add(histograms[i]);
+    }
+    return new ArrayList<List<Histogram>>(clustersById.values());
+  }
+
+  /**
+   * Find the root of i's set, compressing the path along the way
+   */
+  static int findRoot(int parent[], int i) {
+    int root = i;
+    while (parent[root] != root) {
+      root = parent[root];
+    }
+    while (parent[i] != root) {
+      int next = parent[i];
+      parent[i] = root;
+      i = next;
+    }
+    return root;
+  }
+
+  /**
+   * Score the pairs (i, j) with i < j, for every i in firstRow, firstRow + rowStride, ....
+   * Only pairs closer than CLUSTER_TOLERANCE are kept.
+   */
+  static void scorePairs(Histogram histograms[], int firstRow, int rowStride, ScoreList scores) {
+    for (int i = firstRow; i < histograms.length; i += rowStride) {
+      Histogram h1 = histograms[i];
+      for (int j = i+1; j < histograms.length; j++) {
+        Histogram h2 = histograms[j];
+        if (h1.computeDistanceLowerBound(h2) >= PRUNING_THRESHOLD) {
+          continue;
+        }
+        double sre = h1.computeSymmetricRelativeEntropy(h2);
+        if (sre < CLUSTER_TOLERANCE) {
+          scores.add(sre, i, j);
+        }
+      }
+    }
+  }
+
+  /**
+   * Same as scorePairs() over all the rows, split among the pool's threads.  Rows are
+   * dealt out round-robin, since the early rows have the most pairs.
+   */
+  static ScoreList scorePairsInParallel(final Histogram histograms[], ExecutorService pool) {
+    List<Future<ScoreList>> results = new ArrayList<Future<ScoreList>>();
+    final int numTasks = numClusterThreads;
+    for (int t = 0; t < numTasks; t++) {
+      final int firstRow = t;
+      results.add(pool.submit(new Callable<ScoreList>() {
+        public ScoreList call() {
+          ScoreList taskScores = new ScoreList();
+          scorePairs(histograms, firstRow, numTasks, taskScores);
+          return taskScores;
+        }
+      }));
+    }
+    ScoreList scores = new ScoreList();
+    for (Future<ScoreList> result: results) {
+      try {
+        scores.addAll(result.get());
+      } catch (InterruptedException iex) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(iex);
+      } catch (ExecutionException eex) {
+        throw new IllegalStateException(eex.getCause());
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * Use 'numThreads' threads to score histogram pairs when there are many histograms.
+   * 1 turns this off.
+   */
+  public static synchronized void setNumClusterThreads(int numThreads) {
+    if (clusterPool != null) {
+      clusterPool.shutdown();
+      clusterPool = null;
+    }
+    numClusterThreads = Math.max(1, numThreads);
+    if (numClusterThreads > 1) {
+      clusterPool = Executors.newFixedThreadPool(numClusterThreads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "histogram-cluster");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+  }
+  static synchronized ExecutorService getClusterPool() {
+    return clusterPool;
+  }
+
+  /**
+   * The original clustering.  It scores every pair with the list-based
+   * computeSymmetricRelativeEntropyWithLists(), keeps the close pairs in a TreeSet,
+   * and merges clusters through TreeMaps from histogram to cluster and back.
+   * Members are kept in TreeSets, so they come back in input order.
+   *
+   * clusterHistograms() must give exactly the same clusters as this method.  It is
+   * kept as the reference implementation for testing; don't call it from the
+   * inference path.
+   */
+  public static List<List<Histogram>> clusterHistogramsWithTreeMaps(List<Histogram> inputHistograms) {
+    // 1.  Handle degenerate case of size(input) == 1
+    if (inputHistograms.size() == 1) {
+      List<List<Histogram>> clusters = new ArrayList<List<Histogram>>();
+      clusters.add(inputHistograms);
+      return clusters;
+    }
+
     // 2.  Otherwise, compute pairwise symmetric relative entropy among histograms
     class Score implements Comparable {
       double s;
@@ -211,7 +448,7 @@ public class Histogram {
       for (int j = i+1; j < inputHistograms.size(); j++) {
         Histogram h1 = inputHistograms.get(i);
         Histogram h2 = inputHistograms.get(j);
-        double sre = h1.computeSymmetricRelativeEntropy(h2);
+        double sre = h1.computeSymmetricRelativeEntropyWithLists(h2);
         if (sre < CLUSTER_TOLERANCE) {
           scores.add(new Score(sre, i, j));
         }
@@ -223,10 +460,10 @@ public class Histogram {
     Map<Integer, Set<Integer>> clusterToHistograms = new TreeMap<Integer, Set<Integer>>();
     for (int i = 0; i < inputHistograms.size(); i++) {
       histogramToCluster.put(i, i);
-      Set<Integer> containedHistograms = new HashSet<Integer>();
+      Set<Integer> containedHistograms = new TreeSet<Integer>();
       containedHistograms.add(i);
       clusterToHistograms.put(i, containedHistograms);
-    } 
+    }
     // Start merging clusters
     for (Score s: scores) {
       int idx1 = s.getIndex1();
@@ -247,9 +484,7 @@ public class Histogram {
     // Build the clustered histogram list.
     List<List<Histogram>> clusters = new ArrayList<List<Histogram>>();
     for (Map.Entry<Integer, Set<Integer>> entry: clusterToHistograms.entrySet()) {
-      Integer clusterId = entry.getKey();
       Set<Integer> histograms = entry.getValue();
-
       List<Histogram> curCluster = new ArrayList<Histogram>();
       for (Integer histogramIndex: histograms) {
         curCluster.add(inputHistograms.get(histogramIndex));
@@ -262,8 +497,12 @@ public class Histogram {
   //////////////////////////////////////////////////////////////
   // Members
   //////////////////////////////////////////////////////////////
+  int histogramTypeId;
   String histogramType;
   List<FrequencyPair> normalForm;
+  // counts[i] is normalForm.get(i).getCount(); tailMass[i] is the sum of counts[i..]
+  double counts[];
+  double tailMass[];
   double width;
   double residualMass;
   double coverage;
@@ -271,9 +510,18 @@ public class Histogram {
   //////////////////////////////////////////////////////////////
   // Methods
   //////////////////////////////////////////////////////////////
-  public Histogram(String histogramType, List<FrequencyPair> normalForm, double width, double residualMass, double coverage) {
-    this.histogramType = histogramType;
+  public Histogram(int histogramTypeId, List<FrequencyPair> normalForm, double width, double residualMass, double coverage) {
+    this.histogramTypeId = histogramTypeId;
+    this.histogramType = TokenTypeDictionary.getId(histogramTypeId);
     this.normalForm = normalForm;
+    this.counts = new double[normalForm.size()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = normalForm.get(i).getCount();
+    }
+    this.tailMass = new double[counts.length + 1];
+    for (int i = counts.length - 1; i >= 0; i--) {
+      tailMass[i] = tailMass[i+1] + counts[i];
+    }
     this.width = width;
     this.residualMass = residualMass;
     this.coverage = coverage;
@@ -288,6 +536,9 @@ public class Histogram {
   public String getHistogramType() {
     return histogramType;
   }
+  public int getHistogramTypeId() {
+    return histogramTypeId;
+  }
   public double getWidth() {
     return width;
   }
@@ -311,8 +562,30 @@ public class Histogram {
   /**
    * The relative entropy score is used for clustering.  However, we can't compute
    * it directly, as histograms do not always contain the same components.  Instead,
-   * we preprocess the data with computeSymmetricRelativeEntropy(), then pass the resulting
-   * averaged values into this pretty generic method.
+   * computeSymmetricRelativeEntropy() compares each histogram against the average of the two.
+   * Components that only one histogram has are averaged against zero.
+   */
+  double computeRelativeEntropy(Histogram other) {
+    double total = 0;
+    for (int i = 1; i < counts.length; i++) {
+      double selfOverallChunkCount = counts[i];
+      double avgCount = (i < other.counts.length) ? (counts[i] + other.counts[i]) / 2.0 : counts[i] * 0.5;
+      total += selfOverallChunkCount * Math.log(selfOverallChunkCount / avgCount);
+    }
+    return total;
+  }
+
+  /**
+   * Symmetric relative entropy between two histograms, averaging both against their mean.
+   * Comparing to the mean keeps the score from being sensitive to varying numbers of components in each histogram.
+   */
+  double computeSymmetricRelativeEntropy(Histogram other) {
+    return 0.5 * this.computeRelativeEntropy(other) + 0.5 * other.computeRelativeEntropy(this);
+  }
+
+  /**
+   * The original scoring, for clusterHistogramsWithTreeMaps(): the average counts
+   * go into a list, and each histogram is compared against it.
    */
   double computeRelativeEntropy(List<Double> avgCounts) {
     double total = 0;
@@ -324,12 +597,7 @@ public class Histogram {
     return total;
   }
 
-  /**
-   * The point of this method is to preprocess the data from two input Histograms,
-   * getting it ready for the relative entropy computation.  Without this preprocessing,
-   * the rel-entropy computation would be sensitive to varying numbers of components in each histogram.
-   */
-  double computeSymmetricRelativeEntropy(Histogram other) {
+  double computeSymmetricRelativeEntropyWithLists(Histogram other) {
     List<Double> avgCounts = new ArrayList<Double>();
     for (int i = 0; i < Math.max(normalForm.size(), other.normalForm.size()); i++) {
       if ((i < normalForm.size()) && (i < other.normalForm.size())) {
@@ -342,4 +610,22 @@ public class Histogram {
     }
     return 0.5 * this.computeRelativeEntropy(avgCounts) + 0.5 * other.computeRelativeEntropy(avgCounts);
   }
+
+  /**
+   * A cheap lower bound on computeSymmetricRelativeEntropy().  The symmetric score is
+   * a sum of non-negative per-component terms: a*log(2a/(a+b)) + b*log(2b/(a+b)) for a
+   * component both histograms have, and a*log(2) for one that only one has.  So the
+   * unmatched components plus the first (most prevalent) matched one are a lower bound.
+   */
+  double computeDistanceLowerBound(Histogram other) {
+    int minLength = Math.min(counts.length, other.counts.length);
+    double unmatchedMass = tailMass[minLength] + other.tailMass[minLength];
+    double bound = unmatchedMass * Math.log(2);
+    if (minLength > 1) {
+      double a = counts[1];
+      double b = other.counts[1];
+      bound += a * Math.log(2 * a / (a + b)) + b * Math.log(2 * b / (a + b));
+    }
+    return 0.5 * bound;
+  }
 }
@@ -18,6 +18,7 @@ import java.lang.reflect.*;
 import java.util.*;
 import java.io.*;
 import java.util.regex.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.hadoop.io.*;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
@@ -73,7 +74,27 @@ public abstract class InferredType implements Writable {
   }
 
   /**
-   * Use the type tree to parse the given input string
+   * Use the type tree to parse the given input string.  The tree is compiled
+   * into a ParserProgram the first time it is used.
+   */
+  ParserProgram parserProgram = null;
+  public GenericContainer parse(String str) {
+    return getParserProgram().parse(str);
+  }
+  public synchronized ParserProgram getParserProgram() {
+    if (parserProgram == null) {
+      parserProgram = new ParserProgram(this);
+    }
+    return parserProgram;
+  }
+
+  /**
+   * The original recursive parser.  It cuts a new substring after every token, and
+   * when the greedy parse fails it tries every combination of decisions for the
+   * unions that findCandidateUnionDecisions() returns.
+   *
+   * parse() must give exactly the same result as this method.  It is kept as the
+   * reference implementation for testing; don't call it from the parsing path.
    */
   class ParseResult {
     Object data;
@@ -97,7 +118,7 @@ public abstract class InferredType implements Writable {
       return hasData;
     }
   }
-  public GenericContainer parse(String str) {
+  public GenericContainer parseRecursive(String str) {
     //
     // Try the naive parse
     //
@@ -190,7 +211,7 @@ class BaseType extends InferredType {
   Schema schema = null;
   List<String> sampleStrs = null;
 
-  static int fieldCounter = 0;
+  static AtomicInteger fieldCounter = new AtomicInteger();
   public BaseType() {
   }
   public BaseType(String name) {
@@ -263,7 +284,7 @@ class BaseType extends InferredType {
     return CARD_COST;
   }
   String createName() {
-    return "base_" + fieldCounter++;
+    return "base_" + fieldCounter.getAndIncrement();
   }
   public void readFields(DataInput in) throws IOException {
     // instance-specific
@@ -303,7 +324,7 @@ class BaseType extends InferredType {
  ****************************************/
 class StructType extends InferredType {
   List<InferredType> structTypes;
-  static int recordCounter = 0;
+  static AtomicInteger recordCounter = new AtomicInteger();
   Schema schema;
 
   public StructType() {
@@ -397,7 +418,7 @@ class StructType extends InferredType {
     return dc;
   }
   String createName() {
-    return "record_" + recordCounter++;
+    return "record_" + recordCounter.getAndIncrement();
   }
   public void readFields(DataInput in) throws IOException {
     int numStructTypes = in.readInt();
@@ -461,7 +482,7 @@ class StructType extends InferredType {
 
 class ArrayType extends InferredType {
   InferredType bodyType;
-  static int arrayCounter = 0;
+  static AtomicInteger arrayCounter = new AtomicInteger();
   Schema schema = null;
 
   public ArrayType() {
@@ -499,7 +520,7 @@ class ArrayType extends InferredType {
     return CARD_COST + bodyType.getDescriptionCost();
   }
   String createName() {
-    return "array_" + arrayCounter++;
+    return "array_" + arrayCounter.getAndIncrement();
   }
   /**
    * Parse the given string, return resulting data if appropriate.
@@ -546,7 +567,7 @@ class ArrayType extends InferredType {
 
 class UnionType extends InferredType {
   List<InferredType> unionTypes;
-  static int unionCounter = 0;
+  static AtomicInteger unionCounter = new AtomicInteger();
   Schema schema = null;
 
   public UnionType() {
@@ -695,7 +716,7 @@ class UnionType extends InferredType {
     return dc;
   }
   String createName() {
-    return "union_" + unionCounter++;
+    return "union_" + unionCounter.getAndIncrement();
   }
   public void readFields(DataInput in) throws IOException {
     int numUnionElts = in.readInt();
@@ -16,7 +16,13 @@ package com.cloudera.recordbreaker.learnstructure;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
 import org.apache.avro.io.JsonEncoder;
 import org.apache.avro.io.EncoderFactory;
 import org.apache.avro.file.DataFileWriter;
@@ -41,32 +47,498 @@ public class LearnStructure {
   public static String JSONDATA_FILENAME = "data.avro.json";
   public static String DATA_FILENAME = "data.avro";
   public static String PARSER_FILENAME = "parser.dat";
+  public static String PROGRAM_FILENAME = "parser.program";
+  public static String REJECTS_FILENAME = "rejects.txt";
+  static int TOKENIZE_BATCH_SIZE = 1000;
+  static int MAX_PENDING_BATCHES_PER_THREAD = 4;
+  public static int DEFAULT_ADAPTIVE_INITIAL_LINES = 100;
+  public static int DEFAULT_ADAPTIVE_STABLE_ROUNDS = 2;
+  static double MIN_LAYOUT_FRACTION = 0.01;
+  public final static long NO_LAYOUT_FINGERPRINT = 0;
+  static int MAX_REPORTED_STREAM_REJECTS = 10;
+  // Input text is read in this encoding.  It must match AvroConverter, which decodes
+  // lines with Hadoop's Text.
+  public final static String INPUT_ENCODING = "UTF-8";
+
+  int numTokenizerThreads = 1;
+  int sampleMode = LineSampler.HEAD;
+  long sampleSeed = LineSampler.DEFAULT_SEED;
+  int adaptiveInitialLines = 0;
+  int adaptiveStableRounds = DEFAULT_ADAPTIVE_STABLE_ROUNDS;
+  boolean encodeDirect = false;
+  int searchBudget = ParserProgram.DEFAULT_SEARCH_BUDGET;
+  boolean adaptiveOrder = ParserProgram.DEFAULT_ADAPTIVE_ORDER;
+  int numConvertThreads = 1;
+  long streamRollBytes = AvroStreamWriter.DEFAULT_ROLL_BYTES;
+  long streamRollMillis = AvroStreamWriter.DEFAULT_ROLL_MILLIS;
+  long streamFlushMillis = AvroStreamWriter.DEFAULT_FLUSH_MILLIS;
+
+  // Metrics from the most recent call to inferRecordFormat()
+  int inferenceRounds = 0;
+  int inferenceLines = 0;
+  int convergenceLines = -1;
+  long inferenceMillis = 0;
+  int emittedLines = 0;
+  int emittedRecords = 0;
+
+  /**
+   * A batch of consecutive input lines, tokenized by a worker thread.
+   * Slots for lines that do not tokenize are left null.
+   */
+  static class TokenizeBatch implements Callable<PackedChunk[]> {
+    int firstLineno;
+    List<String> lines;
+    public TokenizeBatch(int firstLineno, List<String> lines) {
+      this.firstLineno = firstLineno;
+      this.lines = lines;
+    }
+    public PackedChunk[] call() throws IOException {
+      PackedChunk chunks[] = new PackedChunk[lines.size()];
+      for (int i = 0; i < chunks.length; i++) {
+        chunks[i] = Tokenizer.tokenizePacked(lines.get(i));
+      }
+      return chunks;
+    }
+  }
+
+  /**
+   * Sends each input line to the outputs that inferRecordFormat() was asked
+   * for: a JSON file and an Avro file of the parsed records, and a file of
+   * the lines that didn't parse.  A line is parsed once, however many outputs
+   * there are.  It also counts the lines and records.
+   */
+  static class Emitter {
+    ParserProgram program;
+    boolean verbose;
+    GenericDatumWriter jsonWriter = null;
+    JsonEncoder jsonEncoder = null;
+    OutputStream jsonOut = null;
+    DataFileWriter avroOut = null;
+    BufferedWriter rejectsOut = null;
+    // Set when lines go to Avro binary without being built as records
+    EncodedDatum datum = null;
+    // Each record is written out before the next line is parsed, so it can be reused
+    GenericContainer reuse = null;
+    int numLines = 0;
+    int numRecords = 0;
+
+    public Emitter(ParserProgram program, boolean verbose) {
+      this.program = program;
+      this.verbose = verbose;
+    }
+
+    public void openJson(Schema schema, OutputStream out) throws IOException {
+      this.jsonOut = new BufferedOutputStream(out);
+      this.jsonWriter = new GenericDatumWriter(schema);
+      this.jsonEncoder = EncoderFactory.get().jsonEncoder(schema, jsonOut);
+    }
+
+    /**
+     * With 'encodeDirect', records go to the Avro file through ParserProgram.encode(),
+     * unless the JSON output needs them built anyway.
+     */
+    public void openAvro(Schema schema, OutputStream out, boolean encodeDirect) throws IOException {
+      this.avroOut = new DataFileWriter(new GenericDatumWriter(schema)).create(schema, out);
+      if (encodeDirect) {
+        this.datum = new EncodedDatum();
+      }
+    }
+
+    public void openRejects(OutputStream out) throws IOException {
+      this.rejectsOut = new BufferedWriter(new OutputStreamWriter(out));
+    }
+
+    public boolean hasOutputs() {
+      return jsonOut != null || avroOut != null || rejectsOut != null;
+    }
+
+    public void emit(String str) throws IOException {
+      numLines++;
+      boolean parsed = false;
+      if (datum != null && jsonOut == null) {
+        if (program.encode(str, datum, false) != null) {
+          parsed = true;
+          avroOut.appendEncoded(datum.toByteBuffer());
+        }
+      } else {
+        GenericContainer gct = program.parse(str, reuse);
+        if (gct != null) {
+          parsed = true;
+          if (jsonOut != null) {
+            jsonWriter.write(gct, jsonEncoder);
+          }
+          if (avroOut != null) {
+            avroOut.append(gct);
+          }
+          reuse = gct;
+        }
+      }
+      if (parsed) {
+        numRecords++;
+      } else {
+        if (rejectsOut != null) {
+          rejectsOut.write(str);
+          rejectsOut.newLine();
+        }
+        if (verbose) {
+          System.err.println("unparsed line: '" + str + "'");
+        }
+      }
+    }
+
+    public void close() throws IOException {
+      try {
+        if (jsonOut != null) {
+          jsonEncoder.flush();
+          jsonOut.close();
+        }
+      } finally {
+        try {
+          if (avroOut != null) {
+            avroOut.close();
+          }
+        } finally {
+          if (rejectsOut != null) {
+            rejectsOut.close();
+          }
+        }
+      }
+    }
+  }
 
   public LearnStructure() {
   }
-  
+
   /**
+   * Number of threads used to tokenize input lines.  The default of 1 tokenizes
+   * on the calling thread.
    */
-  public void inferRecordFormat(FileSystem fs, Path p, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path jsonDataFile, Path avroDataFile, boolean verbose, int maxLines) throws IOException {
-    // Store parse errors and results
+  public void setNumTokenizerThreads(int numTokenizerThreads) {
+    this.numTokenizerThreads = Math.max(1, numTokenizerThreads);
+  }
+
+  /**
+   * How to choose the lines that inference runs over, when inferRecordFormat() is given
+   * a maxLines limit.  One of LineSampler.HEAD (the default), LineSampler.RESERVOIR, or
+   * LineSampler.BLOCK.
+   */
+  public void setSampleMode(int sampleMode) {
+    this.sampleMode = sampleMode;
+  }
+  public void setSampleSeed(long sampleSeed) {
+    this.sampleSeed = sampleSeed;
+  }
+
+  /**
+   * Turn on adaptive sample sizing.  Inference runs over the first 'initialLines' lines,
+   * then twice as many, and so on, until the inferred schema has stayed the same for
+   * 'stableRounds' consecutive rounds.  The maxLines argument of inferRecordFormat() is
+   * the hard ceiling.  An 'initialLines' of 0 turns adaptive sizing off.
+   */
+  public void setAdaptiveSampleSize(int initialLines, int stableRounds) {
+    this.adaptiveInitialLines = Math.max(0, initialLines);
+    this.adaptiveStableRounds = Math.max(1, stableRounds);
+  }
+
+  /**
+   * If true, inferRecordFormat() and inferStream() write their Avro data with
+   * ParserProgram.encode(), which goes straight from text to Avro binary without
+   * building records.  It has no effect when JSON data is written too, since that
+   * needs the records.
+   */
+  public void setEncodeDirect(boolean encodeDirect) {
+    this.encodeDirect = encodeDirect;
+  }
+
+  /**
+   * Bound the search that the compiled parser falls back on for a line the greedy
+   * parse can't handle.  See ParserProgram.setSearchBudget().
+   */
+  public void setSearchBudget(int searchBudget) {
+    this.searchBudget = searchBudget;
+  }
+
+  /**
+   * Let the compiled parser reorder union branches by how often the data takes
+   * them.  See ParserProgram.setAdaptiveOrder().
+   */
+  public void setAdaptiveOrder(boolean adaptiveOrder) {
+    this.adaptiveOrder = adaptiveOrder;
+  }
+
+  /**
+   * Number of threads that parse the input and write the data.  With more than 1,
+   * inferRecordFormat() hands all of its data outputs to an AvroConverter, which
+   * still reads the input once.  Unparsed lines are then not printed in verbose mode.
+   */
+  public void setNumConvertThreads(int numConvertThreads) {
+    this.numConvertThreads = Math.max(1, numConvertThreads);
+  }
+
+  /**
+   * When inferStream() starts a new Avro file, and how often it flushes the current
+   * one.  See AvroStreamWriter.
+   */
+  public void setStreamRolling(long rollBytes, long rollMillis, long flushMillis) {
+    this.streamRollBytes = rollBytes;
+    this.streamRollMillis = rollMillis;
+    this.streamFlushMillis = flushMillis;
+  }
+
+  /**
+   * Number of input lines that the last inferRecordFormat() call sent to its
+   * outputs, and how many of them parsed.  Both are 0 if it had no outputs.
+   */
+  public int getEmittedLines() {
+    return emittedLines;
+  }
+  public int getEmittedRecords() {
+    return emittedRecords;
+  }
+
+  /**
+   * Number of times inference ran in the last inferRecordFormat() call
+   */
+  public int getInferenceRounds() {
+    return inferenceRounds;
+  }
+  /**
+   * Number of lines the final inference round was run over
+   */
+  public int getInferenceLines() {
+    return inferenceLines;
+  }
+  /**
+   * In adaptive mode, the number of lines at which the final schema first appeared.
+   * It is -1 if the schema was still changing when the ceiling was reached, or if
+   * adaptive mode is off.
+   */
+  public int getConvergenceLines() {
+    return convergenceLines;
+  }
+
+  /**
+   * A fingerprint of the schema's structure, for telling whether two inference runs
+   * agree.  Generated type names ("record_12" and so on) differ between runs, so their
+   * counters are dropped; docs, which hold sample data, are ignored.
+   */
+  public static long getSchemaFingerprint(Schema s) {
+    StringBuffer buf = new StringBuffer();
+    appendSchemaShape(s, buf);
+    try {
+      return SchemaNormalization.fingerprint64(buf.toString().getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException uee) {
+      throw new IllegalStateException(uee);
+    }
+  }
+  static void appendSchemaShape(Schema s, StringBuffer buf) {
+    switch (s.getType()) {
+    case RECORD:
+      buf.append("{" + stripCounter(s.getName()) + ":");
+      for (Schema.Field f: s.getFields()) {
+        buf.append(stripCounter(f.name()) + "=");
+        appendSchemaShape(f.schema(), buf);
+        buf.append(",");
+      }
+      buf.append("}");
+      break;
+    case ARRAY:
+      buf.append("[");
+      appendSchemaShape(s.getElementType(), buf);
+      buf.append("]");
+      break;
+    case UNION:
+      buf.append("(");
+      for (Schema branch: s.getTypes()) {
+        appendSchemaShape(branch, buf);
+        buf.append("|");
+      }
+      buf.append(")");
+      break;
+    default:
+      buf.append(s.getType().toString());
+    }
+  }
+  static String stripCounter(String name) {
+    int i = name.length();
+    while (i > 0 && Character.isDigit(name.charAt(i-1))) {
+      i--;
+    }
+    return (i > 0 && i < name.length() && name.charAt(i-1) == '_') ? name.substring(0, i-1) : name;
+  }
+
+  /**
+   * A fingerprint of the line layouts in a sample of text, for recognizing files that
+   * share a format without running inference.  It covers the distinct layouts (token
+   * types plus nesting; see TypeInference.getLayout()) that each make up at least
+   * MIN_LAYOUT_FRACTION of the tokenizable lines, so rare lines and the exact mix of
+   * lines don't change it.  It's stable across processes.
+   *
+   * Returns NO_LAYOUT_FINGERPRINT when no layout is that common, as when every line
+   * is different or there are no lines.  Such samples have nothing in common with
+   * each other, so they shouldn't share a fingerprint.
+   */
+  public static long getLayoutFingerprint(List<String> lines) throws IOException {
+    Map<String, Integer> layoutCounts = new HashMap<String, Integer>();
+    int numChunks = 0;
+    for (String s: lines) {
+      PackedChunk chunk = Tokenizer.tokenizePacked(s);
+      if (chunk != null) {
+        String layout = TypeInference.getLayoutString(chunk);
+        Integer count = layoutCounts.get(layout);
+        layoutCounts.put(layout, (count == null) ? 1 : count + 1);
+        numChunks++;
+      }
+    }
+    SortedSet<String> commonLayouts = new TreeSet<String>();
+    for (Map.Entry<String, Integer> entry: layoutCounts.entrySet()) {
+      if (entry.getValue() >= MIN_LAYOUT_FRACTION * numChunks) {
+        commonLayouts.add(entry.getKey());
+      }
+    }
+    if (commonLayouts.size() == 0) {
+      return NO_LAYOUT_FINGERPRINT;
+    }
+    StringBuffer buf = new StringBuffer();
+    for (String layout: commonLayouts) {
+      buf.append(layout + "\n");
+    }
+    return SchemaNormalization.fingerprint64(buf.toString().getBytes("UTF-8"));
+  }
+
+  /**
+   * Tokenize and infer over a growing number of lines, as described in setAdaptiveSampleSize().
+   * Lines come from the head of the file, or from a sample if a sampling mode is set.
+   * Returns the final inferred type, and fills in the chunk lists for the lines it used.
+   */
+  InferredType inferAdaptively(FileSystem fs, Path p, int maxLines, List<PackedChunk> allChunks, List<Integer> parseableLineNos, List<String> unparseableStrs, List<Integer> unparseableLineNos) throws IOException {
+    if (maxLines >= 0 && sampleMode != LineSampler.HEAD) {
+      List<String> sample = LineSampler.sample(fs, p, sampleMode, maxLines, sampleSeed);
+      return inferAdaptively(sample, null, maxLines, allChunks, parseableLineNos, unparseableStrs, unparseableLineNos);
+    }
+    BufferedReader in = new BufferedReader(new InputStreamReader(CompressedInput.open(fs, p), INPUT_ENCODING));
+    try {
+      return inferAdaptively(null, in, maxLines, allChunks, parseableLineNos, unparseableStrs, unparseableLineNos);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * As above, with lines taken from 'sample' if it is non-null, and otherwise from 'in'
+   */
+  InferredType inferAdaptively(List<String> sample, BufferedReader in, int maxLines, List<PackedChunk> allChunks, List<Integer> parseableLineNos, List<String> unparseableStrs, List<Integer> unparseableLineNos) throws IOException {
+    InferredType typeTree = null;
+    long lastFingerprint = 0;
+    int linesAtLastChange = 0;
+    int numStableRounds = 0;
+    int numLines = 0;
+    int targetLines = adaptiveInitialLines;
+    boolean exhausted = false;
+    while (true) {
+      // Gather the new lines for this round
+      if (maxLines >= 0) {
+        targetLines = Math.min(targetLines, maxLines);
+      }
+      List<String> newLines = new ArrayList<String>();
+      while (numLines + newLines.size() < targetLines) {
+        String s = null;
+        if (sample != null) {
+          int samplePos = numLines + newLines.size();
+          s = (samplePos < sample.size()) ? sample.get(samplePos) : null;
+        } else {
+          s = in.readLine();
+        }
+        if (s == null) {
+          exhausted = true;
+          break;
+        }
+        newLines.add(s);
+      }
+      tokenizeLines(newLines, numLines, allChunks, parseableLineNos, unparseableStrs, unparseableLineNos);
+      numLines += newLines.size();
+
+      // Infer over everything so far.  discover() prunes the list it's given, so pass a copy.
+      long startInfer = System.currentTimeMillis();
+      typeTree = TypeInference.infer(new ArrayList<PackedChunk>(allChunks));
+      inferenceMillis += System.currentTimeMillis() - startInfer;
+      inferenceRounds++;
+
+      long fingerprint = getSchemaFingerprint(typeTree.getAvroSchema());
+      if (inferenceRounds > 1 && fingerprint == lastFingerprint) {
+        numStableRounds++;
+      } else {
+        numStableRounds = 0;
+        linesAtLastChange = numLines;
+      }
+      lastFingerprint = fingerprint;
+
+      // Reading the whole input counts as converging
+      if (numStableRounds >= adaptiveStableRounds || exhausted) {
+        convergenceLines = linesAtLastChange;
+        break;
+      }
+      if (maxLines >= 0 && numLines >= maxLines) {
+        break;
+      }
+      targetLines = 2 * targetLines;
+    }
+    inferenceLines = numLines;
+    return typeTree;
+  }
+
+  /**
+   * Infer a structure from lines that are already in memory, such as a sample, without
+   * writing any files.  Adaptive inference applies if it is turned on; 'lines' counts
+   * as the whole input, so reaching its end counts as converging.  The inference metrics
+   * describe this call.
+   */
+  public InferredType inferType(List<String> lines) throws IOException {
     List<Integer> unparseableLineNos = new ArrayList<Integer>();
     List<String> unparseableStrs = new ArrayList<String>();
     List<Integer> parseableLineNos = new ArrayList<Integer>();
-    List<List<Token.AbstractToken>> allChunks = new ArrayList<List<Token.AbstractToken>>();
+    List<PackedChunk> allChunks = new ArrayList<PackedChunk>();
+    inferenceRounds = 0;
+    inferenceMillis = 0;
+    convergenceLines = -1;
+    if (adaptiveInitialLines > 0) {
+      return inferAdaptively(lines, null, -1, allChunks, parseableLineNos, unparseableStrs, unparseableLineNos);
+    }
+    tokenizeLines(lines, 0, allChunks, parseableLineNos, unparseableStrs, unparseableLineNos);
+    long start = System.currentTimeMillis();
+    InferredType typeTree = TypeInference.infer(allChunks);
+    inferenceMillis = System.currentTimeMillis() - start;
+    inferenceRounds = 1;
+    inferenceLines = lines.size();
+    return typeTree;
+  }
 
-    //
-    // Transform the text into a list of "chunks".  A single chunk corresponds to a line of text.  A chunk is a list of Tokens.
-    //
-    long startRead = System.currentTimeMillis();
-    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
-    try {
-      String s = in.readLine();
-      int lineno = 0;
-      while (s != null) {
-        if (maxLines >= 0 && lineno >= maxLines) {
-          break;
+  /**
+   * Tokenize a list of lines that's already in memory, such as a sample.
+   * Line numbers start at 'firstLineno'.
+   */
+  void tokenizeLines(List<String> lines, int firstLineno, List<PackedChunk> allChunks, List<Integer> parseableLineNos, List<String> unparseableStrs, List<Integer> unparseableLineNos) throws IOException {
+    if (numTokenizerThreads > 1) {
+      ExecutorService pool = Executors.newFixedThreadPool(numTokenizerThreads);
+      List<TokenizeBatch> batches = new ArrayList<TokenizeBatch>();
+      List<Future<PackedChunk[]>> results = new ArrayList<Future<PackedChunk[]>>();
+      try {
+        for (int i = 0; i < lines.size(); i += TOKENIZE_BATCH_SIZE) {
+          TokenizeBatch batch = new TokenizeBatch(firstLineno + i, lines.subList(i, Math.min(lines.size(), i + TOKENIZE_BATCH_SIZE)));
+          batches.add(batch);
+          results.add(pool.submit(batch));
         }
-        List<Token.AbstractToken> chunkToks = Tokenizer.tokenize(s);
+        for (int i = 0; i < batches.size(); i++) {
+          collectBatch(batches.get(i), results.get(i), allChunks, parseableLineNos, unparseableStrs, unparseableLineNos);
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+    } else {
+      for (int i = 0; i < lines.size(); i++) {
+        String s = lines.get(i);
+        int lineno = firstLineno + i;
+        PackedChunk chunkToks = Tokenizer.tokenizePacked(s);
         if (chunkToks != null) {
           allChunks.add(chunkToks);
           parseableLineNos.add(lineno);
@@ -74,24 +546,221 @@ public class LearnStructure {
           unparseableStrs.add(s);
           unparseableLineNos.add(lineno);
         }
-        s = in.readLine();
-        lineno++;
+      }
+    }
+  }
+
+  /**
+   * Tokenize up to 'maxLines' lines of 'in' (all of them if maxLines < 0) on a pool of worker threads.
+   * The calling thread reads batches of lines and hands them to the pool.  Results are collected in
+   * line order, so the output lists are exactly those the serial loop in inferRecordFormat() builds.
+   */
+  void tokenizeInParallel(BufferedReader in, int maxLines, List<PackedChunk> allChunks, List<Integer> parseableLineNos, List<String> unparseableStrs, List<Integer> unparseableLineNos) throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(numTokenizerThreads);
+    LinkedList<TokenizeBatch> pendingBatches = new LinkedList<TokenizeBatch>();
+    LinkedList<Future<PackedChunk[]>> pendingResults = new LinkedList<Future<PackedChunk[]>>();
+    int maxPending = MAX_PENDING_BATCHES_PER_THREAD * numTokenizerThreads;
+    try {
+      String s = in.readLine();
+      int lineno = 0;
+      while (s != null) {
+        // Read the next batch
+        int firstLineno = lineno;
+        List<String> lines = new ArrayList<String>(TOKENIZE_BATCH_SIZE);
+        while (s != null && lines.size() < TOKENIZE_BATCH_SIZE && (maxLines < 0 || lineno < maxLines)) {
+          lines.add(s);
+          s = in.readLine();
+          lineno++;
+        }
+        if (lines.size() == 0) {
+          break;
+        }
+        TokenizeBatch batch = new TokenizeBatch(firstLineno, lines);
+        pendingBatches.add(batch);
+        pendingResults.add(pool.submit(batch));
+
+        // Don't let the reader get too far ahead of the workers
+        while (pendingResults.size() >= maxPending) {
+          collectBatch(pendingBatches.removeFirst(), pendingResults.removeFirst(), allChunks, parseableLineNos, unparseableStrs, unparseableLineNos);
+        }
+      }
+      while (pendingResults.size() > 0) {
+        collectBatch(pendingBatches.removeFirst(), pendingResults.removeFirst(), allChunks, parseableLineNos, unparseableStrs, unparseableLineNos);
       }
     } finally {
-      in.close();
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Wait for a batch to finish and append its results
+   */
+  void collectBatch(TokenizeBatch batch, Future<PackedChunk[]> result, List<PackedChunk> allChunks, List<Integer> parseableLineNos, List<String> unparseableStrs, List<Integer> unparseableLineNos) throws IOException {
+    PackedChunk chunks[] = getResult(result, "Tokenizer");
+    for (int i = 0; i < chunks.length; i++) {
+      int lineno = batch.firstLineno + i;
+      if (chunks[i] != null) {
+        allChunks.add(chunks[i]);
+        parseableLineNos.add(lineno);
+      } else {
+        unparseableStrs.add(batch.lines.get(i));
+        unparseableLineNos.add(lineno);
+      }
+    }
+  }
+
+  /**
+   * Write the schema, the parser tree and the compiled parser to whichever of the
+   * files are non-null.  Returns the compiled parser.
+   */
+  ParserProgram writeStructure(InferredType typeTree, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path programFile) throws IOException {
+    if (schemaFile != null) {
+      BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fs2.create(schemaFile)));
+      try {
+        out.write(typeTree.getAvroSchema().toString(true));
+      } finally {
+        out.close();
+      }
+    }
+    if (parseTreeFile != null) {
+      DataOutputStream outd = new DataOutputStream(new BufferedOutputStream(fs2.create(parseTreeFile)));
+      try {
+        typeTree.write(outd);
+      } finally {
+        outd.close();
+      }
+    }
+    ParserProgram program = new ParserProgram(typeTree);
+    program.setSearchBudget(searchBudget);
+    program.setAdaptiveOrder(adaptiveOrder);
+    if (programFile != null) {
+      DataOutputStream outd = new DataOutputStream(new BufferedOutputStream(fs2.create(programFile)));
+      try {
+        program.write(outd);
+      } finally {
+        outd.close();
+      }
+    }
+    return program;
+  }
+
+  /**
+   * Wait for a worker's result.  Whatever the worker threw is rethrown here;
+   * 'what' names the work in the error message.
+   */
+  static <T> T getResult(Future<T> result, String what) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(what + " interrupted");
+    } catch (ExecutionException eex) {
+      Throwable cause = eex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(what + " failed: " + cause);
+    }
+  }
+
+  /**
+   * Infer a record format from the text file 'p'.  If 'maxLines' is non-negative, inference
+   * runs over at most that many lines, chosen according to the sample mode.
+   */
+  public void inferRecordFormat(FileSystem fs, Path p, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path jsonDataFile, Path avroDataFile, boolean verbose, int maxLines) throws IOException {
+    inferRecordFormat(fs, p, fs2, schemaFile, parseTreeFile, null, jsonDataFile, avroDataFile, verbose, maxLines);
+  }
+
+  /**
+   * As above, but also save the compiled parser (see ParserProgram) to 'programFile', if it is non-null.
+   */
+  public void inferRecordFormat(FileSystem fs, Path p, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path programFile, Path jsonDataFile, Path avroDataFile, boolean verbose, int maxLines) throws IOException {
+    inferRecordFormat(fs, p, fs2, schemaFile, parseTreeFile, programFile, jsonDataFile, avroDataFile, null, verbose, maxLines);
+  }
+
+  /**
+   * As above, but also write the lines that don't parse to 'rejectFile', if it is non-null.
+   *
+   * After inference, the input is read once more, and each line is parsed once for all
+   * of the data outputs.  Inference over the head of the file reads it a first time;
+   * inference over a sample reads it as LineSampler does.
+   */
+  public void inferRecordFormat(FileSystem fs, Path p, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path programFile, Path jsonDataFile, Path avroDataFile, Path rejectFile, boolean verbose, int maxLines) throws IOException {
+    // Store parse errors and results
+    List<Integer> unparseableLineNos = new ArrayList<Integer>();
+    List<String> unparseableStrs = new ArrayList<String>();
+    List<Integer> parseableLineNos = new ArrayList<Integer>();
+    List<PackedChunk> allChunks = new ArrayList<PackedChunk>();
+
+    //
+    // Transform the text into a list of "chunks".  A single chunk corresponds to a line of text.  A chunk is a packed list of tokens.
+    //
+    inferenceRounds = 0;
+    inferenceMillis = 0;
+    convergenceLines = -1;
+    emittedLines = 0;
+    emittedRecords = 0;
+    long startRead = System.currentTimeMillis();
+    InferredType typeTree = null;
+    BufferedReader in;
+    if (adaptiveInitialLines > 0) {
+      typeTree = inferAdaptively(fs, p, maxLines, allChunks, parseableLineNos, unparseableStrs, unparseableLineNos);
+    } else if (maxLines >= 0 && sampleMode != LineSampler.HEAD) {
+      List<String> sample = LineSampler.sample(fs, p, sampleMode, maxLines, sampleSeed);
+      tokenizeLines(sample, 0, allChunks, parseableLineNos, unparseableStrs, unparseableLineNos);
+    } else {
+      in = new BufferedReader(new InputStreamReader(CompressedInput.open(fs, p), INPUT_ENCODING));
+      try {
+        if (numTokenizerThreads > 1) {
+          tokenizeInParallel(in, maxLines, allChunks, parseableLineNos, unparseableStrs, unparseableLineNos);
+        } else {
+          String s = in.readLine();
+          int lineno = 0;
+          while (s != null) {
+            if (maxLines >= 0 && lineno >= maxLines) {
+              break;
+            }
+            PackedChunk chunkToks = Tokenizer.tokenizePacked(s);
+            if (chunkToks != null) {
+              allChunks.add(chunkToks);
+              parseableLineNos.add(lineno);
+            } else {
+              unparseableStrs.add(s);
+              unparseableLineNos.add(lineno);
+            }
+            s = in.readLine();
+            lineno++;
+          }
+        }
+      } finally {
+        in.close();
+      }
     }
 
     //
     // Infer type structure from the tokenized chunks
     //
-    long start = System.currentTimeMillis();
-    InferredType typeTree = TypeInference.infer(allChunks);
+    if (typeTree == null) {
+      long start = System.currentTimeMillis();
+      typeTree = TypeInference.infer(allChunks);
+      inferenceMillis = System.currentTimeMillis() - start;
+      inferenceRounds = 1;
+      inferenceLines = parseableLineNos.size() + unparseableLineNos.size();
+    }
     long end = System.currentTimeMillis();
-    double loadTime = (start - startRead) / 1000.0;
-    double inferTime = (end - start) / 1000.0;
+    double inferTime = inferenceMillis / 1000.0;
     double totalTime = (end - startRead) / 1000.0;
+    double loadTime = totalTime - inferTime;
     if (verbose) {
       System.err.println("Number of chunks: " + allChunks.size());    
+      if (adaptiveInitialLines > 0) {
+        System.err.println("Inference rounds: " + inferenceRounds + ", over " + inferenceLines + " lines");
+        System.err.println("Schema converged at line: " + convergenceLines);
+      }
       System.err.println("Elapsed load time: " + loadTime);
       System.err.println("Elapsed inference time: " + inferTime);
       System.err.println("Total execution time: " + totalTime);
@@ -111,92 +780,171 @@ public class LearnStructure {
     // Dump the results.  We emit:
     // 1) A JSON/Avro schema
     // 2) A serialized parser program that can consume data and emit Avro files using the given schema
+    // 3) The same parser, compiled
     //
     Schema s = typeTree.getAvroSchema();
-    if (schemaFile != null) {
-      BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fs2.create(schemaFile)));
-      try {
-        out.write(s.toString(true));
-      } finally {
-        out.close();
-      }
-    }
-    if (parseTreeFile != null) {
-      DataOutputStream outd = new DataOutputStream(new BufferedOutputStream(fs2.create(parseTreeFile)));
-      try {
-        typeTree.write(outd);
-      } finally {
-        outd.close();
-      }
-    }
+    ParserProgram program = writeStructure(typeTree, fs2, schemaFile, parseTreeFile, programFile);
 
     //
-    // Apply the typetree's parser.
+    // Apply the typetree's parser.  The input is read and parsed once, and
+    // each line goes to every output that was asked for.
     //
-    if (jsonDataFile != null) {
-      Schema schema = typeTree.getAvroSchema();
-      GenericDatumWriter jsonGDWriter = new GenericDatumWriter(schema);      
-      BufferedOutputStream outJson = new BufferedOutputStream(fs2.create(jsonDataFile));
-      JsonEncoder encoder = EncoderFactory.get().jsonEncoder(schema, outJson);
+    if (numConvertThreads > 1) {
+      if (jsonDataFile != null || avroDataFile != null || rejectFile != null) {
+        AvroConverter converter = new AvroConverter(program);
+        converter.setNumThreads(numConvertThreads);
+        converter.setEncodeDirect(encodeDirect);
+        converter.convert(fs, p, fs2, avroDataFile, jsonDataFile, rejectFile);
+        emittedLines = (int) converter.getNumLines();
+        emittedRecords = (int) converter.getNumRecords();
+      }
+    } else {
+      Emitter emitter = new Emitter(program, verbose);
       try {
-        in = new BufferedReader(new InputStreamReader(fs.open(p)));
-        try {
-          String str = in.readLine();
-          while (str != null) {
-            GenericContainer gct = typeTree.parse(str);
-
-            if (gct != null) {
-              jsonGDWriter.write(gct, encoder);
+        if (jsonDataFile != null) {
+          emitter.openJson(s, fs2.create(jsonDataFile));
+        }
+        if (avroDataFile != null) {
+          emitter.openAvro(s, fs2.create(avroDataFile), encodeDirect);
+        }
+        if (rejectFile != null) {
+          emitter.openRejects(fs2.create(rejectFile));
+        }
+        if (emitter.hasOutputs()) {
+          in = new BufferedReader(new InputStreamReader(CompressedInput.open(fs, p), INPUT_ENCODING));
+          try {
+            String str = in.readLine();
+            while (str != null) {
+              emitter.emit(str);
+              str = in.readLine();
             }
-            str = in.readLine();
-          }      
-        } finally {
-          in.close();
+          } finally {
+            in.close();
+          }
         }
       } finally {
-        encoder.flush();
-        outJson.close();
+        emitter.close();
       }
+      emittedLines = emitter.numLines;
+      emittedRecords = emitter.numRecords;
     }
+    if (verbose && emittedLines > 0) {
+      System.err.println();
+      System.err.println("Total # input lines: " + emittedLines);
+      System.err.println("Total # lines parsed correctly: " + emittedRecords);
+    }
+  }
 
-    if (avroDataFile != null) {
-      int numGoodParses = 0;
-      int lineno = 0;
-      Schema schema = typeTree.getAvroSchema();
+  /**
+   * Streaming mode.  Infer a record format from the first 'prefixLines' lines of 'in',
+   * and write the schema, the parser tree and the compiled parser to 'outDir' at once.
+   * Then those lines, and every line after them until 'in' ends, are parsed and written
+   * to rolling Avro files in 'outDir' (see AvroStreamWriter).  Only the prefix is ever
+   * held in memory, so there's no limit on the length of the stream.  Returns the number
+   * of records written.
+   *
+   * Lines that don't parse are dropped.  If 'verbose' is set, the first
+   * MAX_REPORTED_STREAM_REJECTS of them are printed, and the rest only counted.
+   * As in inferRecordFormat(), records are written with ParserProgram.encode()
+   * only if setEncodeDirect() was called.
+   */
+  public long inferStream(BufferedReader in, int prefixLines, FileSystem fs2, Path outDir, boolean verbose) throws IOException {
+    List<String> prefix = new ArrayList<String>();
+    String str = null;
+    while (prefix.size() < prefixLines && (str = in.readLine()) != null) {
+      prefix.add(str);
+    }
+    if (prefix.size() == 0) {
+      throw new IOException("No input to infer a structure from");
+    }
 
-      GenericDatumWriter gdWriter = new GenericDatumWriter(schema);
-      DataFileWriter outData = new DataFileWriter(gdWriter);
-      outData = outData.create(schema, fs2.create(avroDataFile));
+    List<Integer> unparseableLineNos = new ArrayList<Integer>();
+    List<String> unparseableStrs = new ArrayList<String>();
+    List<Integer> parseableLineNos = new ArrayList<Integer>();
+    List<PackedChunk> allChunks = new ArrayList<PackedChunk>();
+    tokenizeLines(prefix, 0, allChunks, parseableLineNos, unparseableStrs, unparseableLineNos);
+    long start = System.currentTimeMillis();
+    InferredType typeTree = TypeInference.infer(allChunks);
+    inferenceMillis = System.currentTimeMillis() - start;
+    inferenceRounds = 1;
+    inferenceLines = prefix.size();
+    convergenceLines = -1;
+    if (verbose) {
+      System.err.println("Inferred structure from " + prefix.size() + " lines in " + (inferenceMillis / 1000.0) + " seconds");
+    }
+    ParserProgram program = writeStructure(typeTree, fs2, new Path(outDir, SCHEMA_FILENAME), new Path(outDir, PARSER_FILENAME), new Path(outDir, PROGRAM_FILENAME));
 
-      try {
-        in = new BufferedReader(new InputStreamReader(fs.open(p)));
-        try {
-          String str = in.readLine();
-          while (str != null) {
-            GenericContainer gct = typeTree.parse(str);
-            if (gct != null) {
-              numGoodParses++;
-              outData.append(gct);
-            } else {
-              if (verbose) {
-                System.err.println("unparsed line: '" + str + "'");
-              }
-            }
-            str = in.readLine();
-            lineno++;
-          }      
-        } finally {
-          in.close();
+    //
+    // Convert the prefix, then the rest of the stream
+    //
+    final AvroStreamWriter writer = new AvroStreamWriter(fs2, outDir, program.getAvroSchema(), streamRollBytes, streamRollMillis, streamFlushMillis);
+    // If the process is stopped, still finish the current file
+    Thread closer = new Thread() {
+        public void run() {
+          try {
+            writer.close();
+          } catch (IOException iex) {
+            System.err.println("Could not close the stream output: " + iex.getMessage());
+          }
+        }
+      };
+    Runtime.getRuntime().addShutdownHook(closer);
+    // Set when lines go to Avro binary without being built as records
+    EncodedDatum datum = encodeDirect ? new EncodedDatum() : null;
+    // Each record is written out before the next line is parsed, so it can be reused
+    GenericContainer reuse = null;
+    long numLines = 0;
+    try {
+      Iterator<String> prefixIt = prefix.iterator();
+      prefix = null;
+      while (true) {
+        if (prefixIt != null && prefixIt.hasNext()) {
+          str = prefixIt.next();
+        } else {
+          prefixIt = null;
+          str = in.readLine();
+          if (str == null) {
+            break;
+          }
+        }
+        numLines++;
+        boolean parsed = false;
+        if (datum != null) {
+          if (program.encode(str, datum, false) != null) {
+            parsed = true;
+            writer.appendEncoded(datum.toByteBuffer());
+          }
+        } else {
+          GenericContainer gct = program.parse(str, reuse);
+          if (gct != null) {
+            parsed = true;
+            writer.append(gct);
+            reuse = gct;
+          }
+        }
+        if (! parsed && verbose && numLines - writer.getNumRecords() <= MAX_REPORTED_STREAM_REJECTS) {
+          System.err.println("unparsed line: '" + str + "'");
+          if (numLines - writer.getNumRecords() == MAX_REPORTED_STREAM_REJECTS) {
+            System.err.println("Further unparsed lines are only counted");
+          }
         }
-      } finally {
-        outData.close();
       }
-      if (verbose) {
-        System.err.println();
-        System.err.println("Total # input lines: " + lineno);
-        System.err.println("Total # lines parsed correctly: " + numGoodParses);
+    } finally {
+      try {
+        Runtime.getRuntime().removeShutdownHook(closer);
+      } catch (IllegalStateException ise) {
+        // Already shutting down, and the hook will close the writer
       }
+      writer.close();
+    }
+    emittedLines = (int) Math.min(Integer.MAX_VALUE, numLines);
+    emittedRecords = (int) Math.min(Integer.MAX_VALUE, writer.getNumRecords());
+    if (verbose) {
+      System.err.println("Total # input lines: " + numLines);
+      System.err.println("Total # lines parsed correctly: " + writer.getNumRecords() + ", in " + writer.getNumFiles() + " files");
+      System.err.println("Total # unparsed lines: " + (numLines - writer.getNumRecords()));
     }
+    return writer.getNumRecords();
   }
 
   //////////////////////////////////////////
@@ -204,22 +952,86 @@ public class LearnStructure {
   //////////////////////////////////////////
   public static void main(String argv[]) throws IOException {
     if (argv.length < 2) {
-      System.err.println("Usage: LearnStructure <input-datafile> <outdir> (-emitAvro (true)|false)");
+      System.err.println("Usage: LearnStructure <input-datafile> <outdir> (-emitAvro (true)|false) (-emitJson (true)|false) (-tokenizerThreads <n>) (-clusterThreads <n>) (-inferenceThreads <n>) (-sample head|reservoir|block <numLines>) (-adaptive) (-searchBudget <steps>) (-adaptiveOrder) (-encodeDirect) (-convertThreads <n>)");
+      System.err.println("       LearnStructure <input-datafile>|- <outdir> -stream <prefixLines> (-follow) (-rollMB <n>) (-rollSeconds <n>) (-flushSeconds <n>)");
+      System.err.println("  -convertThreads <n>: parse the input on n threads, in splits.  Avro data, JSON data and rejected lines all come from that one read.");
       return;
     }
     FileSystem localFS = FileSystem.getLocal(new Configuration());
     boolean emitAvro = true;
+    boolean emitJson = true;
+    int numTokenizerThreads = 1;
+    int sampleMode = LineSampler.HEAD;
+    int maxLines = -1;
+    boolean adaptive = false;
+    boolean encodeDirect = false;
+    int searchBudget = ParserProgram.DEFAULT_SEARCH_BUDGET;
+    boolean adaptiveOrder = false;
+    int numConvertThreads = 1;
+    int streamPrefixLines = -1;
+    boolean follow = false;
+    long rollBytes = AvroStreamWriter.DEFAULT_ROLL_BYTES;
+    long rollMillis = AvroStreamWriter.DEFAULT_ROLL_MILLIS;
+    long flushMillis = AvroStreamWriter.DEFAULT_FLUSH_MILLIS;
     int i = 0;
-    Path f = new Path(new File(argv[i++]).getCanonicalPath());
+    String input = argv[i++];
+    Path f = "-".equals(input) ? null : new Path(new File(input).getCanonicalPath());
     File outdir = new File(argv[i++]).getCanonicalFile();
     for (; i < argv.length; i++) {
       if ("-emitAvro".equals(argv[i])) {
         i++;
         emitAvro = "true".equals(argv[i]);
+      } else if ("-emitJson".equals(argv[i])) {
+        i++;
+        emitJson = "true".equals(argv[i]);
+      } else if ("-tokenizerThreads".equals(argv[i])) {
+        i++;
+        numTokenizerThreads = Integer.parseInt(argv[i]);
+      } else if ("-clusterThreads".equals(argv[i])) {
+        i++;
+        Histogram.setNumClusterThreads(Integer.parseInt(argv[i]));
+      } else if ("-inferenceThreads".equals(argv[i])) {
+        i++;
+        TypeInference.setNumDiscoveryThreads(Integer.parseInt(argv[i]));
+      } else if ("-sample".equals(argv[i])) {
+        i++;
+        if ("reservoir".equals(argv[i])) {
+          sampleMode = LineSampler.RESERVOIR;
+        } else if ("block".equals(argv[i])) {
+          sampleMode = LineSampler.BLOCK;
+        }
+        i++;
+        maxLines = Integer.parseInt(argv[i]);
+      } else if ("-adaptive".equals(argv[i])) {
+        adaptive = true;
+      } else if ("-searchBudget".equals(argv[i])) {
+        i++;
+        searchBudget = Integer.parseInt(argv[i]);
+      } else if ("-adaptiveOrder".equals(argv[i])) {
+        adaptiveOrder = true;
+      } else if ("-encodeDirect".equals(argv[i])) {
+        encodeDirect = true;
+      } else if ("-convertThreads".equals(argv[i])) {
+        i++;
+        numConvertThreads = Integer.parseInt(argv[i]);
+      } else if ("-stream".equals(argv[i])) {
+        i++;
+        streamPrefixLines = Integer.parseInt(argv[i]);
+      } else if ("-follow".equals(argv[i])) {
+        follow = true;
+      } else if ("-rollMB".equals(argv[i])) {
+        i++;
+        rollBytes = Long.parseLong(argv[i]) * 1024 * 1024;
+      } else if ("-rollSeconds".equals(argv[i])) {
+        i++;
+        rollMillis = Long.parseLong(argv[i]) * 1000;
+      } else if ("-flushSeconds".equals(argv[i])) {
+        i++;
+        flushMillis = Long.parseLong(argv[i]) * 1000;
       }
     }
 
-    System.err.println("Input file: " + f.toString());
+    System.err.println("Input file: " + ((f == null) ? "stdin" : f.toString()));
     System.err.println("Output directory: " + outdir.getCanonicalPath());
     if (outdir.exists()) {
       throw new IOException("Output directory already exists: " + outdir);
@@ -227,14 +1039,49 @@ public class LearnStructure {
     outdir.mkdirs();
     Path schemaFile = new Path(outdir.getCanonicalPath(), SCHEMA_FILENAME);
     Path parseTreeFile = new Path(outdir.getCanonicalPath(), PARSER_FILENAME);    
+    Path programFile = new Path(outdir.getCanonicalPath(), PROGRAM_FILENAME);
     Path jsonDataFile = null;
     Path avroDataFile = null;
+    Path rejectFile = null;
     if (emitAvro) {
-      jsonDataFile = new Path(outdir.getCanonicalPath(), JSONDATA_FILENAME);    
+      if (emitJson) {
+        jsonDataFile = new Path(outdir.getCanonicalPath(), JSONDATA_FILENAME);
+      }
       avroDataFile = new Path(outdir.getCanonicalPath(), DATA_FILENAME);
+      rejectFile = new Path(outdir.getCanonicalPath(), REJECTS_FILENAME);
     }
 
     LearnStructure ls = new LearnStructure();
-    ls.inferRecordFormat(localFS, f, localFS, schemaFile, parseTreeFile, jsonDataFile, avroDataFile, true, -1);
+    ls.setNumTokenizerThreads(numTokenizerThreads);
+    ls.setSampleMode(sampleMode);
+    ls.setEncodeDirect(encodeDirect);
+    ls.setSearchBudget(searchBudget);
+    ls.setAdaptiveOrder(adaptiveOrder);
+    ls.setNumConvertThreads(numConvertThreads);
+    if (adaptive) {
+      ls.setAdaptiveSampleSize(DEFAULT_ADAPTIVE_INITIAL_LINES, DEFAULT_ADAPTIVE_STABLE_ROUNDS);
+    }
+    if (streamPrefixLines > 0) {
+      InputStream in = null;
+      if (f == null) {
+        in = System.in;
+      } else if (follow) {
+        in = new FollowInputStream(localFS, f, FollowInputStream.DEFAULT_POLL_MILLIS);
+      } else {
+        in = CompressedInput.open(localFS, f);
+      }
+      ls.setStreamRolling(rollBytes, rollMillis, flushMillis);
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, INPUT_ENCODING));
+      try {
+        ls.inferStream(reader, streamPrefixLines, localFS, new Path(outdir.getCanonicalPath()), true);
+      } finally {
+        reader.close();
+      }
+      return;
+    }
+    if (f == null) {
+      throw new IOException("Reading from stdin needs -stream");
+    }
+    ls.inferRecordFormat(localFS, f, localFS, schemaFile, parseTreeFile, programFile, jsonDataFile, avroDataFile, rejectFile, true, maxLines);
   }
 }
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+
+/*********************************************************
+ * LineSampler picks a bounded set of lines from a text file, so that
+ * structure inference doesn't only see the head of the file.
+ *
+ * HEAD takes the first N lines.  RESERVOIR reads the whole file once and
+ * keeps a uniform random sample of N lines.  BLOCK never reads the whole
+ * file: it seeks to random byte offsets, re-syncs on the next newline, and
+ * reads a short run of lines at each one.  BLOCK favors lines that follow
+ * long lines, but its I/O is bounded by the sample size rather than the
+ * file size.
+ *
+ * Compressed files are read through CompressedInput.  BLOCK needs to seek,
+ * so with a splittable codec (bzip2) it starts at the compressed block
+ * after each offset instead; with any other codec it falls back to
+ * RESERVOIR.
+ *
+ * Sampled lines are always returned in file order.  Samples are drawn
+ * with a seeded Random, so the same file and seed give the same sample.
+ *********************************************************/
+public class LineSampler {
+  public static final int HEAD = 0;
+  public static final int RESERVOIR = 1;
+  public static final int BLOCK = 2;
+
+  public static long DEFAULT_SEED = 0x5eed;
+  static int LINES_PER_BLOCK = 16;
+  static long MIN_BLOCK_SAMPLE_BYTES = 64 * 1024;
+
+  /**
+   * Reads lines from a seekable stream, keeping track of the byte offset.
+   * Lines end at '\n'; a trailing '\r' is dropped, as BufferedReader does.
+   */
+  static class PositionedLineReader {
+    FSDataInputStream in;
+    byte buf[] = new byte[64 * 1024];
+    int bufPos = 0;
+    int bufLen = 0;
+    long bufStart = 0;
+    ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+
+    public PositionedLineReader(FSDataInputStream in) {
+      this.in = in;
+    }
+    public long getPos() {
+      return bufStart + bufPos;
+    }
+    public void close() throws IOException {
+      in.close();
+    }
+    public void seek(long pos) throws IOException {
+      in.seek(pos);
+      bufStart = pos;
+      bufPos = 0;
+      bufLen = 0;
+    }
+    boolean fill() throws IOException {
+      if (bufPos < bufLen) {
+        return true;
+      }
+      bufStart += bufLen;
+      bufPos = 0;
+      bufLen = Math.max(0, in.read(buf, 0, buf.length));
+      return bufLen > 0;
+    }
+    /**
+     * Return the next line, or null at the end of the file
+     */
+    public String readLine() throws IOException {
+      lineBytes.reset();
+      boolean sawData = false;
+      while (fill()) {
+        sawData = true;
+        int start = bufPos;
+        while (bufPos < bufLen && buf[bufPos] != '\n') {
+          bufPos++;
+        }
+        lineBytes.write(buf, start, bufPos - start);
+        if (bufPos < bufLen) {
+          // Consume the newline
+          bufPos++;
+          return decodeLine();
+        }
+      }
+      // The last line of a file needn't end with a newline
+      return sawData ? decodeLine() : null;
+    }
+    /**
+     * The line in 'lineBytes', without any trailing '\r'
+     */
+    String decodeLine() throws IOException {
+      byte line[] = lineBytes.toByteArray();
+      int len = line.length;
+      if (len > 0 && line[len-1] == '\r') {
+        len--;
+      }
+      return new String(line, 0, len, LearnStructure.INPUT_ENCODING);
+    }
+  }
+
+  /**
+   * Sample up to 'sampleSize' lines from the file, using the given mode
+   */
+  public static List<String> sample(FileSystem fs, Path p, int sampleMode, int sampleSize, long seed) throws IOException {
+    Random r = new Random(seed);
+    switch (sampleMode) {
+    case HEAD:
+      return headSample(fs, p, sampleSize);
+    case RESERVOIR:
+      return reservoirSample(fs, p, sampleSize, r);
+    case BLOCK:
+      return blockSample(fs, p, sampleSize, r);
+    default:
+      throw new IllegalArgumentException("Unknown sample mode: " + sampleMode);
+    }
+  }
+
+  /**
+   * The first 'sampleSize' lines
+   */
+  public static List<String> headSample(FileSystem fs, Path p, int sampleSize) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(CompressedInput.open(fs, p), LearnStructure.INPUT_ENCODING));
+    try {
+      String s = in.readLine();
+      while (s != null && lines.size() < sampleSize) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  /**
+   * A uniform random sample of 'sampleSize' lines.  Reads the entire file,
+   * but never holds more than 'sampleSize' lines at once.
+   */
+  public static List<String> reservoirSample(FileSystem fs, Path p, int sampleSize, Random r) throws IOException {
+    String reservoir[] = new String[sampleSize];
+    long reservoirLineNos[] = new long[sampleSize];
+    long lineno = 0;
+    BufferedReader in = new BufferedReader(new InputStreamReader(CompressedInput.open(fs, p), LearnStructure.INPUT_ENCODING));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        if (lineno < sampleSize) {
+          reservoir[(int) lineno] = s;
+          reservoirLineNos[(int) lineno] = lineno;
+        } else {
+          long slot = (long) (r.nextDouble() * (lineno + 1));
+          if (slot < sampleSize) {
+            reservoir[(int) slot] = s;
+            reservoirLineNos[(int) slot] = lineno;
+          }
+        }
+        s = in.readLine();
+        lineno++;
+      }
+    } finally {
+      in.close();
+    }
+
+    // Put the sample back into file order
+    SortedMap<Long, String> sorted = new TreeMap<Long, String>();
+    for (int i = 0; i < Math.min(lineno, sampleSize); i++) {
+      sorted.put(reservoirLineNos[i], reservoir[i]);
+    }
+    return new ArrayList<String>(sorted.values());
+  }
+
+  /**
+   * Sample runs of up to LINES_PER_BLOCK lines from random places in the file.
+   * Small files are sampled with reservoirSample() instead, since reading them
+   * outright is cheap.
+   */
+  public static List<String> blockSample(FileSystem fs, Path p, int sampleSize, Random r) throws IOException {
+    long fileLen = fs.getFileStatus(p).getLen();
+    if (fileLen < MIN_BLOCK_SAMPLE_BYTES) {
+      return reservoirSample(fs, p, sampleSize, r);
+    }
+    CompressionCodec codec = CompressedInput.getCodec(fs, p);
+    if (codec != null) {
+      if (codec instanceof SplittableCompressionCodec) {
+        return compressedBlockSample(fs, p, (SplittableCompressionCodec) codec, fileLen, sampleSize, r);
+      }
+      return reservoirSample(fs, p, sampleSize, r);
+    }
+
+    int numBlocks = (sampleSize + LINES_PER_BLOCK - 1) / LINES_PER_BLOCK;
+    long offsets[] = new long[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      offsets[i] = (long) (r.nextDouble() * fileLen);
+    }
+    Arrays.sort(offsets);
+
+    List<String> lines = new ArrayList<String>();
+    PositionedLineReader in = new PositionedLineReader(fs.open(p));
+    try {
+      for (int i = 0; i < numBlocks && lines.size() < sampleSize; i++) {
+        //
+        // Re-sync on the first line that starts at or after the offset.  If the previous
+        // block already read past the offset, just carry on from where it stopped, so no
+        // line is sampled twice.
+        //
+        if (offsets[i] > in.getPos()) {
+          in.seek(offsets[i] - 1);
+          if (in.readLine() == null) {
+            break;
+          }
+        }
+        for (int j = 0; j < LINES_PER_BLOCK && lines.size() < sampleSize; j++) {
+          String s = in.readLine();
+          if (s == null) {
+            break;
+          }
+          lines.add(s);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  /**
+   * blockSample() for a file compressed with a splittable codec.  Offsets are
+   * in the compressed file, and each run starts at the first whole line of the
+   * compressed block after its offset.
+   */
+  static List<String> compressedBlockSample(FileSystem fs, Path p, SplittableCompressionCodec codec, long fileLen, int sampleSize, Random r) throws IOException {
+    int numBlocks = (sampleSize + LINES_PER_BLOCK - 1) / LINES_PER_BLOCK;
+    long offsets[] = new long[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      offsets[i] = (long) (r.nextDouble() * fileLen);
+    }
+    Arrays.sort(offsets);
+
+    List<String> lines = new ArrayList<String>();
+    SplitCompressionInputStream cin = null;
+    BufferedReader in = null;
+    try {
+      for (int i = 0; i < numBlocks && lines.size() < sampleSize; i++) {
+        //
+        // As in blockSample(), carry on with the current stream if it has already
+        // read past the offset; otherwise jump to the block after it.
+        //
+        if (in == null || offsets[i] > cin.getPos()) {
+          if (in != null) {
+            in.close();
+          }
+          cin = CompressedInput.openBlock(fs, p, codec, offsets[i]);
+          in = new BufferedReader(new InputStreamReader(cin, LearnStructure.INPUT_ENCODING));
+          if (cin.getAdjustedStart() != 0 && in.readLine() == null) {
+            break;
+          }
+        }
+        for (int j = 0; j < LINES_PER_BLOCK && lines.size() < sampleSize; j++) {
+          String s = in.readLine();
+          if (s == null) {
+            break;
+          }
+          lines.add(s);
+        }
+      }
+    } finally {
+      if (in != null) {
+        in.close();
+      }
+    }
+    return lines;
+  }
+}
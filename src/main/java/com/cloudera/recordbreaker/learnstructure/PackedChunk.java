@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+
+/*********************************************************
+ * PackedChunk is a compact form of a tokenized line.  Instead of one
+ * Token object per token, it keeps parallel int arrays of class ids,
+ * token parameters, token type ids (see TokenTypeDictionary), and start/end
+ * offsets into the original line.
+ *
+ * A MetaToken is stored as a META entry, followed by a CHAR entry for the
+ * opening delimiter, the nested tokens, and a CHAR entry for the closing
+ * delimiter.  The META entry's parameter is the index just past the closing
+ * delimiter, so sibling tokens can be walked with next().
+ *
+ * A PackedChunk is also a view: a run of sibling entries [from, to) that
+ * shares the arrays of the line it came from.  TypeInference splits chunks
+ * into sub-chunks this way, without copying any tokens.  Token objects are
+ * only materialized when something asks for a sample.
+ *
+ * A chunk can also stand in for several lines that have exactly the same
+ * token types (see TypeInference.collapseDuplicates()).  Its weight is the
+ * number of lines, and it keeps the first few of those lines for samples.
+ * Since those lines have identical layouts, an entry index means the same
+ * token in each of them, and views share the sample lines unchanged.
+ *********************************************************/
+public class PackedChunk {
+  String line;
+  int classIds[];
+  int params[];
+  int typeIds[];
+  int starts[];
+  int ends[];
+  int numEntries;
+
+  int from;
+  int to;
+  int size;
+
+  // Position of the line in the input, and the lines this chunk stands for
+  int ordinal = 0;
+  int weight = 1;
+  PackedChunk sampleLines[] = null;
+
+  /**
+   * Create an empty chunk for the tokenizer to fill.
+   */
+  PackedChunk(String line) {
+    this.line = line;
+    int capacity = Math.max(8, line.length() / 2);
+    this.classIds = new int[capacity];
+    this.params = new int[capacity];
+    this.typeIds = new int[capacity];
+    this.starts = new int[capacity];
+    this.ends = new int[capacity];
+    this.numEntries = 0;
+  }
+
+  /**
+   * Create a view over some sibling entries of an existing chunk.
+   */
+  PackedChunk(PackedChunk parent, int from, int to) {
+    this.line = parent.line;
+    this.classIds = parent.classIds;
+    this.params = parent.params;
+    this.typeIds = parent.typeIds;
+    this.starts = parent.starts;
+    this.ends = parent.ends;
+    this.numEntries = parent.numEntries;
+    this.from = from;
+    this.to = to;
+    this.size = 0;
+    for (int i = from; i < to; i = next(i)) {
+      size++;
+    }
+    this.ordinal = parent.ordinal;
+    this.weight = parent.weight;
+    this.sampleLines = parent.sampleLines;
+  }
+
+  /**
+   * Append an entry.  Used by the tokenizer.
+   */
+  int add(int classId, int param, int start, int end) {
+    if (numEntries == classIds.length) {
+      int newCapacity = 2 * classIds.length;
+      classIds = Arrays.copyOf(classIds, newCapacity);
+      params = Arrays.copyOf(params, newCapacity);
+      typeIds = Arrays.copyOf(typeIds, newCapacity);
+      starts = Arrays.copyOf(starts, newCapacity);
+      ends = Arrays.copyOf(ends, newCapacity);
+    }
+    classIds[numEntries] = classId;
+    params[numEntries] = param;
+    typeIds[numEntries] = TokenTypeDictionary.getTypeId(classId, param);
+    starts[numEntries] = start;
+    ends[numEntries] = end;
+    return numEntries++;
+  }
+
+  /**
+   * Called by the tokenizer once every entry has been added.
+   */
+  void finish() {
+    this.from = 0;
+    this.to = numEntries;
+    this.size = 0;
+    for (int i = from; i < to; i = next(i)) {
+      size++;
+    }
+  }
+
+  /////////////////////////////////////////////
+  // Walking the chunk
+  /////////////////////////////////////////////
+  public String getLine() {
+    return line;
+  }
+  /**
+   * Number of sibling tokens in this chunk.  Tokens nested inside a META entry are not counted.
+   */
+  public int size() {
+    return size;
+  }
+  int first() {
+    return from;
+  }
+  int end() {
+    return to;
+  }
+  int next(int i) {
+    return (classIds[i] == Token.META_TOKENCLASSID) ? params[i] : i+1;
+  }
+  PackedChunk subChunk(int subFrom, int subTo) {
+    return new PackedChunk(this, subFrom, subTo);
+  }
+
+  /////////////////////////////////////////////
+  // Weighted chunks
+  /////////////////////////////////////////////
+  /**
+   * Number of input lines this chunk stands for
+   */
+  public int getWeight() {
+    return weight;
+  }
+  int getOrdinal() {
+    return ordinal;
+  }
+  /**
+   * The lines that samples can be drawn from, earliest first.  Entry indices
+   * into this chunk are valid for each of them.
+   */
+  int numSampleLines() {
+    return (sampleLines == null) ? 1 : sampleLines.length;
+  }
+  PackedChunk getSampleLine(int k) {
+    return (sampleLines == null) ? this : sampleLines[k];
+  }
+  /**
+   * A chunk that stands for all of the given lines, which must have identical
+   * layouts.  'samples' holds the earliest of them, first to last.
+   */
+  static PackedChunk createWeighted(PackedChunk first, int weight, List<PackedChunk> samples) {
+    PackedChunk chunk = new PackedChunk(first, first.first(), first.end());
+    chunk.weight = weight;
+    chunk.sampleLines = (samples.size() > 1) ? samples.toArray(new PackedChunk[samples.size()]) : null;
+    return chunk;
+  }
+
+  /////////////////////////////////////////////
+  // Per-entry accessors.  These mirror the ones on Token.AbstractToken.
+  /////////////////////////////////////////////
+  int getClassId(int i) {
+    return classIds[i];
+  }
+  /**
+   * Dense id of the token's type; two tokens have the same type id iff they have the same getId()
+   */
+  int getTypeId(int i) {
+    return typeIds[i];
+  }
+  /**
+   * Same as AbstractToken.getParameter()
+   */
+  String getParameter(int i) {
+    switch (classIds[i]) {
+    case Token.CHAR_TOKENCLASSID:
+      return "" + (char) params[i];
+    case Token.META_TOKENCLASSID:
+      return "" + line.charAt(starts[i]);
+    default:
+      return null;
+    }
+  }
+  /**
+   * Same as AbstractToken.getId().  Note that every MetaToken shares the id "meta",
+   * whatever its delimiters are.
+   */
+  String getId(int i) {
+    return TokenTypeDictionary.getId(typeIds[i]);
+  }
+  /**
+   * The META entry at 'i' covers these entries, without the delimiters
+   */
+  PackedChunk getMiddleChunk(int i) {
+    return new PackedChunk(this, i+2, params[i]-1);
+  }
+  /**
+   * The delimiters of the META entry at 'i'.  These stand for just this one line,
+   * whatever the weight of this chunk.
+   */
+  PackedChunk getStartChunk(int i) {
+    PackedChunk chunk = new PackedChunk(this, i+1, i+2);
+    chunk.weight = 1;
+    chunk.sampleLines = null;
+    return chunk;
+  }
+  PackedChunk getEndChunk(int i) {
+    PackedChunk chunk = new PackedChunk(this, params[i]-1, params[i]);
+    chunk.weight = 1;
+    chunk.sampleLines = null;
+    return chunk;
+  }
+  String getSampleString(int i) {
+    return getToken(i).getSampleString();
+  }
+
+  /////////////////////////////////////////////
+  // Materializing Token objects
+  /////////////////////////////////////////////
+  /**
+   * Build the Token object that the entry stands for.
+   */
+  Token.AbstractToken getToken(int i) {
+    int start = starts[i];
+    int end = ends[i];
+    switch (classIds[i]) {
+    case Token.META_TOKENCLASSID:
+      return new Token.MetaToken(new Token.CharToken(line.charAt(start)), new Token.CharToken(line.charAt(end-1)), getTokens(i+2, params[i]-1));
+    case Token.CHAR_TOKENCLASSID:
+      return new Token.CharToken((char) params[i]);
+    case Token.IPADDR_TOKENCLASSID:
+      return new Token.IPAddrToken(line.substring(start, end));
+    case Token.PERMISSIONS_TOKENCLASSID:
+      return new Token.PermissionBits(line.substring(start, end));
+    case Token.DATE_TOKENCLASSID:
+      try {
+        return Tokenizer.createDateToken(line, start, end, params[i]);
+      } catch (IOException iex) {
+        // The tokenizer only emits legal dates
+        throw new IllegalStateException(iex);
+      }
+    case Token.TIME_TOKENCLASSID:
+      return new Token.TimeToken(line.substring(start, start+2), line.substring(start+3, start+5), (end - start == 8) ? line.substring(start+6, start+8) : "00");
+    case Token.INT_TOKENCLASSID:
+      return new Token.IntToken(line.substring(start, end));
+    case Token.FLOAT_TOKENCLASSID:
+      return new Token.FloatToken(line.substring(start, end));
+    case Token.STRING_TOKENCLASSID:
+      return new Token.StringToken(line.substring(start, end));
+    case Token.EOL_TOKENCLASSID:
+      return new Token.EOLToken();
+    case Token.WHITESPACE_TOKENCLASSID:
+      return new Token.WhitespaceToken();
+    default:
+      return new Token.NoopToken();
+    }
+  }
+
+  /**
+   * Materialize the sibling tokens in [tokFrom, tokTo)
+   */
+  List<Token.AbstractToken> getTokens(int tokFrom, int tokTo) {
+    List<Token.AbstractToken> toks = new ArrayList<Token.AbstractToken>();
+    for (int i = tokFrom; i < tokTo; i = next(i)) {
+      toks.add(getToken(i));
+    }
+    return toks;
+  }
+  public List<Token.AbstractToken> getTokens() {
+    return getTokens(from, to);
+  }
+
+  public String toString() {
+    StringBuffer buf = new StringBuffer();
+    for (int i = from; i < to; i = next(i)) {
+      buf.append(getToken(i) + "  ");
+    }
+    return buf.toString();
+  }
+}
@@ -0,0 +1,1406 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.hadoop.io.*;
+import org.apache.avro.Schema;
+import org.apache.avro.util.Utf8;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumWriter;
+
+/*********************************************************
+ * ParserProgram is an InferredType tree compiled for parsing.  Each
+ * node of the tree becomes an entry in a set of flat arrays: its opcode,
+ * its token class, its children, and where its data goes in the parent
+ * record.  Parsing walks those arrays with an int cursor into the line,
+ * so no substrings are cut and no Token objects are built along the way.
+ * Field positions are resolved once, at compile time.
+ *
+ * parse() first tries a greedy parse, where each union takes the first
+ * branch that parses.  If that fails, it falls back to a search over the
+ * branches of unions whose branches start alike (see Run.search()), bounded
+ * by a step budget.  It accepts exactly the lines the recursive parser
+ * (InferredType.parseRecursive()) accepts, and builds the same records.
+ *
+ * By default, unions try their branches in the order they were inferred, so
+ * a line parses the same way no matter what came before it.  With adaptive
+ * ordering turned on (see setAdaptiveOrder()), they needn't.
+ * The program counts how often each branch appears in a successful parse,
+ * and every REORDER_INTERVAL parses it re-sorts each union's branches by
+ * those counts.  It also remembers the union decisions of the last parse
+ * for each line shape (see getShape()), and tries those branches first on
+ * the next line of that shape.  When more than one branch of a union could
+ * parse the same text, which one wins can therefore depend on what the
+ * program has already seen.  The counts can be saved and restored with
+ * writeBranchStats() and readBranchStats().
+ *
+ * encode() parses a line straight into Avro's binary encoding, for callers
+ * that only want to write the record out.  It tries the same union branches
+ * in the same order as parse(), so it accepts the same lines and takes the
+ * same branches.  A line that takes a branch with no schema gets a record
+ * from parse() that can't be written; encode() throws on it instead.
+ *
+ * There is deliberately no backend that generates Java code per program.
+ * One that compiled straight-line parsers with javax.tools ran within
+ * 10-20% of this interpreter, in either direction, on src/samples/textdata:
+ * token matching and building records dominate, and generated code does
+ * both the same way.  It also needed a JDK at runtime.  To parse faster,
+ * reuse records with parse(line, reuse), or skip them with encode().
+ * ParserBenchmark times those.
+ *
+ * A ParserProgram is a Writable, so it can be saved next to the parser
+ * tree it was compiled from.  It is safe to share across threads.
+ *********************************************************/
+public class ParserProgram implements Writable {
+  final static int FORMAT_VERSION = 2;
+  final static int BRANCH_STATS_VERSION = 1;
+
+  final static int OP_BASE = 0;
+  final static int OP_STRUCT = 1;
+  final static int OP_ARRAY = 2;
+  final static int OP_UNION = 3;
+
+  // CHAR parameters that aren't a single char never match
+  final static int ANY_CHAR = -1;
+  final static int NO_CHAR = -2;
+
+  static Schema dateSchema;
+  static Schema timeSchema;
+  static {
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+    fields.add(new Schema.Field("month", Schema.create(Schema.Type.INT), "", null));
+    fields.add(new Schema.Field("day", Schema.create(Schema.Type.INT), "", null));
+    fields.add(new Schema.Field("year", Schema.create(Schema.Type.INT), "", null));
+    dateSchema = Schema.createRecord("date", "", "", false);
+    dateSchema.setFields(fields);
+
+    fields = new ArrayList<Schema.Field>();
+    fields.add(new Schema.Field("hrs", Schema.create(Schema.Type.INT), "", null));
+    fields.add(new Schema.Field("mins", Schema.create(Schema.Type.INT), "", null));
+    fields.add(new Schema.Field("secs", Schema.create(Schema.Type.INT), "", null));
+    timeSchema = Schema.createRecord("timestamp", "", "", false);
+    timeSchema.setFields(fields);
+  }
+
+  // One entry per node, in preorder.  Node 0 is the root.
+  int numNodes;
+  int opcodes[];
+  int classIds[];
+  int charParams[];
+  String names[];
+  int fieldPositions[];
+  int childStarts[];
+  int childCounts[];
+  int children[];
+
+  // Calls to exec() that search() may make on one line
+  public final static int DEFAULT_SEARCH_BUDGET = 100000;
+  int searchBudget = DEFAULT_SEARCH_BUDGET;
+
+  // Adaptive union ordering.  branchHits and branchOrder are indexed like
+  // children[]; each union's run of branchOrder lists its branch slots, most
+  // popular first.
+  public static boolean DEFAULT_ADAPTIVE_ORDER = false;
+  static int REORDER_INTERVAL = 256;
+  static int SHAPE_LENGTH_BUCKET = 16;
+  static int MAX_SHAPES = 4096;
+  boolean adaptiveOrder = DEFAULT_ADAPTIVE_ORDER;
+  AtomicLongArray branchHits;
+  volatile int branchOrder[];
+  AtomicInteger parsesSinceReorder = new AtomicInteger();
+  Map<Integer, int[]> shapeDecisions = new ConcurrentHashMap<Integer, int[]>();
+
+  // Each node's Avro schema.  readFields() rebuilds these from rootSchema.
+  Schema rootSchema;
+  Schema schemas[];
+
+  // Each union branch's index among its union schema's types, indexed like
+  // children[]; -1 for a branch with no schema.  Built on first use.
+  volatile int branchIndexes[];
+
+  // What Run.search() tries.  Built on first use.
+  volatile SearchPlan searchPlan;
+
+  public ParserProgram() {
+  }
+
+  /**
+   * Compile the given type tree
+   */
+  public ParserProgram(InferredType typeTree) {
+    List<InferredType> nodes = new ArrayList<InferredType>();
+    List<Integer> parents = new ArrayList<Integer>();
+    collectNodes(typeTree, -1, nodes, parents);
+    allocate(nodes.size());
+
+    //
+    // Lay out the nodes.  Each node's children are contiguous in children[].
+    //
+    List<List<Integer>> nodeChildren = new ArrayList<List<Integer>>();
+    for (int i = 0; i < numNodes; i++) {
+      nodeChildren.add(new ArrayList<Integer>());
+      if (parents.get(i) >= 0) {
+        nodeChildren.get(parents.get(i)).add(i);
+      }
+    }
+    List<Integer> childList = new ArrayList<Integer>();
+    for (int i = 0; i < numNodes; i++) {
+      InferredType it = nodes.get(i);
+      names[i] = it.getName();
+      charParams[i] = ANY_CHAR;
+      fieldPositions[i] = -1;
+      childStarts[i] = childList.size();
+      if (it instanceof BaseType) {
+        BaseType bt = (BaseType) it;
+        opcodes[i] = OP_BASE;
+        classIds[i] = bt.tokenClassIdentifier;
+        if (bt.tokenParameter != null) {
+          charParams[i] = (bt.tokenParameter.length() == 1) ? bt.tokenParameter.charAt(0) : NO_CHAR;
+        }
+      } else if (it instanceof StructType) {
+        opcodes[i] = OP_STRUCT;
+      } else if (it instanceof ArrayType) {
+        opcodes[i] = OP_ARRAY;
+      } else {
+        opcodes[i] = OP_UNION;
+      }
+      childList.addAll(nodeChildren.get(i));
+      childCounts[i] = nodeChildren.get(i).size();
+    }
+    this.children = new int[childList.size()];
+    for (int i = 0; i < children.length; i++) {
+      children[i] = childList.get(i);
+    }
+    resetBranchStats();
+
+    this.rootSchema = typeTree.getAvroSchema();
+    for (int i = 0; i < numNodes; i++) {
+      schemas[i] = nodes.get(i).getAvroSchema();
+      if (opcodes[i] == OP_STRUCT) {
+        resolveFieldPositions(i);
+      }
+    }
+  }
+
+  void collectNodes(InferredType it, int parent, List<InferredType> nodes, List<Integer> parents) {
+    int idx = nodes.size();
+    nodes.add(it);
+    parents.add(parent);
+    if (it instanceof StructType) {
+      for (InferredType subelt: ((StructType) it).structTypes) {
+        collectNodes(subelt, idx, nodes, parents);
+      }
+    } else if (it instanceof ArrayType) {
+      collectNodes(((ArrayType) it).bodyType, idx, nodes, parents);
+    } else if (it instanceof UnionType) {
+      for (InferredType branch: ((UnionType) it).unionTypes) {
+        collectNodes(branch, idx, nodes, parents);
+      }
+    }
+  }
+
+  void allocate(int numNodes) {
+    this.numNodes = numNodes;
+    this.opcodes = new int[numNodes];
+    this.classIds = new int[numNodes];
+    this.charParams = new int[numNodes];
+    this.names = new String[numNodes];
+    this.fieldPositions = new int[numNodes];
+    this.childStarts = new int[numNodes];
+    this.childCounts = new int[numNodes];
+    this.schemas = new Schema[numNodes];
+    this.branchIndexes = null;
+    this.searchPlan = null;
+  }
+
+  /**
+   * Each child of a struct is stored by field position.  A child without a
+   * field keeps -1, and is stored by name, which fails just as it always has.
+   */
+  void resolveFieldPositions(int node) {
+    for (int i = childStarts[node]; i < childStarts[node] + childCounts[node]; i++) {
+      Schema.Field field = schemas[node].getField(names[children[i]]);
+      fieldPositions[children[i]] = (field == null) ? -1 : field.pos();
+    }
+  }
+
+  public Schema getAvroSchema() {
+    return rootSchema;
+  }
+
+  int[] getBranchIndexes() {
+    int indexes[] = branchIndexes;
+    if (indexes == null) {
+      indexes = new int[children.length];
+      for (int node = 0; node < numNodes; node++) {
+        if (opcodes[node] == OP_UNION) {
+          List<Schema> types = schemas[node].getTypes();
+          for (int i = childStarts[node]; i < childStarts[node] + childCounts[node]; i++) {
+            indexes[i] = findType(types, schemas[children[i]]);
+          }
+        }
+      }
+      branchIndexes = indexes;
+    }
+    return indexes;
+  }
+
+  /**
+   * A branch that repeats an earlier branch's schema shares its type
+   */
+  static int findType(List<Schema> types, Schema branchSchema) {
+    if (branchSchema == null) {
+      return -1;
+    }
+    for (int i = 0; i < types.size(); i++) {
+      if (types.get(i) == branchSchema) {
+        return i;
+      }
+    }
+    String desc = branchSchema.toString();
+    for (int i = 0; i < types.size(); i++) {
+      if (types.get(i).toString().equals(desc)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Bound the work done on a line that the greedy parse can't handle.
+   * Lines that need more than 'budget' search steps are not parsed.
+   * A step is one node tried at one offset.
+   */
+  public void setSearchBudget(int budget) {
+    this.searchBudget = budget;
+  }
+
+  /**
+   * Turn adaptive union ordering on or off.  With it off, union branches are
+   * always tried in the order they were inferred.
+   */
+  public void setAdaptiveOrder(boolean adaptiveOrder) {
+    this.adaptiveOrder = adaptiveOrder;
+  }
+  public boolean getAdaptiveOrder() {
+    return adaptiveOrder;
+  }
+
+  ////////////////////////////////////////////
+  // Union branch statistics
+  ////////////////////////////////////////////
+  void resetBranchStats() {
+    this.branchHits = new AtomicLongArray(children.length);
+    int order[] = new int[children.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    this.branchOrder = order;
+    shapeDecisions.clear();
+  }
+
+  /**
+   * Sort each union's branches by how often they have been taken.  Ties keep
+   * the inferred order.
+   */
+  synchronized void reorderBranches() {
+    int order[] = new int[children.length];
+    for (int node = 0; node < numNodes; node++) {
+      if (opcodes[node] != OP_UNION) {
+        continue;
+      }
+      int start = childStarts[node];
+      for (int i = start; i < start + childCounts[node]; i++) {
+        long hits = branchHits.get(i);
+        int j = i;
+        while (j > start && branchHits.get(order[j-1]) < hits) {
+          order[j] = order[j-1];
+          j--;
+        }
+        order[j] = i;
+      }
+    }
+    this.branchOrder = order;
+  }
+
+  /**
+   * Called after each successful parse, with the union branches it took
+   */
+  void noteDecisions(int shape, int guide[], int decisions[], int numDecisions) {
+    if (! adaptiveOrder) {
+      return;
+    }
+    for (int i = 0; i < numDecisions; i++) {
+      branchHits.incrementAndGet(decisions[i]);
+    }
+    if (! isSameDecisions(guide, decisions, numDecisions)) {
+      if (shapeDecisions.size() >= MAX_SHAPES) {
+        shapeDecisions.clear();
+      }
+      shapeDecisions.put(shape, Arrays.copyOf(decisions, numDecisions));
+    }
+    if (parsesSinceReorder.incrementAndGet() >= REORDER_INTERVAL) {
+      parsesSinceReorder.set(0);
+      reorderBranches();
+    }
+  }
+
+  /**
+   * Does 'guide' hold the first 'numDecisions' elements of 'decisions', and no more?
+   */
+  static boolean isSameDecisions(int guide[], int decisions[], int numDecisions) {
+    if (guide == null || guide.length != numDecisions) {
+      return false;
+    }
+    for (int i = 0; i < numDecisions; i++) {
+      if (guide[i] != decisions[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A cheap summary of a line's layout: its length, to within SHAPE_LENGTH_BUCKET
+   * chars, and the kind of token it starts with.
+   */
+  static int getShape(String s) {
+    int len = s.length();
+    int i = 0;
+    while (i < len && s.charAt(i) <= ' ') {
+      i++;
+    }
+    int lead = 0;
+    if (i < len) {
+      char c = s.charAt(i);
+      if (Tokenizer.isDigit(c)) {
+        lead = '0';
+      } else if (Character.isLetter(c)) {
+        lead = 'a';
+      } else {
+        lead = Math.min(c, 127);
+      }
+    }
+    return Math.min(len / SHAPE_LENGTH_BUCKET, 1 << 20) * 128 + lead;
+  }
+
+  /**
+   * Save the branch counts.  They are only meaningful to a program compiled
+   * from the same type tree.
+   */
+  public void writeBranchStats(DataOutput out) throws IOException {
+    out.writeInt(BRANCH_STATS_VERSION);
+    out.writeInt(children.length);
+    for (int i = 0; i < children.length; i++) {
+      out.writeLong(branchHits.get(i));
+    }
+  }
+
+  /**
+   * Restore counts saved by writeBranchStats(), and order the branches by them.
+   * Counts that don't fit this program are read and ignored.
+   */
+  public void readBranchStats(DataInput in) throws IOException {
+    int version = in.readInt();
+    if (version != BRANCH_STATS_VERSION) {
+      throw new IOException("Unknown branch statistics version: " + version);
+    }
+    int numSlots = in.readInt();
+    long hits[] = new long[numSlots];
+    for (int i = 0; i < numSlots; i++) {
+      hits[i] = in.readLong();
+    }
+    if (numSlots == children.length) {
+      for (int i = 0; i < numSlots; i++) {
+        branchHits.set(i, hits[i]);
+      }
+      reorderBranches();
+    }
+  }
+
+  ////////////////////////////////////////////
+  // Parsing
+  ////////////////////////////////////////////
+  /**
+   * The state of one parse() call.  After exec() succeeds, 'data' and 'hasData'
+   * describe what the node produced.
+   */
+  class Run {
+    String s;
+    int len;
+    int dateGroups[] = null;
+    Object data;
+    boolean hasData;
+    // A value from an earlier parse that the current BASE match may overwrite, or null
+    Object reuse = null;
+    // When set, exec() writes Avro binary here instead of building 'data'.
+    // 'unwrapRoot' leaves out the index of the root union's branch.
+    EncodedDatum out = null;
+    boolean unwrapRoot = false;
+
+    // The branch order in force, and the decisions to try first
+    int order[];
+    int shape;
+    int guide[];
+    // The union branch slots exec() has taken, in the order it met the unions
+    int decisions[] = new int[16];
+    int numDecisions = 0;
+
+    // Set during search(): the branch each union is held to, or -1 if it is
+    // free to choose; the (node, offset) pairs known to fail; the calls to
+    // exec() left before giving up; and the highest index into the search
+    // plan's unions that the current try has reached
+    int forced[] = null;
+    Set<Long> failed = null;
+    int stepsLeft = 0;
+    int deepestForced = -1;
+
+    Run(String s) {
+      this.s = s;
+      this.len = s.length();
+      this.order = branchOrder;
+    }
+
+    /**
+     * Try first the union decisions that worked on the last line of this shape
+     */
+    void useGuide() {
+      this.shape = getShape(s);
+      this.guide = shapeDecisions.get(shape);
+    }
+
+    /**
+     * Parse node 'node' at 'pos'.  Returns the position after it, or -1.
+     *
+     * 'reuse' is what this node produced on an earlier line, or null.  If it
+     * has the node's schema, it is overwritten in place rather than allocating
+     * a new container.  It may be left half-overwritten if the node fails.
+     *
+     * When encoding, what a node writes to 'out' is left there even if the
+     * node fails; the enclosing union or array cuts it off.
+     */
+    int exec(int node, int pos, boolean mustConsume, Object reuse) {
+      if (forced == null) {
+        return execNode(node, pos, mustConsume, reuse);
+      }
+      if (--stepsLeft < 0) {
+        return -1;
+      }
+      long key = -1;
+      if (! mustConsume && (opcodes[node] == OP_STRUCT || opcodes[node] == OP_UNION) && searchPlan.decisionFree[node]) {
+        key = (long) node * (len + 1) + pos;
+        if (failed.contains(key)) {
+          return -1;
+        }
+      }
+      int newPos = execNode(node, pos, mustConsume, reuse);
+      if (newPos < 0 && key >= 0 && stepsLeft >= 0) {
+        failed.add(key);
+      }
+      return newPos;
+    }
+
+    int execNode(int node, int pos, boolean mustConsume, Object reuse) {
+      switch (opcodes[node]) {
+      case OP_BASE: {
+        this.reuse = reuse;
+        int newPos = matchBase(node, pos);
+        this.reuse = null;
+        if (newPos < 0 || (mustConsume && ! isBlank(newPos))) {
+          return -1;
+        }
+        return newPos;
+      }
+      case OP_STRUCT: {
+        boolean structHasData = false;
+        GenericData.Record gdr = (out == null) ? newRecord(schemas[node], reuse) : null;
+        boolean reused = (gdr != null && gdr == reuse);
+        for (int i = childStarts[node]; i < childStarts[node] + childCounts[node]; i++) {
+          if (pos >= len) {
+            return -1;
+          }
+          int child = children[i];
+          Object childReuse = (reused && fieldPositions[child] >= 0) ? gdr.get(fieldPositions[child]) : null;
+          pos = exec(child, pos, false, childReuse);
+          if (pos < 0) {
+            return -1;
+          }
+          if (hasData) {
+            structHasData = true;
+            if (gdr != null) {
+              putField(gdr, child, data);
+            }
+          } else if (childReuse != null) {
+            // Clear what the earlier line left in the field
+            gdr.put(fieldPositions[child], null);
+          }
+        }
+        if (mustConsume && ! isBlank(pos)) {
+          return -1;
+        }
+        data = gdr;
+        hasData = structHasData;
+        return pos;
+      }
+      case OP_ARRAY: {
+        GenericData.Array gda = null;
+        if (out != null) {
+          // Each element goes out as a block of one
+        } else if (reuse instanceof GenericData.Array && ((GenericData.Array) reuse).getSchema() == schemas[node]) {
+          gda = (GenericData.Array) reuse;
+          gda.clear();
+        } else {
+          gda = new GenericData.Array(5, schemas[node]);
+        }
+        int body = children[childStarts[node]];
+        while (true) {
+          int mark = numDecisions;
+          int outMark = 0;
+          if (out != null) {
+            outMark = out.size();
+            out.writeInt(1);
+          }
+          int newPos = exec(body, pos, false, (gda != null && reuse == gda) ? gda.peek() : null);
+          if (newPos < 0) {
+            numDecisions = mark;
+            if (out != null) {
+              out.truncate(outMark);
+            }
+            break;
+          }
+          if (gda != null) {
+            gda.add(data);
+          }
+          pos = newPos;
+        }
+        if (out != null) {
+          out.writeInt(0);
+        }
+        if (mustConsume && ! isBlank(pos)) {
+          return -1;
+        }
+        data = gda;
+        hasData = true;
+        return pos;
+      }
+      default: {
+        int mark = numDecisions;
+        int outMark = (out == null) ? 0 : out.size();
+        int indexes[] = (out == null) ? null : getBranchIndexes();
+        int guidedIdx = getGuidedIdx(node, mark);
+        int forcedSlot = (forced == null || forced[node] < 0) ? -1 : childStarts[node] + forced[node];
+        if (forcedSlot >= 0) {
+          deepestForced = Math.max(deepestForced, searchPlan.unionIndexes[node]);
+        }
+        int numBranches = (forcedSlot >= 0) ? 1 : childCounts[node];
+        for (int k = 0; k < numBranches; k++) {
+          int slot = (forcedSlot >= 0) ? forcedSlot : getBranch(node, guidedIdx, k);
+          numDecisions = mark;
+          if (out != null) {
+            out.truncate(outMark);
+            // A branch with no schema has no index; encode() checks for it afterwards
+            if (indexes[slot] >= 0 && (node != 0 || ! unwrapRoot)) {
+              out.writeInt(indexes[slot]);
+            }
+          }
+          addDecision(slot);
+          int newPos = exec(children[slot], pos, false, reuse);
+          if (newPos >= 0 && (! mustConsume || isBlank(newPos))) {
+            return newPos;
+          }
+        }
+        numDecisions = mark;
+        if (out != null) {
+          out.truncate(outMark);
+        }
+        return -1;
+      }
+      }
+    }
+
+    /**
+     * 'reuse', if it is a record with the given schema, or else a new record
+     */
+    GenericData.Record newRecord(Schema schema, Object reuse) {
+      if (reuse instanceof GenericData.Record && ((GenericData.Record) reuse).getSchema() == schema) {
+        return (GenericData.Record) reuse;
+      }
+      return new GenericData.Record(schema);
+    }
+
+    /**
+     * The chars in [start, end), as a Utf8.  Reuses 'reuse' for ASCII text.
+     */
+    Utf8 newUtf8(int start, int end) {
+      if (reuse instanceof Utf8) {
+        Utf8 utf8 = (Utf8) reuse;
+        utf8.setByteLength(end - start);
+        byte bytes[] = utf8.getBytes();
+        for (int i = start; i < end; i++) {
+          char c = s.charAt(i);
+          if (c >= 128) {
+            return new Utf8(s.substring(start, end));
+          }
+          bytes[i - start] = (byte) c;
+        }
+        return utf8;
+      }
+      return new Utf8(s.substring(start, end));
+    }
+
+    /**
+     * Produce the chars in [start, end) as a string value
+     */
+    void putString(int start, int end) {
+      if (out != null) {
+        out.writeString(s, start, end);
+      } else {
+        data = newUtf8(start, end);
+      }
+    }
+
+    void addDecision(int slot) {
+      if (numDecisions == decisions.length) {
+        decisions = Arrays.copyOf(decisions, 2 * decisions.length);
+      }
+      decisions[numDecisions++] = slot;
+    }
+
+    /**
+     * Where, in union 'node's run of order[], is the branch that the guide took
+     * at this union?  'depth' is the number of union decisions made before it.
+     * Returns -1 if the guide has nothing to say.
+     */
+    int getGuidedIdx(int node, int depth) {
+      if (guide == null || depth >= guide.length) {
+        return -1;
+      }
+      int start = childStarts[node];
+      for (int i = start; i < start + childCounts[node]; i++) {
+        if (order[i] == guide[depth]) {
+          return i - start;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * The slot of the k'th branch of union 'node' to try: the guided one
+     * first, then the rest in order[]
+     */
+    int getBranch(int node, int guidedIdx, int k) {
+      int idx = k;
+      if (guidedIdx >= 0) {
+        idx = (k == 0) ? guidedIdx : ((k <= guidedIdx) ? k-1 : k);
+      }
+      return order[childStarts[node] + idx];
+    }
+
+    /**
+     * Same test as s.substring(pos).trim().length() == 0
+     */
+    boolean isBlank(int pos) {
+      for (int i = pos; i < len; i++) {
+        if (s.charAt(i) > ' ') {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Match the BASE node's token at 'pos', as Tokenizer.attemptParse() would.
+     * Sets 'data' and 'hasData' on success.
+     */
+    int matchBase(int node, int pos) {
+      int newPos = -1;
+      switch (classIds[node]) {
+      case Token.IPADDR_TOKENCLASSID: {
+        newPos = matchIPAddr(pos);
+        break;
+      }
+      case Token.PERMISSIONS_TOKENCLASSID: {
+        newPos = matchPermissions(pos);
+        break;
+      }
+      case Token.DATE_TOKENCLASSID: {
+        newPos = matchDate(pos);
+        break;
+      }
+      case Token.TIME_TOKENCLASSID: {
+        newPos = matchTime(pos);
+        break;
+      }
+      case Token.CHAR_TOKENCLASSID: {
+        newPos = matchChar(pos, charParams[node]);
+        break;
+      }
+      case Token.FLOAT_TOKENCLASSID: {
+        newPos = matchFloat(pos);
+        break;
+      }
+      case Token.INT_TOKENCLASSID: {
+        newPos = matchInt(pos);
+        break;
+      }
+      case Token.STRING_TOKENCLASSID: {
+        newPos = matchString(pos);
+        break;
+      }
+      case Token.EOL_TOKENCLASSID: {
+        newPos = matchEOL(pos);
+        break;
+      }
+      case Token.WHITESPACE_TOKENCLASSID: {
+        newPos = matchWhitespace(pos);
+        break;
+      }
+      default: {
+        break;
+      }
+      }
+      hasData = Token.AbstractToken.hasData(classIds[node]);
+      return newPos;
+    }
+
+    //
+    // One matcher per token class.  Each returns the position after the token,
+    // or -1, and sets 'data' (or, when encoding, writes to 'out') on success.
+    //
+    int matchIPAddr(int pos) {
+      int newPos = -1;
+      if (pos < len && (Tokenizer.isDigit(s.charAt(pos)) || s.charAt(pos) == '*')) {
+        newPos = Tokenizer.matchIPAddr(s, pos, len);
+      }
+      if (newPos >= 0) {
+        putString(pos, newPos);
+      }
+      return newPos;
+    }
+
+    int matchPermissions(int pos) {
+      if (pos >= len) {
+        return -1;
+      }
+      int newPos = Tokenizer.matchPermissionBits(s, pos, len);
+      if (newPos >= 0) {
+        putString(pos, newPos);
+      }
+      return newPos;
+    }
+
+    int matchDate(int pos) {
+      if (pos >= len) {
+        return -1;
+      }
+      if (dateGroups == null) {
+        dateGroups = new int[2 * Tokenizer.MAX_DATE_GROUPS];
+      }
+      int shapeIdx = Tokenizer.matchDate(s, pos, len, dateGroups);
+      if (shapeIdx < 0) {
+        return -1;
+      }
+      Tokenizer.DateShape shape = Tokenizer.dateShapes.get(shapeIdx);
+      int month = Token.DateToken.convertMonthStr(s.substring(dateGroups[2*shape.monthGroup], dateGroups[2*shape.monthGroup+1]));
+      int day = Tokenizer.parseDigits(s, dateGroups[2*shape.dayGroup], dateGroups[2*shape.dayGroup+1]);
+      int year = (shape.yearGroup < 0) ? -1 : Tokenizer.parseDigits(s, dateGroups[2*shape.yearGroup], dateGroups[2*shape.yearGroup+1]);
+      if (out != null) {
+        out.writeInt(month);
+        out.writeInt(day);
+        out.writeInt(year);
+      } else {
+        GenericData.Record gdr = newRecord(dateSchema, reuse);
+        gdr.put(0, month);
+        gdr.put(1, day);
+        gdr.put(2, year);
+        data = gdr;
+      }
+      return dateGroups[2*shape.getLastGroup()+1];
+    }
+
+    int matchTime(int pos) {
+      if (pos >= len) {
+        return -1;
+      }
+      int newPos = Tokenizer.matchTime(s, pos, len);
+      if (newPos >= 0) {
+        int hrs = Tokenizer.parseDigits(s, pos, pos+2);
+        int mins = Tokenizer.parseDigits(s, pos+3, pos+5);
+        int secs = (newPos - pos == 8) ? Tokenizer.parseDigits(s, pos+6, pos+8) : 0;
+        if (out != null) {
+          out.writeInt(hrs);
+          out.writeInt(mins);
+          out.writeInt(secs);
+        } else {
+          GenericData.Record gdr = newRecord(timeSchema, reuse);
+          gdr.put(0, hrs);
+          gdr.put(1, mins);
+          gdr.put(2, secs);
+          data = gdr;
+        }
+      }
+      return newPos;
+    }
+
+    /**
+     * 'charParam' is the char to match, ANY_CHAR or NO_CHAR
+     */
+    int matchChar(int pos, int charParam) {
+      if (pos >= len) {
+        return -1;
+      }
+      char c = s.charAt(pos);
+      if (Tokenizer.isWhitespace(c) || (charParam != ANY_CHAR && charParam != c)) {
+        return -1;
+      }
+      if (out != null) {
+        out.writeString(s, pos, pos+1);
+      } else {
+        data = (c < 128) ? newUtf8(pos, pos+1) : new Utf8(String.valueOf(c));
+      }
+      return pos + Tokenizer.codePointLength(s, pos, len);
+    }
+
+    int matchFloat(int pos) {
+      if (pos >= len) {
+        return -1;
+      }
+      int newPos = Tokenizer.matchUnsignedFloat(s, skipSign(s.charAt(pos), pos), len);
+      if (newPos >= 0) {
+        double d = Double.parseDouble(s.substring(pos, newPos));
+        if (out != null) {
+          out.writeDouble(d);
+        } else {
+          data = d;
+        }
+      }
+      return newPos;
+    }
+
+    int matchInt(int pos) {
+      if (pos >= len) {
+        return -1;
+      }
+      char c = s.charAt(pos);
+      int numStart = skipSign(c, pos);
+      int newPos = Tokenizer.skipDigits(s, numStart, len);
+      if (newPos == numStart) {
+        return -1;
+      }
+      int v;
+      if (c != '+' && newPos - numStart < 10) {
+        v = Tokenizer.parseDigits(s, numStart, newPos);
+        v = (c == '-') ? -v : v;
+      } else {
+        // Leave the unusual cases to Integer.parseInt()
+        v = (Integer) new Token.IntToken(s.substring(pos, newPos)).get();
+      }
+      if (out != null) {
+        out.writeInt(v);
+      } else {
+        data = v;
+      }
+      return newPos;
+    }
+
+    int matchString(int pos) {
+      if (pos >= len) {
+        return -1;
+      }
+      int newPos = Tokenizer.matchString(s, pos, len);
+      if (newPos >= 0) {
+        // Like stringPattern, refuse anything that starts like an int or a float
+        int numStart = skipSign(s.charAt(pos), pos);
+        if (Tokenizer.skipDigits(s, numStart, len) > numStart || Tokenizer.matchUnsignedFloat(s, numStart, len) >= 0) {
+          return -1;
+        }
+        putString(pos, newPos);
+      }
+      return newPos;
+    }
+
+    int matchEOL(int pos) {
+      if (pos >= len || s.charAt(pos) != '\n') {
+        return -1;
+      }
+      data = null;
+      return pos+1;
+    }
+
+    int matchWhitespace(int pos) {
+      int newPos = Tokenizer.skipWhitespace(s, pos, len);
+      if (newPos == pos) {
+        return -1;
+      }
+      data = null;
+      return newPos;
+    }
+
+    int skipSign(char c, int pos) {
+      return (c == '+' || c == '-') ? pos+1 : pos;
+    }
+
+    /**
+     * Search for a parse the way the recursive parser always has.  The unions
+     * whose branches could start out the same way (see getSearchPlan()) are
+     * held to one branch each, everywhere in the line, and the line is parsed
+     * greedily.  Each combination of branches is tried in turn, with the last
+     * union's branch changing fastest, and the first that parses the whole
+     * line wins.  Other unions take their first branch that parses, as in the
+     * greedy parse.
+     *
+     * A try that fails before reaching some of the unions fails the same way
+     * whatever branches those are held to.  So the next try moves on at the
+     * last union it reached, and the combinations that only differ in the
+     * unions after it are skipped.  The first combination that parses is the
+     * same one the full enumeration would find.
+     *
+     * A struct or union with none of those unions beneath it parses the same
+     * way under every combination, so once it fails at some offset, it is not
+     * tried there again.
+     *
+     * Gives up after 'budget' calls to exec().  On success, 'data' holds the
+     * result and 'decisions' the union branches taken.
+     */
+    boolean search(int budget) {
+      SearchPlan plan = getSearchPlan();
+      if (plan.unions.length == 0) {
+        return false;
+      }
+      this.forced = new int[numNodes];
+      Arrays.fill(forced, -1);
+      this.failed = new HashSet<Long>();
+      this.stepsLeft = budget;
+      try {
+        int choice[] = new int[plan.unions.length];
+        while (true) {
+          for (int i = 0; i < choice.length; i++) {
+            forced[plan.unions[i]] = plan.branches[i][choice[i]];
+          }
+          numDecisions = 0;
+          deepestForced = -1;
+          int newPos = exec(0, 0, true, null);
+          if (stepsLeft < 0) {
+            return false;
+          }
+          if (newPos >= 0 && hasData) {
+            return true;
+          }
+
+          // The next combination that differs in a union this try reached
+          int i = deepestForced;
+          for (int j = i + 1; j < choice.length; j++) {
+            choice[j] = 0;
+          }
+          while (i >= 0 && ++choice[i] == plan.branches[i].length) {
+            choice[i] = 0;
+            i--;
+          }
+          if (i < 0) {
+            return false;
+          }
+        }
+      } finally {
+        this.forced = null;
+        this.failed = null;
+      }
+    }
+
+    void putField(GenericData.Record gdr, int child, Object value) {
+      if (fieldPositions[child] >= 0) {
+        gdr.put(fieldPositions[child], value);
+      } else {
+        gdr.put(names[child], value);
+      }
+    }
+  }
+
+  ////////////////////////////////////////////
+  // The plan for Run.search()
+  ////////////////////////////////////////////
+  /**
+   * The unions that search() holds to one branch, and the branches it tries
+   * for each, in order; where each node is in 'unions', or -1; and whether
+   * each node is free of those unions.
+   */
+  static class SearchPlan {
+    int unions[];
+    int branches[][];
+    int unionIndexes[];
+    boolean decisionFree[];
+  }
+
+  SearchPlan getSearchPlan() {
+    SearchPlan plan = searchPlan;
+    if (plan == null) {
+      //
+      // The unions and the order of their branches come from the same maps
+      // the recursive parser built, so combinations are tried in its order
+      //
+      Map<String, Integer> unionNodes = new HashMap<String, Integer>();
+      for (int node = 0; node < numNodes; node++) {
+        if (opcodes[node] == OP_UNION) {
+          unionNodes.put(names[node], node);
+        }
+      }
+      Map<String, Set<Integer>> candidateUnionDecisions = findCandidateUnionDecisions(0);
+      plan = new SearchPlan();
+      plan.unions = new int[candidateUnionDecisions.size()];
+      plan.branches = new int[candidateUnionDecisions.size()][];
+      plan.unionIndexes = new int[numNodes];
+      Arrays.fill(plan.unionIndexes, -1);
+      int i = 0;
+      for (Map.Entry<String, Set<Integer>> pair: candidateUnionDecisions.entrySet()) {
+        plan.unions[i] = unionNodes.get(pair.getKey());
+        plan.unionIndexes[plan.unions[i]] = i;
+        plan.branches[i] = new int[pair.getValue().size()];
+        int j = 0;
+        for (Integer index: pair.getValue()) {
+          plan.branches[i][j++] = index;
+        }
+        i++;
+      }
+
+      // Children come later in preorder
+      plan.decisionFree = new boolean[numNodes];
+      for (int node = numNodes-1; node >= 0; node--) {
+        boolean free = plan.unionIndexes[node] < 0;
+        for (int k = childStarts[node]; k < childStarts[node] + childCounts[node]; k++) {
+          free = free && plan.decisionFree[children[k]];
+        }
+        plan.decisionFree[node] = free;
+      }
+      searchPlan = plan;
+    }
+    return plan;
+  }
+
+  /**
+   * Map each union with two branches whose leading base types are the same,
+   * as far as the shorter one goes, to the indexes of all such branches
+   */
+  Map<String, Set<Integer>> findCandidateUnionDecisions(int node) {
+    switch (opcodes[node]) {
+    case OP_BASE: {
+      return new HashMap<String, Set<Integer>>();
+    }
+    case OP_ARRAY: {
+      return findCandidateUnionDecisions(children[childStarts[node]]);
+    }
+    case OP_STRUCT: {
+      Map<String, Set<Integer>> candidateUnionDecisions = new HashMap<String, Set<Integer>>();
+      for (int i = childStarts[node]; i < childStarts[node] + childCounts[node]; i++) {
+        candidateUnionDecisions.putAll(findCandidateUnionDecisions(children[i]));
+      }
+      return candidateUnionDecisions;
+    }
+    default: {
+      HashSet<Integer> curDecisions = new HashSet<Integer>();
+      for (int i = 0; i < childCounts[node]; i++) {
+        for (int j = i+1; j < childCounts[node]; j++) {
+          List<String> iBases = getBases(children[childStarts[node] + i]);
+          List<String> jBases = getBases(children[childStarts[node] + j]);
+          if (isPrefixOf(iBases, jBases) || isPrefixOf(jBases, iBases)) {
+            curDecisions.add(i);
+            curDecisions.add(j);
+          }
+        }
+      }
+      Map<String, Set<Integer>> candidateUnionDecisions = new HashMap<String, Set<Integer>>();
+      for (int i = childStarts[node]; i < childStarts[node] + childCounts[node]; i++) {
+        candidateUnionDecisions.putAll(findCandidateUnionDecisions(children[i]));
+      }
+      if (curDecisions.size() > 0) {
+        candidateUnionDecisions.put(names[node], curDecisions);
+      }
+      return candidateUnionDecisions;
+    }
+    }
+  }
+
+  /**
+   * The base types a node starts with, up to the first union
+   */
+  List<String> getBases(int node) {
+    List<String> tr = new ArrayList<String>();
+    switch (opcodes[node]) {
+    case OP_BASE: {
+      tr.add(Token.AbstractToken.getStrDesc(classIds[node], getTokenParameter(node)));
+      break;
+    }
+    case OP_STRUCT: {
+      for (int i = childStarts[node]; i < childStarts[node] + childCounts[node]; i++) {
+        tr.addAll(getBases(children[i]));
+      }
+      break;
+    }
+    case OP_ARRAY: {
+      tr.addAll(getBases(children[childStarts[node]]));
+      break;
+    }
+    default: {
+      break;
+    }
+    }
+    return tr;
+  }
+
+  static boolean isPrefixOf(List<String> a, List<String> b) {
+    for (int i = 0; i < a.size(); i++) {
+      if (i >= b.size() || a.get(i).compareTo(b.get(i)) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The BASE node's token parameter, as far as the program keeps it
+   */
+  String getTokenParameter(int node) {
+    return (charParams[node] >= 0) ? "" + (char) charParams[node] : null;
+  }
+
+  /**
+   * Parse the line, or return null if it doesn't fit the program
+   */
+  public GenericContainer parse(String str) {
+    return parse(str, null);
+  }
+
+  /**
+   * Parse the line, overwriting 'reuse' and the containers nested in it where
+   * their schemas match, as Avro's DatumReader.read() does.  Returns the
+   * result, which need not be 'reuse', or null if the line doesn't fit the
+   * program.  Either way, 'reuse' may have been changed.
+   *
+   * Pass the previous result back in as 'reuse' to parse a stream of lines
+   * without allocating new containers for each one.  Callers that keep the
+   * results around should use parse(String) instead.
+   */
+  public GenericContainer parse(CharSequence line, GenericContainer reuse) {
+    //
+    // Try the greedy parse, where each union takes its first branch that parses
+    //
+    Run run = new Run(line.toString());
+    if (adaptiveOrder) {
+      run.useGuide();
+    }
+    if (run.exec(0, 0, true, reuse) >= 0 && run.hasData) {
+      noteDecisions(run.shape, run.guide, run.decisions, run.numDecisions);
+      return (GenericContainer) run.data;
+    }
+
+    //
+    // Otherwise, search for a parse that makes different union choices
+    //
+    return searchParse(run);
+  }
+
+  /**
+   * The fallback half of parse(), for a line the greedy parse couldn't handle
+   */
+  GenericContainer searchParse(Run run) {
+    if (run.search(searchBudget)) {
+      noteDecisions(run.shape, run.guide, run.decisions, run.numDecisions);
+      return (GenericContainer) run.data;
+    }
+    return null;
+  }
+
+  /**
+   * Parse the line into 'out' as one datum in Avro's binary encoding, without
+   * building a record.  Returns the schema it was written with, or null if the
+   * line doesn't fit the program.
+   *
+   * That schema is the program's schema, unless 'unwrapUnion' is set and the
+   * root is a union.  Then the branch index is left out, and the schema is
+   * that of the branch the line took; this is the record that parse() returns.
+   *
+   * Throws if the line parses by way of a union branch that has no schema.
+   * parse() returns a record for that line, but writing it would fail.
+   */
+  public Schema encode(CharSequence line, EncodedDatum out, boolean unwrapUnion) throws IOException {
+    boolean unwrap = unwrapUnion && opcodes[0] == OP_UNION;
+    out.reset();
+    Run run = new Run(line.toString());
+    if (adaptiveOrder) {
+      run.useGuide();
+    }
+    run.out = out;
+    run.unwrapRoot = unwrap;
+    if (run.exec(0, 0, true, null) >= 0 && run.hasData) {
+      int indexes[] = getBranchIndexes();
+      for (int i = 0; i < run.numDecisions; i++) {
+        if (indexes[run.decisions[i]] < 0) {
+          throw new IOException("Line takes a union branch with no schema, so it can't be encoded: " + line);
+        }
+      }
+      noteDecisions(run.shape, run.guide, run.decisions, run.numDecisions);
+      return unwrap ? schemas[children[run.decisions[0]]] : rootSchema;
+    }
+
+    //
+    // The search builds a record, which is then written the usual way
+    //
+    out.reset();
+    run.out = null;
+    GenericContainer result = searchParse(run);
+    if (result == null) {
+      return null;
+    }
+    Schema schema = unwrap ? schemas[children[run.decisions[0]]] : rootSchema;
+    BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out.getOutputStream(), null);
+    new GenericDatumWriter<Object>(schema).write(result, encoder);
+    encoder.flush();
+    return schema;
+  }
+
+  ////////////////////////////////////////////
+  // Serialization
+  ////////////////////////////////////////////
+  /**
+   * Deserialize a ParserProgram from the given input stream
+   */
+  public static ParserProgram readProgram(DataInput in) throws IOException {
+    ParserProgram program = new ParserProgram();
+    program.readFields(in);
+    return program;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(FORMAT_VERSION);
+    Text.writeString(out, rootSchema.toString());
+    out.writeInt(numNodes);
+    for (int i = 0; i < numNodes; i++) {
+      out.writeInt(opcodes[i]);
+      out.writeInt(classIds[i]);
+      out.writeInt(charParams[i]);
+      out.writeUTF(names[i]);
+      out.writeInt(fieldPositions[i]);
+      out.writeInt(childStarts[i]);
+      out.writeInt(childCounts[i]);
+    }
+    out.writeInt(children.length);
+    for (int i = 0; i < children.length; i++) {
+      out.writeInt(children[i]);
+    }
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    int version = in.readInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unknown parser program version: " + version);
+    }
+    this.rootSchema = Schema.parse(Text.readString(in));
+    allocate(in.readInt());
+    for (int i = 0; i < numNodes; i++) {
+      opcodes[i] = in.readInt();
+      classIds[i] = in.readInt();
+      charParams[i] = in.readInt();
+      names[i] = in.readUTF();
+      fieldPositions[i] = in.readInt();
+      childStarts[i] = in.readInt();
+      childCounts[i] = in.readInt();
+    }
+    this.children = new int[in.readInt()];
+    for (int i = 0; i < children.length; i++) {
+      children[i] = in.readInt();
+    }
+    resetBranchStats();
+
+    //
+    // Records are found by name in the root schema.  Every other schema is
+    // rebuilt the same way InferredType builds it.
+    //
+    Map<String, Schema> namedSchemas = new HashMap<String, Schema>();
+    collectNamedSchemas(rootSchema, namedSchemas);
+    for (int i = numNodes-1; i >= 0; i--) {
+      schemas[i] = rebuildSchema(i, namedSchemas);
+    }
+  }
+
+  void collectNamedSchemas(Schema s, Map<String, Schema> namedSchemas) {
+    switch (s.getType()) {
+    case RECORD: {
+      if (namedSchemas.get(s.getFullName()) == null) {
+        namedSchemas.put(s.getFullName(), s);
+        for (Schema.Field field: s.getFields()) {
+          collectNamedSchemas(field.schema(), namedSchemas);
+        }
+      }
+      break;
+    }
+    case ARRAY: {
+      collectNamedSchemas(s.getElementType(), namedSchemas);
+      break;
+    }
+    case UNION: {
+      for (Schema branch: s.getTypes()) {
+        collectNamedSchemas(branch, namedSchemas);
+      }
+      break;
+    }
+    default: {
+      break;
+    }
+    }
+  }
+
+  /**
+   * Children come later in preorder, so their schemas are already rebuilt
+   */
+  Schema rebuildSchema(int node, Map<String, Schema> namedSchemas) {
+    switch (opcodes[node]) {
+    case OP_BASE: {
+      Schema s = namedSchemas.get(names[node]);
+      if (s != null) {
+        return s;
+      }
+      return Token.AbstractToken.createAvroSchema(classIds[node], getTokenParameter(node), names[node]);
+    }
+    case OP_STRUCT: {
+      Schema s = namedSchemas.get(names[node]);
+      if (s == null) {
+        throw new IllegalStateException("Parser program has no schema for " + names[node]);
+      }
+      return s;
+    }
+    case OP_ARRAY: {
+      return Schema.createArray(schemas[children[childStarts[node]]]);
+    }
+    default: {
+      HashSet<String> observedSchemas = new HashSet<String>();
+      List<Schema> branches = new ArrayList<Schema>();
+      for (int i = childStarts[node]; i < childStarts[node] + childCounts[node]; i++) {
+        Schema branchSchema = schemas[children[i]];
+        if (branchSchema != null && ! observedSchemas.contains(branchSchema.toString())) {
+          observedSchemas.add(branchSchema.toString());
+          branches.add(branchSchema);
+        }
+      }
+      return Schema.createUnion(branches);
+    }
+    }
+  }
+}
@@ -29,18 +29,18 @@ import org.apache.avro.generic.GenericData;
 public class Token {
   static int EPOCH_START_YEAR = 1970;
 
-  final static int META_TOKENCLASSID = 0;
-  final static int CHAR_TOKENCLASSID = 1;
-  final static int IPADDR_TOKENCLASSID = 2;
-  final static int PERMISSIONS_TOKENCLASSID = 3;
-  final static int DATE_TOKENCLASSID = 4;
-  final static int TIME_TOKENCLASSID = 5;
-  final static int INT_TOKENCLASSID = 6;
-  final static int FLOAT_TOKENCLASSID = 7;
-  final static int STRING_TOKENCLASSID = 8;
-  final static int EOL_TOKENCLASSID = 9;
-  final static int WHITESPACE_TOKENCLASSID = 10;
-  final static int NOOP_TOKENCLASSID = 11;
+  public final static int META_TOKENCLASSID = 0;
+  public final static int CHAR_TOKENCLASSID = 1;
+  public final static int IPADDR_TOKENCLASSID = 2;
+  public final static int PERMISSIONS_TOKENCLASSID = 3;
+  public final static int DATE_TOKENCLASSID = 4;
+  public final static int TIME_TOKENCLASSID = 5;
+  public final static int INT_TOKENCLASSID = 6;
+  public final static int FLOAT_TOKENCLASSID = 7;
+  public final static int STRING_TOKENCLASSID = 8;
+  public final static int EOL_TOKENCLASSID = 9;
+  public final static int WHITESPACE_TOKENCLASSID = 10;
+  public final static int NOOP_TOKENCLASSID = 11;
   
   static abstract class AbstractToken {
     public static boolean hasData(int tokenClassIdentifier) {
@@ -282,7 +282,7 @@ public class Token {
       super(DATE_TOKENCLASSID, null);
       try {
         this.day = Integer.parseInt(dayStr);
-        if (day < 1 || day > 31) {
+        if (! isLegalDay(day)) {
           throw new IOException("Illegal day value: " + day);
         }
       } catch (NumberFormatException nfe) {
@@ -295,7 +295,7 @@ public class Token {
       super(DATE_TOKENCLASSID, null);
       try {
         this.day = Integer.parseInt(dayStr);
-        if (day < 1 || day > 31) {
+        if (! isLegalDay(day)) {
           throw new IOException("Illegal day value: " + day);
         }
       } catch (NumberFormatException nfe) {
@@ -304,14 +304,20 @@ public class Token {
       this.month = convertMonthStr(monthStr);
       try {
         this.year = Integer.parseInt(yrStr);
-        if (year < EPOCH_START_YEAR) {
+        if (! isLegalYear(year)) {
           throw new IOException("Illegal year value: " + year);
         }
       } catch (NumberFormatException nfe) {
         nfe.printStackTrace();
       }
     }
-    int convertMonthStr(String monthStr) {
+    static boolean isLegalDay(int day) {
+      return day >= 1 && day <= 31;
+    }
+    static boolean isLegalYear(int year) {
+      return year >= EPOCH_START_YEAR;
+    }
+    static int convertMonthStr(String monthStr) {
       try {
         return Integer.parseInt(monthStr);
       } catch (NumberFormatException nfe) {
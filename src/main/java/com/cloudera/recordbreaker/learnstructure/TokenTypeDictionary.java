@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.*;
+
+/*********************************************************
+ * TokenTypeDictionary gives each distinct token type a small dense int id.
+ * A token type is what AbstractToken.getId() describes: the token class,
+ * plus the character itself for CHAR tokens.
+ *
+ * Histogram and TypeInference index arrays with these ids instead of
+ * hashing getId() strings.  Every non-CHAR class and every ASCII char gets
+ * a fixed id; other chars are assigned ids the first time they are seen.
+ * The ids are only stable within a single process.
+ *********************************************************/
+public class TokenTypeDictionary {
+  static int NUM_TOKEN_CLASSES = Token.NOOP_TOKENCLASSID + 1;
+  static int NUM_ASCII_CHARS = 128;
+  static int NUM_FIXED_TYPES = NUM_TOKEN_CLASSES + NUM_ASCII_CHARS;
+
+  static String fixedTypeDescs[] = new String[NUM_FIXED_TYPES];
+  static Map<Character, Integer> otherCharTypes = new HashMap<Character, Integer>();
+  static List<String> otherTypeDescs = new ArrayList<String>();
+
+  static {
+    // Slot CHAR_TOKENCLASSID is never handed out; chars always carry their parameter
+    for (int i = 0; i < NUM_TOKEN_CLASSES; i++) {
+      fixedTypeDescs[i] = Token.AbstractToken.getStrDesc(i, null);
+    }
+    for (int i = 0; i < NUM_ASCII_CHARS; i++) {
+      fixedTypeDescs[NUM_TOKEN_CLASSES + i] = Token.AbstractToken.getStrDesc(Token.CHAR_TOKENCLASSID, "" + (char) i);
+    }
+  }
+
+  /**
+   * The type id for a token of the given class.  'param' is only
+   * consulted for CHAR tokens, where it is the char value.
+   */
+  public static int getTypeId(int classId, int param) {
+    if (classId != Token.CHAR_TOKENCLASSID) {
+      return classId;
+    } else if (param < NUM_ASCII_CHARS) {
+      return NUM_TOKEN_CLASSES + param;
+    } else {
+      return internChar((char) param);
+    }
+  }
+
+  static synchronized int internChar(char c) {
+    Integer typeId = otherCharTypes.get(c);
+    if (typeId == null) {
+      typeId = NUM_FIXED_TYPES + otherTypeDescs.size();
+      otherCharTypes.put(c, typeId);
+      otherTypeDescs.add(Token.AbstractToken.getStrDesc(Token.CHAR_TOKENCLASSID, "" + c));
+    }
+    return typeId;
+  }
+
+  /**
+   * Same string as AbstractToken.getId() for a token of this type
+   */
+  public static String getId(int typeId) {
+    if (typeId < NUM_FIXED_TYPES) {
+      return fixedTypeDescs[typeId];
+    }
+    synchronized (TokenTypeDictionary.class) {
+      return otherTypeDescs.get(typeId - NUM_FIXED_TYPES);
+    }
+  }
+
+  /**
+   * One more than the largest type id handed out so far
+   */
+  public static synchronized int size() {
+    return NUM_FIXED_TYPES + otherTypeDescs.size();
+  }
+}
@@ -62,8 +62,8 @@ public class Tokenizer {
    * that can be correctly parsed.  This is what happens inside tokenize() below.
    *
    * For case #2, we expect that the parse-tree will contain a specific token-type that *must* be
-   * parsed, or else that branch of the parse-tree is invalid.  This is what happens inside
-   * InferredType.BaseType.internalParse().
+   * parsed, or else that branch of the parse-tree is invalid.  ParserProgram.Run.matchBase()
+   * does the same thing without cutting substrings.
    */
   public static String attemptParse(int tokenClassId, String tokenParameter, String inputStr, List<Token.AbstractToken> outputToks) {
     switch (tokenClassId) {
@@ -271,8 +271,527 @@ public class Tokenizer {
   /**
    * Accepts a single line of input, returns all the tokens for that line.
    * If the line cannot be parsed, we return null.
+   *
+   * This is a single-pass lexer.  It walks the line with an index cursor and
+   * picks the candidate token classes from the current character, so it never
+   * runs a regex or copies the remainder of the line.  The token classes are
+   * still tried in the same order as in tokenizeWithRegex(), and each matcher
+   * below reproduces the match that its regex would have found.
    */
   static public List<Token.AbstractToken> tokenize(String s) throws IOException {
+    PackedChunk chunk = tokenizePacked(s);
+    return (chunk == null) ? null : chunk.getTokens();
+  }
+
+  /**
+   * Same as tokenize(), but returns the tokens in packed form.  This is what
+   * structure inference consumes; no Token objects are created.
+   */
+  static public PackedChunk tokenizePacked(String s) throws IOException {
+    PackedChunk chunk = new PackedChunk(s);
+    tokenize(s, 0, s.length(), new int[2 * MAX_DATE_GROUPS], chunk);
+    chunk.finish();
+    return chunk;
+  }
+
+  /**
+   * Tokenize the region [start, end) of the given string into the given chunk.
+   * No matcher looks past 'end', so the region behaves just like a substring would.
+   */
+  static void tokenize(String s, int start, int end, int groups[], PackedChunk toksSoFar) throws IOException {
+    int pos = start;
+    while (pos < end) {
+      char c = s.charAt(pos);
+
+      // META
+      char closeChar = getCloseChar(c);
+      if (closeChar != 0) {
+        int closeIndex = s.indexOf(closeChar, pos+1);
+        if (closeIndex >= 0 && closeIndex < end) {
+          int metaIdx = toksSoFar.add(Token.META_TOKENCLASSID, 0, pos, closeIndex+1);
+          toksSoFar.add(Token.CHAR_TOKENCLASSID, c, pos, pos+1);
+          tokenize(s, pos+1, closeIndex, groups, toksSoFar);
+          toksSoFar.add(Token.CHAR_TOKENCLASSID, closeChar, closeIndex, closeIndex+1);
+          toksSoFar.params[metaIdx] = toksSoFar.numEntries;
+          pos = closeIndex+1;
+          continue;
+        }
+      }
+
+      boolean isDigitChar = isDigit(c);
+      int newPos = -1;
+
+      // IP ADDR
+      if (isDigitChar || c == '*') {
+        newPos = matchIPAddr(s, pos, end);
+        if (newPos >= 0) {
+          toksSoFar.add(Token.IPADDR_TOKENCLASSID, 0, pos, newPos);
+          pos = newPos;
+          continue;
+        }
+      }
+
+      // PERMISSION BITS
+      if (isPermissionChar(c)) {
+        newPos = matchPermissionBits(s, pos, end);
+        if (newPos >= 0) {
+          toksSoFar.add(Token.PERMISSIONS_TOKENCLASSID, 0, pos, newPos);
+          pos = newPos;
+          continue;
+        }
+      }
+
+      // DATE
+      if (isDigitChar || MONTH_INITIALS.indexOf(c) >= 0) {
+        newPos = lexDate(s, pos, end, groups, toksSoFar);
+        if (newPos >= 0) {
+          pos = newPos;
+          continue;
+        }
+      }
+
+      if (isDigitChar) {
+        // TIME
+        newPos = matchTime(s, pos, end);
+        if (newPos >= 0) {
+          toksSoFar.add(Token.TIME_TOKENCLASSID, 0, pos, newPos);
+          pos = newPos;
+          continue;
+        }
+      }
+
+      if (isDigitChar || c == '.') {
+        // FLOAT RANGE
+        int firstEnd = matchUnsignedFloat(s, pos, end);
+        if (firstEnd >= 0 && firstEnd < end && s.charAt(firstEnd) == '-') {
+          newPos = matchUnsignedFloat(s, firstEnd+1, end);
+          if (newPos >= 0) {
+            toksSoFar.add(Token.FLOAT_TOKENCLASSID, 0, pos, firstEnd);
+            toksSoFar.add(Token.CHAR_TOKENCLASSID, '-', firstEnd, firstEnd+1);
+            toksSoFar.add(Token.FLOAT_TOKENCLASSID, 0, firstEnd+1, newPos);
+            pos = newPos;
+            continue;
+          }
+        }
+      }
+
+      if (isDigitChar) {
+        // INTEGER RANGE
+        int firstEnd = skipDigits(s, pos, end);
+        if (firstEnd < end && s.charAt(firstEnd) == '-') {
+          newPos = skipDigits(s, firstEnd+1, end);
+          if (newPos > firstEnd+1) {
+            toksSoFar.add(Token.INT_TOKENCLASSID, 0, pos, firstEnd);
+            toksSoFar.add(Token.CHAR_TOKENCLASSID, '-', firstEnd, firstEnd+1);
+            toksSoFar.add(Token.INT_TOKENCLASSID, 0, firstEnd+1, newPos);
+            pos = newPos;
+            continue;
+          }
+        }
+      }
+
+      int numStart = (c == '+' || c == '-') ? pos+1 : pos;
+      if (numStart > pos || isDigitChar || c == '.') {
+        // FLOAT
+        newPos = matchUnsignedFloat(s, numStart, end);
+        if (newPos >= 0) {
+          toksSoFar.add(Token.FLOAT_TOKENCLASSID, 0, pos, newPos);
+          pos = newPos;
+          continue;
+        }
+
+        // INTEGER
+        newPos = skipDigits(s, numStart, end);
+        if (newPos > numStart) {
+          toksSoFar.add(Token.INT_TOKENCLASSID, 0, pos, newPos);
+          pos = newPos;
+          continue;
+        }
+      }
+
+      // STRING
+      // The regex version also refuses strings that start like an int or a float.
+      // We only reach this point when both of those have already failed here.
+      newPos = matchString(s, pos, end);
+      if (newPos >= 0) {
+        toksSoFar.add(Token.STRING_TOKENCLASSID, 0, pos, newPos);
+        pos = newPos;
+        continue;
+      }
+
+      // CHAR
+      if (! isWhitespace(c)) {
+        int charEnd = pos + codePointLength(s, pos, end);
+        toksSoFar.add(Token.CHAR_TOKENCLASSID, c, pos, charEnd);
+        pos = charEnd;
+        continue;
+      }
+
+      // EOL-Token
+      if (c == '\n') {
+        toksSoFar.add(Token.EOL_TOKENCLASSID, 0, pos, pos+1);
+        pos++;
+        continue;
+      }
+
+      // Whitespace
+      int wsEnd = skipWhitespace(s, pos, end);
+      toksSoFar.add(Token.WHITESPACE_TOKENCLASSID, 0, pos, wsEnd);
+      pos = wsEnd;
+    }
+  }
+
+  ///////////////////////////////////////////////////
+  // Character-level matchers used by tokenize().
+  // Each returns the end of the match, or -1.
+  ///////////////////////////////////////////////////
+  static String MONTH_INITIALS = "JjFfMmAaSsOoNnDd";
+  static String monthNames[] = monthPatternStrs[0].substring(1, monthPatternStrs[0].length()-1).split("\\|");
+
+  static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+  static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+  static boolean isPermissionChar(char c) {
+    return c == 'd' || c == 'r' || c == 'w' || c == 'x' || c == '-';
+  }
+  static boolean isStringChar(char c) {
+    switch (c) {
+    case '"': case ',': case ';': case '|': case '[': case ']':
+    case '{': case '}': case '<': case '>': case '(': case ')': case '\'':
+      return false;
+    default:
+      return ! isWhitespace(c);
+    }
+  }
+  static char getCloseChar(char c) {
+    switch (c) {
+    case '[': return ']';
+    case '{': return '}';
+    case '"': return '"';
+    case '\'': return '\'';
+    case '<': return '>';
+    case '(': return ')';
+    default: return 0;
+    }
+  }
+  static int codePointLength(String s, int pos, int end) {
+    if (Character.isHighSurrogate(s.charAt(pos)) && pos+1 < end && Character.isLowSurrogate(s.charAt(pos+1))) {
+      return 2;
+    }
+    return 1;
+  }
+  static int skipDigits(String s, int pos, int end) {
+    while (pos < end && isDigit(s.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+  static int skipWhitespace(String s, int pos, int end) {
+    while (pos < end && isWhitespace(s.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  /**
+   * Mirrors ipAddrPattern: either (\d+\.){3,}\d+ or \*\.((\d+|\*)\.)*(\d+|\*)
+   */
+  static int matchIPAddr(String s, int pos, int end) {
+    boolean starForm = (s.charAt(pos) == '*');
+    int p = pos;
+    int minGroups = 3;
+    if (starForm) {
+      if (pos+1 >= end || s.charAt(pos+1) != '.') {
+        return -1;
+      }
+      p = pos+2;
+      minGroups = 0;
+    }
+    // Count the repeated "segment." groups
+    int numGroups = 0;
+    int lastSegmentEnd = -1;
+    int segmentEnd;
+    while (true) {
+      segmentEnd = skipDigits(s, p, end);
+      if (starForm && segmentEnd == p && p < end && s.charAt(p) == '*') {
+        segmentEnd = p+1;
+      }
+      if (segmentEnd > p && segmentEnd < end && s.charAt(segmentEnd) == '.') {
+        numGroups++;
+        lastSegmentEnd = segmentEnd;
+        p = segmentEnd+1;
+      } else {
+        break;
+      }
+    }
+    // A trailing segment completes the match.  Otherwise the final group gives
+    // up its dot and its segment becomes the trailing one.
+    if (segmentEnd > p && numGroups >= minGroups) {
+      return segmentEnd;
+    } else if (segmentEnd == p && numGroups > minGroups) {
+      return lastSegmentEnd;
+    }
+    return -1;
+  }
+
+  /**
+   * Mirrors permissionBitPattern: [drwx-]{9,}
+   */
+  static int matchPermissionBits(String s, int pos, int end) {
+    int p = pos;
+    while (p < end && isPermissionChar(s.charAt(p))) {
+      p++;
+    }
+    return (p - pos >= 9) ? p : -1;
+  }
+
+  /**
+   * Mirrors timePattern1, then timePattern2: dd:dd:dd or dd:dd
+   */
+  static int matchTime(String s, int pos, int end) {
+    if (! isDigitPair(s, pos, end) || pos+2 >= end || s.charAt(pos+2) != ':' || ! isDigitPair(s, pos+3, end)) {
+      return -1;
+    }
+    if (pos+5 < end && s.charAt(pos+5) == ':' && isDigitPair(s, pos+6, end)) {
+      return pos+8;
+    }
+    return pos+5;
+  }
+  static boolean isDigitPair(String s, int pos, int end) {
+    return pos+1 < end && isDigit(s.charAt(pos)) && isDigit(s.charAt(pos+1));
+  }
+
+  /**
+   * Mirrors the unsigned part of floatPattern: \d*\.\d+
+   */
+  static int matchUnsignedFloat(String s, int pos, int end) {
+    int p = skipDigits(s, pos, end);
+    if (p >= end || s.charAt(p) != '.') {
+      return -1;
+    }
+    int fracEnd = skipDigits(s, p+1, end);
+    return (fracEnd > p+1) ? fracEnd : -1;
+  }
+
+  /**
+   * Mirrors stringPattern: two or more code points that are neither whitespace nor delimiters
+   */
+  static int matchString(String s, int pos, int end) {
+    int p = pos;
+    int numCodePoints = 0;
+    while (p < end && isStringChar(s.charAt(p))) {
+      p += codePointLength(s, p, end);
+      numCodePoints++;
+    }
+    return (numCodePoints >= 2) ? p : -1;
+  }
+
+  ///////////////////////////////////////////////////
+  // Date matching.  Each date regex is a fixed sequence of
+  // elements, so we encode it as an int[] and match it with a
+  // tiny backtracking matcher.  Candidates for each element are
+  // tried in the same order that java.util.regex would try them.
+  ///////////////////////////////////////////////////
+  final static int DATE_MONTHNAME = 0;
+  final static int DATE_MONTHNUM = 1;
+  final static int DATE_DAY = 2;
+  final static int DATE_YEAR = 3;
+  final static int DATE_SEP_WS = 4;
+  final static int DATE_SEP_DOT = 5;
+  final static int DATE_SEP_SLASH = 6;
+  final static int MAX_DATE_GROUPS = 3;
+
+  static class DateShape {
+    int elts[];
+    int dayGroup;
+    int monthGroup;
+    int yearGroup;
+    public DateShape(int elts[], int dayGroup, int monthGroup, int yearGroup) {
+      this.elts = elts;
+      this.dayGroup = dayGroup;
+      this.monthGroup = monthGroup;
+      this.yearGroup = yearGroup;
+    }
+    Token.DateToken createToken(String s, int groups[]) throws IOException {
+      String dayStr = s.substring(groups[2*dayGroup], groups[2*dayGroup+1]);
+      String monthStr = s.substring(groups[2*monthGroup], groups[2*monthGroup+1]);
+      if (yearGroup < 0) {
+        return new Token.DateToken(dayStr, monthStr);
+      } else {
+        return new Token.DateToken(dayStr, monthStr, s.substring(groups[2*yearGroup], groups[2*yearGroup+1]));
+      }
+    }
+    /**
+     * Would createToken() succeed?  Checked without building any Strings.
+     */
+    boolean isLegal(String s, int groups[]) {
+      if (! Token.DateToken.isLegalDay(parseDigits(s, groups[2*dayGroup], groups[2*dayGroup+1]))) {
+        return false;
+      }
+      return yearGroup < 0 || Token.DateToken.isLegalYear(parseDigits(s, groups[2*yearGroup], groups[2*yearGroup+1]));
+    }
+    int getLastGroup() {
+      return (elts.length == 3) ? 1 : 2;
+    }
+  }
+
+  static int parseDigits(String s, int start, int end) {
+    int v = 0;
+    for (int i = start; i < end; i++) {
+      v = 10 * v + (s.charAt(i) - '0');
+    }
+    return v;
+  }
+
+  // Month-first, then year-first, then day-first; built in the same order as the date Patterns
+  static List<DateShape> dateShapes = new ArrayList<DateShape>();
+  static {
+    List<DateShape> monthFirstShapes = new ArrayList<DateShape>();
+    List<DateShape> yearFirstShapes = new ArrayList<DateShape>();
+    List<DateShape> dayFirstShapes = new ArrayList<DateShape>();
+    int separators[] = {DATE_SEP_WS, DATE_SEP_DOT, DATE_SEP_SLASH};
+    int months[] = {DATE_MONTHNAME, DATE_MONTHNUM};
+    for (int sep: separators) {
+      for (int month: months) {
+        monthFirstShapes.add(new DateShape(new int[] {month, sep, DATE_DAY, sep, DATE_YEAR}, 1, 0, 2));
+        yearFirstShapes.add(new DateShape(new int[] {DATE_YEAR, sep, month, sep, DATE_DAY}, 2, 1, 0));
+        dayFirstShapes.add(new DateShape(new int[] {DATE_DAY, sep, month, sep, DATE_YEAR}, 0, 1, 2));
+      }
+    }
+    for (int sep: separators) {
+      monthFirstShapes.add(new DateShape(new int[] {DATE_MONTHNAME, sep, DATE_DAY}, 1, 0, -1));
+      dayFirstShapes.add(new DateShape(new int[] {DATE_DAY, sep, DATE_MONTHNAME}, 0, 1, -1));
+    }
+    dateShapes.addAll(monthFirstShapes);
+    dateShapes.addAll(yearFirstShapes);
+    dateShapes.addAll(dayFirstShapes);
+  }
+
+  /**
+   * Try each date shape in turn.  As with the regex version, a shape that
+   * matches but yields an illegal date is skipped.  The DATE entry's parameter
+   * records which shape matched, so createDateToken() can rebuild the token.
+   */
+  static int lexDate(String s, int pos, int end, int groups[], PackedChunk outputToks) {
+    int shapeIdx = matchDate(s, pos, end, groups);
+    if (shapeIdx < 0) {
+      return -1;
+    }
+    int dateEnd = groups[2*dateShapes.get(shapeIdx).getLastGroup()+1];
+    outputToks.add(Token.DATE_TOKENCLASSID, shapeIdx, pos, dateEnd);
+    return dateEnd;
+  }
+
+  /**
+   * Find the first date shape that matches at 'pos' and yields a legal date.
+   * Returns its index, with its groups filled in, or -1.
+   */
+  static int matchDate(String s, int pos, int end, int groups[]) {
+    for (int shapeIdx = 0; shapeIdx < dateShapes.size(); shapeIdx++) {
+      DateShape shape = dateShapes.get(shapeIdx);
+      if (matchDateElts(s, pos, end, shape.elts, 0, 0, groups) && shape.isLegal(s, groups)) {
+        return shapeIdx;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Rebuild the DateToken for a DATE entry found by lexDate().  Matching the same
+   * shape against just [start, end) finds the same groups again.
+   */
+  static Token.DateToken createDateToken(String s, int start, int end, int shapeIdx) throws IOException {
+    DateShape shape = dateShapes.get(shapeIdx);
+    int groups[] = new int[2 * MAX_DATE_GROUPS];
+    if (! matchDateElts(s, start, end, shape.elts, 0, 0, groups)) {
+      throw new IOException("Not a date: " + s.substring(start, end));
+    }
+    return shape.createToken(s, groups);
+  }
+
+  static boolean matchDateElts(String s, int pos, int end, int elts[], int eltIdx, int groupIdx, int groups[]) {
+    if (eltIdx == elts.length) {
+      return true;
+    }
+    switch (elts[eltIdx]) {
+    case DATE_MONTHNAME: {
+      for (String name: monthNames) {
+        if (pos + name.length() <= end && s.startsWith(name, pos) &&
+            captureDateGroup(s, pos, pos + name.length(), end, elts, eltIdx, groupIdx, groups)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    case DATE_MONTHNUM: {
+      // [01]*\d
+      int p = pos;
+      while (p < end && (s.charAt(p) == '0' || s.charAt(p) == '1')) {
+        p++;
+      }
+      for (int j = p; j >= pos; j--) {
+        if (j < end && isDigit(s.charAt(j)) && captureDateGroup(s, pos, j+1, end, elts, eltIdx, groupIdx, groups)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    case DATE_DAY: {
+      // [0123]?\d
+      if (pos >= end) {
+        return false;
+      }
+      char c = s.charAt(pos);
+      if (c >= '0' && c <= '3' && pos+1 < end && isDigit(s.charAt(pos+1)) &&
+          captureDateGroup(s, pos, pos+2, end, elts, eltIdx, groupIdx, groups)) {
+        return true;
+      }
+      return isDigit(c) && captureDateGroup(s, pos, pos+1, end, elts, eltIdx, groupIdx, groups);
+    }
+    case DATE_YEAR: {
+      // [12]\d{3}
+      if (pos+4 > end || (s.charAt(pos) != '1' && s.charAt(pos) != '2') || skipDigits(s, pos+1, pos+4) != pos+4) {
+        return false;
+      }
+      return captureDateGroup(s, pos, pos+4, end, elts, eltIdx, groupIdx, groups);
+    }
+    case DATE_SEP_WS: {
+      for (int j = skipWhitespace(s, pos, end); j > pos; j--) {
+        if (matchDateElts(s, j, end, elts, eltIdx+1, groupIdx, groups)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    case DATE_SEP_DOT: {
+      return pos < end && s.charAt(pos) == '.' && matchDateElts(s, pos+1, end, elts, eltIdx+1, groupIdx, groups);
+    }
+    case DATE_SEP_SLASH: {
+      return pos < end && s.charAt(pos) == '/' && matchDateElts(s, pos+1, end, elts, eltIdx+1, groupIdx, groups);
+    }
+    default: {
+      return false;
+    }
+    }
+  }
+
+  static boolean captureDateGroup(String s, int groupStart, int groupEnd, int end, int elts[], int eltIdx, int groupIdx, int groups[]) {
+    groups[2*groupIdx] = groupStart;
+    groups[2*groupIdx+1] = groupEnd;
+    return matchDateElts(s, groupEnd, end, elts, eltIdx+1, groupIdx+1, groups);
+  }
+
+  /**
+   * The original regex-cascade tokenizer.  At every position it tries each of the
+   * token patterns in turn, and cuts a new substring after every match.
+   *
+   * tokenize() must yield exactly the same token stream as this method.  It is kept
+   * as the reference implementation for testing; don't call it from the inference path.
+   */
+  static public List<Token.AbstractToken> tokenizeWithRegex(String s) throws IOException {
     String curS = s;
     List<Token.AbstractToken> toksSoFar = new ArrayList<Token.AbstractToken>();
 
@@ -286,7 +805,7 @@ public class Tokenizer {
         String closeChar = complements.get("" + startChar);
         int closeIndex = curS.indexOf(closeChar, 1);
         if (closeIndex >= 0) {
-          toksSoFar.add(new Token.MetaToken(new Token.CharToken(curS.charAt(0)), new Token.CharToken(closeChar.charAt(0)), tokenize(curS.substring(1, closeIndex))));
+          toksSoFar.add(new Token.MetaToken(new Token.CharToken(curS.charAt(0)), new Token.CharToken(closeChar.charAt(0)), tokenizeWithRegex(curS.substring(1, closeIndex))));
           curS = curS.substring(closeIndex+1);
           continue;
         }
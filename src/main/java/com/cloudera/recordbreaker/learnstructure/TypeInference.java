@@ -16,6 +16,12 @@ package com.cloudera.recordbreaker.learnstructure;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
 
 /**********************************************************
  * TypeInference takes a set of parsed tokens and transforms them
@@ -24,6 +30,12 @@ import java.util.*;
  **********************************************************/
 public class TypeInference {
   static int MAX_SAMPLES = 5;
+  static int NO_TYPE = -1;
+  static int MIN_PARALLEL_CHUNKS = 64;
+  static ExecutorService discoveryPool = null;
+  // If false, infer() looks at every chunk on its own.  The result is the same either
+  // way; this is here so the two can be compared (see InferenceBenchmark).
+  public static boolean COLLAPSE_DUPLICATES = true;
 
   /////////////////////////////////////
   // Inner Classes
@@ -32,61 +44,110 @@ public class TypeInference {
   }
 
   static class BaseProphecy extends TypeProphecy {
-    Token.AbstractToken token;
-    List<Token.AbstractToken> samples;
-    public BaseProphecy(Token.AbstractToken token, List<Token.AbstractToken> samples) {
-      this.token = token;
-      this.samples = samples;
+    int tokenClassId;
+    String tokenParameter;
+    List<String> sampleStrs;
+    public BaseProphecy(int tokenClassId, String tokenParameter, List<String> sampleStrs) {
+      this.tokenClassId = tokenClassId;
+      this.tokenParameter = tokenParameter;
+      this.sampleStrs = sampleStrs;
     }
-    public Token.AbstractToken getToken() {
-      return token;
+    public int getTokenClassId() {
+      return tokenClassId;
     }
-    public List<Token.AbstractToken> getSamples() {
-      return samples;
+    public String getTokenParameter() {
+      return tokenParameter;
+    }
+    public List<String> getSampleStrs() {
+      return sampleStrs;
     }
   }
 
   static class StructProphecy extends TypeProphecy {
-    List<List<List<Token.AbstractToken>>> structElts;
-    public StructProphecy(List<List<List<Token.AbstractToken>>> structElts) {
+    List<List<PackedChunk>> structElts;
+    public StructProphecy(List<List<PackedChunk>> structElts) {
       this.structElts = structElts;
     }
-    public List<List<List<Token.AbstractToken>>> getStructElts() {
+    public List<List<PackedChunk>> getStructElts() {
       return structElts;
     }
   }
 
   static class ArrayProphecy extends TypeProphecy {
-    List<List<Token.AbstractToken>> first;
-    List<List<Token.AbstractToken>> body;
-    List<List<Token.AbstractToken>> last;
+    List<PackedChunk> first;
+    List<PackedChunk> body;
+    List<PackedChunk> last;
 
-    public ArrayProphecy(List<List<Token.AbstractToken>> first, List<List<Token.AbstractToken>> body, List<List<Token.AbstractToken>> last) {
+    public ArrayProphecy(List<PackedChunk> first, List<PackedChunk> body, List<PackedChunk> last) {
       this.first = first;
       this.body = body;
       this.last = last;
     }
-    public List<List<Token.AbstractToken>> getFirst() {
+    public List<PackedChunk> getFirst() {
       return first;
     }
-    public List<List<Token.AbstractToken>> getBody() {
+    public List<PackedChunk> getBody() {
       return body;
     }
-    public List<List<Token.AbstractToken>> getLast() {
+    public List<PackedChunk> getLast() {
       return last;
     }
   }
 
+  /**
+   * A sequence of token type ids, usable as a hash key
+   */
+  static class TypeProfile {
+    int types[];
+    int hashCode;
+    public TypeProfile(int types[]) {
+      this.types = types;
+      this.hashCode = Arrays.hashCode(types);
+    }
+    public int[] getTypes() {
+      return types;
+    }
+    public int hashCode() {
+      return hashCode;
+    }
+    public boolean equals(Object o) {
+      if (! (o instanceof TypeProfile)) {
+        return false;
+      }
+      return Arrays.equals(types, ((TypeProfile) o).types);
+    }
+  }
+
   static class UnionProphecy extends TypeProphecy {
-    List<List<List<Token.AbstractToken>>> unionElts;
-    public UnionProphecy(List<List<List<Token.AbstractToken>>> unionElts) {
+    List<List<PackedChunk>> unionElts;
+    public UnionProphecy(List<List<PackedChunk>> unionElts) {
       this.unionElts = unionElts;
     }
-    public List<List<List<Token.AbstractToken>>> getUnionElements() {
+    public List<List<PackedChunk>> getUnionElements() {
       return unionElts;
     }
   }
 
+  /**
+   * What discover() found for one chunklist: the oracle's prophecy, and
+   * what was found for each of its parts, in order.  For an ARRAY the parts
+   * are preamble, body, and postamble; a missing preamble or postamble is null.
+   */
+  static class Discovery {
+    TypeProphecy prophecy;
+    List<Discovery> parts;
+    public Discovery(TypeProphecy prophecy, List<Discovery> parts) {
+      this.prophecy = prophecy;
+      this.parts = parts;
+    }
+    public TypeProphecy getProphecy() {
+      return prophecy;
+    }
+    public List<Discovery> getParts() {
+      return parts;
+    }
+  }
+
   /////////////////////////////////////
   // Public methods and support methods
   /////////////////////////////////////
@@ -94,93 +155,220 @@ public class TypeInference {
   }
 
   /**
-   * Accepts a list of chunks, each of which is a list of Tokens.
+   * Use 'numThreads' threads to discover the parts of large structs, arrays and unions
+   * concurrently.  1 turns this off.  The inferred type is the same either way.
+   */
+  public static synchronized void setNumDiscoveryThreads(int numThreads) {
+    if (discoveryPool != null) {
+      discoveryPool.shutdown();
+      discoveryPool = null;
+    }
+    if (numThreads > 1) {
+      discoveryPool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "type-discovery");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+  }
+  static synchronized ExecutorService getDiscoveryPool() {
+    return discoveryPool;
+  }
+
+  /**
+   * Accepts a list of chunks, each of which is a tokenized line.
    * It uses patterns of token appearance to discern the record structure.
    * This is the core of the LearnPADS algorithm.
    */
-  public static InferredType infer(List<List<Token.AbstractToken>> chunks) {
-    InferredType typeTree = discover(chunks);
+  public static InferredType infer(List<PackedChunk> chunks) {
+    if (! COLLAPSE_DUPLICATES) {
+      for (int i = 0; i < chunks.size(); i++) {
+        chunks.get(i).ordinal = i;
+      }
+    }
+    InferredType typeTree = buildType(discover(COLLAPSE_DUPLICATES ? collapseDuplicates(chunks) : chunks));
     typeTree = typeTree.hoistUnions();
     //typeTree.ensureParsability();
     return typeTree;
   }
 
+  /**
+   * Collapse chunks that have exactly the same token types into one weighted chunk apiece.
+   * Log files repeat a handful of line shapes over and over, so the oracle usually ends
+   * up looking at far fewer chunks.  Statistics count each chunk by its weight, and samples
+   * come from the lines it stands for, so the inferred type is the same as without collapsing.
+   *
+   * The returned chunks are in order of their first appearance.  The input list is left alone.
+   */
+  static List<PackedChunk> collapseDuplicates(List<PackedChunk> chunks) {
+    Map<TypeProfile, Integer> groupIds = new HashMap<TypeProfile, Integer>();
+    List<PackedChunk> firstChunks = new ArrayList<PackedChunk>();
+    List<List<PackedChunk>> groupSamples = new ArrayList<List<PackedChunk>>();
+    int weights[] = new int[16];
+    for (int i = 0; i < chunks.size(); i++) {
+      PackedChunk chunk = chunks.get(i);
+      chunk.ordinal = i;
+      TypeProfile signature = new TypeProfile(getLayout(chunk));
+      Integer groupId = groupIds.get(signature);
+      if (groupId == null) {
+        groupId = firstChunks.size();
+        groupIds.put(signature, groupId);
+        firstChunks.add(chunk);
+        groupSamples.add(new ArrayList<PackedChunk>());
+        if (groupId == weights.length) {
+          weights = Arrays.copyOf(weights, 2 * weights.length);
+        }
+      }
+      weights[groupId]++;
+      List<PackedChunk> samples = groupSamples.get(groupId);
+      if (samples.size() < MAX_SAMPLES) {
+        samples.add(chunk);
+      }
+    }
+    List<PackedChunk> weightedChunks = new ArrayList<PackedChunk>();
+    for (int i = 0; i < firstChunks.size(); i++) {
+      weightedChunks.add(PackedChunk.createWeighted(firstChunks.get(i), weights[i], groupSamples.get(i)));
+    }
+    return weightedChunks;
+  }
+
+  /**
+   * Every entry's type id, plus where each META entry ends.  Two chunks with the same
+   * layout can be walked with the same entry indices.
+   */
+  static int[] getLayout(PackedChunk chunk) {
+    int numEntries = chunk.end() - chunk.first();
+    int layout[] = new int[2 * numEntries];
+    for (int i = 0; i < numEntries; i++) {
+      int tokIdx = chunk.first() + i;
+      layout[2*i] = chunk.getTypeId(tokIdx);
+      layout[2*i+1] = (chunk.getClassId(tokIdx) == Token.META_TOKENCLASSID) ? chunk.next(tokIdx) - chunk.first() : 0;
+    }
+    return layout;
+  }
+
+  /**
+   * The layout as a string that's stable across processes: type ids are
+   * spelled out with their getId() strings.
+   */
+  static String getLayoutString(PackedChunk chunk) {
+    StringBuffer buf = new StringBuffer();
+    for (int tokIdx = chunk.first(); tokIdx < chunk.end(); tokIdx++) {
+      buf.append(chunk.getId(tokIdx));
+      if (chunk.getClassId(tokIdx) == Token.META_TOKENCLASSID) {
+        buf.append("/" + (chunk.next(tokIdx) - chunk.first()));
+      }
+      buf.append(" ");
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Sample strings for the first token of each chunk, from the first MAX_SAMPLES input lines
+   * the chunks stand for.  The chunks must be in input order, as the oracle keeps them.
+   */
+  static List<String> getSampleStrs(List<PackedChunk> chunks) {
+    // Candidate samples, keyed by input line and then position within the line
+    SortedMap<Long, PackedChunk> candidates = new TreeMap<Long, PackedChunk>();
+    for (PackedChunk chunk: chunks) {
+      if (candidates.size() >= MAX_SAMPLES && getOrderKey(chunk.getSampleLine(0), chunk.first()) > candidates.lastKey()) {
+        break;
+      }
+      for (int k = 0; k < chunk.numSampleLines(); k++) {
+        candidates.put(getOrderKey(chunk.getSampleLine(k), chunk.first()), chunk.getSampleLine(k));
+        if (candidates.size() > MAX_SAMPLES) {
+          candidates.remove(candidates.lastKey());
+        }
+      }
+    }
+    List<String> sampleStrs = new ArrayList<String>();
+    for (Map.Entry<Long, PackedChunk> entry: candidates.entrySet()) {
+      int tokIdx = (int) (entry.getKey().longValue() & 0xffffffffL);
+      sampleStrs.add(entry.getValue().getSampleString(tokIdx));
+    }
+    return sampleStrs;
+  }
+
+  static long getOrderKey(PackedChunk line, int tokIdx) {
+    return (((long) line.getOrdinal()) << 32) | tokIdx;
+  }
+
   /**
    * The oracle() function attempts to predict the best type for the data given by 'chunks'.
    */
-  private static TypeProphecy oracle(List<List<Token.AbstractToken>> chunks) {
+  private static TypeProphecy oracle(List<PackedChunk> chunks) {
     //////////////////////////////////////////////////////////////
     // Phase 1: Handling chunks that appear homogenous (at this meta-level, at least)
     //////////////////////////////////////////////////////////////
-    // Start by gathering some stats on the chunks
-    HashSet<String> uniqTokTypes = new HashSet<String>();
+    // Start by gathering some stats on the chunks.  Token types are TokenTypeDictionary ids.
+    int numTypes = TokenTypeDictionary.size();
+    boolean uniqTokTypes[] = new boolean[numTypes];
+    int numUniqTokTypes = 0;
     int noops = 0;
     int numToks = 0;
-    for (List<Token.AbstractToken> chunk: chunks) {
+    // Chunks are weighted, so this is the number of lines they stand for
+    int numChunks = 0;
+    for (PackedChunk chunk: chunks) {
+      int weight = chunk.getWeight();
+      numChunks += weight;
       if (chunk.size() == 0) {
-        noops++;
+        noops += weight;
       }
-      for (Token.AbstractToken tok: chunk) {
-        uniqTokTypes.add(tok.getId());
-        numToks++;
+      for (int i = chunk.first(); i < chunk.end(); i = chunk.next(i)) {
+        int typeId = chunk.getTypeId(i);
+        if (! uniqTokTypes[typeId]) {
+          uniqTokTypes[typeId] = true;
+          numUniqTokTypes++;
+        }
+        numToks += weight;
       }
     }
 
     //
     // CONDITION: Is the chunkset empty?
     //
-    if (numToks == 0 && noops == chunks.size()) {
+    if (numToks == 0 && noops == numChunks) {
       //System.err.println("BASE-1");
-      List<Token.AbstractToken> samples = new ArrayList<Token.AbstractToken>();
       Token.NoopToken noop = new Token.NoopToken();
-      samples.add(noop);
-      return new BaseProphecy(noop, samples);
+      List<String> sampleStrs = new ArrayList<String>();
+      sampleStrs.add(noop.getSampleString());
+      return new BaseProphecy(noop.getClassId(), noop.getParameter(), sampleStrs);
     }
     //
     // CONDITION: Does the chunkset consist of a single column of one type of token?
     //
-    if (numToks == chunks.size() && uniqTokTypes.size() == 1) {
+    if (numToks == numChunks && numUniqTokTypes == 1) {
       // If so, grab an example from the column
-      Token.AbstractToken prizeToken = chunks.get(0).get(0);
-      if (! (prizeToken instanceof Token.MetaToken)) {
-        // If it's not a MetaToken, then it's easy: we prophesy a data column consisting of a single basic type
-        List<Token.AbstractToken> samples = new ArrayList<Token.AbstractToken>();
-        int numSamples = 0;
-        for (List<Token.AbstractToken> curChunk: chunks) {
-          samples.add(curChunk.get(0));
-          numSamples++;
-          if (numSamples >= MAX_SAMPLES) {
-            break;
-          }
-        }
-        return new BaseProphecy(prizeToken, samples);
+      PackedChunk prizeChunk = chunks.get(0);
+      int prizeToken = prizeChunk.first();
+      if (prizeChunk.getClassId(prizeToken) != Token.META_TOKENCLASSID) {
+        // If it's not a MetaToken, then it's easy: we prophesy a data column consisting of a single basic type.
+        // Samples are only materialized for the handful of tokens we keep.
+        List<String> sampleStrs = getSampleStrs(chunks);
+        return new BaseProphecy(prizeChunk.getClassId(prizeToken), prizeChunk.getParameter(prizeToken), sampleStrs);
       } else {
         //System.err.println("STRUCT-1");
         //
         // If it IS a metatoken, then we prophesy a struct that contains what's inside the metatoken.
         // In other words, we break apart the pair-delimited "meta" structure in this step.
         //
-        // Note: the getId() fn of MetaToken returns the char-delimiter, so if we've got just one elt in uniqTokTypes,
-        // it implies that there's a single MetaToken type in the entire chunkset.
+        // Note: every MetaToken has the id "meta", so if we've got just one elt in uniqTokTypes,
+        // the start and end delimiters of the first chunk stand in for the entire chunkset.
         //
-        Token.MetaToken mtok = (Token.MetaToken) prizeToken;
-
-        List<List<Token.AbstractToken>> startChunkList = new ArrayList<List<Token.AbstractToken>>();
-        List<Token.AbstractToken> startChunk = new ArrayList<Token.AbstractToken>();
-        startChunk.add(mtok.getStartToken());
-        startChunkList.add(startChunk);
+        List<PackedChunk> startChunkList = new ArrayList<PackedChunk>();
+        startChunkList.add(prizeChunk.getStartChunk(prizeToken));
 
-        List<List<Token.AbstractToken>> middleChunkList = new ArrayList<List<Token.AbstractToken>>();
-        for (List<Token.AbstractToken> chunk: chunks) {
-          middleChunkList.add(((Token.MetaToken) chunk.get(0)).getMiddleChunk());
+        List<PackedChunk> middleChunkList = new ArrayList<PackedChunk>();
+        for (PackedChunk chunk: chunks) {
+          middleChunkList.add(chunk.getMiddleChunk(chunk.first()));
         }
 
-        List<List<Token.AbstractToken>> endChunkList = new ArrayList<List<Token.AbstractToken>>();
-        List<Token.AbstractToken> endChunk = new ArrayList<Token.AbstractToken>();
-        endChunk.add(mtok.getEndToken());
-        endChunkList.add(endChunk);
+        List<PackedChunk> endChunkList = new ArrayList<PackedChunk>();
+        endChunkList.add(prizeChunk.getEndChunk(prizeToken));
 
-        List<List<List<Token.AbstractToken>>> structElts = new ArrayList<List<List<Token.AbstractToken>>>();
+        List<List<PackedChunk>> structElts = new ArrayList<List<PackedChunk>>();
         structElts.add(startChunkList);
         structElts.add(middleChunkList);
         structElts.add(endChunkList);
@@ -193,7 +381,7 @@ public class TypeInference {
     //////////////////////////////////////////////////////////////
     // As usual, start by gathering some statistics
     List<Histogram> normalizedHistograms = Histogram.computeNormalizedHistograms(chunks);
-    List<List<Histogram>> clusteredHistograms = Histogram.clusterHistograms(normalizedHistograms);
+    final List<List<Histogram>> clusteredHistograms = Histogram.clusterHistograms(normalizedHistograms);
 
     //
     // CONDITION: Does a Struct exist?
@@ -216,14 +404,15 @@ public class TypeInference {
         } else if (minResidualMass1 > minResidualMass2) {
           return 1;
         } else {
-          return o1.hashCode() - o2.hashCode();
+          // Break ties by cluster order, so the choice doesn't depend on object hash codes
+          return clusteredHistograms.indexOf(o1) - clusteredHistograms.indexOf(o2);
         }
       }
     });
     for (List<Histogram> histogramCluster: clusteredHistograms) {
       boolean allHistogramsPass = true;
       for (Histogram h: histogramCluster) {
-        if (! h.passStructStatisticalTest(chunks.size())) {
+        if (! h.passStructStatisticalTest(numChunks)) {
           allHistogramsPass = false;
         }
       }
@@ -240,15 +429,15 @@ public class TypeInference {
     }
     //
     // REMIND - mjc - is it OK if the bestCluster consists of a single histogram?
-    // It has to be, in order for the alg to be correct in some scenarios.  (e.g., when the file 
+    // It has to be, in order for the alg to be correct in some scenarios.  (e.g., when the file
     // contains many chunks consisting of ";;")
     //
     //
     if (bestCluster != null) {
       // Find the types that are present in that cluster
-      Set<String> bestClusterTypes = new HashSet<String>();
+      boolean bestClusterTypes[] = new boolean[numTypes];
       for (Histogram h: bestCluster) {
-        bestClusterTypes.add(h.getHistogramType());
+        bestClusterTypes[h.getHistogramTypeId()] = true;
       }
 
       //
@@ -263,38 +452,26 @@ public class TypeInference {
       // Right now, we could have very different inter-identified-token items, and we would consider
       // them all to be identical.
       //
-      Set<String> allTypeProfiles = new HashSet<String>();
-      for (List<Token.AbstractToken> chunk: chunks) {
-        StringBuffer curTypeProfile = new StringBuffer();
-        StringBuffer curField = new StringBuffer();
-        curField.append("(");
-        for (Token.AbstractToken tok: chunk) {
-          if (bestClusterTypes.contains(tok.getId())) {
-            curField.append(")");
-            curTypeProfile.append(curField.toString());
-            curTypeProfile.append("_");
-            curTypeProfile.append("(" + tok.getId() + ")");
-            curTypeProfile.append("_");
-            curField = new StringBuffer();
-            curField.append("(");
-          } else {
-            curField.append(tok.getId() + ",");
-          }
+      // A chunk's profile is fully determined by its sequence of token types, so we compare those directly.
+      //
+      boolean singleTypeProfile = true;
+      PackedChunk firstChunk = chunks.get(0);
+      for (PackedChunk chunk: chunks) {
+        if (! hasSameTypes(firstChunk, chunk)) {
+          singleTypeProfile = false;
+          break;
         }
-        curField.append(")");
-        curTypeProfile.append(curField.toString());
-        allTypeProfiles.add(curTypeProfile.toString());
       }
 
       //
       // Is it a STRUCT or a UNION?
       //
-      if (allTypeProfiles.size() == 1) {
+      if (singleTypeProfile) {
         // It's a STRUCT.
         //System.err.println("STRUCT-2");
 
         //
-        // structChunks is responsible for tracking all the ingredients of the prophesied struct.  
+        // structChunks is responsible for tracking all the ingredients of the prophesied struct.
         // There are 2x+1 as many elts in structChunks as there are tokens identified by the target histogram cluster.
         // The 1st field in the prophesied struct has all tokens up (but not including) the 1st identified token.
         // The 2nd field has the 1st identified token.
@@ -302,57 +479,50 @@ public class TypeInference {
         // The 4th field has the 2nd identified token.
         // ... and so on.  The final field has all the tokens AFTER the final token that appears in the target histogram-cluster
         //
-        Map<Integer, List<List<Token.AbstractToken>>> structChunks = new TreeMap<Integer, List<List<Token.AbstractToken>>>();
+        // Each of these is a sub-chunk of the input chunk; no tokens are copied.
+        //
+        Map<Integer, List<PackedChunk>> structChunks = new TreeMap<Integer, List<PackedChunk>>();
         // For each chunk in the input...
-        for (List<Token.AbstractToken> chunk: chunks) {
+        for (PackedChunk chunk: chunks) {
           //
           // Add to 'structChunks' as appropriate.
+          // 'i' is the token's position in the chunk; 'tokIdx' is its entry in the packed arrays.
           //
-          int lastIdentifiedIndex = -1;
-          for (int i = 0; i < chunk.size(); i++) {
-            Token.AbstractToken tok = chunk.get(i);
-            if (bestClusterTypes.contains(tok.getId())) {
-              List<List<Token.AbstractToken>> preludeChunkList = structChunks.get(2 * i);
+          int lastIdentifiedEnd = chunk.first();
+          int i = 0;
+          for (int tokIdx = chunk.first(); tokIdx < chunk.end(); tokIdx = chunk.next(tokIdx), i++) {
+            if (bestClusterTypes[chunk.getTypeId(tokIdx)]) {
+              List<PackedChunk> preludeChunkList = structChunks.get(2 * i);
               if (preludeChunkList == null) {
-                preludeChunkList = new ArrayList<List<Token.AbstractToken>>();
+                preludeChunkList = new ArrayList<PackedChunk>();
                 structChunks.put(2*i, preludeChunkList);
               }
-              List<Token.AbstractToken> preludeChunk = new ArrayList<Token.AbstractToken>();
-              for (int j = lastIdentifiedIndex+1; j < i; j++) {
-                preludeChunk.add(chunk.get(j));
-              }
-              preludeChunkList.add(preludeChunk);
+              preludeChunkList.add(chunk.subChunk(lastIdentifiedEnd, tokIdx));
 
-              List<List<Token.AbstractToken>> identifiedChunkList = structChunks.get(2 * i + 1);
+              List<PackedChunk> identifiedChunkList = structChunks.get(2 * i + 1);
               if (identifiedChunkList == null) {
-                identifiedChunkList = new ArrayList<List<Token.AbstractToken>>();
+                identifiedChunkList = new ArrayList<PackedChunk>();
                 structChunks.put(2 * i + 1, identifiedChunkList);
               }
-              List<Token.AbstractToken> identifiedChunk = new ArrayList<Token.AbstractToken>();
-              identifiedChunk.add(chunk.get(i));
-              identifiedChunkList.add(identifiedChunk);
+              identifiedChunkList.add(chunk.subChunk(tokIdx, chunk.next(tokIdx)));
 
-              lastIdentifiedIndex = i;
+              lastIdentifiedEnd = chunk.next(tokIdx);
             }
           }
-          List<List<Token.AbstractToken>> suffixChunkList = structChunks.get(2 * chunk.size() + 1);
+          List<PackedChunk> suffixChunkList = structChunks.get(2 * chunk.size() + 1);
           if (suffixChunkList == null) {
-            suffixChunkList = new ArrayList<List<Token.AbstractToken>>();
+            suffixChunkList = new ArrayList<PackedChunk>();
             structChunks.put(2 * chunk.size() + 1, suffixChunkList);
           }
-          List<Token.AbstractToken> suffixChunk = new ArrayList<Token.AbstractToken>();
-          for (int j = lastIdentifiedIndex+1; j < chunk.size(); j++) {
-            suffixChunk.add(chunk.get(j));
-          }
-          suffixChunkList.add(suffixChunk);
+          suffixChunkList.add(chunk.subChunk(lastIdentifiedEnd, chunk.end()));
         }
 
         // Make sure that for each chunkList in 'structChunks', there is at least one non-empty chunk.
         for (Iterator<Integer> it = structChunks.keySet().iterator(); it.hasNext(); ) {
           Integer chunkId = it.next();
-          List<List<Token.AbstractToken>> chunkList = structChunks.get(chunkId);
+          List<PackedChunk> chunkList = structChunks.get(chunkId);
           int numTokensInChunkList = 0;
-          for (List<Token.AbstractToken> chunk: chunkList) {
+          for (PackedChunk chunk: chunkList) {
             numTokensInChunkList += chunk.size();
           }
           if (numTokensInChunkList == 0) {
@@ -361,9 +531,9 @@ public class TypeInference {
         }
 
         // Transform the map into a chunklist
-        List<List<List<Token.AbstractToken>>> structChunkList = new ArrayList<List<List<Token.AbstractToken>>>();
+        List<List<PackedChunk>> structChunkList = new ArrayList<List<PackedChunk>>();
         for (Integer chunkId: structChunks.keySet()) {
-          List<List<Token.AbstractToken>> chunkList = structChunks.get(chunkId);
+          List<PackedChunk> chunkList = structChunks.get(chunkId);
           structChunkList.add(chunkList);
         }
         //System.err.println("STRUCT-2");
@@ -372,38 +542,29 @@ public class TypeInference {
         // It's a UNION.
         // A UnionProphecy requires a number of chunklists, one for each type profile
         //System.err.println("UNION-1");
-        Map<String, List<List<Token.AbstractToken>>> unionMap = new HashMap<String, List<List<Token.AbstractToken>>>();
-        for (List<Token.AbstractToken> chunk: chunks) {
-          StringBuffer curTypeProfile = new StringBuffer();
-          StringBuffer curField = new StringBuffer();
-          curField.append("(");
-          for (Token.AbstractToken tok: chunk) {
-            if (bestClusterTypes.contains(tok.getId())) {
-              curTypeProfile.append(tok.getId() + "_");
-              curField.append(")");
-              curTypeProfile.append(curField.toString());
-              curTypeProfile.append("_");
-              curTypeProfile.append("(" + tok.getId() + ")");
-              curTypeProfile.append("_");
-              curField = new StringBuffer();
-              curField.append("(");
-            } else {
-              curField.append(tok.getId() + ",");
-            }
+        //
+        // Chunks are grouped by their token types.  Each group is keyed by the same profile string
+        // as always, built once per distinct group, so union branches keep their established order.
+        //
+        Map<TypeProfile, String> profileStrs = new HashMap<TypeProfile, String>();
+        Map<String, List<PackedChunk>> unionMap = new HashMap<String, List<PackedChunk>>();
+        for (PackedChunk chunk: chunks) {
+          TypeProfile curTypeProfile = new TypeProfile(getTypes(chunk, chunk.size()));
+          String curTypeProfileStr = profileStrs.get(curTypeProfile);
+          if (curTypeProfileStr == null) {
+            curTypeProfileStr = getClusterProfileString(curTypeProfile, bestClusterTypes);
+            profileStrs.put(curTypeProfile, curTypeProfileStr);
           }
-          curField.append(")");
-          curTypeProfile.append(curField.toString());
-
-          List<List<Token.AbstractToken>> unionChunks = unionMap.get(curTypeProfile.toString());
+          List<PackedChunk> unionChunks = unionMap.get(curTypeProfileStr);
           if (unionChunks == null) {
-            unionChunks = new ArrayList<List<Token.AbstractToken>>();
-            unionMap.put(curTypeProfile.toString(), unionChunks);
+            unionChunks = new ArrayList<PackedChunk>();
+            unionMap.put(curTypeProfileStr, unionChunks);
           }
           unionChunks.add(chunk);
         }
 
-        List<List<List<Token.AbstractToken>>> unionChunklists = new ArrayList<List<List<Token.AbstractToken>>>();
-        for (List<List<Token.AbstractToken>> unionChunklist: unionMap.values()) {
+        List<List<PackedChunk>> unionChunklists = new ArrayList<List<PackedChunk>>();
+        for (List<PackedChunk> unionChunklist: unionMap.values()) {
           unionChunklists.add(unionChunklist);
         }
         return new UnionProphecy(unionChunklists);
@@ -432,14 +593,15 @@ public class TypeInference {
           } else if (maxCoverage1 > maxCoverage2) {
             return -1;
           } else {
-            return o1.hashCode() - o2.hashCode();
+            // Break ties by cluster order, so the choice doesn't depend on object hash codes
+            return clusteredHistograms.indexOf(o1) - clusteredHistograms.indexOf(o2);
           }
         }
       });
       for (List<Histogram> histogramCluster: clusteredHistograms) {
         boolean allHistogramsPass = true;
         for (Histogram h: histogramCluster) {
-          if (! h.passArrayStatisticalTest(chunks.size())) {
+          if (! h.passArrayStatisticalTest(numChunks)) {
             allHistogramsPass = false;
           }
         }
@@ -450,62 +612,71 @@ public class TypeInference {
       if (arrayHistogramClusters.size() > 0) {
         // It's going to be an array!
         List<Histogram> bestArrayCluster = arrayHistogramClusters.first();
-        Set<String> bestClusterTypes = new HashSet<String>();
+        boolean bestClusterTypes[] = new boolean[numTypes];
+        int numBestClusterTypes = 0;
         for (Histogram h: bestArrayCluster) {
-          bestClusterTypes.add(h.getHistogramType());
+          bestClusterTypes[h.getHistogramTypeId()] = true;
+          numBestClusterTypes++;
         }
 
+        // observedClusterTypes[t] == chunkNo iff type t has been seen in the preamble of the current chunk
+        int observedClusterTypes[] = new int[numTypes];
+        Arrays.fill(observedClusterTypes, -1);
+        int chunkNo = 0;
+
         //
         // Goal is to split the array into three chunklists: preamble, repeated-body, and post-amble.
         //
-        List<List<Token.AbstractToken>> preambles = new ArrayList<List<Token.AbstractToken>>();
-        List<List<Token.AbstractToken>> middles = new ArrayList<List<Token.AbstractToken>>();
-        List<List<Token.AbstractToken>> postambles = new ArrayList<List<Token.AbstractToken>>();
+        List<PackedChunk> preambles = new ArrayList<PackedChunk>();
+        List<PackedChunk> middles = new ArrayList<PackedChunk>();
+        List<PackedChunk> postambles = new ArrayList<PackedChunk>();
 
         //
         // For each chunk of input...
-        // 
-        for (List<Token.AbstractToken> chunk: chunks) {
-          List<Token.AbstractToken> preamble = new ArrayList<Token.AbstractToken>();
-          List<List<Token.AbstractToken>> middleGroup = new ArrayList<List<Token.AbstractToken>>();
-          List<Token.AbstractToken> curMiddle = new ArrayList<Token.AbstractToken>();
-          List<Token.AbstractToken> postamble = new ArrayList<Token.AbstractToken>();
-          Set<String> observedClusterTypes = new HashSet<String>();
+        //
+        for (PackedChunk chunk: chunks) {
+          int preambleEnd = chunk.first();
+          List<PackedChunk> middleGroup = new ArrayList<PackedChunk>();
+          int curMiddleStart = -1;
+          int curMiddleSize = 0;
+          int postambleStart = -1;
+          int numObservedClusterTypes = 0;
           int mode = 0;
 
-          for (Token.AbstractToken tok: chunk) {
+          for (int tokIdx = chunk.first(); tokIdx < chunk.end(); tokIdx = chunk.next(tokIdx)) {
+            int typeId = chunk.getTypeId(tokIdx);
             // Transit
-            if (mode == 0 && observedClusterTypes.size() == bestClusterTypes.size()) {
+            if (mode == 0 && numObservedClusterTypes == numBestClusterTypes) {
               mode = 1;
-            } else if (mode == 1 && ! bestClusterTypes.contains(tok.getId())) {
+            } else if (mode == 1 && ! bestClusterTypes[typeId]) {
               mode = 2;
             }
-            if (mode == 0 && bestClusterTypes.contains(tok.getId())) {
-              observedClusterTypes.add(tok.getId());
+            if (mode == 0 && bestClusterTypes[typeId] && observedClusterTypes[typeId] != chunkNo) {
+              observedClusterTypes[typeId] = chunkNo;
+              numObservedClusterTypes++;
             }
 
             // Operate according to the modes
             if (mode == 0) {
-              preamble.add(tok);
+              preambleEnd = chunk.next(tokIdx);
             } else if (mode == 1) {
-              curMiddle.add(tok);
-              if (curMiddle.size() == bestClusterTypes.size()) {
-                middleGroup.add(curMiddle);
-                curMiddle = new ArrayList<Token.AbstractToken>();
+              if (curMiddleSize == 0) {
+                curMiddleStart = tokIdx;
               }
-            } else {
-              if (curMiddle != null) {
-                for (Token.AbstractToken t2: curMiddle) {
-                  postamble.add(t2);
-                }
-                curMiddle = null;
+              curMiddleSize++;
+              if (curMiddleSize == numBestClusterTypes) {
+                middleGroup.add(chunk.subChunk(curMiddleStart, chunk.next(tokIdx)));
+                curMiddleSize = 0;
               }
-              postamble.add(tok);
+            } else if (postambleStart < 0) {
+              // The postamble picks up any partially-filled middle, then everything after it
+              postambleStart = (curMiddleSize > 0) ? curMiddleStart : tokIdx;
             }
           }
-          preambles.add(preamble);
+          preambles.add(chunk.subChunk(chunk.first(), preambleEnd));
           middles.addAll(middleGroup);
-          postambles.add(postamble);
+          postambles.add((postambleStart < 0) ? chunk.subChunk(chunk.end(), chunk.end()) : chunk.subChunk(postambleStart, chunk.end()));
+          chunkNo++;
         }
         //System.err.println("ARRAY-1");
         return new ArrayProphecy(preambles, middles, postambles);
@@ -517,31 +688,24 @@ public class TypeInference {
         // We need to partition the chunks somehow, so that later stages can make some kind of progress.
         // In the absence of anything better, we'll group chunks according to the first token in each chunk.
         // If the first token is identical, we'll keep reading until tokens are non-identical.
-        // (Note that the paper in bullet #5 says to simply use the first token in each chunk; but this condition 
+        // (Note that the paper in bullet #5 says to simply use the first token in each chunk; but this condition
         // isn't sufficient to guarantee that the algorithm makes progress.)
         //
         // We start by computing how many tokens we need to read before we detect a difference
+        // Only the next token needs checking each round, since all the shorter prefixes matched.
+        int chunkTypes[][] = new int[chunks.size()][];
+        for (int i = 0; i < chunks.size(); i++) {
+          PackedChunk chunk = chunks.get(i);
+          chunkTypes[i] = getTypes(chunk, chunk.size());
+        }
         int neededTokens = 1;
         boolean foundDifference = false;
         while (! foundDifference) {
-          String lastSeenProfile = null;
-          for (List<Token.AbstractToken> chunk: chunks) {
-            // Build type profile
-            StringBuffer curTypeProfile = new StringBuffer();
-            for (int i = 0; i < neededTokens; i++) {
-              if (i < chunk.size()) {
-                curTypeProfile.append(chunk.get(i).getId() + "_");
-              } else {
-                curTypeProfile.append("<none>" + "_");
-              }
-            }
-            if (lastSeenProfile == null) {
-              lastSeenProfile = curTypeProfile.toString();
-            } else {
-              if (! lastSeenProfile.equals(curTypeProfile.toString())) {
-                foundDifference = true;
-                break;
-              }
+          int lastSeenType = getTypeAt(chunkTypes[0], neededTokens-1);
+          for (int i = 1; i < chunkTypes.length; i++) {
+            if (getTypeAt(chunkTypes[i], neededTokens-1) != lastSeenType) {
+              foundDifference = true;
+              break;
             }
           }
           neededTokens++;
@@ -551,27 +715,29 @@ public class TypeInference {
         // Now that we have computed 'neededTokens', we can proceed to partition the input chunks using
         // the first 'neededTokens' from each chunk.
         //
-        Map<String, List<List<Token.AbstractToken>>> unionMap = new HashMap<String, List<List<Token.AbstractToken>>>();
-        for (List<Token.AbstractToken> chunk: chunks) {
-          StringBuffer curTypeProfile = new StringBuffer();
-          for (int i = 0; i < neededTokens; i++) {
-            if (i < chunk.size()) {
-              Token.AbstractToken tok = chunk.get(i);
-              curTypeProfile.append(tok.getId() + "_");
-            } else {
-              curTypeProfile.append("<none>" + "_");
-            }
+        Map<TypeProfile, String> profileStrs = new HashMap<TypeProfile, String>();
+        Map<String, List<PackedChunk>> unionMap = new HashMap<String, List<PackedChunk>>();
+        for (int i = 0; i < chunks.size(); i++) {
+          int prefixTypes[] = new int[neededTokens];
+          for (int j = 0; j < neededTokens; j++) {
+            prefixTypes[j] = getTypeAt(chunkTypes[i], j);
+          }
+          TypeProfile curTypeProfile = new TypeProfile(prefixTypes);
+          String curTypeProfileStr = profileStrs.get(curTypeProfile);
+          if (curTypeProfileStr == null) {
+            curTypeProfileStr = getPrefixProfileString(curTypeProfile);
+            profileStrs.put(curTypeProfile, curTypeProfileStr);
           }
-          List<List<Token.AbstractToken>> unionChunks = unionMap.get(curTypeProfile.toString());
+          List<PackedChunk> unionChunks = unionMap.get(curTypeProfileStr);
           if (unionChunks == null) {
-            unionChunks = new ArrayList<List<Token.AbstractToken>>();
-            unionMap.put(curTypeProfile.toString(), unionChunks);
+            unionChunks = new ArrayList<PackedChunk>();
+            unionMap.put(curTypeProfileStr, unionChunks);
           }
-          unionChunks.add(chunk);
+          unionChunks.add(chunks.get(i));
         }
 
-        List<List<List<Token.AbstractToken>>> unionChunklists = new ArrayList<List<List<Token.AbstractToken>>>();
-        for (List<List<Token.AbstractToken>> unionChunklist: unionMap.values()) {
+        List<List<PackedChunk>> unionChunklists = new ArrayList<List<PackedChunk>>();
+        for (List<PackedChunk> unionChunklist: unionMap.values()) {
           unionChunklists.add(unionChunklist);
         }
         return new UnionProphecy(unionChunklists);
@@ -580,11 +746,91 @@ public class TypeInference {
   }
 
   /**
+   * True if both chunks have the same sequence of token types
+   */
+  static boolean hasSameTypes(PackedChunk c1, PackedChunk c2) {
+    if (c1.size() != c2.size()) {
+      return false;
+    }
+    for (int i = c1.first(), j = c2.first(); i < c1.end(); i = c1.next(i), j = c2.next(j)) {
+      if (c1.getTypeId(i) != c2.getTypeId(j)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The type ids of the first 'numTokens' tokens in the chunk, padded with NO_TYPE if the chunk is short.
    */
-  private static InferredType discover(List<List<Token.AbstractToken>> chunks) {
+  static int[] getTypes(PackedChunk chunk, int numTokens) {
+    int types[] = new int[numTokens];
+    int tokIdx = chunk.first();
+    for (int i = 0; i < numTokens; i++) {
+      if (tokIdx < chunk.end()) {
+        types[i] = chunk.getTypeId(tokIdx);
+        tokIdx = chunk.next(tokIdx);
+      } else {
+        types[i] = NO_TYPE;
+      }
+    }
+    return types;
+  }
+
+  static int getTypeAt(int types[], int i) {
+    return (i < types.length) ? types[i] : NO_TYPE;
+  }
+
+  /**
+   * The profile string for a chunk with the given types, given the types identified by a histogram cluster.
+   */
+  static String getClusterProfileString(TypeProfile profile, boolean clusterTypes[]) {
+    StringBuffer curTypeProfile = new StringBuffer();
+    StringBuffer curField = new StringBuffer();
+    curField.append("(");
+    for (int typeId: profile.getTypes()) {
+      String tokId = TokenTypeDictionary.getId(typeId);
+      if (clusterTypes[typeId]) {
+        curTypeProfile.append(tokId + "_");
+        curField.append(")");
+        curTypeProfile.append(curField.toString());
+        curTypeProfile.append("_");
+        curTypeProfile.append("(" + tokId + ")");
+        curTypeProfile.append("_");
+        curField = new StringBuffer();
+        curField.append("(");
+      } else {
+        curField.append(tokId + ",");
+      }
+    }
+    curField.append(")");
+    curTypeProfile.append(curField.toString());
+    return curTypeProfile.toString();
+  }
+
+  /**
+   * The profile string for a prefix of token types, with "<none>" standing in for missing tokens.
+   */
+  static String getPrefixProfileString(TypeProfile profile) {
+    StringBuffer curTypeProfile = new StringBuffer();
+    for (int typeId: profile.getTypes()) {
+      if (typeId != NO_TYPE) {
+        curTypeProfile.append(TokenTypeDictionary.getId(typeId) + "_");
+      } else {
+        curTypeProfile.append("<none>" + "_");
+      }
+    }
+    return curTypeProfile.toString();
+  }
+
+  /**
+   * Run the oracle over the chunks, and then recursively over the chunklists it splits them into.
+   * Types aren't built here; see buildType().
+   */
+  static Discovery discover(List<PackedChunk> chunks) {
     // Remove chunks that are empty.  These should never get passed-in
-    for (Iterator<List<Token.AbstractToken>> it = chunks.iterator(); it.hasNext(); ) {
-      List<Token.AbstractToken> chunk = it.next();
+    for (Iterator<PackedChunk> it = chunks.iterator(); it.hasNext(); ) {
+      PackedChunk chunk = it.next();
       if (chunk.size() == 0) {
         it.remove();
       }
@@ -597,44 +843,117 @@ public class TypeInference {
     // Type predictions from the oracle come in one of four flavors: Base, Struct, Array, or Union
     //
     TypeProphecy typePrediction = oracle(chunks);
+    List<List<PackedChunk>> partChunks = new ArrayList<List<PackedChunk>>();
     if (typePrediction instanceof BaseProphecy) {
-      BaseProphecy bp = (BaseProphecy) typePrediction;
-      List<String> sampleStrs = new ArrayList<String>();
-      for (Iterator<Token.AbstractToken> it = bp.getSamples().iterator(); it.hasNext(); ) {
-        Token.AbstractToken tok = it.next();
-        sampleStrs.add(tok.getSampleString());
-      }
-      return new BaseType(bp.getToken(), sampleStrs);
+      return new Discovery(typePrediction, null);
 
     } else if (typePrediction instanceof StructProphecy) {
       StructProphecy sp = (StructProphecy) typePrediction;
-      List<InferredType> structDataTypes = new ArrayList<InferredType>();
-      int i = 0;
-      for (List<List<Token.AbstractToken>> structElt: sp.getStructElts()) {
-        structDataTypes.add(discover(structElt));
-      }
-      return new StructType(structDataTypes);
+      partChunks.addAll(sp.getStructElts());
+      // The chunklists aren't needed once their parts are discovered
+      typePrediction = new StructProphecy(null);
 
     } else if (typePrediction instanceof ArrayProphecy) {
       ArrayProphecy ap = (ArrayProphecy) typePrediction;
       assert(ap.getBody().size() > 0);
+      partChunks.add((ap.getFirst().size() > 0) ? ap.getFirst() : null);
+      partChunks.add(ap.getBody());
+      partChunks.add((ap.getLast().size() > 0) ? ap.getLast() : null);
+      typePrediction = new ArrayProphecy(null, null, null);
+
+    } else if (typePrediction instanceof UnionProphecy) {
+      UnionProphecy up = (UnionProphecy) typePrediction;
+      partChunks.addAll(up.getUnionElements());
+      typePrediction = new UnionProphecy(null);
+    }
+    return new Discovery(typePrediction, discoverParts(partChunks));
+  }
+
+  /**
+   * Discover each chunklist, keeping the results in order.  With a discovery pool, big
+   * chunklists are handed to the pool and the rest are done here.  While waiting for a
+   * pooled chunklist, this thread runs it itself if no pool thread has started it yet,
+   * so nested discoveries can't starve the pool.
+   */
+  static List<Discovery> discoverParts(List<List<PackedChunk>> partChunks) {
+    ExecutorService pool = getDiscoveryPool();
+    List<FutureTask<Discovery>> tasks = new ArrayList<FutureTask<Discovery>>();
+    for (final List<PackedChunk> chunks: partChunks) {
+      FutureTask<Discovery> task = null;
+      if (pool != null && chunks != null && chunks.size() >= MIN_PARALLEL_CHUNKS) {
+        task = new FutureTask<Discovery>(new Callable<Discovery>() {
+          public Discovery call() {
+            return discover(chunks);
+          }
+        });
+        pool.execute(task);
+      }
+      tasks.add(task);
+    }
 
+    List<Discovery> parts = new ArrayList<Discovery>();
+    for (int i = 0; i < partChunks.size(); i++) {
+      List<PackedChunk> chunks = partChunks.get(i);
+      FutureTask<Discovery> task = tasks.get(i);
+      if (chunks == null) {
+        parts.add(null);
+      } else if (task == null) {
+        parts.add(discover(chunks));
+      } else {
+        // Does nothing if a pool thread got to it first
+        task.run();
+        try {
+          parts.add(task.get());
+        } catch (InterruptedException iex) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(iex);
+        } catch (ExecutionException eex) {
+          Throwable cause = eex.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new IllegalStateException(cause);
+        }
+      }
+    }
+    return parts;
+  }
+
+  /**
+   * Build the type tree for a discovery.  This always runs in one thread, visiting parts in
+   * order, so generated type names don't depend on how discovery was scheduled.
+   */
+  static InferredType buildType(Discovery discovery) {
+    TypeProphecy typePrediction = discovery.getProphecy();
+    List<Discovery> parts = discovery.getParts();
+    if (typePrediction instanceof BaseProphecy) {
+      BaseProphecy bp = (BaseProphecy) typePrediction;
+      return new BaseType(bp.getTokenClassId(), bp.getSampleStrs(), bp.getTokenParameter());
+
+    } else if (typePrediction instanceof StructProphecy) {
       List<InferredType> structDataTypes = new ArrayList<InferredType>();
-      if (ap.getFirst().size() > 0) {
-        structDataTypes.add(discover(ap.getFirst()));
+      for (Discovery part: parts) {
+        structDataTypes.add(buildType(part));
       }
-      structDataTypes.add(new ArrayType(discover(ap.getBody())));
-      if (ap.getLast().size() > 0) {
-        structDataTypes.add(discover(ap.getLast()));
+      return new StructType(structDataTypes);
+
+    } else if (typePrediction instanceof ArrayProphecy) {
+      List<InferredType> structDataTypes = new ArrayList<InferredType>();
+      if (parts.get(0) != null) {
+        structDataTypes.add(buildType(parts.get(0)));
+      }
+      structDataTypes.add(new ArrayType(buildType(parts.get(1))));
+      if (parts.get(2) != null) {
+        structDataTypes.add(buildType(parts.get(2)));
       }
       return new StructType(structDataTypes);
 
     } else if (typePrediction instanceof UnionProphecy) {
-      UnionProphecy up = (UnionProphecy) typePrediction;
       List<InferredType> unionDataTypes = new ArrayList<InferredType>();
-      
-      for (List<List<Token.AbstractToken>> unionElt: up.getUnionElements()) {
-        unionDataTypes.add(discover(unionElt));
+      for (Discovery part: parts) {
+        unionDataTypes.add(buildType(part));
       }
       return new UnionType(unionDataTypes);
     }
@@ -659,10 +978,10 @@ public class TypeInference {
     System.err.println("Input file: " + f.getCanonicalPath());
 
     // Store parse results
-    List<List<Token.AbstractToken>> allChunks = new ArrayList<List<Token.AbstractToken>>();
+    List<PackedChunk> allChunks = new ArrayList<PackedChunk>();
 
     // Transform the text into a list of "chunks".  
-    // A single chunk corresponds to a line of text.  A chunk is a list of Tokens.
+    // A single chunk corresponds to a line of text.  A chunk is a packed list of tokens.
     int totalCount = 0;
     int parsedCount = 0;
     long startRead = System.currentTimeMillis();
@@ -670,7 +989,7 @@ public class TypeInference {
     try {
       String s = in.readLine();
       while (s != null) {
-        List<Token.AbstractToken> chunkToks = Tokenizer.tokenize(s);
+        PackedChunk chunkToks = Tokenizer.tokenizePacked(s);
         if (chunkToks != null) {
           allChunks.add(chunkToks);
           parsedCount++;
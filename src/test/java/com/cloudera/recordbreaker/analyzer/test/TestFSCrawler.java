@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.List;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileStatus;
+
+import com.cloudera.recordbreaker.analyzer.FSCrawler;
+import com.cloudera.recordbreaker.analyzer.CrawlRuntimeStatus;
+
+/**
+ * TestFSCrawler runs FSCrawler.analyzeFiles() over made-up listings, with
+ * analyzeFile() replaced so that nothing touches a filesystem or a store.
+ * It checks that the pool runs no more files at once than it has threads,
+ * that it takes no more files from the listing than it has room for, and
+ * that it stops handing out files once the crawl is told to finish.
+ *
+ * @author "Michael Cafarella"
+ * @see FSCrawler
+ */
+public class TestFSCrawler {
+  /**
+   * Records the files it is given, and waits for 'release' before each one
+   */
+  static class RecordingCrawler extends FSCrawler {
+    List<String> analyzed = Collections.synchronizedList(new ArrayList<String>());
+    AtomicInteger numRunning = new AtomicInteger(0);
+    AtomicInteger maxRunning = new AtomicInteger(0);
+    CountDownLatch release = new CountDownLatch(0);
+    String failPath = null;
+
+    public RecordingCrawler(int numAnalysisThreads) {
+      super(null, numAnalysisThreads, 1);
+    }
+    protected void analyzeFile(FileSystem fs, FileStatus fstatus, long crawlid) throws IOException {
+      int running = numRunning.incrementAndGet();
+      synchronized (maxRunning) {
+        maxRunning.set(Math.max(running, maxRunning.get()));
+      }
+      try {
+        release.await();
+        analyzed.add(fstatus.getPath().getName());
+        if (fstatus.getPath().getName().equals(failPath)) {
+          throw new IOException("Could not analyze " + fstatus.getPath());
+        }
+      } catch (InterruptedException iex) {
+        throw new IOException("Interrupted");
+      } finally {
+        numRunning.decrementAndGet();
+      }
+    }
+    public void analyze(Iterator<FileStatus> files, Set<String> skipPaths, CrawlRuntimeStatus cstatus) throws InterruptedException {
+      analyzeFiles(null, files, skipPaths, 1, cstatus);
+    }
+  }
+
+  /**
+   * 'numFiles' listed files, counting how many have been taken
+   */
+  static class Listing implements Iterator<FileStatus> {
+    int numFiles;
+    AtomicInteger numTaken = new AtomicInteger(0);
+
+    public Listing(int numFiles) {
+      this.numFiles = numFiles;
+    }
+    public boolean hasNext() {
+      return numTaken.get() < numFiles;
+    }
+    public FileStatus next() {
+      return new FileStatus(100, false, 1, 1024, 0, getPath(numTaken.getAndIncrement()));
+    }
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  static Path getPath(int i) {
+    return new Path("/crawl/file" + i);
+  }
+
+  @Test(timeout=10000)
+  public void testAnalyzeAll() throws InterruptedException {
+    RecordingCrawler crawler = new RecordingCrawler(3);
+    crawler.failPath = "file5";
+    Set<String> skipPaths = new TreeSet<String>();
+    skipPaths.add(getPath(0).toString());
+    skipPaths.add(getPath(7).toString());
+    CrawlRuntimeStatus cstatus = new CrawlRuntimeStatus("Processing files");
+    crawler.analyze(new Listing(50), skipPaths, cstatus);
+
+    // Every file but the skipped ones, even after one fails
+    Assert.assertEquals(48, crawler.analyzed.size());
+    Assert.assertFalse(crawler.analyzed.contains("file0"));
+    Assert.assertTrue(crawler.analyzed.contains("file5"));
+    Assert.assertTrue(crawler.analyzed.contains("file49"));
+    Assert.assertEquals(48, cstatus.getNumToProcess());
+    Assert.assertEquals(48, cstatus.getNumDone());
+    Assert.assertEquals(0, cstatus.getNumInProgress());
+    Assert.assertTrue(crawler.maxRunning.get() <= 3);
+  }
+
+  /**
+   * A pool whose workers are stuck takes only as many files as it can queue,
+   * and once told to finish, starts none of the ones still waiting
+   */
+  @Test(timeout=10000)
+  public void testBoundedPoolStops() throws Exception {
+    final int numThreads = 2;
+    final RecordingCrawler crawler = new RecordingCrawler(numThreads);
+    crawler.release = new CountDownLatch(1);
+    final Listing listing = new Listing(1000);
+    final CrawlRuntimeStatus cstatus = new CrawlRuntimeStatus("Processing files");
+    final Exception errors[] = new Exception[1];
+    Thread t = new Thread() {
+        public void run() {
+          try {
+            crawler.analyze(listing, null, cstatus);
+          } catch (Exception ex) {
+            errors[0] = ex;
+          }
+        }
+      };
+    t.start();
+
+    // Both workers are busy, the queue is full, and one more file waits for room
+    Thread.sleep(500);
+    int maxPending = numThreads * FSCrawler.MAX_PENDING_FILES_PER_THREAD;
+    Assert.assertEquals(numThreads, crawler.numRunning.get());
+    Assert.assertEquals(maxPending + 1, listing.numTaken.get());
+    Assert.assertTrue(t.isAlive());
+
+    cstatus.setShouldFinish(true);
+    crawler.release.countDown();
+    t.join(5000);
+    Assert.assertFalse(t.isAlive());
+    Assert.assertNull(errors[0]);
+
+    // Only the files already running were analyzed, and the listing was left alone
+    Assert.assertEquals(numThreads, crawler.analyzed.size());
+    Assert.assertEquals(numThreads, crawler.maxRunning.get());
+    Assert.assertEquals(maxPending + 1, listing.numTaken.get());
+    Assert.assertEquals(numThreads, cstatus.getNumDone());
+  }
+}
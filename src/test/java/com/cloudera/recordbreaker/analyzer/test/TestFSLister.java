@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import com.cloudera.recordbreaker.analyzer.FSLister;
+
+/**
+ * TestFSLister walks a small local tree.  It checks what each depth limit
+ * returns, that a plain file start returns just that file, that workers wait
+ * for a caller who stops reading, and that close() releases a caller who is
+ * waiting for the next item.
+ *
+ * The tree is:
+ *   root/a.txt
+ *   root/d1/b.txt
+ *   root/d1/d2/c.txt
+ *   root/d1/d2/d3/e.txt
+ *
+ * @author "Michael Cafarella"
+ * @see FSLister
+ */
+public class TestFSLister {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+  FileSystem fs = null;
+  File rootDir = null;
+  Path root = null;
+
+  /**
+   * Counts calls to listStatus(), and makes them wait for 'release' if set
+   */
+  static class CountingFileSystem extends FilterFileSystem {
+    AtomicInteger numListings = new AtomicInteger(0);
+    CountDownLatch release = null;
+
+    public CountingFileSystem(FileSystem fs) {
+      super(fs);
+    }
+    public FileStatus[] listStatus(Path p) throws IOException {
+      numListings.incrementAndGet();
+      if (release != null) {
+        try {
+          release.await();
+        } catch (InterruptedException iex) {
+          throw new IOException("Interrupted listing " + p);
+        }
+      }
+      return super.listStatus(p);
+    }
+  }
+
+  static void createFile(File f) throws IOException {
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(("contents of " + f.getName() + "\n").getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  @Before
+  public void prepare() throws IOException {
+    fs = FileSystem.getLocal(new Configuration());
+    rootDir = tmpOutDir.newFolder("root");
+    File d3 = new File(rootDir, "d1/d2/d3");
+    Assert.assertTrue(d3.mkdirs());
+    createFile(new File(rootDir, "a.txt"));
+    createFile(new File(rootDir, "d1/b.txt"));
+    createFile(new File(rootDir, "d1/d2/c.txt"));
+    createFile(new File(d3, "e.txt"));
+    root = new Path(rootDir.getCanonicalPath());
+  }
+
+  /**
+   * The names of everything 'lister' returns
+   */
+  static Set<String> listNames(FSLister lister) {
+    Set<String> names = new TreeSet<String>();
+    try {
+      while (lister.hasNext()) {
+        Assert.assertTrue(names.add(lister.next().getPath().getName()));
+      }
+    } finally {
+      lister.close();
+    }
+    return names;
+  }
+
+  static Set<String> nameSet(String names[]) {
+    return new TreeSet<String>(Arrays.asList(names));
+  }
+
+  @Test(timeout=10000)
+  public void testDepthLimits() throws IOException {
+    Assert.assertEquals(nameSet(new String[0]),
+                        listNames(new FSLister(fs, root, 0, 2, 10)));
+    Assert.assertEquals(nameSet(new String[] {"root", "a.txt"}),
+                        listNames(new FSLister(fs, root, 1, 2, 10)));
+    Assert.assertEquals(nameSet(new String[] {"root", "a.txt", "d1", "b.txt"}),
+                        listNames(new FSLister(fs, root, 2, 2, 10)));
+    Assert.assertEquals(nameSet(new String[] {"root", "a.txt", "d1", "b.txt", "d2", "c.txt", "d3", "e.txt"}),
+                        listNames(new FSLister(fs, root, -1, 2, 10)));
+
+    // A subdirectory as the start
+    Assert.assertEquals(nameSet(new String[] {"d2", "c.txt", "d3", "e.txt"}),
+                        listNames(new FSLister(fs, new Path(root, "d1/d2"), -1, 1, 1)));
+  }
+
+  @Test(timeout=10000)
+  public void testSingleFileStart() throws IOException {
+    Path start = new Path(root, "d1/b.txt");
+    FSLister lister = new FSLister(fs, start, -1, 2, 10);
+    Assert.assertTrue(lister.hasNext());
+    FileStatus fstatus = lister.next();
+    Assert.assertFalse(fstatus.isDir());
+    Assert.assertEquals("b.txt", fstatus.getPath().getName());
+    Assert.assertFalse(lister.hasNext());
+
+    // Depth doesn't apply to a file
+    Assert.assertEquals(nameSet(new String[] {"b.txt"}), listNames(new FSLister(fs, start, 0, 2, 10)));
+  }
+
+  /**
+   * A caller who stops reading stops the walk, and loses nothing
+   */
+  @Test(timeout=10000)
+  public void testBackPressure() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      File subdir = new File(rootDir, "wide" + i);
+      Assert.assertTrue(subdir.mkdir());
+      for (int j = 0; j < 5; j++) {
+        createFile(new File(subdir, "f" + i + "_" + j));
+      }
+    }
+    CountingFileSystem cfs = new CountingFileSystem(fs);
+    FSLister lister = new FSLister(cfs, root, -1, 4, 1);
+
+    // Nothing is read, so the workers stop once root's first child is waiting
+    Thread.sleep(500);
+    Assert.assertEquals(1, cfs.numListings.get());
+
+    Set<String> names = listNames(lister);
+    Assert.assertEquals(8 + 10 * 6, names.size());
+    Assert.assertTrue(names.contains("e.txt"));
+    Assert.assertTrue(names.contains("f9_4"));
+    Assert.assertEquals(4 + 10, cfs.numListings.get());
+  }
+
+  /**
+   * close() returns a caller waiting for an item that isn't coming
+   */
+  @Test(timeout=10000)
+  public void testCloseWakesConsumer() throws Exception {
+    CountingFileSystem cfs = new CountingFileSystem(fs);
+    cfs.release = new CountDownLatch(1);
+    final FSLister lister = new FSLister(cfs, root, -1, 1, 10);
+    try {
+      // The constructor queues the start directory itself
+      Assert.assertTrue(lister.hasNext());
+      Assert.assertEquals("root", lister.next().getPath().getName());
+
+      final CountDownLatch consumerDone = new CountDownLatch(1);
+      final boolean sawItem[] = new boolean[] {true};
+      Thread consumer = new Thread() {
+          public void run() {
+            sawItem[0] = lister.hasNext();
+            consumerDone.countDown();
+          }
+        };
+      consumer.start();
+
+      // The listing of root is stuck, so the consumer waits
+      Thread.sleep(300);
+      Assert.assertEquals(1, consumerDone.getCount());
+
+      lister.close();
+      consumer.join(2000);
+      Assert.assertEquals(0, consumerDone.getCount());
+      Assert.assertFalse(sawItem[0]);
+      Assert.assertFalse(lister.hasNext());
+    } finally {
+      cfs.release.countDown();
+    }
+  }
+}
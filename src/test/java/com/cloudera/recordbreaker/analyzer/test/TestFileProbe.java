@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import com.cloudera.recordbreaker.analyzer.FileProbe;
+
+/**
+ * TestFileProbe checks what a FileProbe holds: whether the file is text, its
+ * raw header, and at most PROBE_BYTES of its text, uncompressed if need be.
+ * Requests for more lines than the probe holds go back to the file, and
+ * nothing else does.
+ *
+ * @author "Michael Cafarella"
+ * @see FileProbe
+ */
+public class TestFileProbe {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+  File workingDir = null;
+  FileSystem fs = null;
+
+  @Before
+  public void prepare() throws IOException {
+    workingDir = tmpOutDir.newFolder("workingdir");
+    fs = FileSystem.getLocal(new Configuration());
+  }
+
+  Path createFile(String name, byte contents[]) throws IOException {
+    File f = new File(workingDir, name);
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(contents);
+    } finally {
+      out.close();
+    }
+    return new Path(f.getCanonicalPath());
+  }
+
+  /**
+   * 'numLines' numbered lines; the last one has no newline
+   */
+  static String getLines(String prefix, int numLines) {
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < numLines; i++) {
+      if (i > 0) {
+        buf.append("\n");
+      }
+      buf.append(prefix + " line " + i);
+    }
+    return buf.toString();
+  }
+
+  static byte[] gzip(String s) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(s.getBytes("UTF-8"));
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  @Test(timeout=10000)
+  public void testTextAndBinary() throws IOException {
+    FileProbe probe = new FileProbe(fs, createFile("text.txt", getLines("text", 20).getBytes("UTF-8")));
+    Assert.assertTrue(probe.isText());
+    Assert.assertTrue(probe.startsWith("text line 0".getBytes("UTF-8")));
+
+    byte binary[] = new byte[2048];
+    for (int i = 0; i < binary.length; i++) {
+      binary[i] = (byte) (i % 32);
+    }
+    probe = new FileProbe(fs, createFile("binary.dat", binary));
+    Assert.assertFalse(probe.isText());
+    Assert.assertTrue(probe.startsWith(new byte[] {0, 1, 2, 3}));
+
+    // An empty file isn't text, and has no header to match
+    probe = new FileProbe(fs, createFile("empty.txt", new byte[0]));
+    Assert.assertFalse(probe.isText());
+    Assert.assertFalse(probe.startsWith(new byte[] {0}));
+    Assert.assertEquals(0, probe.getLines(10).size());
+  }
+
+  /**
+   * The header holds the compressed bytes, and the text the uncompressed ones
+   */
+  @Test(timeout=10000)
+  public void testCompressed() throws IOException {
+    String text = getLines("compressed", 20);
+    FileProbe probe = new FileProbe(fs, createFile("data.gz", gzip(text)));
+    Assert.assertTrue(probe.startsWith(new byte[] {0x1f, (byte) 0x8b}));
+    Assert.assertTrue(probe.isText());
+    Assert.assertEquals(text, new String(probe.getTextBytes(Integer.MAX_VALUE), "UTF-8"));
+    Assert.assertEquals("compressed line 19", probe.getLines(100).get(19));
+
+    // A file that can't be uncompressed still has a header, but no text
+    byte notGzip[] = getLines("not gzip", 20).getBytes("UTF-8");
+    probe = new FileProbe(fs, createFile("bad.gz", notGzip));
+    Assert.assertTrue(probe.startsWith("not gzip".getBytes("UTF-8")));
+    Assert.assertFalse(probe.isText());
+    try {
+      probe.getTextBytes(10);
+      Assert.fail("Read text from a corrupt compressed file");
+    } catch (IOException iex) {
+    }
+  }
+
+  /**
+   * A file that fits in the probe is never read again
+   */
+  @Test(timeout=10000)
+  public void testSmallFile() throws IOException {
+    Path p = createFile("small.txt", getLines("old", 50).getBytes("UTF-8"));
+    FileProbe probe = new FileProbe(fs, p);
+    createFile("small.txt", getLines("new", 50).getBytes("UTF-8"));
+
+    List<String> lines = probe.getLines(1000);
+    Assert.assertEquals(50, lines.size());
+    Assert.assertEquals("old line 0", lines.get(0));
+    // The last line has no newline, but the probe holds all of it
+    Assert.assertEquals("old line 49", lines.get(49));
+    Assert.assertEquals(10, probe.getLines(10).size());
+  }
+
+  /**
+   * A larger file is cut off at PROBE_BYTES.  Lines within it come from the
+   * probe, minus the line that was cut off; more than that reads the file again.
+   */
+  @Test(timeout=10000)
+  public void testTruncation() throws IOException {
+    String text = getLines("old", 20000);
+    Assert.assertTrue(text.length() > 2 * FileProbe.PROBE_BYTES);
+    Path p = createFile("large.txt", text.getBytes("UTF-8"));
+    FileProbe probe = new FileProbe(fs, p);
+    createFile("large.txt", getLines("new", 20000).getBytes("UTF-8"));
+
+    byte textBytes[] = probe.getTextBytes(Integer.MAX_VALUE);
+    Assert.assertEquals(FileProbe.PROBE_BYTES, textBytes.length);
+    Assert.assertEquals(text.substring(0, FileProbe.PROBE_BYTES), new String(textBytes, "UTF-8"));
+    Assert.assertEquals(100, probe.getTextBytes(100).length);
+    Assert.assertTrue(probe.startsWith(text.substring(0, FileProbe.HEADER_BYTES).getBytes("UTF-8")));
+
+    List<String> lines = probe.getLines(10);
+    Assert.assertEquals("old line 9", lines.get(9));
+
+    // Every line the probe returns is whole
+    int numWholeLines = text.substring(0, FileProbe.PROBE_BYTES).split("\n").length - 1;
+    lines = probe.getLines(numWholeLines);
+    Assert.assertEquals(numWholeLines, lines.size());
+    Assert.assertEquals("old line " + (numWholeLines - 1), lines.get(numWholeLines - 1));
+
+    // One more line than that is past the probe
+    lines = probe.getLines(numWholeLines + 1);
+    Assert.assertEquals(numWholeLines + 1, lines.size());
+    Assert.assertEquals("new line 0", lines.get(0));
+    Assert.assertEquals(20000, probe.getLines(100000).size());
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import com.cloudera.recordbreaker.analyzer.FileProbe;
+import com.cloudera.recordbreaker.analyzer.FormatAnalyzer;
+import com.cloudera.recordbreaker.analyzer.DataDescriptor;
+import com.cloudera.recordbreaker.analyzer.FormatDetector;
+import com.cloudera.recordbreaker.analyzer.FormatDetectorRegistry;
+import com.cloudera.recordbreaker.analyzer.UnstructuredFileDescriptor;
+
+/**
+ * TestFormatDetectorRegistry checks the order in which the registry tries its
+ * detectors: registration order decides between two that match, text-only
+ * detectors never see binary files, and a detector that fails to describe a
+ * file it matched hands the file on to the next one.  It also pins the order
+ * in which FormatAnalyzer registers the built-in formats.
+ *
+ * @author "Michael Cafarella"
+ * @see FormatDetectorRegistry
+ */
+public class TestFormatDetectorRegistry {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+  FileSystem fs = null;
+  Path textFile = null;
+  Path binaryFile = null;
+
+  /**
+   * A detector with a fixed answer, that counts how often it is asked
+   */
+  static class FakeDetector implements FormatDetector {
+    String fileType;
+    int costTier;
+    boolean matches;
+    boolean failMatch = false;
+    boolean failDescribe = false;
+    int numMatchCalls = 0;
+    int numDescribeCalls = 0;
+    DataDescriptor lastDescriptor = null;
+
+    public FakeDetector(String fileType, int costTier, boolean matches) {
+      this.fileType = fileType;
+      this.costTier = costTier;
+      this.matches = matches;
+    }
+    public String getFileTypeIdentifier() {
+      return fileType;
+    }
+    public int getCostTier() {
+      return costTier;
+    }
+    public boolean matches(FileProbe probe) throws IOException {
+      numMatchCalls++;
+      if (failMatch) {
+        throw new IOException("Could not test " + probe.getPath());
+      }
+      return matches;
+    }
+    public DataDescriptor describe(FileSystem fs, Path p) throws IOException {
+      numDescribeCalls++;
+      if (failDescribe) {
+        throw new IOException("Could not describe " + p);
+      }
+      lastDescriptor = new UnstructuredFileDescriptor(fs, p);
+      return lastDescriptor;
+    }
+    public DataDescriptor load(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new UnstructuredFileDescriptor(fs, p);
+    }
+  }
+
+  @Before
+  public void prepare() throws IOException {
+    fs = FileSystem.getLocal(new Configuration());
+    File workingDir = tmpOutDir.newFolder("workingdir");
+
+    File f = new File(workingDir, "data.txt");
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      for (int i = 0; i < 20; i++) {
+        out.write(("line " + i + " of some text\n").getBytes("UTF-8"));
+      }
+    } finally {
+      out.close();
+    }
+    textFile = new Path(f.getCanonicalPath());
+
+    f = new File(workingDir, "data.bin");
+    out = new FileOutputStream(f);
+    try {
+      for (int i = 0; i < 2048; i++) {
+        out.write(i % 32);
+      }
+    } finally {
+      out.close();
+    }
+    binaryFile = new Path(f.getCanonicalPath());
+  }
+
+  DataDescriptor describe(FormatDetectorRegistry registry, Path p) throws IOException {
+    return registry.describe(fs, p, new FileProbe(fs, p));
+  }
+
+  /**
+   * The first detector registered wins, whatever the tiers
+   */
+  @Test(timeout=10000)
+  public void testRegistrationOrder() throws IOException {
+    FakeDetector noMatch = new FakeDetector("none", FormatDetector.MAGIC_BYTES, false);
+    FakeDetector scan = new FakeDetector("scan", FormatDetector.CONTENT_SCAN, true);
+    FakeDetector magic = new FakeDetector("magic", FormatDetector.MAGIC_BYTES, true);
+    FakeDetector duplicate = new FakeDetector("scan", FormatDetector.EXTENSION, true);
+    FormatDetectorRegistry registry = new FormatDetectorRegistry();
+    registry.register(noMatch);
+    registry.register(scan);
+    registry.register(magic);
+    registry.register(duplicate);
+
+    DataDescriptor descriptor = describe(registry, textFile);
+    Assert.assertSame(scan.lastDescriptor, descriptor);
+    Assert.assertEquals(1, noMatch.numMatchCalls);
+    Assert.assertEquals(0, magic.numMatchCalls);
+    Assert.assertEquals(0, duplicate.numMatchCalls);
+
+    // The first detector registered for a file type is the one that loads it
+    Assert.assertSame(scan, registry.getDetector("scan"));
+    Assert.assertSame(magic, registry.getDetector("magic"));
+    Assert.assertNull(registry.getDetector("unknown"));
+    Assert.assertEquals(4, registry.getStatistics().size());
+  }
+
+  /**
+   * Binary files skip CONTENT_SCAN and INFERENCE detectors, but not the
+   * cheaper ones registered after them
+   */
+  @Test(timeout=10000)
+  public void testTextOnlyDetectors() throws IOException {
+    Assert.assertTrue(new FileProbe(fs, textFile).isText());
+    Assert.assertFalse(new FileProbe(fs, binaryFile).isText());
+
+    FakeDetector scan = new FakeDetector("scan", FormatDetector.CONTENT_SCAN, true);
+    FakeDetector inference = new FakeDetector("inference", FormatDetector.INFERENCE, true);
+    FakeDetector extension = new FakeDetector("extension", FormatDetector.EXTENSION, true);
+    FormatDetectorRegistry registry = new FormatDetectorRegistry();
+    registry.register(scan);
+    registry.register(inference);
+    registry.register(extension);
+
+    DataDescriptor descriptor = describe(registry, binaryFile);
+    Assert.assertSame(extension.lastDescriptor, descriptor);
+    Assert.assertEquals(0, scan.numMatchCalls);
+    Assert.assertEquals(0, inference.numMatchCalls);
+    Assert.assertEquals(1, extension.numMatchCalls);
+
+    descriptor = describe(registry, textFile);
+    Assert.assertSame(scan.lastDescriptor, descriptor);
+    Assert.assertEquals(1, scan.numMatchCalls);
+    Assert.assertEquals(1, extension.numMatchCalls);
+  }
+
+  /**
+   * A detector that throws, testing or describing, passes the file on
+   */
+  @Test(timeout=10000)
+  public void testFailuresFallThrough() throws IOException {
+    FakeDetector badMatch = new FakeDetector("badmatch", FormatDetector.MAGIC_BYTES, true);
+    badMatch.failMatch = true;
+    FakeDetector badDescribe = new FakeDetector("baddescribe", FormatDetector.EXTENSION, true);
+    badDescribe.failDescribe = true;
+    FakeDetector good = new FakeDetector("good", FormatDetector.CONTENT_SCAN, true);
+    FormatDetectorRegistry registry = new FormatDetectorRegistry();
+    registry.register(badMatch);
+    registry.register(badDescribe);
+    registry.register(good);
+
+    DataDescriptor descriptor = describe(registry, textFile);
+    Assert.assertNotNull(descriptor);
+    Assert.assertSame(good.lastDescriptor, descriptor);
+    Assert.assertEquals(0, badMatch.numDescribeCalls);
+    Assert.assertEquals(1, badDescribe.numDescribeCalls);
+    Assert.assertEquals(1, good.numDescribeCalls);
+
+    // Nothing left to try
+    good.matches = false;
+    Assert.assertNull(describe(registry, textFile));
+  }
+
+  /**
+   * CSV by name first, then the sequence file headers, then the content scans,
+   * with inference last
+   */
+  @Test(timeout=10000)
+  public void testAnalyzerPrecedence() throws IOException {
+    FormatDetectorRegistry registry = new FormatAnalyzer(tmpOutDir.newFolder("schemadb"), null).getDetectorRegistry();
+    List<String> order = new ArrayList<String>();
+    for (String line: registry.getStatistics()) {
+      order.add(line.substring(0, line.indexOf(':')));
+    }
+    String expected[] = {"csv (tier 1)", "avrosequencefile (tier 0)", "sequencefile (tier 0)", "csv (tier 2)",
+                         "xml (tier 1)", "avro (tier 1)", "apachelog (tier 2)", "syslog (tier 2)", "structured-text (tier 3)"};
+    Assert.assertEquals(expected.length, order.size());
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i], order.get(i));
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.analyzer.InferenceCache;
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+
+/**
+ * TestInferenceCache checks that files with the same layout find each other's
+ * cache entries and files with other layouts don't, that entries outlive the
+ * InferenceCache that wrote them, and that a sample with no common layout
+ * gets no fingerprint to be cached under.
+ *
+ * @author "Michael Cafarella"
+ * @see InferenceCache
+ */
+public class TestInferenceCache {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+  File cacheDir = null;
+
+  @Before
+  public void prepare() throws IOException {
+    cacheDir = tmpOutDir.newFolder("cache");
+  }
+
+  /**
+   * 'numLines' lines of "<int> <word> <float>"
+   */
+  static List<String> getLines(int numLines, int seed) {
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < numLines; i++) {
+      lines.add((seed + i) + " word" + (seed * i) + " " + i + ".5");
+    }
+    return lines;
+  }
+
+  @Test(timeout=10000)
+  public void testHitAndMiss() throws IOException {
+    InferenceCache cache = new InferenceCache(cacheDir, InferenceCache.DEFAULT_MAX_ENTRIES);
+    long fingerprint = LearnStructure.getLayoutFingerprint(getLines(50, 1));
+    Assert.assertNull(cache.get(fingerprint));
+    cache.put(fingerprint, "schema1", new byte[] {1, 2, 3});
+
+    // Another file with the same layout but different values
+    long sameLayout = LearnStructure.getLayoutFingerprint(getLines(80, 7));
+    Assert.assertEquals(fingerprint, sameLayout);
+    InferenceCache.Entry entry = cache.get(sameLayout);
+    Assert.assertNotNull(entry);
+    Assert.assertEquals("schema1", entry.getSchemaRepr());
+    Assert.assertArrayEquals(new byte[] {1, 2, 3}, entry.getPayload());
+
+    // A rare line doesn't change the fingerprint, but a new layout does
+    List<String> withRareLine = getLines(200, 3);
+    withRareLine.add("a different line, with (other) tokens");
+    Assert.assertEquals(fingerprint, LearnStructure.getLayoutFingerprint(withRareLine));
+    long otherLayout = LearnStructure.getLayoutFingerprint(Arrays.asList(new String[] {"x=1;y=2", "x=3;y=4"}));
+    Assert.assertTrue(otherLayout != fingerprint);
+    Assert.assertNull(cache.get(otherLayout));
+  }
+
+  @Test(timeout=10000)
+  public void testPersistence() throws IOException {
+    InferenceCache cache = new InferenceCache(cacheDir, InferenceCache.DEFAULT_MAX_ENTRIES);
+    // Written as unsigned hex, so negative fingerprints must come back too
+    cache.put(-5L, "negative", new byte[] {4});
+    cache.put(42L, "positive", new byte[] {5, 6});
+
+    InferenceCache reopened = new InferenceCache(cacheDir, InferenceCache.DEFAULT_MAX_ENTRIES);
+    Assert.assertEquals(2, reopened.size());
+    Assert.assertEquals("negative", reopened.get(-5L).getSchemaRepr());
+    Assert.assertArrayEquals(new byte[] {5, 6}, reopened.get(42L).getPayload());
+    Assert.assertNull(reopened.get(43L));
+  }
+
+  @Test(timeout=10000)
+  public void testEviction() throws IOException {
+    InferenceCache cache = new InferenceCache(cacheDir, 2);
+    cache.put(1L, "one", new byte[0]);
+    cache.put(2L, "two", new byte[0]);
+    Assert.assertNotNull(cache.get(1L));
+    cache.put(3L, "three", new byte[0]);
+
+    // 2 was the least recently used
+    Assert.assertEquals(2, cache.size());
+    Assert.assertEquals(1, cache.getNumEvictions());
+    Assert.assertNull(cache.get(2L));
+    Assert.assertNotNull(cache.get(1L));
+    Assert.assertNotNull(cache.get(3L));
+    Assert.assertEquals(2, new InferenceCache(cacheDir, 2).size());
+  }
+
+  /**
+   * Samples with no layout in common mustn't all land on one cache entry
+   */
+  @Test(timeout=10000)
+  public void testNoCommonLayout() throws IOException {
+    Assert.assertEquals(LearnStructure.NO_LAYOUT_FINGERPRINT, LearnStructure.getLayoutFingerprint(new ArrayList<String>()));
+
+    // Every line has a different number of fields, so no layout makes up 1% of them
+    List<String> lines = new ArrayList<String>();
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < 150; i++) {
+      buf.append(i + ";");
+      lines.add(buf.toString());
+    }
+    Assert.assertEquals(LearnStructure.NO_LAYOUT_FINGERPRINT, LearnStructure.getLayoutFingerprint(lines));
+  }
+}
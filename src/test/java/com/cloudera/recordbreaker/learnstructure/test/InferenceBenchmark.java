@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.util.List;
+import java.util.ArrayList;
+
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.PackedChunk;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+
+/**
+ * InferenceBenchmark times tokenizing and type inference.  For each sample
+ * text file it builds an input of 'numCopies' copies of the file's lines, the
+ * way a log repeats a few line shapes.  It tokenizes that input, then infers
+ * a type from the tokens with and without TypeInference.COLLAPSE_DUPLICATES,
+ * and checks that the two give the same schema, apart from the counters in
+ * generated type names.  Each step is run
+ * 'numPasses' times; the first half are warmup and are not counted.
+ *
+ * Usage: InferenceBenchmark (sampleDir (numCopies (numPasses)))
+ */
+public class InferenceBenchmark {
+  public static void main(String argv[]) throws IOException {
+    File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+    int numCopies = 200;
+    int numPasses = 10;
+    if (argv.length > 0) {
+      sampleDir = new File(argv[0]);
+    }
+    if (argv.length > 1) {
+      numCopies = Integer.parseInt(argv[1]);
+    }
+    if (argv.length > 2) {
+      numPasses = Integer.parseInt(argv[2]);
+    }
+
+    System.err.println("File\tLines\tTokenize ms\tCollapsed infer ms\tUncollapsed infer ms");
+    for (File inputData: sampleDir.listFiles()) {
+      if (! inputData.getName().endsWith(".txt")) {
+        continue;
+      }
+      List<String> fileLines = new ArrayList<String>();
+      BufferedReader in = new BufferedReader(new FileReader(inputData));
+      try {
+        String s = in.readLine();
+        while (s != null) {
+          fileLines.add(s);
+          s = in.readLine();
+        }
+      } finally {
+        in.close();
+      }
+      List<String> lines = new ArrayList<String>();
+      for (int i = 0; i < numCopies; i++) {
+        lines.addAll(fileLines);
+      }
+
+      List<PackedChunk> chunks = null;
+      long tokenizeNanos = 0;
+      for (int i = 0; i < numPasses; i++) {
+        long start = System.nanoTime();
+        chunks = new ArrayList<PackedChunk>();
+        for (String s: lines) {
+          PackedChunk chunk = Tokenizer.tokenizePacked(s);
+          if (chunk != null) {
+            chunks.add(chunk);
+          }
+        }
+        if (i >= numPasses / 2) {
+          tokenizeNanos += System.nanoTime() - start;
+        }
+      }
+
+      String collapsedSchema = null;
+      String uncollapsedSchema = null;
+      long collapsedNanos = 0;
+      long uncollapsedNanos = 0;
+      try {
+        for (int i = 0; i < numPasses; i++) {
+          TypeInference.COLLAPSE_DUPLICATES = true;
+          long start = System.nanoTime();
+          InferredType typeTree = TypeInference.infer(chunks);
+          if (i >= numPasses / 2) {
+            collapsedNanos += System.nanoTime() - start;
+          }
+          collapsedSchema = stripCounters(typeTree.getAvroSchema().toString());
+
+          TypeInference.COLLAPSE_DUPLICATES = false;
+          start = System.nanoTime();
+          typeTree = TypeInference.infer(chunks);
+          if (i >= numPasses / 2) {
+            uncollapsedNanos += System.nanoTime() - start;
+          }
+          uncollapsedSchema = stripCounters(typeTree.getAvroSchema().toString());
+        }
+      } finally {
+        TypeInference.COLLAPSE_DUPLICATES = true;
+      }
+      if (! collapsedSchema.equals(uncollapsedSchema)) {
+        throw new IOException("Inferred schemas differ for " + inputData);
+      }
+      long numCounted = numPasses - numPasses / 2;
+      System.err.println(inputData.getName() + "\t" + lines.size() + "\t" + (tokenizeNanos / numCounted / 1000000) + "\t" + (collapsedNanos / numCounted / 1000000) + "\t" + (uncollapsedNanos / numCounted / 1000000));
+    }
+  }
+
+  /**
+   * Each inference numbers its types anew, so "base_12" here may be "base_40" there
+   */
+  static String stripCounters(String schemaStr) {
+    return schemaStr.replaceAll("_[0-9]+\"", "_\"");
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.avro.generic.GenericContainer;
+
+import com.cloudera.recordbreaker.learnstructure.EncodedDatum;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.ParserProgram;
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+
+/**
+ * ParserBenchmark times the ways ParserProgram can consume a line: building a
+ * new record, overwriting the previous record, and encoding straight to Avro
+ * binary.  For each sample text file it infers a structure, checks that
+ * reused records match fresh ones, then times repeated passes over the file
+ * in each mode.  The first half of the passes are warmup and are not counted.
+ * It times no generated parser, since ParserProgram has none; its class
+ * comment says why.
+ *
+ * Usage: ParserBenchmark (sampleDir (numPasses))
+ */
+public class ParserBenchmark {
+  final static int FRESH = 0;
+  final static int REUSE = 1;
+  final static int ENCODE = 2;
+
+  public static void main(String argv[]) throws IOException {
+    File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+    int numPasses = 2000;
+    if (argv.length > 0) {
+      sampleDir = new File(argv[0]);
+    }
+    if (argv.length > 1) {
+      numPasses = Integer.parseInt(argv[1]);
+    }
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    File workingDir = File.createTempFile("parserbenchmark", "", null);
+    workingDir.delete();
+    workingDir.mkdirs();
+    try {
+      System.err.println("File\tLines\tFresh ns/line\tReuse ns/line\tEncode ns/line");
+      for (File inputData: sampleDir.listFiles()) {
+        if (! inputData.getName().endsWith(".txt")) {
+          continue;
+        }
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(inputData));
+        try {
+          String s = in.readLine();
+          while (s != null) {
+            lines.add(s);
+            s = in.readLine();
+          }
+        } finally {
+          in.close();
+        }
+
+        // Infer structure
+        File schemaFile = new File(workingDir, inputData.getName() + ".schema");
+        File parseTreeFile = new File(workingDir, inputData.getName() + ".parser");
+        LearnStructure ls = new LearnStructure();
+        ls.inferRecordFormat(localFS, new Path(inputData.getCanonicalPath()), localFS, new Path(schemaFile.getCanonicalPath()), new Path(parseTreeFile.getCanonicalPath()), null, null, false, lines.size());
+        InferredType typeTree = null;
+        DataInputStream din = new DataInputStream(localFS.open(new Path(parseTreeFile.getCanonicalPath())));
+        try {
+          typeTree = InferredType.readType(din);
+        } finally {
+          din.close();
+        }
+        ParserProgram program = new ParserProgram(typeTree);
+
+        GenericContainer reuse = null;
+        for (String s: lines) {
+          GenericContainer r1 = program.parse(s);
+          String r2 = null;
+          reuse = program.parse(s, reuse);
+          if (reuse != null) {
+            r2 = reuse.toString();
+          }
+          if ((r1 == null) ? (r2 != null) : (r2 == null || ! r1.toString().equals(r2))) {
+            throw new IOException("Reused record differs on line '" + s + "' of " + inputData);
+          }
+        }
+        long freshNanos = timeParser(program, lines, numPasses, FRESH);
+        long reuseNanos = timeParser(program, lines, numPasses, REUSE);
+        long encodeNanos = timeParser(program, lines, numPasses, ENCODE);
+        long numLines = (long) lines.size() * (numPasses - numPasses / 2);
+        System.err.println(inputData.getName() + "\t" + lines.size() + "\t" + (freshNanos / numLines) + "\t" + (reuseNanos / numLines) + "\t" + (encodeNanos / numLines));
+      }
+    } finally {
+      for (File f: workingDir.listFiles()) {
+        f.delete();
+      }
+      workingDir.delete();
+    }
+  }
+
+  /**
+   * Nanoseconds spent in the passes after the warmup
+   */
+  static long timeParser(ParserProgram program, List<String> lines, int numPasses, int mode) throws IOException {
+    GenericContainer reuse = null;
+    EncodedDatum datum = new EncodedDatum();
+    long elapsed = 0;
+    for (int i = 0; i < numPasses; i++) {
+      long start = System.nanoTime();
+      for (String s: lines) {
+        if (mode == FRESH) {
+          program.parse(s);
+        } else if (mode == REUSE) {
+          GenericContainer r = program.parse(s, reuse);
+          if (r != null) {
+            reuse = r;
+          }
+        } else {
+          program.encode(s, datum, true);
+        }
+      }
+      if (i >= numPasses / 2) {
+        elapsed += System.nanoTime() - start;
+      }
+    }
+    return elapsed;
+  }
+}
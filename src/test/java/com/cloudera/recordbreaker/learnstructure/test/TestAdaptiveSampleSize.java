@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+
+/**
+ * TestAdaptiveSampleSize checks when adaptive inference stops growing its
+ * sample: once the schema has held still for the requested number of rounds,
+ * at the end of the input, or at the line ceiling.
+ *
+ * @see LearnStructure#setAdaptiveSampleSize
+ */
+public class TestAdaptiveSampleSize {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+  File workingDir = null;
+
+  @Before
+  public void prepare() throws IOException {
+    workingDir = tmpOutDir.newFolder("workingdir");
+  }
+
+  /**
+   * 'numLines' lines that all have the same layout
+   */
+  static List<String> getUniformLines(int numLines) {
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < numLines; i++) {
+      lines.add(i + " word" + i + " " + i + ".5");
+    }
+    return lines;
+  }
+
+  /**
+   * As above, but from line 'switchLine' on, every other line has a second layout
+   */
+  static List<String> getSwitchingLines(int numLines, int switchLine) {
+    List<String> lines = getUniformLines(numLines);
+    for (int i = switchLine; i < numLines; i += 2) {
+      lines.set(i, "[" + i + "] (" + (i * 3) + ", " + (i * 7) + ")");
+    }
+    return lines;
+  }
+
+  static long getFingerprint(InferredType typeTree) {
+    return LearnStructure.getSchemaFingerprint(typeTree.getAvroSchema());
+  }
+
+  @Test(timeout=20000)
+  public void testStableSchemaStopsEarly() throws IOException {
+    List<String> lines = getUniformLines(1000);
+    LearnStructure ls = new LearnStructure();
+    ls.setAdaptiveSampleSize(10, 2);
+    InferredType adaptiveType = ls.inferType(lines);
+
+    // 10 lines, then 20 and 40 with no change
+    Assert.assertEquals(3, ls.getInferenceRounds());
+    Assert.assertEquals(40, ls.getInferenceLines());
+    Assert.assertEquals(10, ls.getConvergenceLines());
+
+    // The same schema as inference over every line, generated names aside
+    InferredType fullType = new LearnStructure().inferType(lines);
+    Assert.assertEquals(getFingerprint(fullType), getFingerprint(adaptiveType));
+  }
+
+  @Test(timeout=20000)
+  public void testChangingSchemaKeepsGrowing() throws IOException {
+    List<String> lines = getSwitchingLines(2000, 25);
+    LearnStructure ls = new LearnStructure();
+    ls.setAdaptiveSampleSize(10, 2);
+    InferredType adaptiveType = ls.inferType(lines);
+
+    // The second layout first shows up in the round over 40 lines; 80 and 160 confirm it
+    Assert.assertEquals(5, ls.getInferenceRounds());
+    Assert.assertEquals(160, ls.getInferenceLines());
+    Assert.assertEquals(40, ls.getConvergenceLines());
+    InferredType fullType = new LearnStructure().inferType(lines);
+    Assert.assertEquals(getFingerprint(fullType), getFingerprint(adaptiveType));
+  }
+
+  /**
+   * Only the lines read so far count, so a layout that starts after the schema
+   * has settled is missed
+   */
+  @Test(timeout=20000)
+  public void testLateChangeIsMissed() throws IOException {
+    List<String> lines = getSwitchingLines(2000, 100);
+    LearnStructure ls = new LearnStructure();
+    ls.setAdaptiveSampleSize(10, 2);
+    InferredType adaptiveType = ls.inferType(lines);
+    Assert.assertEquals(40, ls.getInferenceLines());
+    InferredType fullType = new LearnStructure().inferType(lines);
+    Assert.assertTrue(getFingerprint(fullType) != getFingerprint(adaptiveType));
+  }
+
+  @Test(timeout=20000)
+  public void testEndOfInputConverges() throws IOException {
+    List<String> lines = getSwitchingLines(30, 15);
+    LearnStructure ls = new LearnStructure();
+    ls.setAdaptiveSampleSize(10, 5);
+    ls.inferType(lines);
+
+    // 10, 20, then the last 10 lines
+    Assert.assertEquals(3, ls.getInferenceRounds());
+    Assert.assertEquals(30, ls.getInferenceLines());
+    Assert.assertTrue(ls.getConvergenceLines() > 0);
+  }
+
+  /**
+   * Reaching maxLines while the schema is still changing is not convergence
+   */
+  @Test(timeout=20000)
+  public void testCeiling() throws IOException {
+    File f = new File(workingDir, "switching.txt");
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      for (String line: getSwitchingLines(1000, 30)) {
+        out.write((line + "\n").getBytes("UTF-8"));
+      }
+    } finally {
+      out.close();
+    }
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path parseTreeFile = new Path(workingDir.getCanonicalPath(), "switching.parser");
+    LearnStructure ls = new LearnStructure();
+    ls.setAdaptiveSampleSize(10, 2);
+    ls.inferRecordFormat(fs, new Path(f.getCanonicalPath()), fs, null, parseTreeFile, null, null, false, 50);
+
+    // 10, 20, 40, then the ceiling of 50
+    Assert.assertEquals(4, ls.getInferenceRounds());
+    Assert.assertEquals(50, ls.getInferenceLines());
+    Assert.assertEquals(-1, ls.getConvergenceLines());
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileInputStream;
+import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.AvroConverter;
+import com.cloudera.recordbreaker.learnstructure.ParserProgram;
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+
+/**
+ * TestAvroConverter checks that AvroConverter writes the same Avro records, JSON
+ * and rejected lines as LearnStructure.inferRecordFormat()'s serial pass over
+ * the file, however the file is split and however many threads there are.
+ *
+ * @see AvroConverter
+ */
+public class TestAvroConverter {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+  static int INFERENCE_LINES = 5;
+
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+  File workingDir = null;
+  FileSystem localFS = null;
+
+  @Before
+  public void prepare() throws IOException {
+    workingDir = tmpOutDir.newFolder("workingdir");
+    localFS = FileSystem.getLocal(new Configuration());
+  }
+
+  Path getPath(String name) throws IOException {
+    return new Path(new File(workingDir, name).getCanonicalPath());
+  }
+
+  @Test(timeout=60000)
+  public void testConverterMatchesSerial() throws IOException {
+    String inputs[] = {"commonlog.txt", "filelisting.txt", "wikipediatopics.txt"};
+    long splitSizes[] = {1, 97, AvroConverter.DEFAULT_SPLIT_SIZE};
+    int numThreads[] = {1, 3};
+    int numRejected = 0;
+    for (String input: inputs) {
+      Path inputPath = new Path(new File(sampleDir, input).getCanonicalPath());
+
+      // The serial pass.  Inference runs over the head of the file only, so
+      // that some lines are rejected.
+      Path parseTreeFile = getPath(input + ".parser");
+      Path serialAvro = getPath(input + ".serial.avro");
+      Path serialJson = getPath(input + ".serial.json");
+      Path serialRejects = getPath(input + ".serial.rejects");
+      LearnStructure ls = new LearnStructure();
+      ls.setNumConvertThreads(1);
+      ls.inferRecordFormat(localFS, inputPath, localFS, null, parseTreeFile, null, serialJson, serialAvro, serialRejects, false, INFERENCE_LINES);
+      DataInputStream in = new DataInputStream(new FileInputStream(parseTreeFile.toString()));
+      InferredType typeTree = null;
+      try {
+        typeTree = InferredType.readType(in);
+      } finally {
+        in.close();
+      }
+      Schema schema = typeTree.getAvroSchema();
+      List<byte[]> expected = readEncodedRecords(serialAvro, schema);
+      Assert.assertEquals(ls.getEmittedRecords(), expected.size());
+      numRejected += ls.getEmittedLines() - ls.getEmittedRecords();
+
+      for (long splitSize: splitSizes) {
+        for (int n: numThreads) {
+          String suffix = input + "." + splitSize + "." + n;
+          AvroConverter converter = new AvroConverter(new ParserProgram(typeTree));
+          converter.setNumThreads(n);
+          converter.setSplitSize(splitSize);
+          converter.convert(localFS, inputPath, localFS, getPath(suffix + ".avro"), getPath(suffix + ".json"), getPath(suffix + ".rejects"));
+          Assert.assertEquals(ls.getEmittedLines(), converter.getNumLines());
+          Assert.assertEquals(ls.getEmittedRecords(), converter.getNumRecords());
+
+          List<byte[]> actual = readEncodedRecords(getPath(suffix + ".avro"), schema);
+          Assert.assertEquals(expected.size(), actual.size());
+          for (int i = 0; i < expected.size(); i++) {
+            Assert.assertArrayEquals(suffix + " record " + i, expected.get(i), actual.get(i));
+          }
+          Assert.assertEquals(suffix, readText(serialJson), readText(getPath(suffix + ".json")));
+          Assert.assertEquals(suffix, readText(serialRejects), readText(getPath(suffix + ".rejects")));
+        }
+      }
+
+      // inferRecordFormat() itself, handing its outputs to the converter
+      ls = new LearnStructure();
+      ls.setNumConvertThreads(3);
+      Path parallelRejects = getPath(input + ".parallel.rejects");
+      ls.inferRecordFormat(localFS, inputPath, localFS, null, null, null, getPath(input + ".parallel.json"), getPath(input + ".parallel.avro"), parallelRejects, false, INFERENCE_LINES);
+      Assert.assertEquals(expected.size(), ls.getEmittedRecords());
+      Assert.assertEquals(readText(serialRejects), readText(parallelRejects));
+    }
+    Assert.assertTrue(numRejected > 0);
+  }
+
+  String readText(Path p) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FileInputStream in = new FileInputStream(p.toString());
+    try {
+      byte buf[] = new byte[4096];
+      int n = 0;
+      while ((n = in.read(buf)) > 0) {
+        bytes.write(buf, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return bytes.toString("UTF-8");
+  }
+
+  /**
+   * Each record of the file, in Avro's binary encoding.  Container files carry a
+   * random sync marker, and block boundaries follow the splits, so the records
+   * are what can be compared byte for byte.
+   */
+  List<byte[]> readEncodedRecords(Path p, Schema schema) throws IOException {
+    List<byte[]> records = new ArrayList<byte[]>();
+    GenericDatumWriter<Object> datumWriter = new GenericDatumWriter<Object>(schema);
+    DataFileReader<Object> in = new DataFileReader<Object>(new File(p.toString()), new GenericDatumReader<Object>());
+    try {
+      while (in.hasNext()) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        datumWriter.write(in.next(), encoder);
+        encoder.flush();
+        records.add(out.toByteArray());
+      }
+    } finally {
+      in.close();
+    }
+    return records;
+  }
+}
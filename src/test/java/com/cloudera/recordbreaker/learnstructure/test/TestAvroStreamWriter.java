@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.DataInputStream;
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.EncodedDatum;
+import com.cloudera.recordbreaker.learnstructure.ParserProgram;
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+import com.cloudera.recordbreaker.learnstructure.AvroStreamWriter;
+
+/**
+ * TestAvroStreamWriter checks when AvroStreamWriter starts a new file, by size
+ * and by age, and that a timed flush that fails is thrown from the next call.
+ * It also runs LearnStructure.inferStream() end to end.
+ *
+ * @see AvroStreamWriter
+ */
+public class TestAvroStreamWriter {
+  static Schema STRING_SCHEMA = Schema.create(Schema.Type.STRING);
+
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+  File workingDir = null;
+  FileSystem fs = null;
+
+  @Before
+  public void prepare() throws IOException {
+    workingDir = tmpOutDir.newFolder("workingdir");
+    fs = FileSystem.getLocal(new Configuration());
+  }
+
+  /**
+   * Its streams can be told to fail on flush
+   */
+  static class FailingFileSystem extends FilterFileSystem {
+    volatile boolean failFlush = false;
+
+    public FailingFileSystem(FileSystem fs) {
+      super(fs);
+    }
+    public FSDataOutputStream create(Path p) throws IOException {
+      OutputStream out = new FilterOutputStream(new FileOutputStream(p.toString())) {
+          public void write(byte b[], int off, int len) throws IOException {
+            out.write(b, off, len);
+          }
+          public void flush() throws IOException {
+            if (failFlush) {
+              throw new IOException("Flush failed");
+            }
+            super.flush();
+          }
+        };
+      return new FSDataOutputStream(out);
+    }
+  }
+
+  static void appendString(AvroStreamWriter writer, EncodedDatum datum, String s) throws IOException {
+    datum.reset();
+    datum.writeString(s);
+    writer.appendEncoded(datum.toByteBuffer());
+  }
+
+  List<Object> readRecords(File f) throws IOException {
+    List<Object> records = new ArrayList<Object>();
+    DataFileReader<Object> in = new DataFileReader<Object>(f, new GenericDatumReader<Object>());
+    try {
+      while (in.hasNext()) {
+        records.add(in.next());
+      }
+    } finally {
+      in.close();
+    }
+    return records;
+  }
+
+  /**
+   * The data files in 'dir', in order
+   */
+  static File[] getDataFiles(File dir) {
+    List<File> dataFiles = new ArrayList<File>();
+    for (File f: dir.listFiles()) {
+      if (f.getName().startsWith("data-")) {
+        dataFiles.add(f);
+      }
+    }
+    File sorted[] = dataFiles.toArray(new File[dataFiles.size()]);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  @Test(timeout=20000)
+  public void testRollBySize() throws IOException {
+    long rollBytes = 1000;
+    AvroStreamWriter writer = new AvroStreamWriter(fs, new Path(workingDir.getCanonicalPath()), STRING_SCHEMA, rollBytes, 0, 0);
+    EncodedDatum datum = new EncodedDatum();
+    int numRecords = 5000;
+    try {
+      for (int i = 0; i < numRecords; i++) {
+        appendString(writer, datum, "record number " + i);
+      }
+    } finally {
+      writer.close();
+    }
+    Assert.assertEquals(numRecords, writer.getNumRecords());
+
+    // Every file but the last reached the limit before the next was started
+    File dataFiles[] = getDataFiles(workingDir);
+    Assert.assertEquals(writer.getNumFiles(), dataFiles.length);
+    Assert.assertTrue(dataFiles.length > 1);
+    int i = 0;
+    for (int j = 0; j < dataFiles.length; j++) {
+      if (j < dataFiles.length - 1) {
+        Assert.assertTrue(dataFiles[j].length() >= rollBytes);
+      }
+      for (Object record: readRecords(dataFiles[j])) {
+        Assert.assertEquals("record number " + i, record.toString());
+        i++;
+      }
+    }
+    Assert.assertEquals(numRecords, i);
+  }
+
+  @Test(timeout=20000)
+  public void testRollByTime() throws Exception {
+    AvroStreamWriter writer = new AvroStreamWriter(fs, new Path(workingDir.getCanonicalPath()), STRING_SCHEMA, 0, 200, 0);
+    EncodedDatum datum = new EncodedDatum();
+    try {
+      appendString(writer, datum, "first");
+      appendString(writer, datum, "second");
+      Thread.sleep(400);
+      appendString(writer, datum, "third");
+    } finally {
+      writer.close();
+    }
+    File dataFiles[] = getDataFiles(workingDir);
+    Assert.assertEquals(2, dataFiles.length);
+    Assert.assertEquals(2, readRecords(dataFiles[0]).size());
+    Assert.assertEquals("third", readRecords(dataFiles[1]).get(0).toString());
+
+    // A new writer in the same directory doesn't overwrite them
+    writer = new AvroStreamWriter(fs, new Path(workingDir.getCanonicalPath()), STRING_SCHEMA, 0, 0, 0);
+    try {
+      appendString(writer, datum, "fourth");
+    } finally {
+      writer.close();
+    }
+    dataFiles = getDataFiles(workingDir);
+    Assert.assertEquals(3, dataFiles.length);
+    Assert.assertEquals("first", readRecords(dataFiles[0]).get(0).toString());
+  }
+
+  @Test(timeout=20000)
+  public void testFailedTimedFlush() throws Exception {
+    FailingFileSystem failingFs = new FailingFileSystem(fs);
+    AvroStreamWriter writer = new AvroStreamWriter(failingFs, new Path(workingDir.getCanonicalPath()), STRING_SCHEMA, 0, 0, 50);
+    EncodedDatum datum = new EncodedDatum();
+    appendString(writer, datum, "first");
+    failingFs.failFlush = true;
+    Thread.sleep(400);
+    failingFs.failFlush = false;
+
+    // The timer's failure comes out of the next call, and the ones after it
+    try {
+      appendString(writer, datum, "second");
+      Assert.fail("Timed flush failure was not reported");
+    } catch (IOException iex) {
+      Assert.assertEquals("Flush failed", iex.getCause().getMessage());
+    }
+    try {
+      writer.flush();
+      Assert.fail("Timed flush failure was not reported");
+    } catch (IOException iex) {
+    }
+    Assert.assertEquals(1, writer.getNumRecords());
+    try {
+      writer.close();
+      Assert.fail("Timed flush failure was not reported");
+    } catch (IOException iex) {
+    }
+    writer.close();
+  }
+
+  /**
+   * Every line of the stream, the prefix included, is parsed with the program
+   * that inferStream() saves, whether or not it encodes directly.  Lines that
+   * don't fit only come after the prefix that inference runs over.
+   */
+  @Test(timeout=60000)
+  public void testInferStream() throws IOException {
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < 200; i++) {
+      lines.add((i >= 50 && i % 20 == 19) ? "-- no numbers here --" : i + " word" + i + " " + i + ".5");
+    }
+    StringBuffer buf = new StringBuffer();
+    for (String line: lines) {
+      buf.append(line + "\n");
+    }
+    boolean encodeDirect[] = {false, true};
+    for (int k = 0; k < encodeDirect.length; k++) {
+      File outDir = new File(workingDir, "stream" + k);
+      outDir.mkdirs();
+      LearnStructure ls = new LearnStructure();
+      ls.setEncodeDirect(encodeDirect[k]);
+      ls.setStreamRolling(0, 0, 0);
+      long numRecords = ls.inferStream(new BufferedReader(new StringReader(buf.toString())), 50, fs, new Path(outDir.getCanonicalPath()), false);
+      Assert.assertEquals(200, ls.getEmittedLines());
+      Assert.assertEquals(192, numRecords);
+
+      DataInputStream in = new DataInputStream(new FileInputStream(new File(outDir, LearnStructure.PROGRAM_FILENAME)));
+      ParserProgram program = null;
+      try {
+        program = ParserProgram.readProgram(in);
+      } finally {
+        in.close();
+      }
+      Assert.assertTrue(new File(outDir, LearnStructure.SCHEMA_FILENAME).exists());
+      Assert.assertTrue(new File(outDir, LearnStructure.PARSER_FILENAME).exists());
+      List<Object> records = new ArrayList<Object>();
+      for (File f: getDataFiles(outDir)) {
+        records.addAll(readRecords(f));
+      }
+      int i = 0;
+      for (String line: lines) {
+        Object expected = program.parse(line);
+        if (expected != null) {
+          Assert.assertEquals(line, expected.toString(), records.get(i).toString());
+          i++;
+        }
+      }
+      Assert.assertEquals(records.size(), i);
+    }
+  }
+}
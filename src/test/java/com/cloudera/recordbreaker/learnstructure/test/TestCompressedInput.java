@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
+/**
+ * TestCompressedInput checks which codec CompressedInput picks for a file: by
+ * suffix when the suffix is known, by the gzip or bzip2 magic bytes when it
+ * isn't, and none at all for plain data, including data that only looks a
+ * little like a compressed header.  It also reads a bzip2 file through
+ * openBlock(), which starts at a compressed block.
+ *
+ * @see CompressedInput
+ */
+public class TestCompressedInput {
+  static String TEXT = "first line\nsecond line\n";
+  // "BZh9", then the bzip2 block header magic
+  static byte BZIP2_HEADER[] = {'B', 'Z', 'h', '9', 0x31, 0x41, 0x59, 0x26, 0x53, 0x59};
+
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+  File workingDir = null;
+  FileSystem fs = null;
+
+  @Before
+  public void prepare() throws IOException {
+    workingDir = tmpOutDir.newFolder("workingdir");
+    fs = FileSystem.getLocal(new Configuration());
+  }
+
+  Path createFile(String name, byte contents[]) throws IOException {
+    File f = new File(workingDir, name);
+    OutputStream out = new FileOutputStream(f);
+    try {
+      out.write(contents);
+    } finally {
+      out.close();
+    }
+    return new Path(f.getCanonicalPath());
+  }
+
+  static byte[] gzip(String s) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(s.getBytes("UTF-8"));
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  String readAll(Path p) throws IOException {
+    return readAll(CompressedInput.open(fs, p));
+  }
+
+  static String readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      byte buf[] = new byte[1024];
+      int n = 0;
+      while ((n = in.read(buf)) > 0) {
+        bytes.write(buf, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return bytes.toString("UTF-8");
+  }
+
+  /**
+   * getCodec() on the file, and on its header as a caller that already read it would pass it
+   */
+  CompressionCodec getCodec(Path p, byte contents[]) throws IOException {
+    CompressionCodec codec = CompressedInput.getCodec(fs, p);
+    CompressionCodec headerCodec = CompressedInput.getCodec(fs, p, contents, contents.length);
+    if (codec == null) {
+      Assert.assertNull(headerCodec);
+    } else {
+      Assert.assertEquals(codec.getClass(), headerCodec.getClass());
+    }
+    return codec;
+  }
+
+  @Test(timeout=10000)
+  public void testCodecBySuffix() throws IOException {
+    byte gzipped[] = gzip(TEXT);
+    Path p = createFile("data.txt.gz", gzipped);
+    Assert.assertTrue(getCodec(p, gzipped) instanceof GzipCodec);
+    Assert.assertEquals(TEXT, readAll(p));
+
+    // The suffix decides, whatever the contents
+    byte plain[] = TEXT.getBytes("UTF-8");
+    Assert.assertTrue(getCodec(createFile("data.bz2", plain), plain) instanceof BZip2Codec);
+  }
+
+  @Test(timeout=10000)
+  public void testCodecByMagic() throws IOException {
+    byte gzipped[] = gzip(TEXT);
+    Path p = createFile("gzipped.dat", gzipped);
+    Assert.assertTrue(getCodec(p, gzipped) instanceof GzipCodec);
+    Assert.assertEquals(TEXT, readAll(p));
+
+    byte bzipHeader[] = new byte[BZIP2_HEADER.length + 4];
+    System.arraycopy(BZIP2_HEADER, 0, bzipHeader, 0, BZIP2_HEADER.length);
+    Assert.assertTrue(getCodec(createFile("bzipped.dat", bzipHeader), bzipHeader) instanceof BZip2Codec);
+  }
+
+  @Test(timeout=10000)
+  public void testPlainData() throws IOException {
+    byte plain[] = TEXT.getBytes("UTF-8");
+    Path p = createFile("plain.txt", plain);
+    Assert.assertNull(getCodec(p, plain));
+    Assert.assertEquals(TEXT, readAll(p));
+
+    // Text that starts like a bzip2 header, but has no block magic after it
+    byte bzLike[] = "BZh9 is not a bzip2 header\n".getBytes("UTF-8");
+    Assert.assertNull(getCodec(createFile("bzlike.txt", bzLike), bzLike));
+
+    // Files too short for any magic number
+    byte gzipPrefix[] = {0x1f, (byte) 0x8b};
+    Assert.assertNull(getCodec(createFile("short.dat", gzipPrefix), gzipPrefix));
+    byte empty[] = new byte[0];
+    Path emptyFile = createFile("empty.dat", empty);
+    Assert.assertNull(getCodec(emptyFile, empty));
+    Assert.assertEquals("", readAll(emptyFile));
+  }
+
+  /**
+   * From the start of the file, the block stream reads all of it.  Closing it
+   * a second time does nothing, and doesn't give its decompressor back twice.
+   */
+  @Test(timeout=10000)
+  public void testOpenBlock() throws IOException {
+    BZip2Codec codec = new BZip2Codec();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream out = codec.createOutputStream(bytes);
+    out.write(TEXT.getBytes("UTF-8"));
+    out.close();
+    Path p = createFile("data.bz2", bytes.toByteArray());
+    Assert.assertEquals(TEXT, readAll(p));
+
+    for (int i = 0; i < 3; i++) {
+      SplitCompressionInputStream in = CompressedInput.openBlock(fs, p, codec, 0);
+      Assert.assertEquals(TEXT, readAll(in));
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.FollowInputStream;
+
+/**
+ * TestFollowInputStream follows a file as lines are appended to it, as it is
+ * truncated and rewritten, and as it is closed from another thread.
+ *
+ * @see FollowInputStream
+ */
+public class TestFollowInputStream {
+  static long POLL_MILLIS = 20;
+
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+  File workingDir = null;
+  FileSystem fs = null;
+
+  @Before
+  public void prepare() throws IOException {
+    workingDir = tmpOutDir.newFolder("workingdir");
+    fs = FileSystem.getLocal(new Configuration());
+  }
+
+  void writeFile(File f, String contents, boolean append) throws IOException {
+    FileOutputStream out = new FileOutputStream(f, append);
+    try {
+      out.write(contents.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  @Test(timeout=10000)
+  public void testAppend() throws Exception {
+    File f = new File(workingDir, "growing.txt");
+    writeFile(f, "first line\n", false);
+    FollowInputStream in = new FollowInputStream(fs, new Path(f.getCanonicalPath()), POLL_MILLIS);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    try {
+      Assert.assertEquals("first line", reader.readLine());
+
+      // Nothing more yet; the next line is waited for
+      Thread.sleep(5 * POLL_MILLIS);
+      writeFile(f, "second line\n", true);
+      Assert.assertEquals("second line", reader.readLine());
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * A file that gets shorter than what was read is read again from the top
+   */
+  @Test(timeout=10000)
+  public void testTruncation() throws Exception {
+    File f = new File(workingDir, "rotated.txt");
+    writeFile(f, "a long first line\nanother long line\n", false);
+    FollowInputStream in = new FollowInputStream(fs, new Path(f.getCanonicalPath()), POLL_MILLIS);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    try {
+      Assert.assertEquals("a long first line", reader.readLine());
+      Assert.assertEquals("another long line", reader.readLine());
+
+      writeFile(f, "new line\n", false);
+      Assert.assertEquals("new line", reader.readLine());
+      writeFile(f, "appended\n", true);
+      Assert.assertEquals("appended", reader.readLine());
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * A reader waiting at the end of the file sees end-of-stream once it's closed
+   */
+  @Test(timeout=10000)
+  public void testClose() throws Exception {
+    File f = new File(workingDir, "quiet.txt");
+    writeFile(f, "only line\n", false);
+    final FollowInputStream in = new FollowInputStream(fs, new Path(f.getCanonicalPath()), POLL_MILLIS);
+    byte buf[] = new byte[100];
+    Assert.assertEquals(10, in.read(buf, 0, buf.length));
+    Thread closer = new Thread() {
+        public void run() {
+          try {
+            Thread.sleep(5 * POLL_MILLIS);
+            in.close();
+          } catch (Exception ex) {
+          }
+        }
+      };
+    closer.start();
+    Assert.assertEquals(-1, in.read(buf, 0, buf.length));
+    closer.join();
+  }
+}
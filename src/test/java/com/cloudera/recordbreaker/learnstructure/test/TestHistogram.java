@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.util.List;
+import java.util.Random;
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.Histogram;
+import com.cloudera.recordbreaker.learnstructure.PackedChunk;
+
+/**
+ * TestHistogram checks that Histogram.clusterHistograms(), with its pruned
+ * scoring and union-find merging, gives exactly the same clusters as the
+ * original clusterHistogramsWithTreeMaps(), in the same order.  Scoring on
+ * several threads must give the same clusters as scoring on one.
+ *
+ * @see Histogram
+ */
+public class TestHistogram {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+  static String TOKENS[] = {"abc", "123", "4.5", ",", ";", ":", "[", "]", "-", "/", "x=", "10.0.0.1", "Jan 3 2011", "12:30:45", "\"", "|"};
+  static int NUM_THREADS = 4;
+
+  static List<Histogram> getHistograms(List<String> lines) throws IOException {
+    List<PackedChunk> chunks = new ArrayList<PackedChunk>();
+    for (String line: lines) {
+      chunks.add(Tokenizer.tokenizePacked(line));
+    }
+    return Histogram.computeNormalizedHistograms(chunks);
+  }
+
+  static List<String> readLines(File f) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(f));
+    try {
+      String s = null;
+      while ((s = in.readLine()) != null) {
+        lines.add(s);
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Lines that mostly follow a random template of tokens, with some of them
+   * now and then left out or repeated
+   */
+  static List<String> getRandomLines(Random r, int numLines) {
+    List<String> template = new ArrayList<String>();
+    int templateLength = 3 + r.nextInt(10);
+    for (int i = 0; i < templateLength; i++) {
+      template.add(TOKENS[r.nextInt(TOKENS.length)]);
+    }
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < numLines; i++) {
+      StringBuffer buf = new StringBuffer();
+      for (String tok: template) {
+        int count = (r.nextInt(20) == 0) ? 0 : 1;
+        if (r.nextInt(10) == 0) {
+          count += r.nextInt(3);
+        }
+        for (int j = 0; j < count; j++) {
+          buf.append(tok + " ");
+        }
+      }
+      lines.add(buf.toString());
+    }
+    return lines;
+  }
+
+  /**
+   * The same clusters, in the same order, holding the same histograms in the same order
+   */
+  static void assertSameClusters(List<List<Histogram>> expected, List<List<Histogram>> actual) {
+    Assert.assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      List<Histogram> expectedCluster = expected.get(i);
+      List<Histogram> actualCluster = actual.get(i);
+      Assert.assertEquals("Cluster " + i, expectedCluster.size(), actualCluster.size());
+      for (int j = 0; j < expectedCluster.size(); j++) {
+        Assert.assertSame("Cluster " + i + ", member " + j, expectedCluster.get(j), actualCluster.get(j));
+      }
+    }
+  }
+
+  /**
+   * Cluster with the reference and with clusterHistograms(), serially and on several threads
+   */
+  static void compareClusterings(List<Histogram> histograms) {
+    List<List<Histogram>> expected = Histogram.clusterHistogramsWithTreeMaps(histograms);
+    assertSameClusters(expected, Histogram.clusterHistograms(histograms));
+    Histogram.setNumClusterThreads(NUM_THREADS);
+    try {
+      assertSameClusters(expected, Histogram.clusterHistograms(histograms));
+    } finally {
+      Histogram.setNumClusterThreads(1);
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testSampleData() throws IOException {
+    List<Histogram> allHistograms = new ArrayList<Histogram>();
+    for (File f: sampleDir.listFiles()) {
+      if (f.getName().endsWith(".txt")) {
+        List<Histogram> histograms = getHistograms(readLines(f));
+        compareClusterings(histograms);
+        allHistograms.addAll(histograms);
+      }
+    }
+    // Histograms from different files can cluster too
+    compareClusterings(allHistograms);
+  }
+
+  /**
+   * Enough histograms that the pool is used.  Each set of lines shares its
+   * token types with the others, so histograms from different sets are close.
+   */
+  @Test(timeout=60000)
+  public void testRandomHistograms() throws IOException {
+    Random r = new Random(0);
+    for (int round = 0; round < 10; round++) {
+      List<Histogram> histograms = new ArrayList<Histogram>();
+      while (histograms.size() < 200) {
+        histograms.addAll(getHistograms(getRandomLines(r, 20 + r.nextInt(200))));
+      }
+      compareClusterings(histograms);
+    }
+  }
+}
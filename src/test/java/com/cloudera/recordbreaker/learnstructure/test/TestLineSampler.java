@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.HashSet;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+
+/**
+ * TestLineSampler draws head, reservoir and block samples from local files.
+ * Every sample should hold whole lines, in file order, with no line twice,
+ * and with the '\r' of CRLF line ends removed, including on a last line that
+ * has no newline.
+ *
+ * @see LineSampler
+ */
+public class TestLineSampler {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+  File workingDir = null;
+  FileSystem fs = null;
+
+  @Before
+  public void prepare() throws IOException {
+    workingDir = tmpOutDir.newFolder("workingdir");
+    fs = FileSystem.getLocal(new Configuration());
+  }
+
+  /**
+   * Write 'contents' to a new file
+   */
+  Path createFile(String name, String contents) throws IOException {
+    File f = new File(workingDir, name);
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(contents.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    return new Path(f.getCanonicalPath());
+  }
+
+  /**
+   * 'numLines' numbered CRLF lines; the last has no line end at all
+   */
+  Path createNumberedFile(String name, int numLines) throws IOException {
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < numLines; i++) {
+      if (i > 0) {
+        buf.append("\r\n");
+      }
+      buf.append(numberedLine(i));
+    }
+    return createFile(name, buf.toString());
+  }
+
+  static String numberedLine(int i) {
+    return "line " + i + " has some text";
+  }
+
+  /**
+   * Check that 'sample' holds whole numbered lines in file order, and return their numbers
+   */
+  static int[] checkNumberedLines(List<String> sample) {
+    int lineNos[] = new int[sample.size()];
+    for (int i = 0; i < sample.size(); i++) {
+      String line = sample.get(i);
+      Assert.assertTrue("Not a whole line: '" + line + "'", line.matches("line [0-9]+ has some text"));
+      lineNos[i] = Integer.parseInt(line.split(" ")[1]);
+      if (i > 0) {
+        Assert.assertTrue("Out of order at " + i, lineNos[i] > lineNos[i-1]);
+      }
+    }
+    return lineNos;
+  }
+
+  @Test(timeout=10000)
+  public void testHeadSample() throws IOException {
+    Path p = createNumberedFile("head.txt", 50);
+    List<String> sample = LineSampler.sample(fs, p, LineSampler.HEAD, 10, LineSampler.DEFAULT_SEED);
+    Assert.assertEquals(10, sample.size());
+    int lineNos[] = checkNumberedLines(sample);
+    for (int i = 0; i < lineNos.length; i++) {
+      Assert.assertEquals(i, lineNos[i]);
+    }
+
+    sample = LineSampler.headSample(fs, p, 100);
+    Assert.assertEquals(50, sample.size());
+    Assert.assertEquals(numberedLine(49), sample.get(49));
+  }
+
+  @Test(timeout=10000)
+  public void testReservoirSample() throws IOException {
+    Path p = createNumberedFile("reservoir.txt", 1000);
+    List<String> sample = LineSampler.sample(fs, p, LineSampler.RESERVOIR, 100, 1);
+    Assert.assertEquals(100, sample.size());
+    int lineNos[] = checkNumberedLines(sample);
+
+    // Not just the head of the file
+    Assert.assertTrue(lineNos[lineNos.length-1] >= 100);
+
+    // The same seed draws the same sample, and another seed a different one
+    Assert.assertEquals(sample, LineSampler.sample(fs, p, LineSampler.RESERVOIR, 100, 1));
+    Assert.assertFalse(sample.equals(LineSampler.sample(fs, p, LineSampler.RESERVOIR, 100, 2)));
+
+    // Asking for more lines than the file has returns all of them
+    sample = LineSampler.reservoirSample(fs, p, 2000, new Random(1));
+    Assert.assertEquals(1000, sample.size());
+    Assert.assertEquals(numberedLine(999), sample.get(999));
+    checkNumberedLines(sample);
+  }
+
+  @Test(timeout=10000)
+  public void testBlockSample() throws IOException {
+    // Big enough that BLOCK seeks rather than falling back to RESERVOIR
+    Path p = createNumberedFile("block.txt", 10000);
+    Assert.assertTrue(fs.getFileStatus(p).getLen() > 64 * 1024);
+    List<String> sample = LineSampler.sample(fs, p, LineSampler.BLOCK, 200, 1);
+    Assert.assertEquals(200, sample.size());
+    int lineNos[] = checkNumberedLines(sample);
+    HashSet<Integer> distinct = new HashSet<Integer>();
+    for (int i = 0; i < lineNos.length; i++) {
+      distinct.add(lineNos[i]);
+    }
+    Assert.assertEquals(200, distinct.size());
+    Assert.assertTrue(lineNos[lineNos.length-1] - lineNos[0] > 200);
+    Assert.assertEquals(sample, LineSampler.sample(fs, p, LineSampler.BLOCK, 200, 1));
+
+    // A small file is sampled as RESERVOIR would sample it
+    Path small = createNumberedFile("small.txt", 500);
+    Assert.assertEquals(LineSampler.sample(fs, small, LineSampler.RESERVOIR, 50, 3),
+                        LineSampler.sample(fs, small, LineSampler.BLOCK, 50, 3));
+  }
+
+  /**
+   * A block that starts in a long line skips to the next whole one, and reads
+   * through to a last line that ends in '\r' with no '\n'
+   */
+  @Test(timeout=10000)
+  public void testBlockSampleLastLine() throws IOException {
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < 100 * 1024; i++) {
+      buf.append((char) ('a' + (i % 26)));
+    }
+    buf.append("\r\nsecond line\r\nthird line\r");
+    Path p = createFile("lastline.txt", buf.toString());
+
+    List<String> sample = LineSampler.sample(fs, p, LineSampler.BLOCK, 10, 1);
+    Assert.assertEquals(2, sample.size());
+    Assert.assertEquals("second line", sample.get(0));
+    Assert.assertEquals("third line", sample.get(1));
+  }
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.hadoop.io.UTF8;
+import org.apache.avro.Schema;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumReader;
+
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.ParserProgram;
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+import com.cloudera.recordbreaker.learnstructure.EncodedDatum;
+
+/**
+ * TestParserProgram checks the compiled ParserProgram.  On the sample data,
+ * InferredType.parse() must give exactly the same records as the recursive
+ * parseRecursive(), for lines that fit the inferred structure and for lines
+ * from other files that don't.  What encode() writes must decode to the record
+ * that parse() builds, and a record parsed over an earlier one must match a
+ * fresh parse.  The search and reuse tests build small type trees by hand, in
+ * the form InferredType.readType() reads, to reach the cases that inferred
+ * trees seldom do.
+ *
+ * @see ParserProgram
+ */
+public class TestParserProgram {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+
+  static List<String> readLines(File f) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(f));
+    try {
+      String s = null;
+      while ((s = in.readLine()) != null) {
+        lines.add(s);
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static String recordString(GenericContainer r) {
+    return (r == null) ? "null" : r.toString();
+  }
+
+  static List<File> getSampleFiles() {
+    List<File> sampleFiles = new ArrayList<File>();
+    for (File f: sampleDir.listFiles()) {
+      if (f.getName().endsWith(".txt")) {
+        sampleFiles.add(f);
+      }
+    }
+    return sampleFiles;
+  }
+
+  /**
+   * Writes a type tree in preorder.  Each struct, array or union is followed
+   * by its children.
+   */
+  static class TypeWriter {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    int counter = 0;
+
+    String base(int classId, String tokenParameter) throws IOException {
+      String name = "base_" + counter++;
+      out.write(1);
+      out.writeUTF(name);
+      out.writeInt(0);
+      out.writeInt(classId);
+      out.writeBoolean(tokenParameter != null);
+      if (tokenParameter != null) {
+        UTF8.writeString(out, tokenParameter);
+      }
+      return name;
+    }
+    String struct(int numElts) throws IOException {
+      String name = "record_" + counter++;
+      out.write(2);
+      out.writeUTF(name);
+      out.writeInt(numElts);
+      return name;
+    }
+    String array() throws IOException {
+      String name = "array_" + counter++;
+      out.write(3);
+      out.writeUTF(name);
+      return name;
+    }
+    String union(int numBranches) throws IOException {
+      String name = "union_" + counter++;
+      out.write(4);
+      out.writeUTF(name);
+      out.writeInt(numBranches);
+      return name;
+    }
+    InferredType getType() throws IOException {
+      out.flush();
+      return InferredType.readType(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+  }
+
+  /**
+   * (int | (int '.' int)).  The first branch is a prefix of the second, so
+   * the search decides between them.
+   */
+  static String writeIntOrPair(TypeWriter tw) throws IOException {
+    String name = tw.union(2);
+    tw.base(Token.INT_TOKENCLASSID, null);
+    tw.struct(3);
+    tw.base(Token.INT_TOKENCLASSID, null);
+    tw.base(Token.CHAR_TOKENCLASSID, ".");
+    tw.base(Token.INT_TOKENCLASSID, null);
+    return name;
+  }
+
+  /**
+   * A word, then 'numUnions' of (int | (int '.' int)) ';'.  The word is parsed by a
+   * union that first tries, and fails, a struct that steps through every char of it.
+   */
+  static InferredType getWordAndPairsType(int numUnions) throws IOException {
+    TypeWriter tw = new TypeWriter();
+    tw.struct(2 + 2 * numUnions);
+    tw.union(2);
+    tw.struct(3);
+    tw.base(Token.CHAR_TOKENCLASSID, "a");
+    tw.array();
+    tw.base(Token.CHAR_TOKENCLASSID, null);
+    tw.base(Token.CHAR_TOKENCLASSID, "!");
+    tw.base(Token.STRING_TOKENCLASSID, null);
+    tw.base(Token.WHITESPACE_TOKENCLASSID, null);
+    for (int i = 0; i < numUnions; i++) {
+      writeIntOrPair(tw);
+      tw.base(Token.CHAR_TOKENCLASSID, ";");
+    }
+    return tw.getType();
+  }
+
+  static String getWordAndPairsLine(int wordLength, int numUnions) {
+    StringBuffer buf = new StringBuffer("a");
+    for (int i = 1; i < wordLength; i++) {
+      buf.append("b");
+    }
+    buf.append(" ");
+    for (int i = 0; i < numUnions; i++) {
+      buf.append("1.2;");
+    }
+    return buf.toString();
+  }
+
+  /**
+   * (int | string | ws) ';' (int ',')* '|' ((int '.' int) | (string ',' string)).
+   * The first union's whitespace branch has no data, and the last union
+   * chooses between two records.
+   */
+  static InferredType getMixedType() throws IOException {
+    TypeWriter tw = new TypeWriter();
+    tw.struct(5);
+    tw.union(3);
+    tw.base(Token.INT_TOKENCLASSID, null);
+    tw.base(Token.STRING_TOKENCLASSID, null);
+    tw.base(Token.WHITESPACE_TOKENCLASSID, null);
+    tw.base(Token.CHAR_TOKENCLASSID, ";");
+    tw.array();
+    tw.struct(2);
+    tw.base(Token.INT_TOKENCLASSID, null);
+    tw.base(Token.CHAR_TOKENCLASSID, ",");
+    tw.base(Token.CHAR_TOKENCLASSID, "|");
+    tw.union(2);
+    tw.struct(3);
+    tw.base(Token.INT_TOKENCLASSID, null);
+    tw.base(Token.CHAR_TOKENCLASSID, ".");
+    tw.base(Token.INT_TOKENCLASSID, null);
+    tw.struct(3);
+    tw.base(Token.STRING_TOKENCLASSID, null);
+    tw.base(Token.CHAR_TOKENCLASSID, ",");
+    tw.base(Token.STRING_TOKENCLASSID, null);
+    return tw.getType();
+  }
+
+  /**
+   * The single array field of a record
+   */
+  static GenericData.Array getArrayField(GenericData.Record r) {
+    for (Schema.Field f: r.getSchema().getFields()) {
+      Object val = r.get(f.name());
+      if (val instanceof GenericData.Array) {
+        return (GenericData.Array) val;
+      }
+    }
+    return null;
+  }
+
+  @Test(timeout=60000)
+  public void testSampleData() throws IOException {
+    List<File> sampleFiles = getSampleFiles();
+    for (File typeFile: sampleFiles) {
+      InferredType typeTree = new LearnStructure().inferType(readLines(typeFile));
+      for (File f: sampleFiles) {
+        for (String s: readLines(f)) {
+          Assert.assertEquals("Parsers differ on line '" + s + "' of " + f.getName() + " with the structure of " + typeFile.getName(),
+                              recordString(typeTree.parseRecursive(s)),
+                              recordString(typeTree.parse(s)));
+        }
+      }
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testEncode() throws IOException {
+    List<File> sampleFiles = getSampleFiles();
+    EncodedDatum datum = new EncodedDatum();
+    for (File typeFile: sampleFiles) {
+      ParserProgram program = new ParserProgram(new LearnStructure().inferType(readLines(typeFile)));
+      for (File f: sampleFiles) {
+        for (String s: readLines(f)) {
+          String msg = "Line '" + s + "' of " + f.getName() + " with the structure of " + typeFile.getName();
+          GenericContainer r = program.parse(s);
+          Schema schema = program.encode(s, datum, true);
+          if (r == null) {
+            Assert.assertNull(msg, schema);
+            continue;
+          }
+          Assert.assertNotNull(msg, schema);
+          GenericDatumReader<GenericContainer> reader = new GenericDatumReader<GenericContainer>(schema);
+          GenericContainer decoded = reader.read(null, DecoderFactory.get().binaryDecoder(datum.toByteArray(), null));
+          Assert.assertEquals(msg, recordString(r), recordString(decoded));
+        }
+      }
+    }
+  }
+
+  /**
+   * encode() tries a union's branches just as parse() does, including a branch
+   * that has no schema.  A line that takes one can't be written, so encode()
+   * throws where parse() builds a record that the writer would reject.
+   */
+  @Test(timeout=10000)
+  public void testEncodeBranchWithoutSchema() throws IOException {
+    TypeWriter tw = new TypeWriter();
+    tw.struct(2);
+    tw.union(2);
+    tw.base(Token.WHITESPACE_TOKENCLASSID, null);
+    tw.base(Token.CHAR_TOKENCLASSID, ":");
+    tw.base(Token.INT_TOKENCLASSID, null);
+    ParserProgram program = new ParserProgram(tw.getType());
+    EncodedDatum datum = new EncodedDatum();
+
+    String line = ":8";
+    GenericContainer r = program.parse(line);
+    Assert.assertNotNull(r);
+    Schema schema = program.encode(line, datum, false);
+    GenericContainer decoded = new GenericDatumReader<GenericContainer>(schema).read(null, DecoderFactory.get().binaryDecoder(datum.toByteArray(), null));
+    Assert.assertEquals(recordString(r), recordString(decoded));
+
+    line = " 8";
+    Assert.assertNotNull(program.parse(line));
+    try {
+      program.encode(line, datum, false);
+      Assert.fail("Encoded a line that took the branch with no schema");
+    } catch (IOException iex) {
+    }
+  }
+
+  /**
+   * With adaptive ordering, a union tries first the branch the data takes most.
+   * Its counts survive writeBranchStats() and readBranchStats(); without
+   * adaptive ordering, the inferred order always holds.
+   */
+  @Test(timeout=10000)
+  public void testAdaptiveOrderRoundTrip() throws IOException {
+    // A one-digit number fits either branch; longer ones only fit the int
+    TypeWriter tw = new TypeWriter();
+    tw.union(2);
+    tw.struct(1);
+    String charName = tw.base(Token.CHAR_TOKENCLASSID, null);
+    tw.struct(1);
+    String intName = tw.base(Token.INT_TOKENCLASSID, null);
+    InferredType typeTree = tw.getType();
+
+    ParserProgram program = new ParserProgram(typeTree);
+    program.setAdaptiveOrder(true);
+    Assert.assertEquals(charName, getFieldName(program.parse("5")));
+    // Well past the number of parses between reorderings
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(intName, getFieldName(program.parse("" + (100 + i))));
+    }
+    Assert.assertEquals(intName, getFieldName(program.parse("5")));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    program.writeBranchStats(out);
+    out.close();
+
+    // A new program with the saved counts tries the int first
+    ParserProgram restored = new ParserProgram(typeTree);
+    restored.setAdaptiveOrder(true);
+    restored.readBranchStats(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    Assert.assertEquals(intName, getFieldName(restored.parse("5")));
+    Assert.assertEquals(charName, getFieldName(restored.parse("x")));
+
+    // Without the counts it doesn't, and without adaptive ordering nothing moves
+    ParserProgram fresh = new ParserProgram(typeTree);
+    fresh.setAdaptiveOrder(true);
+    Assert.assertEquals(charName, getFieldName(fresh.parse("5")));
+    ParserProgram fixed = new ParserProgram(typeTree);
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertNotNull(fixed.parse("" + (100 + i)));
+    }
+    Assert.assertEquals(charName, getFieldName(fixed.parse("5")));
+  }
+
+  /**
+   * The name of the only field of a one-field record
+   */
+  static String getFieldName(GenericContainer r) {
+    Assert.assertNotNull(r);
+    return r.getSchema().getFields().get(0).name();
+  }
+
+  @Test(timeout=10000)
+  public void testSearchTakesLaterBranch() throws IOException {
+    TypeWriter tw = new TypeWriter();
+    tw.struct(2);
+    String unionName = writeIntOrPair(tw);
+    tw.base(Token.CHAR_TOKENCLASSID, ";");
+    InferredType typeTree = tw.getType();
+    ParserProgram program = new ParserProgram(typeTree);
+
+    // The greedy parse takes the int, then fails on the '.'
+    GenericData.Record r = (GenericData.Record) program.parse("12.5;");
+    Assert.assertNotNull("Search found no parse", r);
+    Object unionValue = r.get(unionName);
+    Assert.assertTrue("Search took the wrong branch: " + unionValue, unionValue instanceof GenericData.Record);
+    Assert.assertNotNull(program.parse("12;"));
+    Assert.assertNull(program.parse("12.;"));
+  }
+
+  /**
+   * A union decision holds for every element of an array.  Lines that need
+   * different branches in different elements are rejected, as they always were.
+   */
+  @Test(timeout=10000)
+  public void testSearchDecisionHoldsAcrossArray() throws IOException {
+    TypeWriter tw = new TypeWriter();
+    tw.array();
+    tw.struct(2);
+    writeIntOrPair(tw);
+    tw.base(Token.CHAR_TOKENCLASSID, ";");
+    ParserProgram program = new ParserProgram(tw.getType());
+
+    Assert.assertNotNull(program.parse("1;2;3;"));
+    Assert.assertNotNull(program.parse("1.5;2.5;3.5;"));
+    Assert.assertNull(program.parse("1.5;2;"));
+    Assert.assertNull(program.parse("1;2.5;"));
+  }
+
+  @Test(timeout=10000)
+  public void testSearchBudget() throws IOException {
+    int numUnions = 6;
+    String line = getWordAndPairsLine(20, numUnions);
+    ParserProgram program = new ParserProgram(getWordAndPairsType(numUnions));
+    Assert.assertNotNull(program.parse(line));
+
+    program.setSearchBudget(10);
+    Assert.assertNull("Search should have run out of steps", program.parse(line));
+  }
+
+  /**
+   * The struct that fails on the word fails the same way under every
+   * combination of union branches.  Without remembering that, each of the
+   * 2^10 combinations would spend more than 500 steps on it.
+   */
+  @Test(timeout=10000)
+  public void testSearchRemembersFailures() throws IOException {
+    int numUnions = 10;
+    int wordLength = 500;
+    String line = getWordAndPairsLine(wordLength, numUnions);
+    ParserProgram program = new ParserProgram(getWordAndPairsType(numUnions));
+    program.setSearchBudget(wordLength * (1 << numUnions) / 4);
+    GenericContainer r = program.parse(line);
+    Assert.assertNotNull("Search ran out of steps", r);
+  }
+
+  /**
+   * A try that fails at the first union in the line says nothing about the
+   * unions after it, so the search doesn't try their branches under it.
+   * Trying every combination of the 12 unions takes more than 50000 steps.
+   */
+  @Test(timeout=10000)
+  public void testSearchAbandonsPrefix() throws IOException {
+    int numUnions = 12;
+    String line = getWordAndPairsLine(5, numUnions);
+    ParserProgram program = new ParserProgram(getWordAndPairsType(numUnions));
+    program.setSearchBudget(20000);
+    GenericContainer r = program.parse(line);
+    Assert.assertNotNull("Search ran out of steps", r);
+    Assert.assertEquals(recordString(r), recordString(getWordAndPairsType(numUnions).parseRecursive(line)));
+  }
+
+  @Test(timeout=10000)
+  public void testReuseArrayElements() throws IOException {
+    ParserProgram program = new ParserProgram(getMixedType());
+
+    GenericData.Record r1 = (GenericData.Record) program.parse("1;10,20,30,|1.5", null);
+    GenericData.Array a1 = getArrayField(r1);
+    Assert.assertEquals(3, a1.size());
+    Object elts[] = a1.toArray();
+
+    // A shorter array keeps the first elements, and the rest wait behind peek()
+    GenericData.Record r2 = (GenericData.Record) program.parse("2;40,|1.5", r1);
+    Assert.assertSame(r1, r2);
+    GenericData.Array a2 = getArrayField(r2);
+    Assert.assertSame(a1, a2);
+    Assert.assertEquals(1, a2.size());
+    Assert.assertSame(elts[0], a2.get(0));
+    Assert.assertSame(elts[1], a2.peek());
+    Assert.assertEquals(recordString(program.parse("2;40,|1.5")), recordString(r2));
+
+    // A longer array takes those elements back before it allocates new ones
+    GenericData.Record r3 = (GenericData.Record) program.parse("3;50,60,70,80,|1.5", r2);
+    GenericData.Array a3 = getArrayField(r3);
+    Assert.assertEquals(4, a3.size());
+    for (int i = 0; i < elts.length; i++) {
+      Assert.assertSame(elts[i], a3.get(i));
+    }
+    Assert.assertEquals(recordString(program.parse("3;50,60,70,80,|1.5")), recordString(r3));
+  }
+
+  @Test(timeout=10000)
+  public void testReuseClearsAndSwitchesBranches() throws IOException {
+    ParserProgram program = new ParserProgram(getMixedType());
+
+    GenericData.Record r = (GenericData.Record) program.parse("abc;1,|1.5", null);
+    List<Schema.Field> fields = r.getSchema().getFields();
+    String wordField = fields.get(0).name();
+    String lastField = fields.get(fields.size() - 1).name();
+    Object word = r.get(wordField);
+    GenericData.Record last = (GenericData.Record) r.get(lastField);
+    Assert.assertEquals("abc", word.toString());
+
+    // The whitespace branch has no data, so the field that held "abc" must be cleared.
+    // The last union takes its other branch, so it can't keep the old record.
+    r = (GenericData.Record) program.parse(" ;1,|ab,cd", r);
+    Assert.assertEquals(recordString(program.parse(" ;1,|ab,cd")), recordString(r));
+    Assert.assertNull(r.get(wordField));
+    Assert.assertNotSame(last, r.get(lastField));
+    Assert.assertNotSame(last.getSchema(), ((GenericData.Record) r.get(lastField)).getSchema());
+
+    // Back to the first shapes, with the other branches' values left to reuse
+    r = (GenericData.Record) program.parse("7;1,|2.5", r);
+    Assert.assertEquals(recordString(program.parse("7;1,|2.5")), recordString(r));
+    r = (GenericData.Record) program.parse("xyz;1,|3.5", r);
+    Assert.assertEquals(recordString(program.parse("xyz;1,|3.5")), recordString(r));
+  }
+
+  /**
+   * Parse lines of alternating shapes, each over the one before, and
+   * compare each result with a fresh parse.
+   */
+  @Test(timeout=10000)
+  public void testReuseAlternatingShapes() throws IOException {
+    ParserProgram program = new ParserProgram(getMixedType());
+    String lines[] = {"1;1,2,3,|1.5", "abcdef;|xy,zw", " ;4,|zw,xy", "12;5,6,7,8,9,|2.5",
+                      "xy;|1.5", " ;1,|longerword,ab", "nomatch", "ab;2,|ab,verylongword",
+                      "3;;|1.5", "qr;3,4,|7.7"};
+    GenericContainer reuse = null;
+    for (int pass = 0; pass < 3; pass++) {
+      for (String s: lines) {
+        String expected = recordString(program.parse(s));
+        GenericContainer r = program.parse(s, reuse);
+        Assert.assertEquals("Reused record differs on line '" + s + "'", expected, recordString(r));
+        if (r != null) {
+          reuse = r;
+        }
+      }
+    }
+
+    // The sample files too, each parsed over its own previous line
+    List<File> sampleFiles = getSampleFiles();
+    for (File typeFile: sampleFiles) {
+      ParserProgram sampleProgram = new ParserProgram(new LearnStructure().inferType(readLines(typeFile)));
+      reuse = null;
+      for (File f: sampleFiles) {
+        for (String s: readLines(f)) {
+          String expected = recordString(sampleProgram.parse(s));
+          GenericContainer r = sampleProgram.parse(s, reuse);
+          Assert.assertEquals("Reused record differs on line '" + s + "' of " + f.getName() + " with the structure of " + typeFile.getName(),
+                              expected, recordString(r));
+          if (r != null) {
+            reuse = r;
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+
+/**
+ * TestTokenizer checks that the single-pass Tokenizer.tokenize() yields
+ * exactly the same tokens as the regex-based tokenizeWithRegex().
+ *
+ * @see Tokenizer
+ */
+public class TestTokenizer {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+
+  static String[] edgeCases = {
+    "",
+    "   ",
+    "1.2.3.4.5 1.2.3. 1.2.3.4. *.1.*.* *. *.* *.1.",
+    "drwxr-xr-x -rw-r--r-- drwx",
+    "Jan 3 2011 January 12 Janitor 5 Jan 5 Janitor 12/31/2011 2011/12/31 31.12.2011 1969/1/1 32/1/2000",
+    "0012/5/2000 111 1 1999 May  4 may.4",
+    "12:30:45 12:30 1:30 12:3",
+    "1.5-2.5 .5-.5 3-4 3- -5 +5 -.5 +.5 5. .",
+    "[a [b] c] {x} <y> (z) \"q\" 'r' [unclosed \"",
+    "foo,bar;baz|qux a b",
+    "tab\there\rand\u000Bvt\fff",
+    "caf\u00e9 \ud83d\ude00x x\ud83d\ude00 \ud83d"
+  };
+
+  static String tokenString(List<?> toks) {
+    if (toks == null) {
+      return "null";
+    }
+    StringBuffer buf = new StringBuffer();
+    for (Object tok: toks) {
+      buf.append(tok.toString() + "  ");
+    }
+    return buf.toString();
+  }
+
+  void compareTokenizers(String line) throws IOException {
+    Assert.assertEquals("Tokens differ for line '" + line + "'",
+                        tokenString(Tokenizer.tokenizeWithRegex(line)),
+                        tokenString(Tokenizer.tokenize(line)));
+  }
+
+  @Test(timeout=20000)
+  public void testSampleData() throws IOException {
+    for (File f: sampleDir.listFiles()) {
+      if (! f.getName().endsWith(".txt")) {
+        continue;
+      }
+      BufferedReader in = new BufferedReader(new FileReader(f));
+      try {
+        String s = null;
+        while ((s = in.readLine()) != null) {
+          compareTokenizers(s);
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  @Test(timeout=10000)
+  public void testEdgeCases() throws IOException {
+    for (String s: edgeCases) {
+      compareTokenizers(s);
+    }
+  }
+}